@@ -0,0 +1,324 @@
+//------------------------------------------------------------------------------
+// Benchmark layouts, stucks and btrees
+// Philip R Brenan at appaapps dot com, Appa Apps Ltd Inc., 2025
+//------------------------------------------------------------------------------
+package com.AppaApps.Silicon;                                                   // Btree in a block on the surface of a silicon chip.
+
+import java.util.*;
+
+class Bench extends Test                                                        // Time the basic operations on layouts, stucks and btrees quickly as a smoke test. The repeatable numbers come from the JMH benchmarks in jmh/ which reuse the keys and programs made here: mvn -P jmh package; java -jar target/benchmarks.jar
+ {final int size;                                                               // The number of stucks in the btree and the number of keys inserted into it
+  final int maxStuckSize;                                                       // The maximum number of entries in a stuck
+  final int bitsPerKey;                                                         // The number of bits in a key
+  final int bitsPerData;                                                        // The number of bits in a data field which must be able to address every stuck
+  final Distribution distribution;                                              // Order in which keys are presented
+  final int warmUp;                                                             // Number of rounds run before measuring to let the JIT settle
+  final int iterations;                                                         // Number of rounds measured
+  final int[]keys;                                                              // Keys to be used
+  final Stack<String> report;                                                   // Results are appended here one line per benchmark
+  int failures;                                                                 // Number of runs of the current benchmark whose program stopped with a return code
+
+  enum Distribution {sequential, reverse, random};                              // Key distributions
+
+//D1 Construction                                                               // Create a benchmark for one combination of parameters
+
+  Bench(int Size, int MaxStuckSize, int BitsPerKey, Distribution Distribution,  // Create a benchmark for one combination of parameters
+        int WarmUp, int Iterations, Stack<String> Report)
+   {size         = Size;
+    maxStuckSize = MaxStuckSize;
+    bitsPerKey   = BitsPerKey;
+    bitsPerData  = max(BitsPerKey, logTwo(Size)+1);
+    distribution = Distribution;
+    warmUp       = WarmUp;
+    iterations   = Iterations;
+    report       = Report;
+    keys         = keys(Size, BitsPerKey, Distribution);
+   }
+
+  static int[]keys(int N, int BitsPerKey, Distribution Distribution)            // Generate distinct keys from 1 to N in the specified order. Random keys come from Btree.random_100 if they fit else from a shuffle with a fixed seed so that the runs are repeatable
+   {final int[]k = new int[N];
+    switch (Distribution)
+     {case sequential -> {for (int i = 0; i < N; i++) k[i] = i + 1;}
+      case reverse    -> {for (int i = 0; i < N; i++) k[i] = N - i;}
+      case random     ->
+       {if (N <= Btree.random_100.length && logTwo(1000) <= BitsPerKey)         // The keys of random_100 are all less than 1000
+         {for (int i = 0; i < N; i++) k[i] = Btree.random_100[i];
+         }
+        else
+         {final Random r = new Random(N);
+          for (int i = 0; i < N; i++) k[i] = i + 1;
+          for (int i = N - 1; i > 0; i--)                                       // Fisher Yates shuffle
+           {final int j = r.nextInt(i + 1), t = k[i];
+            k[i] = k[j]; k[j] = t;
+           }
+         }
+       }
+     }
+    return k;
+   }
+
+//D1 Measurement                                                                // Time a benchmark
+
+  abstract class Benchmark                                                      // A benchmark: set up, then time a round of operations
+   {final String name;                                                          // Name of the benchmark
+    final int    ops;                                                           // Number of operations in each round
+    Benchmark(String Name, int Ops) {name = Name; ops = Ops; measure();}
+    void setUp() {}                                                             // Prepare for a round. Not timed
+    abstract void round();                                                      // Execute one round of operations
+
+    void measure()                                                              // Run the warm up rounds then time the measured rounds and report the median and minimum time per operation
+     {failures = 0;
+      for (int i = 0; i < warmUp; i++) {setUp(); round();}
+      final double[]t = new double[iterations];
+      for (int i = 0; i < iterations; i++)
+       {setUp();
+        final long start = System.nanoTime();
+        round();
+        t[i] = (System.nanoTime() - start) / (double)ops;
+       }
+      Arrays.sort(t);
+      report.push(String.format("%-24s  %6d  %6d  %6d  %-10s  %12.1f  %12.1f  %6d",
+        name, size, maxStuckSize, bitsPerKey, distribution,
+        iterations > 0 ? t[iterations / 2] : 0d,
+        iterations > 0 ? t[0]              : 0d, failures));
+     }
+   }
+
+  static String header()                                                        // Title line of the report
+   {return String.format("%-24s  %6s  %6s  %6s  %-10s  %12s  %12s  %6s",
+      "Benchmark", "Size", "Stuck", "Bits", "Keys", "Median ns/op", "Min ns/op", "Failed");
+   }
+
+//D1 Benchmarks                                                                 // The operations being timed
+
+  void layout()                                                                 // Read, write and move the elements of an array in a layout
+   {final Layout l = new Layout(String.format("""
+a    array %d
+  b  var   %d
+""", size, bitsPerKey));
+    final Layout.Field b = l.locateFieldByName("b");
+
+    new Benchmark("Layout.Field.write", size)
+     {void round() {for (int i = 0; i < size; i++) b.write(keys[i], i);}
+     };
+    new Benchmark("Layout.Field.read", size)
+     {void round() {for (int i = 0; i < size; i++) b.read(i);}
+     };
+    new Benchmark("Layout.Field.move", size)
+     {void round() {for (int i = 0; i < size; i++) b.move(i, b, size - 1 - i);}
+     };
+   }
+
+  void stuck()                                                                  // Search, insert and split stucks
+   {final Stuck s = new Stuck(maxStuckSize, bitsPerKey, bitsPerData);
+    final Stuck l = new Stuck(maxStuckSize, bitsPerKey, bitsPerData);
+    final Stuck r = new Stuck(maxStuckSize, bitsPerKey, bitsPerData);
+    final Layout.Field found = s.found(), index = s.index();
+    final int M = maxStuckSize;
+
+    new Benchmark("Stuck.search_le", size)
+     {void setUp()
+       {s.clear();
+        for (int i = 0; i < M-1; i++)                                           // A branch has room for the top child
+         {s.stuckKeys.value = 2 * i + 2; s.stuckData.value = i; s.push();
+         }
+       }
+      void round()
+       {for (int i = 0; i < size; i++)
+         {s.stuckKeys.value = keys[i] % (2 * M); s.search_le(found, index);
+         }
+       }
+     };
+
+    new Benchmark("Stuck.insertElementAt", size)
+     {void round()
+       {for (int i = 0; i < size; i++)
+         {s.stuckSize.value = M-1;
+          index.value       = i % M;
+          s.stuckKeys.value = keys[i]; s.stuckData.value = i;
+          s.insertElementAt(index);
+         }
+       }
+     };
+
+    new Benchmark("Stuck.splitIntoTwo", size)
+     {void setUp()
+       {s.clear();
+        for (int i = 0; i < M; i++)
+         {s.stuckKeys.value = i + 1; s.stuckData.value = i; s.push();
+         }
+       }
+      void round() {for (int i = 0; i < size; i++) s.splitIntoTwo(l, r, M / 2);}
+     };
+   }
+
+  Btree btree()                                                                 // Create a btree to benchmark
+   {return new Btree(size, maxStuckSize, bitsPerKey, bitsPerData);
+   }
+
+  void fill(Btree b, Layout.Program put)                                        // Put all the keys into a btree using a previously generated put program
+   {b.L.continueProgram(put);
+    for (int i = 0; i < size; i++)
+     {b.stuckKeys.value = keys[i]; b.stuckData.value = i;
+      runProgram(b);
+     }
+   }
+
+  void runProgram(Btree b)                                                      // Run the current program of a btree counting the runs that fail so that a benchmark cannot quietly time abandoned operations
+   {b.runProgram();
+    if (b.L.P.rc != null) ++failures;
+   }
+
+  Layout.Program program(Btree b, Runnable code)                                // Generate a program for a btree that can be run repeatedly
+   {b.startNewProgram();                                                        // Steps are limited by the static bound of the program
+    b.L.P.supressErrorMessagePrint = true;                                      // Failures are counted and reported rather than printed for each run
+    code.run();
+    return b.L.P;
+   }
+
+  void btree(String Op)                                                         // Put, find or delete each key in a btree
+   {final Btree[]b = new Btree[1];
+    final Layout.Program[]put = new Layout.Program[1], op = new Layout.Program[1];
+
+    new Benchmark("Btree."+Op, size)
+     {void setUp()
+       {b[0]   = btree();
+        put[0] = program(b[0], () -> b[0].put());
+        if (Op.equals("put")) return;
+        fill(b[0], put[0]);
+        op[0] = program(b[0], () ->                                             // Variables must be created after the program has been started so that they generate code into it
+         {final Stuck        s = b[0].stuck();
+          final Layout.Field k = s.key(), f = s.found(), d = s.data();
+          if (Op.equals("find"))
+           {k.iMove(b[0].stuckKeys);
+            b[0].find(k, f, d, b[0].index(), s.index());
+           }
+          else b[0].delete(d);
+         });
+       }
+      void round()
+       {if (Op.equals("put")) {fill(b[0], put[0]); return;}
+        b[0].L.continueProgram(op[0]);
+        for (int i = 0; i < size; i++)
+         {b[0].stuckKeys.value = keys[i];
+          runProgram(b[0]);
+         }
+       }
+     };
+   }
+
+  void run()                                                                    // Run every benchmark for this combination of parameters
+   {layout();
+    stuck();
+    btree("put");
+    btree("find");
+    btree("delete");
+   }
+
+//D1 Driver                                                                     // Run the benchmarks over a grid of parameters
+
+  static int[]parameter(String[]args, String name, int...Default)               // Comma separated integer values of a name=value argument
+   {for (String a : args)
+     {if (a.startsWith(name+"="))
+       {return Arrays.stream(a.substring(name.length()+1).split(","))
+          .mapToInt(Integer::parseInt).toArray();
+       }
+     }
+    return Default;
+   }
+
+  static Stack<String> benchmark(String[]args)                                  // Run the benchmarks over the parameters specified as name=value,value... arguments: size, stuck, bits, keys, warmUp, iterations
+   {final int[]sizes  = parameter(args, "size",       32, 64);
+    final int[]stucks = parameter(args, "stuck",      4);
+    final int[]bits   = parameter(args, "bits",       16);
+    final int   warm  = parameter(args, "warmUp",     3)[0];
+    final int   iter  = parameter(args, "iterations", 5)[0];
+    final Stack<Distribution> distributions = new Stack<>();
+    for (String a : args)
+     {if (a.startsWith("keys="))
+       {for (String d : a.substring(5).split(",")) distributions.push(Distribution.valueOf(d));
+       }
+     }
+    if (distributions.size() == 0) distributions.addAll(Arrays.asList(Distribution.values()));
+
+    final Stack<String> report = new Stack<>();
+    report.push(header());
+    for (int z : sizes)
+      for (int m : stucks)
+        for (int b : bits)
+          for (Distribution d : distributions)
+            new Bench(z, m, b, d, warm, iter, report).run();
+    return report;
+   }
+
+//D1 Tests                                                                      // Test the benchmarks
+
+  static void test_keys()
+   {ok(Arrays.toString(keys(5, 16, Distribution.sequential)), "[1, 2, 3, 4, 5]");
+    ok(Arrays.toString(keys(5, 16, Distribution.reverse)),    "[5, 4, 3, 2, 1]");
+    ok(Arrays.toString(keys(5, 16, Distribution.random)),     "[27, 442, 545, 317, 511]");
+    ok(Arrays.toString(keys(5,  8, Distribution.random)),     "[4, 2, 5, 1, 3]");
+   }
+
+  static void test_benchmark()
+   {final Stack<String> r = benchmark(new String[]{"size=8", "keys=random", "warmUp=0", "iterations=1"});
+    ok(r.size(), 10);
+    ok(r.firstElement(), header());
+    final StringBuilder s = new StringBuilder();
+    for (int i = 1; i < r.size(); i++)
+     {final String l = r.elementAt(i);
+      s.append(l.substring(0, 56)+"\n");
+      ok(l.endsWith("  0"));                                                    // Every run of every benchmark succeeded
+     }
+    ok(""+s, """
+Layout.Field.write             8       4      16  random
+Layout.Field.read              8       4      16  random
+Layout.Field.move              8       4      16  random
+Stuck.search_le                8       4      16  random
+Stuck.insertElementAt          8       4      16  random
+Stuck.splitIntoTwo             8       4      16  random
+Btree.put                      8       4      16  random
+Btree.find                     8       4      16  random
+Btree.delete                   8       4      16  random
+""");
+   }
+
+  static void test_failures()                                                   // Runs whose program stops are counted
+   {final Bench b = new Bench(8, 4, 16, Distribution.sequential, 0, 0, new Stack<String>());
+    final Btree t = b.btree();
+    b.program(t, () -> t.L.P.new Instruction()
+     {void action() {t.L.P.stopProgram("Cannot complete");}
+     });
+    b.runProgram(t);
+    b.runProgram(t);
+    ok(b.failures, 2);
+   }
+
+  static void oldTests()                                                        // Tests thought to be in good shape
+   {test_keys();
+    test_benchmark();
+    test_failures();
+   }
+
+  static void newTests()                                                        // Tests being worked on
+   {oldTests();
+   }
+
+  public static void main(String[] args)                                        // Run the benchmarks, or the tests if on github or if the only argument is "test"
+   {try                                                                         // Get a traceback in a format clickable in Geany if something goes wrong to speed up debugging.
+     {if (github_actions || args.length == 1 && args[0].equals("test"))
+       {if (github_actions) oldTests(); else newTests();                        // Tests to run
+        testSummary();                                                          // Summarize test results
+        System.exit(testsFailed);
+       }
+      final Timer t = timer();
+      for (String s : benchmark(args)) say(s);                                  // Print the results
+      say("Benchmarks took", String.format("%6.2f", t.seconds()), "seconds");
+     }
+    catch(Exception e)                                                          // Get a traceback in a format clickable in Geany
+     {System.err.println(e);
+      System.err.println(fullTraceBack(e));
+      System.exit(1);
+     }
+   }
+ }
@@ -19,18 +19,47 @@ class Btree extends Test
   final Layout.Field stuckSize;                                                 // Current size of stuck up to the maximum size
   final Layout.Field stuckKeys;                                                 // Keys field
   final Layout.Field stuckData;                                                 // Data field
+  final boolean orderStatistics;                                                // Whether each stuck records the number of keys in the subtree below it
+  final Layout.Field stuckCount;                                                // Number of keys in the subtree rooted at each stuck if order statistics are being maintained else null
+  final Layout.Field walkAt;                                                    // Index of the stuck being examined while walking the tree
+  final Layout.Field walkEntry;                                                 // Index of the entry within the stuck being examined while walking the tree
+  Layout       bloom;                                                           // Optional bloom filter consulted by find before descending the tree or null if there is no bloom filter
+  Layout.Field bloomBit;                                                        // The bits of the bloom filter
+  int          bloomSize;                                                       // Number of bits in the bloom filter
+  int          bloomHashes;                                                     // Number of hash functions used by the bloom filter
+  int          bloomDeletes;                                                    // Keys deleted since the bloom filter was last built. Keys cannot be removed from a bloom filter so each deletion leaves a false positive until the filter is rebuilt
+  int          bloomRejections;                                                 // Number of finds answered by the bloom filter without descending the tree
+  Layout       compaction;                                                      // Working memory for the Verilog of compact() which needs a copy of the stucks in use while it rewrites them or null until it is first needed
+  boolean      fingerSearch = true;                                             // Start each find at the deepest stuck on the previous path whose key range still covers the key
+  final Stack<Finger> finger = new Stack<>();                                   // The stucks on the path taken by the last find from the root downwards with the range of keys each covers
+  int          fingerLevelsSkipped;                                             // Number of levels of descent avoided by starting below the root
+  enum SplitPolicy {even, append, prepend, adaptive};                           // Where to split a full leaf: down the middle, leaving most keys on the left for ascending inserts, leaving most keys on the right for descending inserts, or chosen from the recent pattern of inserts
+  SplitPolicy  splitPolicy = SplitPolicy.even;                                  // How full leaves are split
+  int          putTrend;                                                        // Length of the current run of ascending, positive, or descending, negative, keys passed to put
+  int          lastPutKey;                                                      // The last key passed to put
+  long         stucksCopied;                                                    // Number of stucks copied out of or saved into the tree
+  int          operationKey;                                                    // Key of the latest operation to start while metrics or events are being collected
+  long         operationSteps;                                                  // Steps executed by the program when that operation started
+  long         operationStucks;                                                 // Stucks copied when that operation started
+  Metrics      metrics;                                                         // Counters and histograms describing the work done by the tree or null if none are being collected. Set before generating the programs to be measured
   boolean supressMerge = false;                                                 // Supress merges during put to allow merge steps to be tested individually.  If this is on the trees built for testing are already merged so there is nothing to test.
   static boolean debug = false;                                                 // Debug if enabled
 
 //D1 Construction                                                               // Construct and layout a btree
 
   Btree(int Size, int MaxStuckSize, int BitsPerKey, int BitsPerData)            // Create the Btree
+   {this(Size, MaxStuckSize, BitsPerKey, BitsPerData, false);
+   }
+
+  Btree(int Size, int MaxStuckSize, int BitsPerKey, int BitsPerData,            // Create the Btree optionally maintaining the number of keys below each stuck so that rank, select and count in range queries can be answered by a single descent
+        boolean OrderStatistics)
    {if (MaxStuckSize % 2 == 1) stop("The stuck size must be even, not:", MaxStuckSize);
     if (MaxStuckSize < 4)      stop("The stuck size must be greater than equal to 4, not:", MaxStuckSize);
     size         = Size;                                                        // The maximum number of entries in the btree.
     maxStuckSize = MaxStuckSize;                                                // The maximum number of entries in the stuck.
     bitsPerKey   = BitsPerKey;                                                  // The number of bits needed to define a key
     bitsPerData  = BitsPerData;                                                 // The number of bits needed to define a data field
+    orderStatistics = OrderStatistics;                                          // Maintain the number of keys below each stuck
     L            = layout();                                                    // Layout of the btree
     freeStart    = L.locateFieldByName("freeStart");                            // Start of free chain. Initially all sticks are on the free chain except the root stuck
     stuckIsLeaf  = L.locateFieldByName("stuckIsLeaf");                          // Whether the stuck is a leaf
@@ -39,25 +68,31 @@ class Btree extends Test
     stuckSize    = L.locateFieldByName("stuckSize");                            // Current size of stuck up to the maximum size
     stuckKeys    = L.locateFieldByName("stuckKeys");                            // Keys field
     stuckData    = L.locateFieldByName("stuckData");                            // Data field
+    stuckCount   = L.locateFieldByName("stuckCount");                           // Number of keys below each stuck or null if order statistics are not being maintained
+    walkAt       = index();                                                     // Index of the stuck being examined while walking the tree
+    walkEntry    = variable("walkEntry", logTwo(maxStuckSize)+1);               // Index of the entry in the stuck being examined while walking the tree
 
     iCreateFreeChain();                                                         // Create the free chain
+    L.P.boundSteps = true;                                                      // Limit the steps of each program to its static bound
    }
 
   Layout layout()                                                               // Layout describing Btree.
    {if (logTwo(size) >= bitsPerData)                                            // The data field must be big enought to act as a node pointer in branches and a data pointer in leaves to locate the actual dfata held else where
      {stop("Bits per data too small for tree of this size");
      }
-    return new Layout(String.format("""
+    final String count = orderStatistics ?                                      // Number of keys in the subtree below each stuck
+      String.format("  stuckCount   var    %d\n", logTwo(size*maxStuckSize)+1) : "";
+    return Layout.template(String.format("""
 freeStart      var    %d
 stucks         array  %d
   stuckIsLeaf  bit
   stuckIsFree  bit
   freeNext     var    %d
   stuckSize    var    %d
-  stuck        array  %d
+%s  stuck        array  %d soa
     stuckKeys  var    %d
     stuckData  var    %d
-""", logTwo(size)+1, size, logTwo(size)+1, logTwo(maxStuckSize)+1, maxStuckSize, bitsPerKey, bitsPerData));
+""", logTwo(size)+1, size, logTwo(size)+1, logTwo(maxStuckSize)+1, count, maxStuckSize, bitsPerKey, bitsPerData));
    }
 
   Layout.Field variable(String name, int size)                                  // Create a variable
@@ -74,11 +109,111 @@ stucks         array  %d
   Layout.Field found()        {return variable("found",              1);}       // Create a bit for whether a key has been found
   Layout.Field leafFull()     {return variable("leafFull",           1);}       // Create a bit for a leaf is full
   Layout.Field branchFull()   {return variable("branchFull",         1);}       // Create a bit for a branch is full
+  int maxHeight() {return logTwo(size)+1;}                                      // Maximum height of the tree: every branch has at least two children so a tree of this height needs at least 2**(height-1) leaves
+  Layout.Field rank()         {return variable("rank", logTwo(size*maxStuckSize)+1);} // Create a field capable of holding the rank of a key or a count of keys
 
-  void runProgram()                      {L.runProgram();}
+  Layout.Field[]stucks() {return new Layout.Field[]{stuckSize, stuckKeys, stuckData};}          // The memory holding the stucks of the btree which copying a stuck reads and saving a stuck writes
+  Layout.Field[]chain()  {return new Layout.Field[]{freeStart, freeNext, stuckIsFree, stuckIsLeaf};}// The free chain and the leaf flags which allocating and freeing a stuck update
+  Layout.Field[]counts() {return stuckCount == null ? new Layout.Field[0] : new Layout.Field[]{stuckCount};}// The key counts which splits and merges update if order statistics are being maintained
+
+  void runProgram()                                                             // Run the program forgetting the path of the last find if the memory written by a failed transactional program was rolled back
+   {L.runProgram();
+    if (L.P.rc != null && L.P.transactional) invalidateFinger();
+   }
   void clearProgram()                    {L.clearProgram();}
   void stopProgram(String message)       {L.stopProgram(message);}
-  Layout.Program startNewProgram()       {return L.startNewProgram();}
+
+//D2 Instrumentation                                                           // Collect metrics and flight recorder events describing the work done by the tree
+
+  private void count(String name)                                               // Increment the named counter if metrics are being collected
+   {if (metrics != null) metrics.count(name);
+   }
+
+  class Measure                                                                 // The state of the tree at the start of an operation
+   {int  key;                                                                   // Key being processed
+    long steps;                                                                 // Steps executed by the program at the start of the operation
+    long stucks;                                                                // Stucks copied at the start of the operation
+    long cycles;                                                                // Clock cycles charged by the cycle model at the start of the operation
+    int  operation;                                                             // Operation to which the trace was attributing accesses before this operation started
+    boolean active;                                                             // Whether metrics, a trace or a recording was listening when the operation started
+    Events.Operation event;                                                     // Flight recorder event timing the operation if one has been requested
+   }
+
+  private Measure iOperationStart(String Op, Layout.Field Key)                  // Generate an instruction recording the state of the tree at the start of an operation for whichever of metrics, flight recorder events or a trace of memory accesses are being collected when the instruction is executed
+   {final Layout.Program p = L.P;
+    final Measure        m = new Measure();
+    p.new Instruction()
+     {void action()
+       {m.active = metrics != null || p.trace != null || Events.enabled();      // A recording, metrics or a trace might have started after the program was generated
+        if (!m.active) return;                                                  // Nothing is listening
+        m.key    = operationKey    = Key.value;
+        m.steps  = operationSteps  = p.steps;
+        m.stucks = operationStucks = stucksCopied;
+        m.cycles = p.cycles;
+        if (p.trace != null)                                                    // Attribute memory accesses to this operation
+         {m.operation = p.trace.currentOperation;
+          p.trace.operation(Op);
+         }
+        if (Events.operations())                                                // Time the operation
+         {m.event = new Events.Operation();
+          m.event.begin();
+         }
+       }
+      String verilog() {return "";}                                             // Instrumentation has no hardware
+     }.reads(Key).writes();
+    return m;
+   }
+
+  private void iOperationEnd(String Op, Measure m)                              // Generate an instruction recording the steps executed and stucks copied by an operation that started with iOperationStart
+   {final Layout.Program p = L.P;
+    p.new Instruction()
+     {void action()
+       {if (!m.active) return;                                                  // Nothing was listening when the operation started
+        final long steps  = p.steps      - m.steps;
+        final long stucks = stucksCopied - m.stucks;
+        if (p.trace != null) p.trace.currentOperation = m.operation;            // Resume attributing accesses to any enclosing operation
+        if (metrics != null)
+         {metrics.count (Op);
+          metrics.record(Op+".steps",        steps);
+          metrics.record(Op+".stucksCopied", stucks);
+          if (p.cycleModel != null) metrics.record(Op+".cycles", p.cycles - m.cycles);
+         }
+        final Events.Operation e = m.event;
+        if (e != null)
+         {m.event = null;
+          e.end();
+          if (e.shouldCommit())
+           {e.operation = Op;
+            e.key       = m.key;
+            e.height    = height();
+            e.steps     = steps;
+            e.stucks    = stucks;
+            e.commit();
+           }
+         }
+       }
+      String verilog() {return "";}                                             // Instrumentation has no hardware
+     }.reads().writes();
+   }
+
+  private void changed(String Kind)                                             // Record a split or merge that changed the shape of the tree
+   {count(Kind);
+    if (!Events.changes()) return;                                              // Nobody is recording changes
+    final Events.Change e = new Events.Change();
+    if (!e.shouldCommit()) return;
+    e.change = Kind;
+    e.key    = operationKey;
+    e.height = height();
+    e.steps  = L.P.steps    - operationSteps;
+    e.stucks = stucksCopied - operationStucks;
+    e.commit();
+   }
+  Layout.Program startNewProgram()                                              // Start a new program whose steps are limited by its static bound returning the previous program so that it can be continued
+   {final Layout.Program p = L.startNewProgram();
+    release(p);                                                                 // The new program can reuse the scratch stucks of the previous program
+    L.P.boundSteps = true;
+    return p;
+   }
   void continueProgram(Layout.Program p) {L.continueProgram(p);}
 
 //D2 Allocation                                                                 // Allocate stucks from the free chain
@@ -119,7 +254,16 @@ stucks         array  %d
     freeNext .read(index);                                                      // Locate next stuck on free chain to become new first stuck on free chain
     freeStart.move(freeNext);                                                   // Next stuck on free chain becomes head of free chain
     freeNext .zero(index);                                                      // Clear the next field from the current stuck
+    count("allocations");
     if (leaf) setLeaf(ref); else setBranch(ref);
+    invalidateFinger();                                                         // The shape of the tree is changing
+   }
+
+  private String allocateV(Layout.Field ref, boolean leaf)                      // Allocate a stuck and set a ref to the allocated node in Verilog
+   {return "if ("+freeStart.vValue()+" == 0) begin "+L.P.stopV()+" end else begin "+
+      ref.moveV(freeStart)+" "+stuckIsFree.vZero(ref)+" "+freeNext.readV(ref)+" "+
+      freeStart.moveV(freeNext)+" "+freeNext.vZero(ref)+" "+
+      stuckIsLeaf.constantV(leaf ? 1 : 0, ref)+" end";
    }
 
   private void iAllocate(Layout.Field ref, boolean leaf)                        // Allocate a stuck and set a ref to the allocated node
@@ -127,7 +271,8 @@ stucks         array  %d
      {void action()
        {allocate(ref, leaf);
        }
-     };
+      String verilog() {return allocateV(ref, leaf);}
+     }.uses(chain()).writes(ref);
    }
 
   private void  allocateLeaf  (Layout.Field ref) { allocate(ref, true);}        // Allocate a stuck, set a ref to the allocated node and mark it a leaf
@@ -145,6 +290,14 @@ stucks         array  %d
     freeNext   .write(ref);                                                     // Append the free chain to this stuck
     freeStart  .move (ref);                                                     // This stuck becomes the first stuick on the free chain
     stuckIsFree.one  (ref);                                                     // Show as free
+    count("frees");
+    invalidateFinger();                                                         // The shape of the tree is changing
+   }
+
+  private String freeV(Layout.Field ref)                                        // Free the indicated stuck to make it available for reuse in Verilog
+   {return "if ("+ref.vValue()+" == 0) begin "+L.P.stopV()+" end else begin "+
+      freeNext.moveV(freeStart)+" "+freeNext.writeV(ref)+" "+
+      freeStart.moveV(ref)+" "+stuckIsFree.vOne(ref)+" end";
    }
 
   private void iFree(Layout.Field ref)                                          // Free the indicated stuck to make it available for reuse
@@ -152,7 +305,8 @@ stucks         array  %d
      {void action()
        {free(ref);
        }
-     };
+      String verilog() {return freeV(ref);}
+     }.reads(ref).uses(chain());
    }
 
 //D2 Stuck                                                                      // Get and set stucks within btree
@@ -163,17 +317,67 @@ stucks         array  %d
     return s;
    }
 
+  class Scratch                                                                 // A stuck that can be reused once the program that owns it has been cleared or replaced or it has been released
+   {final Stuck          stuck = stuck();                                       // The reusable stuck
+    Layout.Program       owner;                                                 // Program that owns the stuck or null if the stuck is free
+    int                  clears;                                                // Number of times the owner had been cleared when it acquired the stuck
+
+    boolean free() {return owner == null || owner.clears != clears;}            // Free if released or the code of its owner has been cleared since it was acquired
+   }
+
+  final Stack<Scratch> scratch = new Stack<>();                                 // Scratch stucks used by generated code. Programs run one at a time and load these stucks before using them so a program that is continued after it has been replaced can share them with the programs generated since
+  final Stack<Scratch> spares  = new Stack<>();                                 // Stucks lent to splits and merges while a program is running or being lowered to Verilog so that they cannot disturb the scratch stucks of the running program
+
+  private Stuck acquire(Stack<Scratch> Pool)                                    // Acquire a free stuck from a pool for the current program
+   {Scratch t = null;
+    for (Scratch s : Pool) if (s.free()) {t = s; break;}
+    if (t == null) Pool.push(t = new Scratch());
+    t.owner  = L.P;
+    t.clears = L.P.clears;
+    t.stuck.L.P = L.P;
+    t.stuck.L.releaseVariables(0);                                              // The variables of the previous owner can be reused
+    t.stuck.L.clearMemory();                                                    // Start empty as a new stuck would
+    return t.stuck;
+   }
+
+  private Stuck scratch() {return acquire(scratch);}                            // A scratch stuck owned by the current program until the program is cleared or replaced
+  private Stuck borrow()  {return acquire(spares);}                             // A stuck lent until it is released
+
+  private void release(Stuck...Stucks)                                          // Release stucks that have been borrowed
+   {for (Stuck s : Stucks)
+     {for (Scratch t : spares) if (t.stuck == s) t.owner = null;
+     }
+   }
+
+  private void release(Layout.Program Program)                                  // Release the scratch stucks owned by a program that has been replaced
+   {for (Scratch t : scratch) if (t.owner == Program) t.owner = null;
+   }
+
   void copyStuckFrom(Stuck S, Layout.Field BtreeIndex)                          // Copy a stuck out of the btree
-   {final Layout.Field stuckIndex = S.index();
+   {count("stucksCopied"); stucksCopied++;
 
     stuckSize  .read(BtreeIndex);
     S.stuckSize.move(stuckSize);
 
+    final int base = stuckKeys.address(BtreeIndex.value, 0);                    // Keys and data have the same dimensions so they share addresses
+    for (int i = 0; i < S.maxStuckSize; i++)
+     {stuckKeys.read(base+i); S.stuckKeys.move(stuckKeys); S.stuckKeys.move(i, stuckKeys);
+      stuckData.read(base+i); S.stuckData.move(stuckData); S.stuckData.move(i, stuckData);
+     }
+   }
+
+  String copyStuckFromV(Stuck S, Layout.Field BtreeIndex)                       // Copy a stuck out of the btree in Verilog by moving all of its keys and data in parallel
+   {return copyStuckFromV(S, BtreeIndex.vValue());
+   }
+
+  String copyStuckFromV(Stuck S, String b)                                      // Copy the stuck at the btree index given by a Verilog expression out of the btree
+   {final StringBuilder s = new StringBuilder(S.sizeV()+" = "+stuckSize.vMemory(b)+";");
     for (int i = 0; i < S.maxStuckSize; i++)
-     {stuckIndex.write(i);
-      stuckKeys.read(BtreeIndex, stuckIndex); S.stuckKeys.move(stuckKeys); S.stuckKeys.write(stuckIndex);
-      stuckData.read(BtreeIndex, stuckIndex); S.stuckData.move(stuckData); S.stuckData.write(stuckIndex);
+     {final String j = "("+b+") * "+maxStuckSize+" + "+i;
+      s.append(" "+S.stuckKeys.vMemory(""+i)+" = "+stuckKeys.vMemory(j)+";");
+      s.append(" "+S.stuckData.vMemory(""+i)+" = "+stuckData.vMemory(j)+";");
      }
+    return ""+s;
    }
 
   void iCopyStuckFrom(Stuck S, Layout.Field BtreeIndex)                         // Copy a stuck out of the btree
@@ -181,20 +385,35 @@ stucks         array  %d
      {void action()
        {copyStuckFrom(S, BtreeIndex);
        }
-     };
+      String verilog() {return copyStuckFromV(S, BtreeIndex);}
+     }.reads(BtreeIndex).reads(stucks()).writes(S.fields());
    }
 
   void saveStuckInto(Stuck S, Layout.Field BtreeIndex)                          // Save a stuck into the indicated position in the btree
-   {final Layout.Field stuckIndex = S.index();
+   {count("stucksCopied"); stucksCopied++;
 
     stuckSize.move(S.stuckSize);                                                // Get the size field from the btree
     stuckSize.write(BtreeIndex);                                                // Set the size field in the stuck
 
+    final int base = stuckKeys.address(BtreeIndex.value, 0);                    // Keys and data have the same dimensions so they share addresses
+    for (int i = 0; i < S.maxStuckSize; i++)
+     {S.stuckKeys.read(i); stuckKeys.move(S.stuckKeys); stuckKeys.move(base+i, S.stuckKeys);
+      S.stuckData.read(i); stuckData.move(S.stuckData); stuckData.move(base+i, S.stuckData);
+     }
+   }
+
+  String saveStuckIntoV(Stuck S, Layout.Field BtreeIndex)                       // Save a stuck into the indicated position in the btree in Verilog by moving all of its keys and data in parallel
+   {return saveStuckIntoV(S, BtreeIndex.vValue());
+   }
+
+  String saveStuckIntoV(Stuck S, String b)                                      // Save a stuck into the btree index given by a Verilog expression
+   {final StringBuilder s = new StringBuilder(stuckSize.vMemory(b)+" = "+S.sizeV()+";");
     for (int i = 0; i < S.maxStuckSize; i++)
-     {stuckIndex.write(i);
-      S.stuckKeys.read(stuckIndex); stuckKeys.move(S.stuckKeys); stuckKeys.write(BtreeIndex, stuckIndex);
-      S.stuckData.read(stuckIndex); stuckData.move(S.stuckData); stuckData.write(BtreeIndex, stuckIndex);
+     {final String j = "("+b+") * "+maxStuckSize+" + "+i;
+      s.append(" "+stuckKeys.vMemory(j)+" = "+S.stuckKeys.vMemory(""+i)+";");
+      s.append(" "+stuckData.vMemory(j)+" = "+S.stuckData.vMemory(""+i)+";");
      }
+    return ""+s;
    }
 
   void iSaveStuckInto(Stuck S, Layout.Field BtreeIndex)                         // Save a stuck into the indicated position in the btree
@@ -202,7 +421,8 @@ stucks         array  %d
      {void action()
        {saveStuckInto(S, BtreeIndex);                                           // Save a stuck into the indicated position in the btree
        }
-     };
+      String verilog() {return saveStuckIntoV(S, BtreeIndex);}
+     }.reads(BtreeIndex).reads(S.fields()).writes(stucks());
    }
 
   void copyStuckFromRoot(Stuck S)                                               // Copy a stuck out of the root of the btree
@@ -216,7 +436,8 @@ stucks         array  %d
      {void action()
        {copyStuckFromRoot(S);
        }
-     };
+      String verilog() {return copyStuckFromV(S, "0");}
+     }.reads(stucks()).writes(S.fields());
    }
 
   void saveStuckIntoRoot(Stuck S)                                               // Copy a stuck out of the root of the btree
@@ -230,7 +451,8 @@ stucks         array  %d
      {void action()
        {saveStuckIntoRoot(S);
        }
-    };
+      String verilog() {return saveStuckIntoV(S, "0");}
+     }.reads(S.fields()).writes(stucks());
    }
 
 //D1 Attributes                                                                 // Get and set attributes
@@ -239,8 +461,12 @@ stucks         array  %d
    {final Layout.Field i = index();
     i.zero();
     stuckIsLeaf.one(i);
+    invalidateFinger();                                                         // The shape of the tree is changing
    }
 
+  String setRootAsLeafV()   {return stuckIsLeaf.writeV(1, 0);}                  // Set the root to be a leaf in Verilog
+  String setRootAsBranchV() {return stuckIsLeaf.writeV(0, 0);}                  // Set the root to be a branch in Verilog
+
   void iSetRootAsLeaf()                                                         // Set the root to be a leaf
    {final Layout.Field i = index();
     i.iZero();
@@ -251,6 +477,7 @@ stucks         array  %d
    {final Layout.Field i = index();
     i.zero();
     stuckIsLeaf.zero(i);
+    invalidateFinger();                                                         // The shape of the tree is changing
    }
 
   void iSetRootAsBranch()                                                       // Set the root to be a branch
@@ -275,7 +502,7 @@ stucks         array  %d
      {void action()
        {isLeaf(index, isLeaf);
        }
-     };
+     }.reads(index, stuckIsLeaf).writes(isLeaf);
    }
 
   void isRootLeaf(Layout.Field isLeaf)                                          // Is the root a leaf?
@@ -286,7 +513,8 @@ stucks         array  %d
         stuckIsLeaf.read(i);
         isLeaf.move(stuckIsLeaf);
        }
-     };
+      String verilog() {return stuckIsLeaf.readV("0")+" "+isLeaf.moveV(stuckIsLeaf);}
+     }.reads(stuckIsLeaf).writes(isLeaf);
    }
 
   void isRootLeafFull(Layout.Field isFull)                                      // Is the root assumed to be a leaf full?
@@ -297,7 +525,10 @@ stucks         array  %d
         stuckSize.read(i);
         isFull.value = stuckSize.value >= maxStuckSize ? 1 : 0;
        }
-     };
+      String verilog()
+       {return stuckSize.readV("0")+" "+isFull.vValue()+" = "+stuckSize.vValue()+" >= "+maxStuckSize+";";
+       }
+     }.reads(stuckSize).writes(isFull);
    }
 
   void iIsRootBranchFull(Layout.Field isFullButOne)                             // Is the root assumed to be a root full?
@@ -308,7 +539,10 @@ stucks         array  %d
         stuckSize.read(i);
         isFullButOne.value = stuckSize.value >= maxStuckSize-1 ? 1 : 0;
        }
-     };
+      String verilog()
+       {return stuckSize.readV("0")+" "+isFullButOne.vValue()+" = "+stuckSize.vValue()+" >= "+(maxStuckSize-1)+";";
+       }
+     }.reads(stuckSize).writes(isFullButOne);
    }
 
 //D1 Print                                                                      // Print the tree
@@ -494,8 +728,35 @@ stucks         array  %d
 
 //D1 Split                                                                      // Split nodes in half to increase the number of nodes in the tree
 
+  int leafSplitPoint()                                                          // The number of keys to place in the left leaf when splitting a full leaf
+   {final int M = maxStuckSize;
+    final int a = max(1, min(M-1, M * 9 / 10));                                 // Leave about a tenth of the keys on the right for the key being appended
+    switch (splitPolicy)
+     {case append:   return a;
+      case prepend:  return M - a;
+      case adaptive: return putTrend >= 4 ? a : putTrend <= -4 ? M - a : M / 2; // Follow a run of ascending or descending keys long enough not to be chance
+      default:       return M / 2;
+     }
+   }
+
+  int leafSplitPointV()                                                         // The split point used by the Verilog which has no record of recent inserts and so splits evenly under the adaptive policy
+   {return splitPolicy == SplitPolicy.adaptive ? maxStuckSize / 2 : leafSplitPoint();
+   }
+
+  private String midKeyV(Layout.Field Mid, Layout.Field Lo, Layout.Field Hi)    // Set the mid point key in Verilog widening the sum so that it cannot overflow
+   {return Mid.vValue()+" = ({1'b0, "+Lo.vValue()+"} + {1'b0, "+Hi.vValue()+"}) >> 1;";
+   }
+
+  private void notePutKey(int Key)                                              // Track runs of ascending or descending keys so that the adaptive split policy can follow them
+   {if      (Key > lastPutKey) putTrend = putTrend > 0 ? putTrend + 1 :  1;
+    else if (Key < lastPutKey) putTrend = putTrend < 0 ? putTrend - 1 : -1;
+    else                       putTrend = 0;
+    lastPutKey = Key;
+   }
+
   private void splitRootLeaf()                                                  // Split a full root leaf
-   {final Stuck p = stuck(), l = stuck(), r = stuck();                          // Parent == root, left, right stucks
+   {final int   v = L.markVariables();                                          // Release the variables created by this split when it is done
+    final Stuck p = borrow(), l = borrow(), r = borrow();                       // Parent == root, left, right stucks
     final Layout.Field isFull = isFull();
     final Layout.Field cl = index(), cr = index();                              // Indexes of left and right children
     final Layout.Field pl = p.key(), pr = p.key(), plr = p.key();               // Parent key must be smaller than anything in right child yet greater than or equal to anything in the left child
@@ -505,9 +766,9 @@ stucks         array  %d
     if (!isFull.asBoolean())
      {L.P.stopProgram("A root leaf must be full before it can be split");
      }
-    p.splitIntoTwo(l, r, maxStuckSize / 2);                                     // Split the leaf root in two down the middle
-    allocateLeaf(cl); saveStuckInto(l, cl);                                     // Allocate and save left leaf
-    allocateLeaf(cr); saveStuckInto(r, cr);                                     // Allocate and save right leaf
+    p.splitIntoTwo(l, r, leafSplitPoint());                                     // Split the leaf root in two as directed by the split policy
+    allocateLeaf(cl); saveStuckInto(l, cl); countLeaf(l, cl);                   // Allocate and save left leaf
+    allocateLeaf(cr); saveStuckInto(r, cr); countLeaf(r, cr);                   // Allocate and save right leaf
 
     l.lastElement();  pl.move(l.stuckKeys);                                     // Last element of left child
     r.firstElement(); pr.move(r.stuckKeys);                                     // First element of right child
@@ -517,6 +778,30 @@ stucks         array  %d
     p.stuckKeys.move(plr); p.stuckData.move(cl); p.push();                      // Add reference to left child
     p.stuckData.move(cr);  p.setPastLastElement();                              // Add reference to right child
     saveStuckIntoRoot(p);  setRootAsBranch();                                   // Save the root stuck back into the btree and mark it as a branch
+    changed("split.splitRootLeaf");
+    release(p, l, r);
+    L.releaseVariables(v);
+   }
+
+  private String splitRootLeafV()                                               // Split a full root leaf in Verilog
+   {final int   v = L.markVariables();                                          // Release the variables created for the Verilog when it is done
+    final Stuck p = borrow(), l = borrow(), r = borrow();                       // Parent == root, left, right stucks
+    final Layout.Field cl = index(), cr = index();                              // Indexes of left and right children
+    final Layout.Field pl = p.key(), pr = p.key(), plr = p.key();               // Last key of left child, first key of right child, mid point key
+
+    final String s = copyStuckFromV(p, "0")+" "+
+      p.guardV(p.sizeV()+" < "+maxStuckSize,
+        p.splitIntoTwoV(l, r, leafSplitPointV())+" "+
+        allocateV(cl, true)+" "+saveStuckIntoV(l, cl)+" "+countLeafV(l, cl)+
+        allocateV(cr, true)+" "+saveStuckIntoV(r, cr)+" "+countLeafV(r, cr)+
+        l.lastElementV() +" "+pl.moveV(l.stuckKeys)+" "+
+        r.firstElementV()+" "+pr.moveV(r.stuckKeys)+" "+midKeyV(plr, pl, pr)+" "+
+        p.clearV()+" "+p.stuckKeys.moveV(plr)+" "+p.stuckData.moveV(cl)+" "+p.pushV()+" "+
+        p.stuckData.moveV(cr)+" "+p.setPastLastElementV()+" "+
+        saveStuckIntoV(p, "0")+" "+setRootAsBranchV());
+    release(p, l, r);
+    L.releaseVariables(v);
+    return s;
    }
 
   private void iSplitRootLeaf()                                                 // Split a full root leaf
@@ -524,11 +809,13 @@ stucks         array  %d
      {void action()
        {splitRootLeaf();
        }
-     };
+      String verilog() {return splitRootLeafV();}
+     }.uses(stucks()).uses(chain()).uses(counts());
    }
 
   private void splitRootBranch()                                                // Split a full root branch
-   {final Stuck p = stuck(), l = stuck(), r = stuck();                          // Parent == root, left, right stucks
+   {final int   v = L.markVariables();                                          // Release the variables created by this split when it is done
+    final Stuck p = borrow(), l = borrow(), r = borrow();                       // Parent == root, left, right stucks
     final Layout.Field isFullButOne = isFullButOne();
     final Layout.Field           cl = index(), cr = index();                    // Indexes of left and right children
     final int              midPoint = (maxStuckSize-1) / 2;                     // Mid point in parent
@@ -541,8 +828,8 @@ stucks         array  %d
      }
 
     p.splitIntoThree(l, r, midPoint);                                           // Split the branch root in two down the middle
-    allocateBranch(cl); saveStuckInto(l, cl);                                   // Allocate and save left branch
-    allocateBranch(cr); saveStuckInto(r, cr);                                   // Allocate and save right branch
+    allocateBranch(cl); saveStuckInto(l, cl); countBranch(l, cl);               // Allocate and save left branch
+    allocateBranch(cr); saveStuckInto(r, cr); countBranch(r, cr);               // Allocate and save right branch
                                                                                 // Update root with new children
     p.stuckKeys.read(midPoint);                                                 // Get splitting key
     p.stuckData.move(cl);                                                       // Refence to left child stuck
@@ -551,6 +838,29 @@ stucks         array  %d
     p.push();                                                                   // Add reference to left child
     p.stuckData.move(cr); p.setPastLastElement();                               // Add reference to right child as top element past the end of the stuck
     saveStuckIntoRoot(p);                                                       // Save the root stuck back into the btree and mark it as a branch
+    changed("split.splitRootBranch");
+    release(p, l, r);
+    L.releaseVariables(v);
+   }
+
+  private String splitRootBranchV()                                             // Split a full root branch in Verilog
+   {final int   v = L.markVariables();                                          // Release the variables created for the Verilog when it is done
+    final Stuck p = borrow(), l = borrow(), r = borrow();                       // Parent == root, left, right stucks
+    final Layout.Field cl = index(), cr = index();                              // Indexes of left and right children
+    final int    midPoint = (maxStuckSize-1) / 2;                               // Mid point in parent
+
+    final String s = copyStuckFromV(p, "0")+" "+
+      p.guardV(p.sizeV()+" < "+(maxStuckSize-1),
+        p.splitIntoThreeV(l, r, midPoint)+" "+
+        allocateV(cl, false)+" "+saveStuckIntoV(l, cl)+" "+countBranchV(l, cl)+
+        allocateV(cr, false)+" "+saveStuckIntoV(r, cr)+" "+countBranchV(r, cr)+
+        p.stuckKeys.readV(""+midPoint)+" "+p.stuckData.moveV(cl)+" "+
+        p.clearV()+" "+p.pushV()+" "+
+        p.stuckData.moveV(cr)+" "+p.setPastLastElementV()+" "+
+        saveStuckIntoV(p, "0"));
+    release(p, l, r);
+    L.releaseVariables(v);
+    return s;
    }
 
   private void iSplitRootBranch()                                               // Split a full root branch
@@ -558,12 +868,14 @@ stucks         array  %d
      {void action()
        {splitRootBranch();
        }
-     };
+      String verilog() {return splitRootBranchV();}
+     }.uses(stucks()).uses(chain()).uses(counts());
    }
 
   private void splitLeafNotTop                                                  // Split a full leaf that is not the root and is not the last child of its parent branch which is not full
    (Layout.Field parentIndex, Layout.Field stuckIndex)
-   {final Stuck p = stuck(), c = stuck(), l = stuck();                          // Parent which must be a branch which is not full, child at index which must be a full leaf, left and right splits of leaf
+   {final int   v = L.markVariables();                                          // Release the variables created by this split when it is done
+    final Stuck p = borrow(), c = borrow(), l = borrow();                       // Parent which must be a branch which is not full, child at index which must be a full leaf, left and right splits of leaf
     final Layout.Field isFull = isFull(), isFullButOne = isFullButOne();
     final Layout.Field isLeaf = isLeaf();
     final Layout.Field cl = index(), cr = index();                              // Btree indexes of child and left and right children of child
@@ -594,9 +906,9 @@ stucks         array  %d
      {L.P.stopProgram("Child leaf must be full");
      }
 
-    c.splitLow(l, maxStuckSize / 2);                                            // Split the leaf in two down the middle copying out the lower half
-    allocateLeaf(cl); saveStuckInto(l, cl);                                     // Allocate and save left leaf
-                      saveStuckInto(c, cr);                                     // Allocate and save left leaf
+    c.splitLow(l, leafSplitPoint());                                            // Split the leaf in two as directed by the split policy copying out the lower part
+    allocateLeaf(cl); saveStuckInto(l, cl); countLeaf(l, cl);                   // Allocate and save left leaf
+                      saveStuckInto(c, cr); countLeaf(c, cr);                   // Save the right leaf in place of the child
 
     l.lastElement();  pl.move(l.stuckKeys);                                     // Last element of left child
     c.firstElement(); pr.move(c.stuckKeys);                                     // First element of right child
@@ -604,6 +916,33 @@ stucks         array  %d
     p.stuckKeys.move(plr); p.stuckData.move(cl);
     p.insertElementAt(stuckIndex);                                              // Add reference to left child
     saveStuckInto(p, parentIndex);                                              // Save the parent stuck back into the btree
+    changed("split.splitLeafNotTop");
+    release(p, c, l);
+    L.releaseVariables(v);
+   }
+
+  private String splitLeafNotTopV                                               // Split a full leaf that is not the root and is not the last child of its parent branch which is not full in Verilog
+   (Layout.Field parentIndex, Layout.Field stuckIndex)
+   {final int   v = L.markVariables();                                          // Release the variables created for the Verilog when it is done
+    final Stuck p = borrow(), c = borrow(), l = borrow();                       // Parent, child leaf, left split of the child
+    final Layout.Field cl = index(), cr = index();                              // Btree indexes of left and right children of child
+    final Layout.Field pl = p.key(), pr = p.key(), plr = p.key();               // Last key of left child, first key of right child, mid point key
+
+    final String s = copyStuckFromV(p, parentIndex)+" "+
+      p.stuckData.readV(stuckIndex)+" "+cr.moveV(p.stuckData)+" "+              // Reference to child
+      copyStuckFromV(c, cr)+" "+
+      p.guardV(stuckIsLeaf.vMemory(parentIndex.vValue())+" || "+                // Parent must be a branch that is not full and child must be a full leaf
+        p.sizeV()+" >= "+(maxStuckSize-1)+" || !"+stuckIsLeaf.vMemory(cr.vValue())+" || "+
+        c.sizeV()+" < "+maxStuckSize,
+        c.splitLowV(l, leafSplitPointV())+" "+
+        allocateV(cl, true)+" "+saveStuckIntoV(l, cl)+" "+countLeafV(l, cl)+saveStuckIntoV(c, cr)+" "+countLeafV(c, cr)+
+        l.lastElementV() +" "+pl.moveV(l.stuckKeys)+" "+
+        c.firstElementV()+" "+pr.moveV(c.stuckKeys)+" "+midKeyV(plr, pl, pr)+" "+
+        p.stuckKeys.moveV(plr)+" "+p.stuckData.moveV(cl)+" "+
+        p.insertElementAtV(stuckIndex)+" "+saveStuckIntoV(p, parentIndex));
+    release(p, c, l);
+    L.releaseVariables(v);
+    return s;
    }
 
   private void iSplitLeafNotTop                                                 // Split a full leaf that is not the root and is not the last child of its parent branch which is not full
@@ -612,11 +951,13 @@ stucks         array  %d
      {void action()
        {splitLeafNotTop(parentIndex, stuckIndex);
        }
-     };
+      String verilog() {return splitLeafNotTopV(parentIndex, stuckIndex);}
+     }.reads(parentIndex, stuckIndex).uses(stucks()).uses(chain()).uses(counts());
    }
 
   private void splitLeafAtTop(Layout.Field parentIndex)                         // Split a full leaf that is not the root and is the last child of its parent branch which is not full
-   {final Stuck p = stuck(), c = stuck(), l = stuck();                          // Parent which must be a branch which is not full, child at index which must be a full leaf, left and right splits of leaf
+   {final int   v = L.markVariables();                                          // Release the variables created by this split when it is done
+    final Stuck p = borrow(), c = borrow(), l = borrow();                       // Parent which must be a branch which is not full, child at index which must be a full leaf, left and right splits of leaf
     final Layout.Field isFull       = isFull();
     final Layout.Field isFullButOne = isFullButOne();
     final Layout.Field isLeaf       = isLeaf();
@@ -648,10 +989,9 @@ stucks         array  %d
      {L.P.stopProgram("Child leaf must be full");
      }
 
-    c.splitLow(l, maxStuckSize / 2);                                            // Split the leaf in two down the middle copying out the lower half
-    allocateLeaf(cl); saveStuckInto(l, cl);                                     // Allocate and save left leaf
-                      saveStuckInto(c, cr);                                     // Allocate and save left leaf
-
+    c.splitLow(l, leafSplitPoint());                                            // Split the leaf in two as directed by the split policy copying out the lower part
+    allocateLeaf(cl); saveStuckInto(l, cl); countLeaf(l, cl);                   // Allocate and save left leaf
+                      saveStuckInto(c, cr); countLeaf(c, cr);                   // Save the right leaf in place of the child
 
     l.lastElement();  pl.move(l.stuckKeys);                                     // Last element of left child
     c.firstElement(); pr.move(c.stuckKeys);                                     // First element of right child
@@ -661,6 +1001,33 @@ stucks         array  %d
     p.stuckData.move(cr);
     p.setPastLastElement();                                                     // Add reference to not split top child on the right
     saveStuckInto(p, parentIndex);                                              // Save the parent stuck back into the btree
+    changed("split.splitLeafAtTop");
+    release(p, c, l);
+    L.releaseVariables(v);
+   }
+
+  private String splitLeafAtTopV(Layout.Field parentIndex)                      // Split a full leaf that is not the root and is the last child of its parent branch which is not full in Verilog
+   {final int   v = L.markVariables();                                          // Release the variables created for the Verilog when it is done
+    final Stuck p = borrow(), c = borrow(), l = borrow();                       // Parent, child leaf, left split of the child
+    final Layout.Field cl = index(), cr = index();                              // Btree indexes of left and right children of child
+    final Layout.Field pl = p.key(), pr = p.key(), plr = p.key();               // Last key of left child, first key of right child, mid point key
+
+    final String s = copyStuckFromV(p, parentIndex)+" "+
+      p.pastLastElementV()+" "+cr.moveV(p.stuckData)+" "+                       // Reference to child
+      copyStuckFromV(c, cr)+" "+
+      p.guardV(stuckIsLeaf.vMemory(parentIndex.vValue())+" || "+                // Parent must be a branch that is not full and child must be a full leaf
+        p.sizeV()+" >= "+(maxStuckSize-1)+" || !"+stuckIsLeaf.vMemory(cr.vValue())+" || "+
+        c.sizeV()+" < "+maxStuckSize,
+        c.splitLowV(l, leafSplitPointV())+" "+
+        allocateV(cl, true)+" "+saveStuckIntoV(l, cl)+" "+countLeafV(l, cl)+saveStuckIntoV(c, cr)+" "+countLeafV(c, cr)+
+        l.lastElementV() +" "+pl.moveV(l.stuckKeys)+" "+
+        c.firstElementV()+" "+pr.moveV(c.stuckKeys)+" "+midKeyV(plr, pl, pr)+" "+
+        p.stuckKeys.moveV(plr)+" "+p.stuckData.moveV(cl)+" "+p.pushV()+" "+
+        p.stuckKeys.vZero()+" "+p.stuckData.moveV(cr)+" "+p.setPastLastElementV()+" "+
+        saveStuckIntoV(p, parentIndex));
+    release(p, c, l);
+    L.releaseVariables(v);
+    return s;
    }
 
   private void iSplitLeafAtTop(Layout.Field parentIndex)                        // Split a full leaf that is not the root and is the last child of its parent branch which is not full
@@ -668,12 +1035,14 @@ stucks         array  %d
      {void action()                                                             // Compute mid point key
        {splitLeafAtTop(parentIndex);
        }
-     };
+      String verilog() {return splitLeafAtTopV(parentIndex);}
+     }.reads(parentIndex).uses(stucks()).uses(chain()).uses(counts());
    }
 
   private void splitBranchNotTop                                                // Split a full branch that is not the root and is not the last child of its parent branch which is not full
    (Layout.Field parentIndex, Layout.Field stuckIndex)
-   {final Stuck p = stuck(), c = stuck(), l = stuck(), r = stuck();             // Parent which must be a branch which is not full, child at index which must be a full leaf, left and right splits of leaf
+   {final int   v = L.markVariables();                                          // Release the variables created by this split when it is done
+    final Stuck p = borrow(), c = borrow(), l = borrow(), r = borrow();         // Parent which must be a branch which is not full, child at index which must be a full leaf, left and right splits of leaf
     final Layout.Field isFullButOne = isFullButOne();
     final Layout.Field isLeaf       = isLeaf();
     final Layout.Field cl           = index(), cr = index();                    // Btree indexes of child and left and right children of child
@@ -707,12 +1076,37 @@ stucks         array  %d
 
     c.splitLowButOne(l, (maxStuckSize-1) / 2, key);                             // Split the leaf in two down the middle copying out the lower half
 
-    allocateBranch(cl); saveStuckInto(l, cl);                                   // Allocate and save left leaf
-                        saveStuckInto(c, cr);                                   // Allocate and save left leaf
+    allocateBranch(cl); saveStuckInto(l, cl); countBranch(l, cl);               // Allocate and save left branch
+                        saveStuckInto(c, cr); countBranch(c, cr);               // Save the right branch in place of the child
                                                                                 // Update root with new children
     p.stuckKeys.move(key); p.stuckData.move(cl);
     p.insertElementAt(stuckIndex);                                              // Add reference to left child
     saveStuckInto(p, parentIndex);                                              // Save the parent stuck back into the btree
+    changed("split.splitBranchNotTop");
+    release(p, c, l, r);
+    L.releaseVariables(v);
+   }
+
+  private String splitBranchNotTopV                                             // Split a full branch that is not the root and is not the last child of its parent branch which is not full in Verilog
+   (Layout.Field parentIndex, Layout.Field stuckIndex)
+   {final int   v = L.markVariables();                                          // Release the variables created for the Verilog when it is done
+    final Stuck p = borrow(), c = borrow(), l = borrow();                       // Parent, child branch, left split of the child
+    final Layout.Field cl  = index(), cr = index();                             // Btree indexes of left and right children of child
+    final Layout.Field key = p.key();                                           // The central key
+
+    final String s = copyStuckFromV(p, parentIndex)+" "+
+      p.stuckData.readV(stuckIndex)+" "+cr.moveV(p.stuckData)+" "+              // Reference to child
+      copyStuckFromV(c, cr)+" "+
+      p.guardV(stuckIsLeaf.vMemory(parentIndex.vValue())+" || "+                // Parent must be a branch that is not full and child must be a full branch
+        p.sizeV()+" >= "+(maxStuckSize-1)+" || "+stuckIsLeaf.vMemory(cr.vValue())+" || "+
+        c.sizeV()+" < "+(maxStuckSize-1),
+        c.splitLowButOneV(l, (maxStuckSize-1) / 2, key)+" "+
+        allocateV(cl, false)+" "+saveStuckIntoV(l, cl)+" "+countBranchV(l, cl)+saveStuckIntoV(c, cr)+" "+countBranchV(c, cr)+
+        p.stuckKeys.moveV(key)+" "+p.stuckData.moveV(cl)+" "+
+        p.insertElementAtV(stuckIndex)+" "+saveStuckIntoV(p, parentIndex));
+    release(p, c, l);
+    L.releaseVariables(v);
+    return s;
    }
 
   private void iSplitBranchNotTop                                               // Split a full leaf that is not the root and is the last child of its parent branch which is not full
@@ -721,11 +1115,13 @@ stucks         array  %d
      {void action()                                                             // Compute mid point key
        {splitBranchNotTop(parentIndex, stuckIndex);
        }
-     };
+      String verilog() {return splitBranchNotTopV(parentIndex, stuckIndex);}
+     }.reads(parentIndex, stuckIndex).uses(stucks()).uses(chain()).uses(counts());
    }
 
   private void splitBranchAtTop(Layout.Field parentIndex)                       // Split a full branch that is not the root and is the last child of its parent branch which is not full
-   {final Stuck p = stuck(), c = stuck(), l = stuck();                          // Parent which must be a branch which is not full, child at index which must be a full leaf, left and right splits of leaf
+   {final int   v = L.markVariables();                                          // Release the variables created by this split when it is done
+    final Stuck p = borrow(), c = borrow(), l = borrow();                       // Parent which must be a branch which is not full, child at index which must be a full leaf, left and right splits of leaf
     final Layout.Field isFullButOne = isFullButOne();
     final Layout.Field isLeaf       = isLeaf();
     final Layout.Field cl           = index(), cr = index();                    // Btree indexes of child and left and right children of child
@@ -757,12 +1153,37 @@ stucks         array  %d
      }
 
     c.splitLowButOne(l, (maxStuckSize-1) / 2, center);                          // Split the leaf in two down the middle copying out the lower half
-    allocateBranch(cl); saveStuckInto(l, cl);                                   // Allocate and save left leaf
-                        saveStuckInto(c, cr);                                   // Allocate and save left leaf
+    allocateBranch(cl); saveStuckInto(l, cl); countBranch(l, cl);               // Allocate and save left branch
+                        saveStuckInto(c, cr); countBranch(c, cr);               // Save the right branch in place of the child
                                                                                 // Update root with new children
     p.stuckKeys.move(center); p.stuckData.move(cl); p.push();                   // Add reference to left child
     p.stuckKeys.zero();       p.stuckData.move(cr); p.setPastLastElement();     // Add reference to not split top child on the right
     saveStuckInto(p, parentIndex);                                              // Save the parent stuck back into the btree
+    changed("split.splitBranchAtTop");
+    release(p, c, l);
+    L.releaseVariables(v);
+   }
+
+  private String splitBranchAtTopV(Layout.Field parentIndex)                    // Split a full branch that is not the root and is the last child of its parent branch which is not full in Verilog
+   {final int   v = L.markVariables();                                          // Release the variables created for the Verilog when it is done
+    final Stuck p = borrow(), c = borrow(), l = borrow();                       // Parent, child branch, left split of the child
+    final Layout.Field cl     = index(), cr = index();                          // Btree indexes of left and right children of child
+    final Layout.Field center = p.key();                                        // The central key
+
+    final String s = copyStuckFromV(p, parentIndex)+" "+
+      p.pastLastElementV()+" "+cr.moveV(p.stuckData)+" "+                       // Reference to child
+      copyStuckFromV(c, cr)+" "+
+      p.guardV(stuckIsLeaf.vMemory(parentIndex.vValue())+" || "+                // Parent must be a branch that is not full and child must be a full branch
+        p.sizeV()+" >= "+(maxStuckSize-1)+" || "+stuckIsLeaf.vMemory(cr.vValue())+" || "+
+        c.sizeV()+" < "+(maxStuckSize-1),
+        c.splitLowButOneV(l, (maxStuckSize-1) / 2, center)+" "+
+        allocateV(cl, false)+" "+saveStuckIntoV(l, cl)+" "+countBranchV(l, cl)+saveStuckIntoV(c, cr)+" "+countBranchV(c, cr)+
+        p.stuckKeys.moveV(center)+" "+p.stuckData.moveV(cl)+" "+p.pushV()+" "+
+        p.stuckKeys.vZero()+" "+p.stuckData.moveV(cr)+" "+p.setPastLastElementV()+" "+
+        saveStuckIntoV(p, parentIndex));
+    release(p, c, l);
+    L.releaseVariables(v);
+    return s;
    }
 
   private void iSplitBranchAtTop(Layout.Field parentIndex)                      // Split a full branch that is not the root and is the last child of its parent branch which is not full
@@ -770,13 +1191,14 @@ stucks         array  %d
      {void action()                                                             // Compute mid point key
        {splitBranchAtTop(parentIndex);
        }
-     };
+      String verilog() {return splitBranchAtTopV(parentIndex);}
+     }.reads(parentIndex).uses(stucks()).uses(chain()).uses(counts());
    }
 
 //D1 Merge                                                                      // Merge two nodes
 
   private void iMergeLeavesIntoRoot(Layout.Field success)                       // Merge two leaves into the root
-   {final Stuck p = stuck(), l = stuck(), r = stuck();                          // Root and left, right children
+   {final Stuck p = scratch(), l = scratch(), r = scratch();                    // Root and left, right children
     final Layout.Field li  = index(), ri = index();                             // Btree indexes of left and right children of root
 
     L.P.new Block()
@@ -787,13 +1209,20 @@ stucks         array  %d
             copyStuckFromRoot(p);                                               // Load root
             if (p.stuckSize.value != 1) L.P.Goto(end);                          // Wrong number of entries in root
            };
-         };
+          String verilog()
+           {return success.vZero()+" "+copyStuckFromV(p, "0")+" if ("+p.sizeV()+" != 1) "+L.P.gotoV(end);
+           }
+          Layout.Program.Label[]targets() {return new Layout.Program.Label[]{end};}
+         }.reads(stucks()).writes(success).writes(p.fields());
         L.P.new Instruction()                                                   // Check that the root has one entry and thus two children
          {void action()
            {p.stuckData.read(0); li.move(p.stuckData);                          // Index of left leaf
             p.stuckData.read(1); ri.move(p.stuckData);                          // Index of right leaf
            };
-         };
+          String verilog()
+           {return p.stuckData.readV("0")+" "+li.moveV(p.stuckData)+" "+p.stuckData.readV("1")+" "+ri.moveV(p.stuckData);
+           }
+         }.uses(p.fields()).writes(li, ri);
         new IsLeaf(li)                                                          // Check that the children are leaves
          {void Leaf()
            {L.P.new Instruction()                                               // Check that the root has one entry and thus two children
@@ -805,9 +1234,15 @@ stucks         array  %d
                  {saveStuckIntoRoot(p);                                         // Save the modified root back into the tree
                   setRootAsLeaf();                                              // Set the root to be a leaf
                   free(li); free(ri);                                           // Free left and right leaves as they are no longer needed
+                  changed("merge.mergeLeavesIntoRoot");
                  }
                }
-             };
+              String verilog()
+               {return copyStuckFromV(l, li)+" "+copyStuckFromV(r, ri)+" "+p.mergeV(l, r, success)+
+                  " if ("+success.vValue()+") begin "+saveStuckIntoV(p, "0")+" "+setRootAsLeafV()+" "+
+                  freeV(li)+" "+freeV(ri)+" end";
+               }
+             }.reads(li, ri).uses(p.fields()).writes(l.fields()).writes(r.fields()).writes(success).uses(stucks()).uses(chain()).uses(counts());
            }
          };
        }
@@ -816,7 +1251,7 @@ stucks         array  %d
 
   private void iMergeLeavesNotTop                                               // Merge the two consecutive leaves of a branch that is not the root. Neither of the leaves is the topmost leaf.
    (Layout.Field Parent, Layout.Field LeftLeaf, Layout.Field success)
-   {final Stuck p = stuck(), l = stuck(), r  = stuck();                         // Parent, left and right children
+   {final Stuck p = scratch(), l = scratch(), r  = scratch();                   // Parent, left and right children
     final Layout.Field li = index(), ri = index();                              // Btree indexes of left and right children of parent that we want to merge
 
     L.P.new Block()
@@ -825,16 +1260,26 @@ stucks         array  %d
          {void action()
            {success.zero();                                                     // Assume failure
             copyStuckFrom(p, Parent);                                           // Load parent
-            if (p.stuckSize.value < 2) L.P.Goto(end);
+            if (p.stuckSize.value < 2 || LeftLeaf.value >= p.stuckSize.value)   // The parent must have a right sibling for the left leaf even if earlier merges have shrunk it
+             {L.P.Goto(end);
+             }
            }
-         };
+          String verilog()
+           {return success.vZero()+" "+copyStuckFromV(p, Parent)+
+              " if ("+p.sizeV()+" < 2 || "+LeftLeaf.vValue()+" >= "+p.sizeV()+") "+L.P.gotoV(end);
+           }
+          Layout.Program.Label[]targets() {return new Layout.Program.Label[]{end};}
+         }.reads(Parent, LeftLeaf).reads(stucks()).writes(success).writes(p.fields());
 
         L.P.new Instruction()                                                   // Check that the parent has a child at the specified index
          {void action()
            {p.stuckData.read    (LeftLeaf); li.move(p.stuckData);               // Get the btree index of the left child leaf
             p.stuckData.readNext(LeftLeaf); ri.move(p.stuckData);               // Get the btree index of the right child leaf
            }
-         };
+          String verilog()
+           {return p.stuckData.readV(LeftLeaf)+" "+li.moveV(p.stuckData)+" "+p.stuckData.readNextV(LeftLeaf)+" "+ri.moveV(p.stuckData);
+           }
+         }.reads(LeftLeaf).uses(p.fields()).writes(li, ri);
 
         new IsLeaf(li)                                                          // Check that the children are leaves
          {void Leaf()
@@ -848,11 +1293,19 @@ stucks         array  %d
                  {p.removeElementAt(LeftLeaf);                                  // Remove the left child
                   p.stuckData.move(li); p.setDataAt(LeftLeaf);                  // Replace the right child with the left child
                   saveStuckInto(l, li);                                         // Save the modified left child back into the tree
+                  addCount(li, ri);                                             // The left child now holds the keys of both children
                   saveStuckInto(p, Parent);                                     // Save the modified root back into the tree
                   free(ri);                                                     // Free right leaf as it is no longer in use
+                  changed("merge.mergeLeavesNotTop");
                  }
                }
-             };
+              String verilog()
+               {return copyStuckFromV(l, li)+" "+copyStuckFromV(r, ri)+" "+l.mergeV(r, success)+
+                  " if ("+success.vValue()+") begin "+p.removeElementAtV(LeftLeaf)+" "+
+                  p.stuckData.moveV(li)+" "+p.setDataAtV(LeftLeaf)+" "+
+                  saveStuckIntoV(l, li)+" "+addCountV(li, ri)+saveStuckIntoV(p, Parent)+" "+freeV(ri)+" end";
+               }
+             }.reads(Parent, LeftLeaf, li, ri).uses(p.fields()).writes(l.fields()).writes(r.fields()).writes(success).uses(stucks()).uses(chain()).uses(counts());
            }
          };
        }
@@ -860,7 +1313,7 @@ stucks         array  %d
    }
 
   private void iMergeLeavesAtTop(Layout.Field Parent, Layout.Field success)     // Merge the top most two leaves of a branch that is not the root
-   {final Stuck p = stuck(), l = stuck(), r  = stuck();                         // Parent, left and right children
+   {final Stuck p = scratch(), l = scratch(), r  = scratch();                   // Parent, left and right children
     final Layout.Field ls = p.index(),    rs = p.index();                       // Indices in stuck of left and right children
     final Layout.Field li = index(),      ri = index();                         // Btree indexes of left and right children of parent that we want to merge
 
@@ -872,7 +1325,11 @@ stucks         array  %d
             copyStuckFrom(p, Parent);                                           // Load parent
             L.P.GoZero(end, p.stuckSize);                                       // Stuck must have at least one entry
            }
-         };
+          String verilog()
+           {return success.vZero()+" "+copyStuckFromV(p, Parent)+" if ("+p.sizeV()+" == 0) "+L.P.gotoV(end);
+           }
+          Layout.Program.Label[]targets() {return new Layout.Program.Label[]{end};}
+         }.reads(Parent).reads(stucks()).writes(success).writes(p.fields());
 
         L.P.new Instruction()
          {void action()
@@ -881,7 +1338,11 @@ stucks         array  %d
             p.stuckData.read(ls); li.move(p.stuckData);                         // Get the btree index of the left child leaf
             p.stuckData.read(rs); ri.move(p.stuckData);                         // Get the btree index of the right child leaf
            }
-         };
+          String verilog()
+           {return ls.moveV(p.stuckSize)+" "+ls.decV()+" "+rs.moveV(p.stuckSize)+" "+
+              p.stuckData.readV(ls)+" "+li.moveV(p.stuckData)+" "+p.stuckData.readV(rs)+" "+ri.moveV(p.stuckData);
+           }
+         }.uses(p.fields()).writes(ls, rs, li, ri);
 
         new IsLeaf(li)                                                          // Check that the children are leaves
          {void Leaf()                                                           // Children are leaves
@@ -893,11 +1354,18 @@ stucks         array  %d
                 if (success.asBoolean())                                        // Modify the parent only if the merge succeeded
                  {p.stuckSize.dec();                                            // The left child is now topmost - we know this is ok because the parent has at elast one entry
                   saveStuckInto(l, li);                                         // Save the modified left child back into the tree
+                  addCount(li, ri);                                             // The left child now holds the keys of both children
                   saveStuckInto(p, Parent);                                     // Save the modified root back into the tree
                   free(ri);                                                     // Free right leaf as it is no longer in use
+                  changed("merge.mergeLeavesAtTop");
                  }
                }
-             };
+              String verilog()
+               {return copyStuckFromV(l, li)+" "+copyStuckFromV(r, ri)+" "+l.mergeV(r, success)+
+                  " if ("+success.vValue()+") begin "+p.stuckSize.decV()+" "+
+                  saveStuckIntoV(l, li)+" "+addCountV(li, ri)+saveStuckIntoV(p, Parent)+" "+freeV(ri)+" end";
+               }
+             }.reads(Parent, li, ri).uses(p.fields()).writes(l.fields()).writes(r.fields()).writes(success).uses(stucks()).uses(chain()).uses(counts());
            }
          };
        }
@@ -905,7 +1373,7 @@ stucks         array  %d
    }
 
   private void iMergeBranchesIntoRoot(Layout.Field success)                     // Merge two branches into the root
-   {final Stuck p = stuck(), l = stuck(),  r  = stuck();                        // Root and left, right children
+   {final Stuck p = scratch(), l = scratch(),  r  = scratch();                  // Root and left, right children
     final Layout.Field li  = index(), ri = index();                             // Btree indexes of left and right children of root
     final Layout.Field k   = p.key();                                           // Splitting key
 
@@ -917,7 +1385,11 @@ stucks         array  %d
            {success.zero();                                                     // Assume failure
             if (p.stuckSize.value != 1) L.P.Goto(end);
            };
-         };
+          String verilog()
+           {return success.vZero()+" if ("+p.sizeV()+" != 1) "+L.P.gotoV(end);
+           }
+          Layout.Program.Label[]targets() {return new Layout.Program.Label[]{end};}
+         }.reads(p.fields()).writes(success);
 
         L.P.new Instruction()                                                   // Check that the root has one entry and thus two children
          {void action()
@@ -925,7 +1397,11 @@ stucks         array  %d
             p.stuckData.read(0); li.move(p.stuckData);                          // Index of left branch
             p.stuckData.read(1); ri.move(p.stuckData);                          // Index of right branch
            }
-         };
+          String verilog()
+           {return p.stuckKeys.readV("0")+" "+k.moveV(p.stuckKeys)+" "+
+              p.stuckData.readV("0")+" "+li.moveV(p.stuckData)+" "+p.stuckData.readV("1")+" "+ri.moveV(p.stuckData);
+           }
+         }.uses(p.fields()).writes(k, li, ri);
 
         new IsLeaf(li)                                                          // Check that the children are leaves
          {void Branch()                                                         // Children are not leaves
@@ -937,9 +1413,14 @@ stucks         array  %d
                 if (success.asBoolean())                                        // Modify the parent only if the merge succeeded
                  {saveStuckIntoRoot(p);                                         // Save the modified root back into the tree
                   free(li); free(ri);                                           // Free left and right leaves as they are no longer needed
+                  changed("merge.mergeBranchesIntoRoot");
                  }
                }
-             };
+              String verilog()
+               {return copyStuckFromV(l, li)+" "+copyStuckFromV(r, ri)+" "+p.mergeButOneV(l, k, r, success)+
+                  " if ("+success.vValue()+") begin "+saveStuckIntoV(p, "0")+" "+freeV(li)+" "+freeV(ri)+" end";
+               }
+             }.reads(k, li, ri).uses(p.fields()).writes(l.fields()).writes(r.fields()).writes(success).uses(stucks()).uses(chain()).uses(counts());
            }
          };
        }
@@ -948,7 +1429,7 @@ stucks         array  %d
 
   private void iMergeBranchesNotTop
    (Layout.Field Parent, Layout.Field LeftBranch, Layout.Field success)         // Merge the two consecutive child branches of a branch that is not the root. Neither of the child branches is the topmost leaf.
-   {final Stuck p = stuck(), l = stuck(), r  = stuck();                         // Parent, left and right children
+   {final Stuck p = scratch(), l = scratch(), r  = scratch();                   // Parent, left and right children
     final Layout.Field li = index(), ri = index();                              // Btree indexes of left and right children of parent that we want to merge
 
     L.P.new Block()
@@ -957,18 +1438,26 @@ stucks         array  %d
          {void action()
            {success.zero();                                                     // Assume failure
             copyStuckFrom(p, Parent);                                           // Load parent
-            if (p.stuckSize.value < 2)
+            if (p.stuckSize.value < 2 || LeftBranch.value >= p.stuckSize.value) // The parent must have a right sibling for the left branch even if earlier merges have shrunk it
              {L.P.Goto(end);
              }
            };
-         };
+          String verilog()
+           {return success.vZero()+" "+copyStuckFromV(p, Parent)+
+              " if ("+p.sizeV()+" < 2 || "+LeftBranch.vValue()+" >= "+p.sizeV()+") "+L.P.gotoV(end);
+           }
+          Layout.Program.Label[]targets() {return new Layout.Program.Label[]{end};}
+         }.reads(Parent, LeftBranch).reads(stucks()).writes(success).writes(p.fields());
 
         L.P.new Instruction()                                                   // Check that the parent has a child at the specified index
          {void action()
            {p.stuckData.read    (LeftBranch); li.move(p.stuckData);             // Get the btree index of the left child branch
             p.stuckData.readNext(LeftBranch); ri.move(p.stuckData);             // Get the btree index of the right child branch
            }
-         };
+          String verilog()
+           {return p.stuckData.readV(LeftBranch)+" "+li.moveV(p.stuckData)+" "+p.stuckData.readNextV(LeftBranch)+" "+ri.moveV(p.stuckData);
+           }
+         }.reads(LeftBranch).uses(p.fields()).writes(li, ri);
 
         new IsLeaf(li)                                                          // Check that the children are branches
          {void Branch()
@@ -983,11 +1472,20 @@ stucks         array  %d
                  {p.removeElementAt(LeftBranch);                                // Remove the left child
                   p.stuckData.move(li); p.setDataAt(LeftBranch);                // Replace the right child with the left child
                   saveStuckInto(l, li);                                         // Save the modified left child back into the tree
+                  addCount(li, ri);                                             // The left child now holds the keys of both children
                   saveStuckInto(p, Parent);                                     // Save the modified root back into the tree
                   free(ri);                                                     // Free right branch as it is no longer in use
+                  changed("merge.mergeBranchesNotTop");
                  }
                }
-             };
+              String verilog()
+               {return copyStuckFromV(l, li)+" "+copyStuckFromV(r, ri)+" "+
+                  p.stuckKeys.readV(LeftBranch)+" "+l.mergeButOneV(p.stuckKeys, r, success)+
+                  " if ("+success.vValue()+") begin "+p.removeElementAtV(LeftBranch)+" "+
+                  p.stuckData.moveV(li)+" "+p.setDataAtV(LeftBranch)+" "+
+                  saveStuckIntoV(l, li)+" "+addCountV(li, ri)+saveStuckIntoV(p, Parent)+" "+freeV(ri)+" end";
+               }
+             }.reads(Parent, LeftBranch, li, ri).uses(p.fields()).writes(l.fields()).writes(r.fields()).writes(success).uses(stucks()).uses(chain()).uses(counts());
            }
          };
        }
@@ -995,7 +1493,7 @@ stucks         array  %d
    }
 
   private void iMergeBranchesAtTop(Layout.Field Parent, Layout.Field success)   // Merge the top most two child branches of a branch that is not the root
-   {final Stuck p = stuck(), l = stuck(), r  = stuck();                         // Parent, left and right children
+   {final Stuck p = scratch(), l = scratch(), r  = scratch();                   // Parent, left and right children
     final Layout.Field ls = p.index(),    rs = p.index();                       // Indices in stuck of left and right children
     final Layout.Field li = index(),      ri = index();                         // Btree indexes of left and right children of parent that we want to merge
 
@@ -1010,7 +1508,11 @@ stucks         array  %d
              {L.P.Goto(end);
              }
            };
-         };
+          String verilog()
+           {return success.vZero()+" "+copyStuckFromV(p, Parent)+" if ("+p.sizeV()+" == 0) "+L.P.gotoV(end);
+           }
+          Layout.Program.Label[]targets() {return new Layout.Program.Label[]{end};}
+         }.reads(Parent).reads(stucks()).writes(success).writes(p.fields());
 
         L.P.new Instruction()                                                   // Check that the parent has a child at the specified index
          {void action()
@@ -1019,7 +1521,11 @@ stucks         array  %d
             p.stuckData.read(ls); li.move(p.stuckData);                         // Get the btree index of the left branch branch
             p.stuckData.read(rs); ri.move(p.stuckData);                         // Get the btree index of the right branch branch
            }
-         };
+          String verilog()
+           {return ls.moveV(p.stuckSize)+" "+ls.decV()+" "+rs.moveV(p.stuckSize)+" "+
+              p.stuckData.readV(ls)+" "+li.moveV(p.stuckData)+" "+p.stuckData.readV(rs)+" "+ri.moveV(p.stuckData);
+           }
+         }.uses(p.fields()).writes(ls, rs, li, ri);
 
         new IsLeaf(li)                                                          // Check that the children are branches
          {void Branch()                                                         // Children are branches
@@ -1033,11 +1539,19 @@ stucks         array  %d
                  {p.stuckData.move(li);                                         // Index of left branch that now contains the combined branches
                   p.setPastLastData();                                          // Make newly combined left branch top most
                   saveStuckInto(l, li);                                         // Save the modified left child back into the tree
+                  addCount(li, ri);                                             // The left child now holds the keys of both children
                   saveStuckInto(p, Parent);                                     // Save the modified root back into the tree
                   free(ri);                                                     // Free right branch as it is no longer in use
+                  changed("merge.mergeBranchesAtTop");
                  }
                }
-             };
+              String verilog()
+               {return copyStuckFromV(l, li)+" "+copyStuckFromV(r, ri)+" "+p.popV()+" "+
+                  l.mergeButOneV(p.stuckKeys, r, success)+
+                  " if ("+success.vValue()+") begin "+p.stuckData.moveV(li)+" "+p.setPastLastDataV()+" "+
+                  saveStuckIntoV(l, li)+" "+addCountV(li, ri)+saveStuckIntoV(p, Parent)+" "+freeV(ri)+" end";
+               }
+             }.reads(Parent, li, ri).uses(p.fields()).writes(l.fields()).writes(r.fields()).writes(success).uses(stucks()).uses(chain()).uses(counts());
            }
          };
        }
@@ -1059,19 +1573,55 @@ stucks         array  %d
     void Branch() {}
    }
 
-  public void find(Layout.Field Key, Layout.Field Found,                        // Find the leaf associated with a key in the tree
+  public void find(Layout.Field Key, Layout.Field Found,                        // Find the leaf associated with a key in the tree after consulting the bloom filter if there is one
     Layout.Field Data, Layout.Field index, Layout.Field stuckIndex)
-   {final Stuck        S = stuck();
-    final Layout.Field s = index;
-    s.iZero();                                                                  // Start at the root
+   {final Measure m = iOperationStart("find", Key);
+    if (bloom == null)                                                          // No bloom filter so descend the tree
+     {findLeaf(Key, Found, Data, index, stuckIndex);
+      iOperationEnd("find", m);
+      return;
+     }
     L.P.new Block()
      {void code()
        {L.P.new Instruction()
+         {void action()
+           {if (!bloomMayContain(Key.value))                                    // The key is definitely not in the tree
+             {Found.zero();
+              ++bloomRejections;
+              L.P.Goto(end);
+             }
+           }
+          String verilog()                                                      // Only descend the tree if the key might be in it
+           {return bloomMayContainV(Key, Found)+" if (!"+Found.vValue()+") "+L.P.gotoV(end);
+           }
+          Layout.Program.Label[]targets() {return new Layout.Program.Label[]{end};}
+         }.reads(Key).uses(bloomBit).writes(Found);
+        findLeaf(Key, Found, Data, index, stuckIndex);                          // The key might be in the tree
+       }
+     };
+    iOperationEnd("find", m);
+   }
+
+  private void findLeaf(Layout.Field Key, Layout.Field Found,                   // Find the leaf associated with a key in the tree by descending from the root
+    Layout.Field Data, Layout.Field index, Layout.Field stuckIndex)
+   {final Stuck        S = scratch();
+    final Layout.Field s = index;
+    L.P.new Instruction()
+     {void action()
+       {fingerStart(Key, s);                                                    // Start at the root or at the deepest stuck on the previous path that covers the key
+       }
+      String verilog() {return s.vValue()+" = 0;";}                             // The finger is a software cache so the hardware always starts at the root
+     }.reads(Key).writes(s);
+    L.P.new Block()
+     {void code()
+       {start.loop(maxHeight());                                                // Descend one level on each iteration
+        L.P.new Instruction()
          {void action()
            {copyStuckFrom(S, s);                                                // Set search key
             S.stuckKeys.move(Key);
            }
-         };
+          String verilog() {return copyStuckFromV(S, s)+" "+S.stuckKeys.moveV(Key);}
+         }.reads(s, Key).reads(stucks()).writes(S.fields());
 
         new IsLeaf(s)
          {void Leaf()                                                           // At a leaf - search for exact match
@@ -1080,35 +1630,90 @@ stucks         array  %d
                {S.search_eq(Found, stuckIndex);                                 // Search
                 L.P.GoZero(end, Found);                                         // Key not present
                }
-             };
+              String verilog()
+               {return S.search_eqV(Found, stuckIndex)+" if (!"+Found.vValue()+") "+L.P.gotoV(end);
+               }
+              Layout.Program.Label[]targets() {return new Layout.Program.Label[]{end};}
+             }.uses(S.fields()).writes(Found, stuckIndex);
             L.P.new Instruction()
              {void action()
                {S.elementAt(stuckIndex);                                        // Look up data
                 Data.move(S.stuckData);                                         // Save data
                 L.P.Goto (end);                                                 // Successfully found the key
                }
-             };
+              String verilog()                                                  // The data is only saved if the look up did not stop the program
+               {return S.elementAtV(stuckIndex)+" if (!program_stopped) begin "+Data.moveV(S.stuckData)+" "+L.P.gotoV(end)+" end";
+               }
+              Layout.Program.Label[]targets() {return new Layout.Program.Label[]{end};}
+             }.reads(stuckIndex).uses(S.fields()).writes(Data);
            }
           void Branch()                                                         // On a branch - step to next level down
            {L.P.new Instruction()
              {void action()
                {S.search_le(Found, stuckIndex);                                 // Search stuck for matching key
                 s.move(S.stuckData);                                            // Index of next stuck down
+                fingerStep(S, Found, stuckIndex, s);                            // Record the child on the path
                 L.P.Goto(start);                                                // Key not present
                }
-             };
+              Layout.Program.Label[]targets() {return new Layout.Program.Label[]{start};}
+              String verilog()                                                  // The next level is only entered if the search did not stop the program
+               {return S.search_leV(Found, stuckIndex)+" if (!program_stopped) begin "+s.moveV(S.stuckData)+" "+L.P.gotoV(start)+" end";
+               }
+             }.uses(S.fields()).writes(Found, stuckIndex, s);
            }
          };
        };
      };
    }
 
+//D2 Finger                                                                     // Remember the path taken by the last find so that the next find can start as deep in the tree as possible
+
+  class Finger                                                                  // A stuck on the path of the last find and the range of keys it covers
+   {final int index;                                                            // Index of the stuck in the btree
+    final int lo;                                                               // Keys covered by this stuck are greater than this key
+    final int hi;                                                               // Keys covered by this stuck are less than or equal to this key
+    Finger(int Index, int Lo, int Hi) {index = Index; lo = Lo; hi = Hi;}
+    boolean covers(int Key) {return lo < Key && Key <= hi;}                     // Whether this stuck is on the path to the key
+   }
+
+  void invalidateFinger() {finger.clear();}                                     // Forget the path of the last find because the shape of the tree has changed
+
+  private void fingerStart(Layout.Field Key, Layout.Field Index)                // Set the index to the deepest stuck on the previous path whose range covers the key or to the root if there is no such stuck
+   {if (!fingerSearch)                                                          // Finger search disabled
+     {Index.zero();
+      return;
+     }
+    while (finger.size() > 0 && !finger.lastElement().covers(Key.value))        // Back up until the key is covered
+     {finger.pop();
+     }
+    if (finger.size() == 0)                                                     // Start at the root which covers every key
+     {finger.push(new Finger(0, Integer.MIN_VALUE, Integer.MAX_VALUE));
+     }
+    fingerLevelsSkipped += finger.size() - 1;
+    Index.value = finger.lastElement().index;
+   }
+
+  private void fingerStep(Stuck S, Layout.Field Found,                          // Record the range of keys covered by the child of a branch that the descent is about to enter
+    Layout.Field StuckIndex, Layout.Field Child)
+   {if (!fingerSearch || finger.size() == 0) return;
+    final Finger p = finger.lastElement();                                      // The parent branch
+    final int    e = Found.asBoolean() ? StuckIndex.value : S.stuckSize.value;  // Entry followed in the parent
+    final int   hi = Found.asBoolean() ? S.stuckKeys.value : p.hi;              // The top child inherits the upper limit of its parent
+    int         lo = p.lo;                                                      // The first child inherits the lower limit of its parent
+    if (e > 0)
+     {S.stuckKeys.read(e-1);
+      lo = S.stuckKeys.value;
+     }
+    finger.push(new Finger(Child.value, lo, hi));
+   }
+
 //D1 Insertion                                                                  // Insert a key, data pair into the tree if ther is room for it or update and existing key with a new datum
 
   private void findAndInsert(Layout.Field Found)                                // Find the leaf that should contain this key and insert or update it is possible setting Found to true if found else to false indicating that the key, data pair still needs to be inserted
-   {final Stuck  S          = stuck();
+   {final Stuck  S          = scratch();
     Layout.Field Key        = S.key();
     Layout.Field Data       = S.data();
+    Layout.Field Old        = S.data();                                         // Data currently associated with the key if it is already in the tree
     Layout.Field index      = index();
     Layout.Field stuckIndex = S.index();
     Layout.Field full       = S.full();
@@ -1120,9 +1725,10 @@ stucks         array  %d
            {Key .move(stuckKeys);
             Data.move(stuckData);
            }
-         };
+          String verilog() {return Key.moveV(stuckKeys)+" "+Data.moveV(stuckData);}
+         }.reads(stuckKeys, stuckData).writes(Key, Data);
 
-        find(Key, Found, Data, index, stuckIndex);                              // Find the leaf that should contain the key and possibly the key.
+        findLeaf(Key, Found, Old, index, stuckIndex);                           // Find the leaf that should contain the key and possibly the key without overwriting the new data
 
         L.P.new Instruction()
          {void action()
@@ -1134,6 +1740,7 @@ stucks         array  %d
               saveStuckInto(S, index);
               Found.one();
               L.P.Goto(end);
+              return;                                                           // The key has been updated so it must not be inserted again
              }
 
             S.isFull(full);                                                     // Check whether the stuck is full
@@ -1148,13 +1755,30 @@ stucks         array  %d
              }
             else Found.zero();                                                  // The key has not been inserted
            }
+          String verilog()                                                      // Update the key in place if it was found else insert it if there is room
+           {final String insert = S.search_leV(Found, stuckIndex)+" "+
+              S.stuckKeys.moveV(Key)+" "+S.stuckData.moveV(Data)+
+              " if ("+Found.vValue()+") begin "+S.insertElementAtV(stuckIndex)+" end else begin "+S.pushV()+" end "+
+              saveStuckIntoV(S, index)+" "+Found.vOne();
+            return copyStuckFromV(S, index)+" "+S.stuckKeys.moveV(Key)+" "+S.stuckData.moveV(Data)+
+              " if ("+Found.vValue()+") begin "+S.setElementAtV(stuckIndex)+" "+saveStuckIntoV(S, index)+" "+
+              Found.vOne()+" "+L.P.gotoV(end)+" end else begin "+S.isFullV(full)+
+              " if (!"+full.vValue()+") begin "+insert+" end else "+Found.vZero()+" end";
+           }
+          Layout.Program.Label[]targets() {return new Layout.Program.Label[]{end};}
+         }.reads(index, Key, Data).uses(Found, stuckIndex).uses(S.fields()).uses(stucks()).writes(full);
+
+        if (orderStatistics) L.P.new If (Found)                                 // The key has been inserted as an update would have left the block already
+         {void Then()
+           {iCountPath(Key, +1);                                                // One more key below each stuck on the path to the key
+           }
          };
        }
      };
    }
 
   public void put()                                                             // Insert a key, data pair into the tree or update and existing key with a new datum
-   {final Stuck        S          = stuck();
+   {final Stuck        S          = scratch();
     final Layout.Field p          = index();                                    // Previous or parent position in the btree
     final Layout.Field s          = index();                                    // Current position in the btree
     final Layout.Field Key        = S.key();
@@ -1165,21 +1789,31 @@ stucks         array  %d
     final Layout.Field found      = S.found();
     final Layout.Field isLeaf     = isLeaf();
     final Layout.Field fullButOne = S.fullButOne();
+    final Measure      m          = iOperationStart("put",    stuckKeys);
 
-    L.P.new Instruction()
+    final Layout.Program.Instruction first = L.P.new Instruction()
      {void action()
        {Key.move(stuckKeys); Data.move(stuckData);                              // Save key and data to be inserted,  It is convenient for the caller to be able to use the predeclared fields but theya re overwrittne by subsequqnt activity and so they have to ba saved immediately.
+        if (bloom != null) bloomAdd(Key.value);                                 // Record the key in the bloom filter
+        notePutKey(Key.value);                                                  // Track the insertion pattern for the adaptive split policy
        }
-     };
+      String verilog()                                                          // Record the key in the bloom filter if there is one
+       {final String s = Key.moveV(stuckKeys)+" "+Data.moveV(stuckData);
+        return bloom != null ? s+" "+bloomAddV(Key.vValue()) : s;
+       }
+     }.reads(stuckKeys, stuckData).writes(Key, Data);
+    if (bloomBit != null) first.uses(bloomBit);                                 // The bloom filter is updated as well
 
     L.P.new Block()                                                             // The block is left as soon as possible
      {void code()
-       {L.P.new Instruction()
+       {start.loop(2);                                                          // Restarts at most once: after the root branch has been split
+        L.P.new Instruction()
          {void action()
            {stuckKeys.move(Key);
             stuckData.move(Data);
            }
-         };
+          String verilog() {return stuckKeys.moveV(Key)+" "+stuckData.moveV(Data);}
+         }.reads(Key, Data).writes(stuckKeys, stuckData);
 
         findAndInsert(found);                                                   // Try direct insertion with no modifications to the shape of the tree
         L.P.iGoNotZero(end, found);                                             // Direct insertion succeeded
@@ -1193,7 +1827,10 @@ stucks         array  %d
                 stuckKeys.move(Key);                                            // Key, data pair to be inserted
                 stuckData.move(Data);
                }
-             };
+              String verilog()
+               {return splitRootLeafV()+" "+stuckKeys.moveV(Key)+" "+stuckData.moveV(Data);
+               }
+             }.reads(Key, Data).uses(stucks()).uses(chain()).uses(counts());
 
             findAndInsert(found);                                               // Splitting a leaf root will make more space in the tree
             L.P.iGoto(end);                                                     // Direct insertion succeeded
@@ -1207,7 +1844,9 @@ stucks         array  %d
                {splitRootBranch();                                              // Split the branch root to make room
                 L.P.Goto(start);                                                // Restart descent to make sure we are on the right path
                }
-             };
+              String verilog() {return splitRootBranchV()+" "+L.P.gotoV(start);}
+              Layout.Program.Label[]targets() {return new Layout.Program.Label[]{start};}
+             }.uses(stucks()).uses(chain()).uses(counts());
            }
          };
 
@@ -1216,11 +1855,13 @@ stucks         array  %d
            {s.zero(); p.zero();                                                 // Start at the root and step down through the tree to the key splitting as we go
             copyStuckFrom(S, s);                                                // Load root
            }
-         };
+          String verilog() {return s.vZero()+" "+p.vZero()+" "+copyStuckFromV(S, s);}
+         }.reads(stucks()).writes(s, p).writes(S.fields());
 
         L.P.new Block()
          {void code()
-           {L.P.new Instruction()
+           {start.loop(2*maxHeight());                                          // Each level is entered at most twice: once more after its child has been split
+            L.P.new Instruction()
              {void action()
                {S.stuckKeys.move(Key);
                 S.search_le(found, stuckIndex);                                 // Step down
@@ -1228,7 +1869,11 @@ stucks         array  %d
                 s.move(S.stuckData);                                            // Child
                 copyStuckFrom(S, s);                                            // Load child
                }
-             };
+              String verilog()                                                  // The child is only entered if the search did not stop the program
+               {return S.stuckKeys.moveV(Key)+" "+S.search_leV(found, stuckIndex)+" if (!program_stopped) begin "+
+                  p.moveV(s)+" "+s.moveV(S.stuckData)+" "+copyStuckFromV(S, s)+" end";
+               }
+             }.reads(Key).reads(stucks()).uses(S.fields()).uses(s).writes(p, found, stuckIndex);
 
             new IsLeaf(s)                                                       // Child is a leaf or a branch
              {void Leaf()                                                       // At a leaf - search for exact match
@@ -1248,7 +1893,12 @@ stucks         array  %d
                     stuckKeys.move(Key);                                        // Key, data pair to be inserted
                     stuckData.move(Data);
                    }
-                 };
+                  String verilog()
+                   {return S.isFullV(full)+" if ("+full.vValue()+") begin if ("+found.vValue()+") begin "+
+                      splitLeafNotTopV(p, stuckIndex)+" end else begin "+splitLeafAtTopV(p)+" end end "+
+                      stuckKeys.moveV(Key)+" "+stuckData.moveV(Data);
+                   }
+                 }.reads(p, found, stuckIndex, Key, Data).uses(S.fields()).writes(full).uses(stucks()).uses(chain()).uses(counts());
 
                 findAndInsert(found);                                           // Must be insertable now necuase we have split everything in the path of the key
                 L.P.iGoto(end);                                                 // Successfully found the key
@@ -1269,7 +1919,13 @@ stucks         array  %d
                      }
                     L.P.Goto(start);                                            // Try again
                    }
-                 };
+                  String verilog()
+                   {return S.isFullButOneV(fullButOne)+" if ("+fullButOne.vValue()+") begin if ("+found.vValue()+") begin "+
+                      splitBranchNotTopV(p, stuckIndex)+" end else begin "+splitBranchAtTopV(p)+" end "+
+                      s.moveV(p)+" "+copyStuckFromV(S, s)+" end "+L.P.gotoV(start);
+                   }
+                  Layout.Program.Label[]targets() {return new Layout.Program.Label[]{start};}
+                 }.reads(found, stuckIndex).uses(p, s).uses(S.fields()).writes(fullButOne).uses(stucks()).uses(chain()).uses(counts());
                }
              };
            };
@@ -1280,10 +1936,11 @@ stucks         array  %d
      {stuckKeys.iMove(Key);                                                     // Key being inserted or updated
       merge();                                                                  // Merge along path to key
      }
+    iOperationEnd("put", m);
    }
 
   public void merge()                                                           // Merge stucks on either side of the path to the key
-   {final Stuck        S          = stuck();
+   {final Stuck        S          = scratch();
     final Layout.Field s          = index();                                    // Current position in the btree
     final Layout.Field Key        = S.key();
     final Layout.Field stuckIndex = S.index();
@@ -1291,6 +1948,7 @@ stucks         array  %d
     final Layout.Field within     = within();                                   // In the body of the stuck and not at the top
     final Layout.Field isLeaf     = isLeaf();
     final Layout.Field success    = S.success();
+    final Measure      m          = iOperationStart("merge",  stuckKeys);
 
     L.P.new Block()                                                             // The block is left as soon as possible
      {void code()
@@ -1299,7 +1957,8 @@ stucks         array  %d
            {Key.move(stuckKeys);                                                // Save path key
             s.zero();                                                           // Start at the root and step down through the tree along the path of the key merging on each side of the key as we go
            }
-         };
+          String verilog() {return Key.moveV(stuckKeys)+" "+s.vZero();}
+         }.reads(stuckKeys).writes(Key, s);
 
         new IsLeaf(s)                                                           // Root is a leaf or a branch
          {void Leaf()                                                           // Root is a leaf - nothing to merge
@@ -1316,7 +1975,8 @@ stucks         array  %d
 
         L.P.new Block()
          {void code()
-           {iMergeLeavesAtTop  (s, success);                                    // Try merging leaves at top into parent
+           {start.loop(maxHeight());                                            // Descend one level on each iteration
+            iMergeLeavesAtTop  (s, success);                                    // Try merging leaves at top into parent
             iMergeBranchesAtTop(s, success);                                    // Try merging branches at top into parent
             for (int i = 0; i < maxStuckSize-1; i++)
              {final int I = i;
@@ -1325,7 +1985,10 @@ stucks         array  %d
                  {stuckIndex.write(I);
                   within.value = I < S.stuckSize.value ? 1 : 0;
                  }
-               };
+                String verilog()
+                 {return stuckIndex.writeV(I)+" "+within.vValue()+" = "+I+" < "+S.sizeV()+";";
+                 }
+               }.reads(S.stuckSize).writes(stuckIndex, within);
               L.P.new If(within)                                                // Within body of stuck
                {void Then()
                  {iMergeLeavesNotTop  (s, stuckIndex, success);                 // Try merging leaves not at top into parent
@@ -1336,12 +1999,17 @@ stucks         array  %d
 
             L.P.new Instruction()
              {void action()
-               {S.stuckKeys.move(Key);                                          // Following the path made by this key
+               {copyStuckFrom(S, s);                                            // Reload the parent as the merges above might have changed it
+                S.stuckKeys.move(Key);                                          // Following the path made by this key
                 S.search_le(found, stuckIndex);                                 // Step down
                 s.move(S.stuckData);                                            // Child
                 copyStuckFrom(S, s);                                            // Load child
                }
-             };
+              String verilog()                                                  // The child is only entered if the search did not stop the program
+               {return copyStuckFromV(S, s)+" "+S.stuckKeys.moveV(Key)+" "+S.search_leV(found, stuckIndex)+
+                  " if (!program_stopped) begin "+s.moveV(S.stuckData)+" "+copyStuckFromV(S, s)+" end";
+               }
+             }.reads(Key).reads(stucks()).uses(S.fields()).uses(s).writes(found, stuckIndex);
 
             new IsLeaf(s)                                                       // Child is a leaf or a branch
              {void Leaf()                                                       // At a leaf - end of merging
@@ -1355,21 +2023,23 @@ stucks         array  %d
          };
        }
      };
+    iOperationEnd("merge", m);
    }
 
 //D1 Deletion                                                                   // Delete a key data pair from the btree returning the data associated with the key
 
-  private void delete(Layout.Field Data)                                        // Find the leaf that contains this key and delete it
-   {final Stuck  S          = stuck();
+  public void delete(Layout.Field Data)                                         // Find the leaf that contains this key and delete it
+   {final Stuck  S          = scratch();
     Layout.Field Key        = S.key();
     Layout.Field index      = index();
     Layout.Field stuckIndex = S.index();
     Layout.Field found      = found();
+    final Measure m         = iOperationStart("delete", stuckKeys);
 
     L.P.new Block()
      {void code()
        {Key.iMove(stuckKeys);
-        find(Key, found, Data, index, stuckIndex);                              // Find the leaf that should contain the key and possibly the key.
+        findLeaf(Key, found, Data, index, stuckIndex);                          // Find the leaf that should contain the key and possibly the key.
         iCopyStuckFrom(S, index);                                               // Copy the stuck that should contain the key
         L.P.new If (found)                                                      // Found the key in the leaf so remove it
          {void Then()
@@ -1378,63 +2048,698 @@ stucks         array  %d
                {S.removeElementAt(stuckIndex);                                  // Remove the key
                 saveStuckInto(S, index);                                        // Save modified stuck back into btree
                 stuckKeys.move(Key);                                            // Reload key
+                ++bloomDeletes;                                                 // The key remains in the bloom filter until it is rebuilt
                }
-             };
+              String verilog()
+               {return S.removeElementAtV(stuckIndex)+" "+saveStuckIntoV(S, index)+" "+stuckKeys.moveV(Key);
+               }
+             }.reads(index, stuckIndex, Key).uses(S.fields()).uses(stucks());
+            iCountPath(Key, -1);                                                // One less key below each stuck on the path to the key
             merge();                                                            // Merge along key path
            }
          };
        }
      };
+    iOperationEnd("delete", m);
    }
 
-//D1 Tests                                                                      // Test the btree
+//D1 Walk                                                                       // Examine the stucks of the tree directly while executing an instruction without disturbing the fields of the tree or recording the accesses
 
-  final static int[]random_100 = {27, 442, 545, 317, 511, 578, 391, 993, 858, 586, 472, 906, 658, 704, 882, 246, 261, 501, 354, 903, 854, 279, 526, 686, 987, 403, 401, 989, 650, 576, 436, 560, 806, 554, 422, 298, 425, 912, 503, 611, 135, 447, 344, 338, 39, 804, 976, 186, 234, 106, 667, 494, 690, 480, 288, 151, 773, 769, 260, 809, 438, 237, 516, 29, 376, 72, 946, 103, 961, 55, 358, 232, 229, 90, 155, 657, 681, 43, 907, 564, 377, 615, 612, 157, 922, 272, 490, 679, 830, 839, 437, 826, 577, 937, 884, 13, 96, 273, 1, 188};
+  private boolean leafAt(int Index)                                             // Whether the indicated stuck is a leaf
+   {return stuckIsLeaf.peek(Index) != 0;
+   }
 
-  static Btree test_create()
-   {final Btree b = new Btree(32, 4, 8, 8);
-    ok(b.dump(), """
-Btree
-Stuck:  0   size: 0   free: 0   next:  0  leaf: 1
-stuckSize: value=0
-stuckKeys: value=0, 0=0, 1=0, 2=0, 3=0
-stuckData: value=0, 0=0, 1=0, 2=0, 3=0
-""");
-    return b;
+  private int sizeAt(int Index)                                                 // Size of the indicated stuck
+   {return stuckSize.peek(Index);
    }
 
-  static void test_leaf()
-   {final Btree b = test_create();
-    final Layout.Field index = b.index();
-    final Layout.Field a     = b.variable("a", 4);
+  private int keyAt(int Index, int Entry)                                       // Key at the indicated entry of the indicated stuck
+   {return stuckKeys.peek(Index, Entry);
+   }
 
-    index.iWrite(0);
-    b.new IsLeaf(index)
-     {void Leaf  () {a.iWrite(1);}
-      void Branch() {a.iWrite(2);}
-     };
-    b.runProgram();
-    ok(a, "a: value=1");
+  private int dataAt(int Index, int Entry)                                      // Data at the indicated entry of the indicated stuck which is the index of a child stuck if the stuck is a branch
+   {return stuckData.peek(Index, Entry);
    }
 
-  static void test_allocFree()
-   {final Btree b = test_create();
-    final Layout.Field x = b.index();
-    final Layout.Field y = b.index();
+  int height()                                                                  // Number of levels in the tree found without disturbing the fields or the accounting of the program as it is used to describe operations
+   {int h = 1;
+    for (int s = 0; stuckIsLeaf.peek(s) == 0; s = stuckData.peek(s, 0)) ++h;    // Every leaf is at the same depth
+    return h;
+   }
 
-    ok(b.freeStart, "freeStart: value=1");
-    ok(b.freeNext,  "freeNext: value=0, 0=0, 1=2, 2=3, 3=4, 4=5, 5=6, 6=7, 7=8, 8=9, 9=10, 10=11, 11=12, 12=13, 13=14, 14=15, 15=16, 16=17, 17=18, 18=19, 19=20, 20=21, 21=22, 22=23, 23=24, 24=25, 25=26, 26=27, 27=28, 28=29, 29=30, 30=31, 31=0");
-    ok(b.dump(), """
-Btree
-Stuck:  0   size: 0   free: 0   next:  0  leaf: 1
-stuckSize: value=0
-stuckKeys: value=0, 0=0, 1=0, 2=0, 3=0
-stuckData: value=0, 0=0, 1=0, 2=0, 3=0
-""");
+  int stucksInUse()                                                             // Number of stucks that are not on the free chain
+   {int n = 0;
+    for (int i = 0; i < size; i++)
+     {walkAt.value = i;
+      stuckIsFree.read(walkAt);
+      if (!stuckIsFree.asBoolean()) ++n;
+     }
+    return n;
+   }
 
-    b.iAllocate(x, false);
-    b.iAllocate(y, false);
-    b.runProgram();
+//D1 Persistence                                                                // Save the memory of the tree and reload it into a tree that might already be in use
+
+  void save(java.nio.file.Path File) {L.save(File);}                            // Save the memory of the tree as a snapshot. The bloom filter is not saved as it is rebuilt when the tree is loaded
+
+  void load(java.nio.file.Path File)                                            // Load the memory of the tree from a snapshot
+   {L.load(File);
+    reloaded();
+   }
+
+  void writeMemories(java.nio.file.Path Dir, boolean Hex)                       // Write the memory of the tree as Verilog memory images
+   {L.writeMemories(Dir, Hex);
+   }
+
+  void readMemories(java.nio.file.Path Dir, boolean Hex)                        // Read the memory of the tree from Verilog memory images such as those dumped by a simulation
+   {L.readMemories(Dir, Hex);
+    reloaded();
+   }
+
+  private void reloaded()                                                       // Discard the state derived from the previous content of the memory of the tree
+   {invalidateFinger();
+    rebuildBloomFilter();
+   }
+
+//D1 Memory                                                                     // Report the memory used by the tree and how well it is filled
+
+  class MemoryReport                                                            // The memory used by a btree
+   {final Layout.MemoryReport layout = L.memoryReport();                        // Memory used by the layout of the tree and its variables
+    final Layout.MemoryReport bloomLayout = bloom == null ? null : bloom.memoryReport(); // Memory used by the bloom filter or null if there is no bloom filter
+    int  used, free, leaves, branches;                                          // Stucks in use and on the free chain, leaves and branches in use
+    long keys, branchKeys;                                                      // Keys held in leaves and in branches
+    long scratchBytes;                                                          // Estimated heap bytes of the pooled scratch stucks
+
+    MemoryReport()                                                              // Examine the stucks of the tree without recording the accesses or changing the values of the fields
+     {for (int i = 0; i < size; i++)
+       {if (stuckIsFree.peek(i) != 0) {++free; continue;}
+        ++used;
+        if (stuckIsLeaf.peek(i) != 0) {++leaves;   keys       += stuckSize.peek(i);}
+        else                          {++branches; branchKeys += stuckSize.peek(i);}
+       }
+      for (Scratch t : scratch) scratchBytes += t.stuck.L.memoryReport().totalBytes();
+      for (Scratch t : spares)  scratchBytes += t.stuck.L.memoryReport().totalBytes();
+     }
+
+    double leafFill()   {return leaves   == 0 ? 0 : keys       / (double)(leaves   * maxStuckSize);}  // Average fraction of each leaf holding keys
+    double branchFill() {return branches == 0 ? 0 : branchKeys / (double)(branches * maxStuckSize);}  // Average fraction of each branch holding keys
+    long   bloomBytes() {return bloomLayout == null ? 0 : bloomLayout.totalBytes();}// Heap bytes of the bloom filter
+    long   totalBytes() {return layout.totalBytes() + bloomBytes() + scratchBytes;}// Heap bytes of the tree, its variables, its bloom filter and its scratch stucks
+    double bytesPerKey(){return keys == 0 ? 0 : totalBytes() / (double)keys;}   // Heap bytes for each key in the tree
+
+    public String toString()                                                    // The layout report followed by the bloom filter and the shape of the tree
+     {final StringBuilder s = new StringBuilder(""+layout);
+      if (bloomLayout != null)
+       {s.append(String.format("%-24s %10d %12d %12d %10s\n", "Bloom filter", bloomSize,
+          bloomLayout.bits, bloomBytes(), String.format("%.1f", bloomLayout.overhead())));
+       }
+      s.append(String.format("Scratch stucks %10d %25d\n", scratch.size()+spares.size(), scratchBytes));
+      s.append(String.format("Stucks used %d free %d leaves %d branches %d\n", used, free, leaves, branches));
+      s.append(String.format("Keys %d leaf fill %.2f branch fill %.2f bytes per key %.1f\n",
+        keys, leafFill(), branchFill(), bytesPerKey()));
+      return ""+s;
+     }
+   }
+
+  MemoryReport memoryReport() {return new MemoryReport();}                      // Report the memory used by the tree
+
+//D1 Compaction                                                                 // Renumber the stucks so that the tree occupies a contiguous prefix of the stucks in breadth first order
+
+  void compact()                                                                // Rewrite the stucks in use in breadth first order from the root, update the references to them in their parent branches and rebuild the free chain as the contiguous tail of the stucks
+   {final int M = maxStuckSize;
+    final Stack<Integer> order = new Stack<>();                                 // Stucks in use in breadth first order
+    final int[]renumber = new int[size];                                        // New index of each stuck in use
+    order.push(0);                                                              // The root remains the root
+    for (int i = 0; i < order.size(); i++)                                      // Breadth first traversal
+     {final int s = order.elementAt(i);
+      renumber[s] = i;
+      if (!leafAt(s))
+       {final int N = sizeAt(s);
+        for (int j = 0; j <= N; j++) order.push(dataAt(s, j));                  // A branch has one more child than it has keys
+       }
+     }
+
+    final int U = order.size();                                                 // Number of stucks in use
+    final boolean[]leaf  = new boolean[U];                                      // Copy of each stuck in use
+    final int    []sizes = new int[U], counts = new int[U];
+    final int  [][]keys  = new int[U][M], data = new int[U][M];
+    for (int i = 0; i < U; i++)
+     {final int s = order.elementAt(i);
+      leaf [i] = leafAt(s);
+      sizes[i] = sizeAt(s);
+      if (stuckCount != null) counts[i] = keysBelow(s);
+      for (int j = 0; j < M; j++)
+       {keys[i][j] = keyAt (s, j);
+        data[i][j] = dataAt(s, j);
+        if (!leaf[i] && j <= sizes[i]) data[i][j] = renumber[data[i][j]];       // Child references in branches follow the renumbering
+       }
+     }
+
+    for (int i = 0; i < size; i++)                                              // Write the stucks in use followed by the free chain
+     {walkAt.value = i;
+      final boolean used = i < U;
+      stuckIsLeaf.value = !used || leaf[i] ? 1 : 0;          stuckIsLeaf.write(walkAt);
+      stuckIsFree.value = used ? 0 : 1;                     stuckIsFree.write(walkAt);
+      freeNext   .value = used || i+1 == size ? 0 : i+1;    freeNext   .write(walkAt);
+      stuckSize  .value = used ? sizes[i] : 0;              stuckSize  .write(walkAt);
+      if (stuckCount != null)
+       {stuckCount.value = used ? counts[i] : 0;            stuckCount .write(walkAt);
+       }
+      for (int j = 0; j < M; j++)
+       {walkEntry.value = j;
+        stuckKeys.value = used ? keys[i][j] : 0; stuckKeys.write(walkAt, walkEntry);
+        stuckData.value = used ? data[i][j] : 0; stuckData.write(walkAt, walkEntry);
+       }
+     }
+    freeStart.write(U < size ? U : 0);                                          // The free chain is the tail of the stucks
+    invalidateFinger();                                                         // Every stuck has probably moved
+   }
+
+  private String compactV()                                                     // Compact the stucks in Verilog: the breadth first order is built in a working memory then the stucks in use are copied out in that order and written back followed by the free chain
+   {final int M = maxStuckSize;
+    if (compaction == null) compaction = new Layout(String.format("""
+compactOrders    array  %d
+  compactOrder   var    %d
+compactStucks    array  %d
+  compactNumber  var    %d
+  compactLeaf    bit
+  compactSize    var    %d
+  compactCount   var    %d
+  compactEntries array  %d
+    compactKey   var    %d
+    compactData  var    %d
+""", size, logTwo(size)+1, size, logTwo(size)+1, logTwo(M)+1,
+        logTwo(size*M)+1, M, bitsPerKey, Math.max(bitsPerData, logTwo(size)+1)));
+    compaction.P = L.P;                                                         // Name the working memory in the program being generated
+    final Layout.Field order = compaction.locateFieldByName("compactOrder");
+    final Layout.Field renum = compaction.locateFieldByName("compactNumber");
+    final Layout.Field leaf  = compaction.locateFieldByName("compactLeaf");
+    final Layout.Field sizes = compaction.locateFieldByName("compactSize");
+    final Layout.Field count = compaction.locateFieldByName("compactCount");
+    final Layout.Field keys  = compaction.locateFieldByName("compactKey");
+    final Layout.Field data  = compaction.locateFieldByName("compactData");
+
+    final int          v = L.markVariables();                                   // Release the variables created for the Verilog when it is done
+    final Layout.Field n = index(), o = index();                                // Number of stucks in use found so far, old index of a stuck
+    final String       N = n.vValue(), S = o.vValue();
+    final StringBuilder c = new StringBuilder(order.vMemory("0")+" = 0; "+N+" = 1;");// The root remains the root
+
+    for (int i = 0; i < size; i++)                                              // Breadth first traversal appending the children of each branch to the order
+     {c.append(" if ("+i+" < "+N+") begin "+S+" = "+order.vMemory(""+i)+"; "+renum.vMemory(S)+" = "+i+";");
+      c.append(" if (!"+stuckIsLeaf.vMemory(S)+") begin");
+      for (int j = 0; j < M; j++)
+       {c.append(" if ("+j+" <= "+stuckSize.vMemory(S)+") begin "+order.vMemory(N)+" = "+
+          stuckData.vMemory("("+S+") * "+M+" + "+j)+"; "+N+" = "+N+" + 1; end");
+       }
+      c.append(" end end");
+     }
+
+    for (int i = 0; i < size; i++)                                              // Copy out the stucks in use in their new order
+     {c.append(" if ("+i+" < "+N+") begin "+S+" = "+order.vMemory(""+i)+"; "+
+        leaf .vMemory(""+i)+" = "+stuckIsLeaf.vMemory(S)+"; "+
+        sizes.vMemory(""+i)+" = "+stuckSize  .vMemory(S)+";");
+      if (stuckCount != null) c.append(" "+count.vMemory(""+i)+" = "+stuckCount.vMemory(S)+";");
+      for (int j = 0; j < M; j++)
+       {final String e = stuckData.vMemory("("+S+") * "+M+" + "+j);
+        c.append(" "+keys.vMemory(""+(i*M+j))+" = "+stuckKeys.vMemory("("+S+") * "+M+" + "+j)+";");
+        c.append(" "+data.vMemory(""+(i*M+j))+" = !"+stuckIsLeaf.vMemory(S)+" && "+j+" <= "+stuckSize.vMemory(S)+
+          " ? "+renum.vMemory(e)+" : "+e+";");                                  // Child references in branches follow the renumbering
+       }
+      c.append(" end");
+     }
+
+    for (int i = 0; i < size; i++)                                              // Write the stucks in use followed by the free chain
+     {final int next = i+1 == size ? 0 : i+1;
+      c.append(" if ("+i+" < "+N+") begin "+
+        stuckIsLeaf.vMemory(""+i)+" = "+leaf .vMemory(""+i)+"; "+stuckIsFree.vMemory(""+i)+" = 0; "+
+        freeNext   .vMemory(""+i)+" = 0; "+stuckSize  .vMemory(""+i)+" = "+sizes.vMemory(""+i)+";");
+      if (stuckCount != null) c.append(" "+stuckCount.vMemory(""+i)+" = "+count.vMemory(""+i)+";");
+      for (int j = 0; j < M; j++)
+       {c.append(" "+stuckKeys.vMemory(""+(i*M+j))+" = "+keys.vMemory(""+(i*M+j))+";");
+        c.append(" "+stuckData.vMemory(""+(i*M+j))+" = "+data.vMemory(""+(i*M+j))+";");
+       }
+      c.append(" end else begin "+
+        stuckIsLeaf.vMemory(""+i)+" = 1; "+stuckIsFree.vMemory(""+i)+" = 1; "+
+        freeNext   .vMemory(""+i)+" = "+next+"; "+stuckSize.vMemory(""+i)+" = 0;");
+      if (stuckCount != null) c.append(" "+stuckCount.vMemory(""+i)+" = 0;");
+      for (int j = 0; j < M; j++)
+       {c.append(" "+stuckKeys.vMemory(""+(i*M+j))+" = 0;");
+        c.append(" "+stuckData.vMemory(""+(i*M+j))+" = 0;");
+       }
+      c.append(" end");
+     }
+    c.append(" "+freeStart.vValue()+" = "+N+" < "+size+" ? "+N+" : 0;");
+    L.releaseVariables(v);
+    return ""+c;
+   }
+
+  void iCompact()                                                               // Rewrite the stucks in use in breadth first order from the root, update the references to them in their parent branches and rebuild the free chain as the contiguous tail of the stucks
+   {L.P.new Instruction()
+     {void action()
+       {compact();
+       }
+      String verilog() {return compactV();}
+     }.uses(stucks()).uses(chain()).uses(counts());
+   }
+
+//D1 Order statistics                                                           // Count the keys below each stuck so that ranks and ranges can be resolved in a single descent
+
+  private int keysBelow(int Index)                                              // Number of keys recorded as being below the indicated stuck
+   {return stuckCount.peek(Index);
+   }
+
+  private int stepDown(int Index, int Key)                                      // The entry of a branch to follow to reach the key: the first key greater than or equal to the search key else the top child
+   {final int N = sizeAt(Index);
+    for (int i = 0; i < N; i++) if (Key <= keyAt(Index, i)) return i;
+    return N;
+   }
+
+  private void countLeaf(Stuck S, Layout.Field Index)                           // Record the number of keys below a leaf saved at the index from the stuck holding it: its size
+   {if (stuckCount == null) return;                                             // Order statistics are not being maintained
+    stuckCount.move(S.stuckSize);
+    stuckCount.write(Index);
+   }
+
+  private String countLeafV(Stuck S, Layout.Field Index)                        // Record the number of keys below a leaf in Verilog
+   {if (stuckCount == null) return "";
+    return stuckCount.moveV(S.stuckSize)+" "+stuckCount.writeV(Index)+" ";
+   }
+
+  private void countBranch(Stuck S, Layout.Field Index)                         // Record the number of keys below a branch saved at the index from the stuck holding it: the sum of the counts of its children
+   {if (stuckCount == null) return;                                             // Order statistics are not being maintained
+    final int N = S.stuckSize.value;
+    int c = 0;
+    for (int i = 0; i <= N; i++)                                                // A branch has one more child than it has keys
+     {S.stuckData.read(i);
+      stuckCount.read(S.stuckData);
+      c += stuckCount.value;
+     }
+    stuckCount.value = c;
+    stuckCount.write(Index);
+   }
+
+  private String countBranchV(Stuck S, Layout.Field Index)                      // Record the number of keys below a branch in Verilog by summing the counts of every child that the branch might have in parallel
+   {if (stuckCount == null) return "";
+    final StringJoiner c = new StringJoiner(" + ");
+    c.add(stuckCount.vMemory(S.stuckData.vMemory("0")));                        // A branch always has at least one child
+    for (int i = 1; i < maxStuckSize; i++)
+     {c.add("("+i+" <= "+S.sizeV()+" ? "+stuckCount.vMemory(S.stuckData.vMemory(""+i))+" : 0)");
+     }
+    return stuckCount.vValue()+" = "+c+"; "+stuckCount.writeV(Index)+" ";
+   }
+
+  private void addCount(Layout.Field Target, Layout.Field Source)               // Add the number of keys below the source stuck to the target stuck when the source is merged into the target
+   {if (stuckCount == null) return;                                             // Order statistics are not being maintained
+    stuckCount.read(Source);
+    final int c = stuckCount.value;
+    stuckCount.read(Target);
+    stuckCount.value += c;
+    stuckCount.write(Target);
+   }
+
+  private String addCountV(Layout.Field Target, Layout.Field Source)            // Add the number of keys below the source stuck to the target stuck in Verilog
+   {if (stuckCount == null) return "";
+    return stuckCount.vValue()+" = "+stuckCount.vMemory(Target.vValue())+" + "+stuckCount.vMemory(Source.vValue())+"; "+stuckCount.writeV(Target)+" ";
+   }
+
+  private void iCountPath(Layout.Field Key, int Delta)                          // Add delta to the key count of each stuck on the path from the root to the leaf that should contain the key. Splits and merges keep the counts of the stucks they rearrange so only the path needs to change when a key is inserted or removed
+   {if (!orderStatistics) return;                                               // Not maintaining counts so there is no need to generate any code
+    final Stuck        S          = scratch();
+    final Layout.Field s          = index();                                    // Current position in the btree
+    final Layout.Field found      = S.found();
+    final Layout.Field stuckIndex = S.index();
+    final String       d          = (Delta < 0 ? " - " : " + ")+Math.abs(Delta);// Change in Verilog
+
+    s.iZero();                                                                  // Start at the root
+    L.P.new Block()
+     {void code()
+       {start.loop(maxHeight());                                                // Descend one level on each iteration
+        L.P.new Instruction()
+         {void action()
+           {stuckCount.read(s);
+            stuckCount.value += Delta;
+            stuckCount.write(s);
+           }
+          String verilog()
+           {return stuckCount.readV(s)+" "+stuckCount.vValue()+" = "+stuckCount.vValue()+d+"; "+stuckCount.writeV(s);
+           }
+         }.reads(s).uses(stuckCount);
+
+        new IsLeaf(s)                                                           // The leaf is the last stuck on the path
+         {void Leaf()
+           {L.P.iGoto(end);
+           }
+         };
+
+        L.P.new Instruction()
+         {void action()
+           {copyStuckFrom(S, s);                                                // Load branch
+            S.stuckKeys.move(Key);
+            S.search_le(found, stuckIndex);                                     // Step down
+            s.move(S.stuckData);                                                // Child
+            L.P.Goto(start);
+           }
+          String verilog()                                                      // The child is only entered if the search did not stop the program
+           {return copyStuckFromV(S, s)+" "+S.stuckKeys.moveV(Key)+" "+S.search_leV(found, stuckIndex)+
+              " if (!program_stopped) begin "+s.moveV(S.stuckData)+" "+L.P.gotoV(start)+" end";
+           }
+          Layout.Program.Label[]targets() {return new Layout.Program.Label[]{start};}
+         }.reads(Key).reads(stucks()).uses(S.fields()).uses(s).writes(found, stuckIndex);
+       }
+     };
+   }
+
+  private int keysBefore(int Key, boolean Inclusive)                            // Number of keys less than, or if inclusive less than or equal to, the specified key
+   {int r = 0, s = 0;
+    while (!leafAt(s))                                                          // Descend through the branches adding the counts of the children that are passed over
+     {final int e = stepDown(s, Key);
+      for (int i = 0; i < e; i++) r += keysBelow(dataAt(s, i));
+      s = dataAt(s, e);
+     }
+    final int N = sizeAt(s);
+    for (int i = 0; i < N; i++)                                                 // Count within the leaf
+     {final int k = keyAt(s, i);
+      if (k < Key || Inclusive && k == Key) ++r;
+     }
+    return r;
+   }
+
+  private String stuckKeyV(Layout.Field S, String Entry)                        // An entry of the keys of the stuck whose index is held in a field in Verilog
+   {return stuckKeys.vMemory("("+S.vValue()+") * "+maxStuckSize+" + "+Entry);
+   }
+
+  private String stuckDataV(Layout.Field S, String Entry)                       // An entry of the data of the stuck whose index is held in a field in Verilog
+   {return stuckData.vMemory("("+S.vValue()+") * "+maxStuckSize+" + "+Entry);
+   }
+
+  private String keysBeforeV(Layout.Field Key, boolean Inclusive, Layout.Field R)// Set r to the number of keys less than, or if inclusive less than or equal to, the key in Verilog by descending through every level that the tree might have
+   {final int          M = maxStuckSize;
+    final int          v = L.markVariables();                                   // Release the variables created for the Verilog when it is done
+    final Layout.Field s = index();                                             // Stuck being descended through
+    final Layout.Field e = variable("entry", logTwo(M)+1);                      // Entry of a branch to follow
+    final String       S = s.vValue(), E = e.vValue(), N = stuckSize.vMemory(S);
+    final StringBuilder c = new StringBuilder(R.vValue()+" = 0; "+S+" = 0;");
+    for (int l = 0; l < maxHeight(); l++)                                       // Descend through the branches adding the counts of the children that are passed over
+     {c.append(" if (!"+stuckIsLeaf.vMemory(S)+") begin "+E+" = "+N+";");
+      for (int i = M-2; i >= 0; i--)                                            // The first key greater than or equal to the search key
+       {c.append(" if ("+i+" < "+N+" && "+Key.vValue()+" <= "+stuckKeyV(s, ""+i)+") "+E+" = "+i+";");
+       }
+      for (int i = 0; i < M-1; i++)
+       {c.append(" if ("+i+" < "+E+") "+R.vValue()+" = "+R.vValue()+" + "+stuckCount.vMemory(stuckDataV(s, ""+i))+";");
+       }
+      c.append(" "+S+" = "+stuckDataV(s, E)+"; end");
+     }
+    for (int i = 0; i < M; i++)                                                 // Count within the leaf
+     {final String k = stuckKeyV(s, ""+i);
+      c.append(" if ("+i+" < "+N+" && "+k+(Inclusive ? " <= " : " < ")+Key.vValue()+") "+R.vValue()+" = "+R.vValue()+" + 1;");
+     }
+    L.releaseVariables(v);
+    return ""+c;
+   }
+
+  private boolean checkOrderStatistics()                                        // Confirm that order statistics are being maintained
+   {if (orderStatistics) return true;
+    stopProgram("Order statistics are not being maintained by this btree");
+    return false;
+   }
+
+  public void rank(Layout.Field Key, Layout.Field Rank)                         // Set rank to the number of keys in the tree that are less than the key
+   {if (!checkOrderStatistics()) return;
+    Rank.value = keysBefore(Key.value, false);
+   }
+
+  public String rankV(Layout.Field Key, Layout.Field Rank)                      // Set rank to the number of keys in the tree that are less than the key in Verilog
+   {if (!orderStatistics) return L.P.stopV();
+    return keysBeforeV(Key, false, Rank);
+   }
+
+  public void iRank(Layout.Field Key, Layout.Field Rank)                        // Set rank to the number of keys in the tree that are less than the key
+   {L.P.new Instruction()
+     {void action()
+       {rank(Key, Rank);
+       }
+      String verilog() {return rankV(Key, Rank);}
+     }.reads(Key).reads(stucks()).reads(counts()).writes(Rank);
+   }
+
+  public void select(Layout.Field Rank, Layout.Field Found,                     // Locate the key, data pair with the specified zero based rank setting found to true if there is such a pair
+    Layout.Field Key, Layout.Field Data)
+   {if (!checkOrderStatistics()) return;
+    int r = Rank.value, s = 0;
+    if (r >= keysBelow(s))                                                      // Rank beyond the number of keys in the tree
+     {Found.zero();
+      return;
+     }
+    while (!leafAt(s))                                                          // Descend through the branches skipping over children with too few keys
+     {final int N = sizeAt(s);
+      int i = 0;
+      for (; i < N; i++)
+       {final int c = keysBelow(dataAt(s, i));
+        if (r < c) break;
+        r -= c;
+       }
+      s = dataAt(s, i);
+     }
+    Key .value = keyAt (s, r);
+    Data.value = dataAt(s, r);
+    Found.one();
+   }
+
+  public String selectV(Layout.Field Rank, Layout.Field Found,                  // Locate the key, data pair with the specified zero based rank in Verilog by descending through every level that the tree might have
+    Layout.Field Key, Layout.Field Data)
+   {if (!orderStatistics) return L.P.stopV();
+    final int          M = maxStuckSize;
+    final int          v = L.markVariables();                                   // Release the variables created for the Verilog when it is done
+    final Layout.Field r = rank(), s = index();                                 // Rank remaining, stuck being descended through
+    final Layout.Field e = variable("entry", logTwo(M)+1);                      // Entry of a branch to follow
+    final Layout.Field d = found();                                             // Whether the entry to follow has been found
+    final String       R = r.vValue(), S = s.vValue(), E = e.vValue(), D = d.vValue(), N = stuckSize.vMemory(S);
+    final StringBuilder c = new StringBuilder(R+" = "+Rank.vValue()+"; "+S+" = 0;");
+    c.append(" if ("+R+" >= "+stuckCount.vMemory("0")+") "+Found.vZero()+" else begin");// Rank beyond the number of keys in the tree
+    for (int l = 0; l < maxHeight(); l++)                                       // Descend through the branches skipping over children with too few keys
+     {c.append(" if (!"+stuckIsLeaf.vMemory(S)+") begin "+D+" = 0; "+E+" = "+N+";");
+      for (int i = 0; i < M-1; i++)
+       {final String k = stuckCount.vMemory(stuckDataV(s, ""+i));
+        c.append(" if (!"+D+" && "+i+" < "+N+") begin if ("+R+" < "+k+") begin "+E+" = "+i+"; "+D+" = 1; end else "+R+" = "+R+" - "+k+"; end");
+       }
+      c.append(" "+S+" = "+stuckDataV(s, E)+"; end");
+     }
+    c.append(" "+Key.vValue()+" = "+stuckKeyV(s, R)+"; "+Data.vValue()+" = "+stuckDataV(s, R)+"; "+Found.vOne()+" end");
+    L.releaseVariables(v);
+    return ""+c;
+   }
+
+  public void iSelect(Layout.Field Rank, Layout.Field Found,                    // Locate the key, data pair with the specified zero based rank setting found to true if there is such a pair
+    Layout.Field Key, Layout.Field Data)
+   {L.P.new Instruction()
+     {void action()
+       {select(Rank, Found, Key, Data);
+       }
+      String verilog() {return selectV(Rank, Found, Key, Data);}
+     }.reads(Rank).reads(stucks()).reads(counts()).writes(Found, Key, Data);
+   }
+
+  public void countBetween(Layout.Field Lo, Layout.Field Hi,                    // Count the keys greater than or equal to lo and less than or equal to hi
+    Layout.Field Count)
+   {if (!checkOrderStatistics()) return;
+    if (Lo.value > Hi.value) {Count.zero(); return;}                            // Empty range
+    Count.value = keysBefore(Hi.value, true) - keysBefore(Lo.value, false);
+   }
+
+  public String countBetweenV(Layout.Field Lo, Layout.Field Hi,                 // Count the keys greater than or equal to lo and less than or equal to hi in Verilog
+    Layout.Field Count)
+   {if (!orderStatistics) return L.P.stopV();
+    final int          v = L.markVariables();                                   // Release the variables created for the Verilog when it is done
+    final Layout.Field h = rank(), l = rank();                                  // Keys up to hi, keys below lo
+    final String       c = keysBeforeV(Hi, true, h)+" "+keysBeforeV(Lo, false, l)+" "+
+      Count.vValue()+" = "+Lo.vValue()+" > "+Hi.vValue()+" ? 0 : "+h.vValue()+" - "+l.vValue()+";";// An empty range holds no keys
+    L.releaseVariables(v);
+    return c;
+   }
+
+  public void iCountBetween(Layout.Field Lo, Layout.Field Hi,                   // Count the keys greater than or equal to lo and less than or equal to hi
+    Layout.Field Count)
+   {L.P.new Instruction()
+     {void action()
+       {countBetween(Lo, Hi, Count);
+       }
+      String verilog() {return countBetweenV(Lo, Hi, Count);}
+     }.reads(Lo, Hi).reads(stucks()).reads(counts()).writes(Count);
+   }
+
+//D1 Bloom filter                                                               // A bloom filter in front of the tree lets find reject most absent keys without descending the tree
+
+  void bloomFilter(int Bits, int Hashes)                                        // Place a bloom filter with the specified number of bits and hash functions in front of the tree. Find only consults the filter in programs generated after the filter has been created
+   {if (Bits   < 1) stop("The bloom filter must have at least one bit, not:", Bits);
+    if (Hashes < 1) stop("The bloom filter must use at least one hash, not:", Hashes);
+    bloomSize   = Bits;
+    bloomHashes = Hashes;
+    bloom       = new Layout(String.format("""
+bloomBits      array  %d
+  bloomBit     bit
+""", Bits));
+    bloom.P     = L.P;                                                          // Share the program of the btree
+    bloomBit    = bloom.locateFieldByName("bloomBit");
+    rebuildBloomFilter();                                                       // Add any keys already in the tree
+   }
+
+  private static int bloomMix(int Key)                                          // Scramble the bits of a key so that nearby keys hash to distant positions
+   {int h = Key;
+    h ^= h >>> 16; h *= 0x85ebca6b;
+    h ^= h >>> 13; h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+   }
+
+  private int bloomPosition(int Key, int Hash)                                  // Position in the bloom filter of a key under the indicated hash function using double hashing. The sum is treated as unsigned so that the Verilog can take the remainder of a 32 bit register
+   {final int h1 = bloomMix(Key), h2 = bloomMix(~Key) | 1;
+    return Integer.remainderUnsigned(h1 + Hash * h2, bloomSize);
+   }
+
+  private static String bloomMixV(Layout.Field H)                               // Scramble the bits of a 32 bit register in Verilog in the same way as bloomMix()
+   {final String h = H.vValue();
+    return h+" = "+h+" ^ ("+h+" >> 16); "+h+" = "+h+" * 32'h85ebca6b; "+
+           h+" = "+h+" ^ ("+h+" >> 13); "+h+" = "+h+" * 32'hc2b2ae35; "+
+           h+" = "+h+" ^ ("+h+" >> 16);";
+   }
+
+  private String bloomHashV(String Key, Layout.Field H1, Layout.Field H2)       // Set h1 to the first position of a key in the bloom filter and h2 to the step between its positions in Verilog: both are taken modulo the size of the filter when they are used
+   {final String h2 = H2.vValue();
+    return H1.vValue()+" = "+Key+"; "+bloomMixV(H1)+" "+
+           h2+" = "+Key+"; "+h2+" = ~"+h2+"; "+bloomMixV(H2)+" "+h2+" = "+h2+" | 1;";
+   }
+
+  private String bloomAddV(String Key)                                          // Add a key to the bloom filter in Verilog
+   {final int          v  = L.markVariables();                                  // Release the variables created for the Verilog when it is done
+    final Layout.Field h1 = variable("bloomHash", 32), h2 = variable("bloomStep", 32);
+    bloomFollow();
+    final StringBuilder c = new StringBuilder(bloomHashV(Key, h1, h2));
+    for (int i = 0; i < bloomHashes; i++)
+     {if (i > 0) c.append(" "+h1.vValue()+" = "+h1.vValue()+" + "+h2.vValue()+";");// Next position
+      c.append(" "+bloomBit.vMemory(h1.vValue()+" % "+bloomSize)+" = 1;");
+     }
+    L.releaseVariables(v);
+    return ""+c;
+   }
+
+  private String bloomMayContainV(Layout.Field Key, Layout.Field May)           // Set may to whether the key might be in the tree in Verilog
+   {final int          v  = L.markVariables();                                  // Release the variables created for the Verilog when it is done
+    final Layout.Field h1 = variable("bloomHash", 32), h2 = variable("bloomStep", 32);
+    bloomFollow();
+    final StringBuilder c = new StringBuilder(bloomHashV(Key.vValue(), h1, h2)+" "+May.vOne());
+    for (int i = 0; i < bloomHashes; i++)
+     {if (i > 0) c.append(" "+h1.vValue()+" = "+h1.vValue()+" + "+h2.vValue()+";");// Next position
+      c.append(" if (!"+bloomBit.vMemory(h1.vValue()+" % "+bloomSize)+") "+May.vZero());
+     }
+    L.releaseVariables(v);
+    return ""+c;
+   }
+
+  private void bloomFollow() {bloom.P = L.P;}                                   // The bloom filter uses whichever program the tree is running as the program might have changed since the filter was created
+
+  private void bloomAdd(int Key)                                                // Add a key to the bloom filter
+   {bloomFollow();
+    for (int i = 0; i < bloomHashes; i++) bloomBit.write(1, bloomPosition(Key, i));
+   }
+
+  private boolean bloomMayContain(int Key)                                      // Whether the key might be in the tree. False means the key is definitely absent
+   {bloomFollow();
+    for (int i = 0; i < bloomHashes; i++)
+     {bloomBit.read(bloomPosition(Key, i));
+      if (!bloomBit.asBoolean()) return false;
+     }
+    return true;
+   }
+
+  private void bloomAddTree(int Index)                                          // Add the keys of the leaves below the indicated stuck to the bloom filter
+   {final int N = sizeAt(Index);
+    if (leafAt(Index))
+     {for (int i = 0; i < N; i++) bloomAdd(keyAt(Index, i));
+      return;
+     }
+    for (int i = 0; i <= N; i++) bloomAddTree(dataAt(Index, i));                // A branch has one more child than it has keys
+   }
+
+  void rebuildBloomFilter()                                                     // Rebuild the bloom filter from the keys currently in the tree to remove the false positives left by deletions
+   {if (bloom == null) return;                                                  // No bloom filter
+    bloomFollow();
+    for (int i = 0; i < bloomSize; i++) bloomBit.write(0, i);                   // Clear the filter
+    bloomAddTree(0);                                                            // Add the keys in the tree starting at the root
+    bloomDeletes = 0;
+   }
+
+  String rebuildBloomFilterV()                                                  // Rebuild the bloom filter in Verilog from the keys in every leaf that is in use
+   {if (bloom == null) return "";                                               // No bloom filter
+    bloomFollow();
+    final int M = maxStuckSize;
+    final StringBuilder c = new StringBuilder();
+    for (int i = 0; i < bloomSize; i++) c.append(bloomBit.vMemory(""+i)+" = 0; ");// Clear the filter
+    for (int i = 0; i < size; i++)                                              // Add the keys of the leaves in use
+     {for (int j = 0; j < M; j++)
+       {c.append("if (!"+stuckIsFree.vMemory(""+i)+" && "+stuckIsLeaf.vMemory(""+i)+" && "+j+" < "+stuckSize.vMemory(""+i)+") begin "+
+          bloomAddV(stuckKeys.vMemory(""+(i*M+j)))+" end ");
+       }
+     }
+    return c.toString().trim();
+   }
+
+  void iRebuildBloomFilter()                                                    // Rebuild the bloom filter from the keys currently in the tree to remove the false positives left by deletions
+   {final Layout.Program.Instruction i = L.P.new Instruction()
+     {void action()
+       {rebuildBloomFilter();
+       }
+      String verilog() {return rebuildBloomFilterV();}
+     }.reads(stucks()).reads(chain());
+    if (bloomBit != null) i.uses(bloomBit);                                     // The bloom filter is rewritten as well
+   }
+
+//D1 Tests                                                                      // Test the btree
+
+  final static int[]random_100 = {27, 442, 545, 317, 511, 578, 391, 993, 858, 586, 472, 906, 658, 704, 882, 246, 261, 501, 354, 903, 854, 279, 526, 686, 987, 403, 401, 989, 650, 576, 436, 560, 806, 554, 422, 298, 425, 912, 503, 611, 135, 447, 344, 338, 39, 804, 976, 186, 234, 106, 667, 494, 690, 480, 288, 151, 773, 769, 260, 809, 438, 237, 516, 29, 376, 72, 946, 103, 961, 55, 358, 232, 229, 90, 155, 657, 681, 43, 907, 564, 377, 615, 612, 157, 922, 272, 490, 679, 830, 839, 437, 826, 577, 937, 884, 13, 96, 273, 1, 188};
+
+  static Btree test_create()
+   {final Btree b = new Btree(32, 4, 8, 8);
+    ok(b.dump(), """
+Btree
+Stuck:  0   size: 0   free: 0   next:  0  leaf: 1
+stuckSize: value=0
+stuckKeys: value=0, 0=0, 1=0, 2=0, 3=0
+stuckData: value=0, 0=0, 1=0, 2=0, 3=0
+""");
+    return b;
+   }
+
+  static void test_leaf()
+   {final Btree b = test_create();
+    final Layout.Field index = b.index();
+    final Layout.Field a     = b.variable("a", 4);
+
+    index.iWrite(0);
+    b.new IsLeaf(index)
+     {void Leaf  () {a.iWrite(1);}
+      void Branch() {a.iWrite(2);}
+     };
+    b.runProgram();
+    ok(a, "a: value=1");
+   }
+
+  static void test_allocFree()
+   {final Btree b = test_create();
+    final Layout.Field x = b.index();
+    final Layout.Field y = b.index();
+
+    ok(b.freeStart, "freeStart: value=1");
+    ok(b.freeNext,  "freeNext: value=0, 0=0, 1=2, 2=3, 3=4, 4=5, 5=6, 6=7, 7=8, 8=9, 9=10, 10=11, 11=12, 12=13, 13=14, 14=15, 15=16, 16=17, 17=18, 18=19, 19=20, 20=21, 21=22, 22=23, 23=24, 24=25, 25=26, 26=27, 27=28, 28=29, 29=30, 30=31, 31=0");
+    ok(b.dump(), """
+Btree
+Stuck:  0   size: 0   free: 0   next:  0  leaf: 1
+stuckSize: value=0
+stuckKeys: value=0, 0=0, 1=0, 2=0, 3=0
+stuckData: value=0, 0=0, 1=0, 2=0, 3=0
+""");
+
+    b.iAllocate(x, false);
+    b.iAllocate(y, false);
+    b.runProgram();
 
     ok(x, "index: value=1");
     ok(y, "index: value=2");
@@ -1569,8 +2874,6 @@ stuckData: value=38, 0=32, 1=34, 2=36, 3=38
     final Layout.Field stuckIndex = s.index();
     final Layout.Field index = b.index();
 
-    b.L.P.maxSteps = 500;
-
     b.clearProgram();
     Key.iWrite(5);
     b.find(Key, Found, Data, index, stuckIndex);
@@ -1628,8 +2931,6 @@ stuckData: value=38, 0=32, 1=34, 2=36, 3=38
    {final Btree b = test_create();
     final Layout.Field Found = b.found();
 
-    b.L.P.maxSteps = 500;
-
     b.clearProgram();
     b.stuckKeys.iWrite(20);
     b.stuckData.iWrite(21);
@@ -1766,8 +3067,6 @@ stuckData: value=6, 0=4, 1=5, 2=6, 3=0
    {final Btree b = test_create();
     final Layout.Field Found = b.found();
 
-    b.L.P.maxSteps = 500;
-
     b.clearProgram(); b.stuckKeys.iWrite(10); b.stuckData.iWrite(11); b.findAndInsert(Found); b.runProgram();
     b.clearProgram(); b.stuckKeys.iWrite(20); b.stuckData.iWrite(21); b.findAndInsert(Found); b.runProgram();
     b.clearProgram(); b.stuckKeys.iWrite(30); b.stuckData.iWrite(31); b.findAndInsert(Found); b.runProgram();
@@ -1803,7 +3102,6 @@ stuckData: value=41, 0=31, 1=41, 2=0, 3=0
   static void test_splitBranchRoot()
    {final Btree b = test_findAndInsert();
 
-    b.L.P.maxSteps = 500;
 //stop(b.dump());
     ok(b.dump(), """
 Btree
@@ -1851,8 +3149,6 @@ stuckData: value=0, 0=31, 1=0, 2=0, 3=0
     final Layout.Field I     = r.index();
     final Layout.Field L     = b.index();
 
-    b.L.P.maxSteps = 500;
-
     b.clearProgram(); r.stuckKeys.iWrite(10); r.stuckData.iWrite(1); r.iPush();               b.runProgram();
     b.clearProgram(); r.stuckKeys.iWrite(20); r.stuckData.iWrite(0); r.iPush();               b.runProgram();
     b.clearProgram(); r.stuckKeys.iWrite(30); r.stuckData.iWrite(0); r.iSetPastLastElement(); b.runProgram();
@@ -1909,8 +3205,6 @@ stuckData: value=2, 0=1, 1=2, 2=0, 3=0
     final Layout.Field R     = b.index();
     final Layout.Field L     = b.index();
 
-    b.L.P.maxSteps = 500;
-
     b.clearProgram(); r.stuckKeys.iWrite(10); r.stuckData.iWrite(0); r.iPush();               b.runProgram();
     b.clearProgram(); r.stuckKeys.iWrite(20); r.stuckData.iWrite(0); r.iPush();               b.runProgram();
     b.clearProgram(); r.stuckKeys.iWrite(30); r.stuckData.iWrite(1); r.iSetPastLastElement(); b.runProgram();
@@ -1969,8 +3263,6 @@ stuckData: value=2, 0=1, 1=2, 2=0, 3=0
     final Layout.Field I     = r.index();
     final Layout.Field L     = b.index();
 
-    b.L.P.maxSteps = 500;
-
     b.clearProgram(); r.stuckKeys.iWrite(10); r.stuckData.iWrite(1); r.iPush();               b.runProgram();
     b.clearProgram(); r.stuckKeys.iWrite(20); r.stuckData.iWrite(0); r.iPush();               b.runProgram();
     b.clearProgram(); r.stuckKeys.iWrite(30); r.stuckData.iWrite(0); r.iSetPastLastElement(); b.runProgram();
@@ -2029,8 +3321,6 @@ stuckData: value=3, 0=2, 1=3, 2=0, 3=0
     final Layout.Field R     = b.index();
     final Layout.Field L     = b.index();
 
-    b.L.P.maxSteps = 500;
-
     b.clearProgram(); r.stuckKeys.iWrite(10); r.stuckData.iWrite(0); r.iPush();               b.runProgram();
     b.clearProgram(); r.stuckKeys.iWrite(20); r.stuckData.iWrite(0); r.iPush();               b.runProgram();
     b.clearProgram(); r.stuckKeys.iWrite(30); r.stuckData.iWrite(1); r.iSetPastLastElement(); b.runProgram();
@@ -2094,8 +3384,6 @@ stuckData: value=2, 0=1, 1=2, 2=0, 3=0
   static void test_put()
    {final Btree b = test_create();
 
-    b.L.P.maxSteps = 2000;
-
     final int N = 32;
     for (int i = 1; i <= N; i++)
      {b.clearProgram();
@@ -2121,8 +3409,6 @@ stuckData: value=2, 0=1, 1=2, 2=0, 3=0
   static void test_putReverse()
    {final Btree b = test_create();
 
-    b.L.P.maxSteps = 2000;
-
     final int N = 32;
     for (int i = N; i > 0; i--)
      {b.clearProgram();
@@ -2148,8 +3434,6 @@ stuckData: value=2, 0=1, 1=2, 2=0, 3=0
   static void test_putRandom()
    {final Btree b = new Btree(64, 4, 16, 16);
 
-    b.L.P.maxSteps = 8000;
-
     final int N = 32;
     for (int i = 0; i < random_100.length; ++i)
      {b.clearProgram();
@@ -2176,14 +3460,10 @@ stuckData: value=2, 0=1, 1=2, 2=0, 3=0
 """);
    }
 
-  static void test_mergeLeavesIntoRoot()
+  static void test_putUpdate()                                                  // Updating a key replaces its data without inserting it again
    {final Btree b = test_create();
-    final Stuck s = b.stuck();
-    final Layout.Field index = b.index();
-    final Layout.Field success = s.success();
-    b.L.P.maxSteps = 2000;
 
-    final int N = 6;
+    final int N = 32;
     for (int i = 1; i <= N; i++)
      {b.clearProgram();
       b.stuckKeys.iWrite(i);
@@ -2191,26 +3471,118 @@ stuckData: value=2, 0=1, 1=2, 2=0, 3=0
       b.put();
       b.runProgram();
      }
-    index.value = 2;
-    b.clearProgram();
-    b.iCopyStuckFrom(s, index);
-    s.iPop(); s.iPop();
-    b.iSaveStuckInto(s, index);
-    b.runProgram();
-    //stop(b);
-    ok(b, """
-      2      |
-      0      |
-      1      |
-      2      |
-1,2=1  3,4=2 |
-""");
+    final int stucks = b.stucksInUse();
+
     b.clearProgram();
-    b.iMergeLeavesIntoRoot(success);
+    b.stuckKeys.iWrite(13);
+    b.stuckData.iWrite(99);
+    b.put();
     b.runProgram();
+    ok(b.L.P.rc == null);
+    ok(b.stucksInUse(), stucks);                                                // No leaf was split to make room for a second copy of the key
     //stop(b);
     ok(b, """
-1,2,3,4=0 |
+                                                      16                                                                   |
+                                                      0                                                                    |
+                                                      6                                                                    |
+                                                      11                                                                   |
+          4          8               12                               20               24                28                |
+          6          6.1             6.2                              11               11.1              11.2              |
+          1          3               4                                8                10                9                 |
+                                     7                                                                   2                 |
+1,2,3,4=1  5,6,7,8=3    9,10,11,12=4    13,14,15,16=7   17,18,19,20=8   21,22,23,24=10     25,26,27,28=9     29,30,31,32=2 |
+""");
+
+    final Stuck s = b.stuck();
+    final Layout.Field Key        = s.key();
+    final Layout.Field Data       = s.data();
+    final Layout.Field Found      = s.found();
+    final Layout.Field stuckIndex = s.index();
+    final Layout.Field index      = b.index();
+    b.clearProgram();
+    Key.iWrite(13);
+    b.find(Key, Found, Data, index, stuckIndex);
+    b.runProgram();
+    ok(Found.value, 1);
+    ok(Data.value, 99);                                                         // The new data not the data the key had before
+   }
+
+  static void test_putUpdateDelete()                                            // Update keys already in the tree and delete most of them with reused programs at several stuck sizes
+   {for (int M : new int[]{4, 6, 8})
+     {final Btree b = new Btree(512, M, 16, 16);
+      final int   N = 300;                                                      // Number of distinct keys
+      final int[] D = new int[N];                                               // Latest data put for each key
+
+      b.clearProgram();
+      b.put();
+      for (int i = 0; i < 4 * N; i++)                                           // Each key is put four times: once to insert it and then three updates
+       {final int k = i * 7919 % N;
+        b.stuckKeys.value = k; b.stuckData.value = D[k] = i;
+        b.runProgram();
+        ok(b.L.P.rc == null);
+       }
+
+      final Stuck s = b.stuck();
+      final Layout.Field Data = s.data();
+      b.clearProgram();
+      b.delete(Data);
+      for (int k = 0; k < N; k++)                                               // Delete three keys in four
+       {if (k % 4 == 3) continue;
+        b.stuckKeys.value = k;
+        b.runProgram();
+        ok(b.L.P.rc == null);
+        ok(Data.value, D[k]);
+       }
+
+      final Layout.Field Key        = s.key();
+      final Layout.Field Found      = s.found();
+      final Layout.Field stuckIndex = s.index();
+      final Layout.Field index      = b.index();
+      b.clearProgram();
+      b.find(Key, Found, Data, index, stuckIndex);
+      for (int k = 0; k < N; k++)                                               // Only the keys that were not deleted remain with their latest data
+       {Key.value = k;
+        b.runProgram();
+        ok(Found.value, k % 4 == 3 ? 1 : 0);
+        if (k % 4 == 3) ok(Data.value, D[k]);
+       }
+     }
+   }
+
+  static void test_mergeLeavesIntoRoot()
+   {final Btree b = test_create();
+    final Stuck s = b.stuck();
+    final Layout.Field index = b.index();
+    final Layout.Field success = s.success();
+
+    final int N = 6;
+    for (int i = 1; i <= N; i++)
+     {b.clearProgram();
+      b.stuckKeys.iWrite(i);
+      b.stuckData.iWrite(i+1);
+      b.put();
+      b.runProgram();
+     }
+    index.value = 2;
+    b.clearProgram();
+    b.iCopyStuckFrom(s, index);
+    s.iPop(); s.iPop();
+    b.iSaveStuckInto(s, index);
+    b.runProgram();
+    //stop(b);
+    ok(b, """
+      2      |
+      0      |
+      1      |
+      2      |
+1,2=1  3,4=2 |
+""");
+    b.clearProgram();
+    b.iMergeLeavesIntoRoot(success);
+    b.runProgram();
+    //stop(b);
+    ok(b, """
+1,2,3,4=0 |
 """);
    }
 
@@ -2220,7 +3592,6 @@ stuckData: value=2, 0=1, 1=2, 2=0, 3=0
     final Layout.Field index = b.index();
     final Layout.Field stuckIndex = s.index();
     final Layout.Field success = s.success();
-    b.L.P.maxSteps = 2000;
     b.supressMerge = true;
 
     final int N = 10;
@@ -2260,7 +3631,6 @@ stuckData: value=2, 0=1, 1=2, 2=0, 3=0
     final Stuck s = b.stuck();
     final Layout.Field index = b.index();
     final Layout.Field success = s.success();
-    b.L.P.maxSteps = 2000;
     b.supressMerge = true;
 
     final int N = 6;
@@ -2304,7 +3674,6 @@ stuckData: value=2, 0=1, 1=2, 2=0, 3=0
     final Stuck s = b.stuck();
     final Layout.Field index = b.index();
     final Layout.Field success = s.success();
-    b.L.P.maxSteps = 2000;
     b.supressMerge = true;
 
     final int N = 11;
@@ -2354,7 +3723,6 @@ stuckData: value=2, 0=1, 1=2, 2=0, 3=0
     final Layout.Field index = b.index();
     final Layout.Field stuckIndex = s.index();
     final Layout.Field success = s.success();
-    b.L.P.maxSteps = 2000;
     b.supressMerge = true;
 
     final int N = 20;
@@ -2402,7 +3770,6 @@ stuckData: value=2, 0=1, 1=2, 2=0, 3=0
     final Stuck s = b.stuck();
     final Layout.Field index = b.index();
     final Layout.Field success = s.success();
-    b.L.P.maxSteps = 2000;
     b.supressMerge = true;
 
     final int N = 15;
@@ -2454,7 +3821,6 @@ stuckData: value=2, 0=1, 1=2, 2=0, 3=0
 
   static void test_merge()
    {final Btree b = test_create();
-    b.L.P.maxSteps = 9000;
     b.supressMerge = true;
 
     final int N = 32;
@@ -2569,7 +3935,6 @@ stuckData: value=2, 0=1, 1=2, 2=0, 3=0
    {final Btree b = test_create();
     final Stuck s = b.stuck();
     final Layout.Field d = s.data();
-    b.L.P.maxSteps = 9000;
 
     final int N = 32;
     for (int i = 1; i <= N; i++)
@@ -2818,6 +4183,990 @@ stuckData: value=2, 0=1, 1=2, 2=0, 3=0
 """);
    }
 
+  static boolean countsAgree(Btree b, int Index)                                // Whether the key count of a stuck and of every stuck below it matches the keys actually held below it
+   {final int N = b.sizeAt(Index);
+    if (b.leafAt(Index)) return b.keysBelow(Index) == N;
+    int c = 0;
+    for (int i = 0; i <= N; i++)                                                // A branch has one more child than it has keys
+     {final int d = b.dataAt(Index, i);
+      if (!countsAgree(b, d)) return false;
+      c += b.keysBelow(d);
+     }
+    return b.keysBelow(Index) == c;
+   }
+
+  static void test_orderStatistics()
+   {final Btree b = new Btree(64, 4, 16, 16, true);
+    final Layout.Field key   = b.variable("key",   16);
+    final Layout.Field hi    = b.variable("hi",    16);
+    final Layout.Field data  = b.variable("data",  16);
+    final Layout.Field found = b.found();
+    final Layout.Field rank  = b.rank();
+
+    final TreeSet<Integer> keys = new TreeSet<>();                              // Expected contents of the tree
+    for (int i = 0; i < random_100.length; ++i)
+     {b.clearProgram();
+      b.stuckKeys.iWrite(random_100[i]);
+      b.stuckData.iWrite(i);
+      b.put();
+      b.runProgram();
+      keys.add(random_100[i]);
+     }
+
+    final Integer[]sorted = keys.toArray(new Integer[0]);
+    for (int i = 0; i < sorted.length; ++i)                                     // Rank and select each key
+     {b.clearProgram();
+      key.iWrite(sorted[i]);
+      b.iRank(key, rank);
+      b.runProgram();
+      ok(rank.value, i);
+
+      b.clearProgram();
+      rank.iWrite(i);
+      b.iSelect(rank, found, key, data);
+      b.runProgram();
+      ok(found.value, 1);
+      ok(key.value,   sorted[i]);
+     }
+
+    b.clearProgram();                                                           // Rank beyond the end of the tree
+    rank.iWrite(sorted.length);
+    b.iSelect(rank, found, key, data);
+    b.runProgram();
+    ok(found.value, 0);
+
+    b.clearProgram();                                                           // Keys in a range
+    key.iWrite(100); hi.iWrite(500);
+    b.iCountBetween(key, hi, rank);
+    b.runProgram();
+    ok(rank.value, keys.subSet(100, true, 500, true).size());
+
+    final Stuck        s = b.stuck();
+    final Layout.Field d = s.data();
+    for (int i = 0; i < 4; ++i)                                                 // Delete some keys and check that the counts follow
+     {b.clearProgram();
+      b.stuckKeys.iWrite(random_100[i]);
+      b.delete(d);
+      b.runProgram();
+      keys.remove(random_100[i]);
+     }
+
+    b.clearProgram();
+    key.iWrite(1); hi.iWrite(1000);
+    b.iCountBetween(key, hi, rank);
+    b.runProgram();
+    ok(rank.value, keys.size());
+
+    b.clearProgram();
+    key.iWrite(500);
+    b.iRank(key, rank);
+    b.runProgram();
+    ok(rank.value, keys.headSet(500).size());
+
+    b.stuckSize.value = 3; b.stuckKeys.value = 7;                               // Ranking examines the tree without disturbing its fields or recording the accesses
+    final Layout.Trace t = b.L.trace(1 << 10);
+    b.clearProgram();
+    b.iRank(key, rank);
+    b.runProgram();
+    b.L.P.trace = null;
+    ok(rank.value, keys.headSet(500).size());
+    ok(t.recorded, 0);
+    ok(b.stuckSize.value, 3);
+    ok(b.stuckKeys.value, 7);
+
+    ok(countsAgree(b, 0));                                                      // The splits made by the puts and the merges made by the deletes kept the counts
+    ok(b.keysBelow(0), keys.size());
+
+    for (int i = 10; i < 20; ++i)                                               // Updating a key leaves the counts alone
+     {b.clearProgram();
+      b.stuckKeys.iWrite(random_100[i]);
+      b.stuckData.iWrite(0);
+      b.put();
+      b.runProgram();
+     }
+    ok(countsAgree(b, 0));
+    ok(b.keysBelow(0), keys.size());
+
+    for (int i = 4; i < 96; ++i)                                                // Delete most of the keys so that many stucks are merged
+     {b.clearProgram();
+      b.stuckKeys.iWrite(random_100[i]);
+      b.delete(d);
+      b.runProgram();
+      keys.remove(random_100[i]);
+      ok(countsAgree(b, 0));
+     }
+    ok(b.keysBelow(0), keys.size());
+
+    b.clearProgram();                                                           // The counts are maintained by instructions that can be lowered to Verilog
+    b.stuckKeys.iWrite(7);
+    b.stuckData.iWrite(7);
+    b.put();
+    ok(b.L.P.unlowered(), 0);
+    ok(b.L.P.verilogModule("put").contains("stuckCount_value = stuckCount_value + 1;"));
+
+    b.clearProgram();
+    b.stuckKeys.iWrite(7);
+    b.delete(d);
+    ok(b.L.P.unlowered(), 0);
+    ok(b.L.P.verilogModule("delete").contains("stuckCount_value = stuckCount_value - 1;"));
+
+    final Btree c = new Btree(8, 4, 8, 8);                                      // Order statistics not maintained
+    final Layout.Field r = c.rank();
+    c.L.P.supressErrorMessagePrint = true;
+    c.clearProgram();
+    c.L.P.supressErrorMessagePrint = true;
+    c.iRank(r, r);
+    c.runProgram();
+    ok(c.L.P.rc, "Order statistics are not being maintained by this btree");
+   }
+
+  static void test_bloomFilter()
+   {final Btree b = new Btree(64, 4, 16, 16);
+    final Stuck s = b.stuck();
+    final Layout.Field Key        = s.key();
+    final Layout.Field Data       = s.data();
+    final Layout.Field Found      = s.found();
+    final Layout.Field stuckIndex = s.index();
+    final Layout.Field index      = b.index();
+
+    for (int i = 0; i < 50; ++i)                                                // Keys present before the bloom filter is created
+     {b.clearProgram();
+      b.stuckKeys.iWrite(random_100[i]);
+      b.stuckData.iWrite(i);
+      b.put();
+      b.runProgram();
+     }
+    b.bloomFilter(1024, 3);
+
+    for (int i = 50; i < random_100.length; ++i)                                // Keys added after the bloom filter was created
+     {b.clearProgram();
+      b.stuckKeys.iWrite(random_100[i]);
+      b.stuckData.iWrite(i);
+      b.put();
+      b.runProgram();
+     }
+
+    for (int i = 0; i < random_100.length; ++i)                                 // Every key is still found
+     {b.clearProgram();
+      Key.iWrite(random_100[i]);
+      b.find(Key, Found, Data, index, stuckIndex);
+      b.runProgram();
+      ok(Found.value, 1);
+      ok(Data .value, i);
+     }
+    ok(b.bloomRejections, 0);
+
+    for (int i = 1000; i < 1100; ++i)                                           // Absent keys are mostly rejected by the bloom filter
+     {b.clearProgram();
+      Key.iWrite(i);
+      b.find(Key, Found, Data, index, stuckIndex);
+      b.runProgram();
+      ok(Found.value, 0);
+     }
+    ok(b.bloomRejections, 97);                                                  // Three false positives
+
+    final Layout.Field d = s.data();
+    b.clearProgram();                                                           // A deleted key stays in the bloom filter until it is rebuilt
+    b.stuckKeys.iWrite(random_100[0]);
+    b.delete(d);
+    b.runProgram();
+    ok(b.bloomDeletes, 1);
+
+    b.clearProgram();
+    Key.iWrite(random_100[0]);
+    b.find(Key, Found, Data, index, stuckIndex);
+    b.runProgram();
+    ok(Found.value, 0);
+    ok(b.bloomRejections, 97);
+
+    b.clearProgram();
+    b.iRebuildBloomFilter();
+    b.runProgram();
+    ok(b.bloomDeletes, 0);
+
+    b.clearProgram();
+    Key.iWrite(random_100[0]);
+    b.find(Key, Found, Data, index, stuckIndex);
+    b.runProgram();
+    ok(Found.value, 0);
+    ok(b.bloomRejections, 98);
+
+    final Layout.Program p = b.startNewProgram();                               // The bloom filter is accessed by the program that is running even if it was started after the filter was created
+    b.L.P.trace = new Layout.Trace(1000);
+    b.stuckKeys.iWrite(2000);
+    b.stuckData.iWrite(100);
+    b.put();
+    b.runProgram();
+    ok(b.L.P.trace.counts().containsKey("bloomBit"));
+    ok(b.L.P.trace.counts().get("bloomBit")[1], 3L);                            // One write for each hash
+    b.continueProgram(p);
+   }
+
+  static void test_fingerSearch()
+   {final Btree a = new Btree(64, 4, 16, 16);                                   // With finger search
+    final Btree b = new Btree(64, 4, 16, 16);                                   // Without finger search
+    b.fingerSearch = false;
+
+    for (int i = 1; i <= 64; i++)                                               // Sequential inserts land in the rightmost leaf
+     {for (Btree t : new Btree[]{a, b})
+       {t.clearProgram();
+        t.stuckKeys.iWrite(i);
+        t.stuckData.iWrite(i+1);
+        t.put();
+        t.runProgram();
+       }
+     }
+    ok(a.print(), b.print());                                                   // The same tree either way
+    ok(a.fingerLevelsSkipped, 66);
+    ok(b.fingerLevelsSkipped, 0);
+
+    final Stuck s = a.stuck();
+    final Layout.Field Key        = s.key();
+    final Layout.Field Data       = s.data();
+    final Layout.Field Found      = s.found();
+    final Layout.Field stuckIndex = s.index();
+    final Layout.Field index      = a.index();
+    for (int i = 0; i <= 65; i++)                                               // Every key is found and absent keys are not
+     {a.clearProgram();
+      Key.iWrite(i);
+      a.find(Key, Found, Data, index, stuckIndex);
+      a.runProgram();
+      ok(Found.value, i >= 1 && i <= 64 ? 1 : 0);
+      if (Found.asBoolean()) ok(Data.value, i+1);
+     }
+   }
+
+  static Btree test_putWithPolicy(SplitPolicy policy, boolean ascending)        // Put a sequence of keys into a tree that splits its leaves with the specified policy
+   {return test_putWithPolicy(policy, ascending, true);
+   }
+
+  static Btree test_putWithPolicy(SplitPolicy policy, boolean ascending,       // Put a sequence of keys into a tree that splits its leaves with the specified policy and optionally merges after each put
+    boolean merge)
+   {final Btree b = new Btree(64, 4, 8, 8);
+    b.splitPolicy  = policy;
+    b.supressMerge = !merge;
+    b.metrics      = new Metrics();                                             // Count the splits
+    final int N = 32;
+    for (int i = 1; i <= N; i++)
+     {final int k = ascending ? i : N + 1 - i;
+      b.clearProgram();
+      b.stuckKeys.iWrite(k);
+      b.stuckData.iWrite(k+1);
+      b.put();
+      b.runProgram();
+     }
+    return b;
+   }
+
+  static void test_splitPolicy()
+   {final Btree e = test_putWithPolicy(SplitPolicy.even,     true);
+    final Btree a = test_putWithPolicy(SplitPolicy.append,   true);
+    final Btree p = test_putWithPolicy(SplitPolicy.prepend,  false);
+    final Btree A = test_putWithPolicy(SplitPolicy.adaptive, true);
+    final Btree P = test_putWithPolicy(SplitPolicy.adaptive, false);
+
+    //stop(a);
+    ok(a, """
+                                          12                                                        24                                      |
+                                          0                                                         0.1                                     |
+                                          5                                                         11                                      |
+                                                                                                    6                                       |
+        3        6          9                          15            18             21                             27            30         |
+        5        5.1        5.2                        11            11.1           11.2                           6             6.1        |
+        1        3          4                          8             10             9                              13            15         |
+                            7                                                       12                                           2          |
+1,2,3=1  4,5,6=3    7,8,9=4    10,11,12=7   13,14,15=8   16,17,18=10     19,20,21=9     22,23,24=12    25,26,27=13   28,29,30=15    31,32=2 |
+""");
+    //stop(p);
+    ok(p, """
+                               8                                                       20                                                     |
+                               0                                                       0.1                                                    |
+                               14                                                      11                                                     |
+                                                                                       5                                                      |
+       2          5                        11            14             17                           23           26            29            |
+       14         14.1                     11            11.1           11.2                         5            5.1           5.2           |
+       15         13                       6             10             8                            4            3             1             |
+                  12                                                    7                                                       2             |
+1,2=15   3,4,5=13     6,7,8=12   9,10,11=6   12,13,14=10     15,16,17=8     18,19,20=7    21,22,23=4   24,25,26=3    27,28,29=1    30,31,32=2 |
+""");
+    ok(A.print(), a.print());                                                   // Adaptive follows ascending keys
+    ok(P.print(), p.print());                                                   // Adaptive follows descending keys
+    ok(e.stucksInUse(), 11);                                                    // The merges after each put pack the half empty leaves left by even splits
+    ok(a.stucksInUse(), 15);
+    ok(p.stucksInUse(), 15);
+
+    ok(splits(e), 18);                                                          // Splitting to suit the order of the keys avoids the splits that later merges undo
+    ok(splits(a), 14);
+    ok(splits(p), 14);
+    ok(splits(test_putWithPolicy(SplitPolicy.even,    false)), 18);
+    ok(splits(test_putWithPolicy(SplitPolicy.prepend, true)),  31);             // The wrong bias is the worst case
+
+    ok(test_putWithPolicy(SplitPolicy.even,     true, false).stucksInUse(), 26);// Without merging the tree keeps the space left by each split
+    ok(test_putWithPolicy(SplitPolicy.append,   true, false).stucksInUse(), 19);
+    ok(test_putWithPolicy(SplitPolicy.adaptive, true, false).stucksInUse(), 19);
+    ok(test_putWithPolicy(SplitPolicy.prepend, false, false).stucksInUse(), 19);
+   }
+
+  static long splits(Btree b)                                                   // Number of splits recorded by the metrics of a tree
+   {long n = 0;
+    for (String k : b.metrics.snapshot().keySet()) if (k.startsWith("split.")) n += b.metrics.counter(k);
+    return n;
+   }
+
+  static void test_compact()
+   {final Btree b = new Btree(64, 4, 16, 16);
+    for (int i = 0; i < random_100.length; ++i)
+     {b.clearProgram();
+      b.stuckKeys.iWrite(random_100[i]);
+      b.stuckData.iWrite(i);
+      b.put();
+      b.runProgram();
+     }
+    final int used = b.stucksInUse();
+
+    b.clearProgram();
+    b.iCompact();
+    b.runProgram();
+    //stop(b);
+    ok(b, """
+                                                                                                                                                                                                                   379                                                                                                                   528                                                                                                                                                                                                                                                                       |
+                                                                                                                                                                                                                   0                                                                                                                     0.1                                                                                                                                                                                                                                                                       |
+                                                                                                                                                                                                                   1                                                                                                                     2                                                                                                                                                                                                                                                                         |
+                                                                                                                                                                                                                                                                                                                                         3                                                                                                                                                                                                                                                                         |
+                                                             143                                                             253                                                   341                                                             429                                                   497                                                                     582                                                                           718                                                                       894                                                                       |
+                                                             1                                                               1.1                                                   1.2                                                             2                                                     2.1                                                                     3                                                                             3.1                                                                       3.2                                                                       |
+                                                             4                                                               5                                                     6                                                               8                                                     9                                                                       11                                                                            12                                                                        13                                                                        |
+                                                                                                                                                                                   7                                                                                                                     10                                                                                                                                                                                                                              14                                                                        |
+              34               87              104                         156               210               235                         266               283                                 356                             402                                 440           457                                 507                                     568                                     630                   672                688                              805           819                    856                                  909                   946                988            |
+              4                4.1             4.2                         5                 5.1               5.2                         6                 6.1                                 7                               8                                   9             9.1                                 10                                      11                                      12                    12.1               12.2                             13            13.1                   13.2                                 14                    14.1               14.2           |
+              15               16              17                          19                20                21                          23                24                                  26                              28                                  30            31                                  33                                      35                                      37                    38                 39                               41            42                     43                                   45                    46                 47             |
+                                               18                                                              22                                            25                                  27                              29                                                32                                  34                                      36                                                                               40                                                                    44                                                                            48             |
+1,13,27,29=15   39,43,55,72=16    90,96,103=17    106,135=18    151,155=19    157,186,188=20    229,232,234=21    237,246=22    260,261=23    272,273,279=24    288,298,317,338=25    344,354=26    358,376,377=27    391,401=28    403,422,425=29    436,437,438=30    442,447=31    472,480,490,494=32    501,503=33    511,516,526=34    545,554,560,564=35    576,577,578=36    586,611,612,615=37    650,657,658,667=38     679,681,686=39     690,704=40    769,773,804=41    806,809=42     826,830,839,854=43     858,882,884=44    903,906,907=45    912,922,937,946=46     961,976,987=47     989,993=48 |
+""");
+    ok(b.stucksInUse(),    used);                                               // The same number of stucks are in use
+    ok(b.freeStart.value,  used);                                               // The free chain starts immediately after them
+
+    final Stuck s = b.stuck();
+    final Layout.Field Key        = s.key();
+    final Layout.Field Data       = s.data();
+    final Layout.Field Found      = s.found();
+    final Layout.Field stuckIndex = s.index();
+    final Layout.Field index      = b.index();
+    for (int i = 0; i < random_100.length; ++i)                                 // Every key is still present
+     {b.clearProgram();
+      Key.iWrite(random_100[i]);
+      b.find(Key, Found, Data, index, stuckIndex);
+      b.runProgram();
+      ok(Found.value, 1);
+      ok(Data .value, i);
+     }
+
+    b.clearProgram();                                                           // The rebuilt free chain can be allocated from
+    b.stuckKeys.iWrite(1000);
+    b.stuckData.iWrite(100);
+    b.put();
+    b.runProgram();
+    ok(b.L.P.rc == null);
+   }
+
+  static void test_metrics()
+   {final Btree b = new Btree(64, 4, 16, 16);
+    b.metrics = new Metrics();
+    for (int i = 0; i < random_100.length; ++i)
+     {b.clearProgram();
+      b.stuckKeys.iWrite(random_100[i]);
+      b.stuckData.iWrite(i);
+      b.put();
+      b.runProgram();
+     }
+
+    final Stuck s = b.stuck();
+    final Layout.Field Key        = s.key();
+    final Layout.Field Data       = s.data();
+    final Layout.Field Found      = s.found();
+    final Layout.Field stuckIndex = s.index();
+    final Layout.Field index      = b.index();
+    for (int i = 0; i < 10; ++i)
+     {b.clearProgram();
+      Key.iWrite(random_100[i]);
+      b.find(Key, Found, Data, index, stuckIndex);
+      b.runProgram();
+     }
+
+    final TreeMap<String,Long> m = b.metrics.snapshot();
+    ok(m.get("put"),        100L);
+    ok(m.get("put.steps.count"), 100L);
+    ok(m.get("merge"),      100L);                                              // Each put merges along the path of its key
+    ok(m.get("find"),        10L);
+    ok(m.get("allocations") - m.get("frees"), (long)b.stucksInUse() - 1);       // The root is never allocated
+    //stop(b.metrics);
+    ok(b.metrics, """
+allocations                                        67
+find                                               10
+find.steps.below.16                                 2
+find.steps.below.32                                 8
+find.steps.count                                   10
+find.steps.max                                     19
+find.steps.sum                                    182
+find.stucksCopied.below.4                           2
+find.stucksCopied.below.8                           8
+find.stucksCopied.count                            10
+find.stucksCopied.max                               4
+find.stucksCopied.sum                              38
+frees                                              19
+merge                                             100
+merge.mergeBranchesAtTop                            5
+merge.mergeBranchesIntoRoot                         3
+merge.mergeBranchesNotTop                           5
+merge.mergeLeavesAtTop                              2
+merge.mergeLeavesNotTop                             1
+merge.steps.below.128                              48
+merge.steps.below.256                              41
+merge.steps.below.64                                7
+merge.steps.below.8                                 4
+merge.steps.count                                 100
+merge.steps.max                                   157
+merge.steps.sum                                 11186
+merge.stucksCopied.below.1                          4
+merge.stucksCopied.below.16                         2
+merge.stucksCopied.below.32                        24
+merge.stucksCopied.below.64                        70
+merge.stucksCopied.count                          100
+merge.stucksCopied.max                             57
+merge.stucksCopied.sum                           3817
+put                                               100
+put.steps.below.128                                23
+put.steps.below.256                                72
+put.steps.below.32                                  4
+put.steps.below.64                                  1
+put.steps.count                                   100
+put.steps.max                                     223
+put.steps.sum                                   14638
+put.stucksCopied.below.128                         24
+put.stucksCopied.below.32                          11
+put.stucksCopied.below.4                            4
+put.stucksCopied.below.64                          61
+put.stucksCopied.count                            100
+put.stucksCopied.max                               84
+put.stucksCopied.sum                             4957
+split.splitBranchAtTop                             10
+split.splitBranchNotTop                            10
+split.splitLeafAtTop                               17
+split.splitLeafNotTop                              18
+split.splitRootBranch                               5
+split.splitRootLeaf                                 1
+stucksCopied                                     4995
+""");
+   }
+
+  static void test_flightRecorder()
+   {final jdk.jfr.Recording r = Events.record();
+    final Btree b = new Btree(64, 4, 16, 16);
+    for (int i = 0; i < random_100.length; ++i)
+     {b.clearProgram();
+      b.stuckKeys.iWrite(random_100[i]);
+      b.stuckData.iWrite(i);
+      b.put();
+      b.runProgram();
+     }
+    final List<jdk.jfr.consumer.RecordedEvent> e = Events.events(r);
+
+    final TreeMap<String,Integer> o = new TreeMap<>(), c = new TreeMap<>();
+    int height = 0;
+    for (jdk.jfr.consumer.RecordedEvent x : e)
+     {if (x.hasField("operation")) o.merge(x.getString("operation"), 1, Integer::sum);
+      else                         c.merge(x.getString("change"),    1, Integer::sum);
+      height = max(height, x.getInt("height"));
+     }
+    ok(o.get("put"),   100);
+    ok(o.get("merge"), 100);
+    ok(c.get("split.splitRootLeaf"), 1);
+    ok(height, b.height());
+    ok(c, "{merge.mergeBranchesAtTop=5, merge.mergeBranchesIntoRoot=3, merge.mergeBranchesNotTop=5, merge.mergeLeavesAtTop=2, merge.mergeLeavesNotTop=1, "+
+          "split.splitBranchAtTop=10, split.splitBranchNotTop=10, split.splitLeafAtTop=17, split.splitLeafNotTop=18, split.splitRootBranch=5, split.splitRootLeaf=1}");
+   }
+
+  static void test_lateListeners()                                              // Metrics, a trace and a recording started after a program has been generated still see its operations
+   {final Btree b = new Btree(64, 4, 16, 16);
+    b.clearProgram();
+    b.put();
+    b.stuckKeys.value = 1; b.stuckData.value = 2;
+    b.runProgram();                                                             // Nothing is listening
+
+    b.metrics = new Metrics();
+    final Layout.Trace t = b.L.trace(1 << 10);
+    final jdk.jfr.Recording r = Events.record();
+    b.stuckKeys.value = 3; b.stuckData.value = 4;
+    b.runProgram();
+    final List<jdk.jfr.consumer.RecordedEvent> e = Events.events(r);
+
+    ok(b.metrics.snapshot().get("put"),   1L);
+    ok(b.metrics.snapshot().get("merge"), 1L);
+    ok(t.ports().keySet(), "[merge, put]");                                     // Accesses are attributed to the operations
+    int puts = 0;
+    for (jdk.jfr.consumer.RecordedEvent x : e)
+     {if (x.hasField("operation") && x.getString("operation").equals("put")) ++puts;
+     }
+    ok(puts, 1);
+   }
+
+  static void test_optimize()
+   {final Btree a = new Btree(64, 4, 16, 16), b = new Btree(64, 4, 16, 16);
+    int removed = 0;
+    for (int i = 0; i < random_100.length; ++i)
+     {for (Btree t : new Btree[]{a, b})
+       {t.clearProgram();
+        t.stuckKeys.iWrite(random_100[i]);
+        t.stuckData.iWrite(i);
+        t.put();
+        if (t == b) removed += t.L.P.optimize();
+        t.runProgram();
+       }
+     }
+    ok(b.print(), a.print());
+    //stop(removed, a.L.P.steps, b.L.P.steps);
+    ok(removed,     3400);                                                      // Thirty four instructions removed from each put
+    ok(a.L.P.steps, 14938);
+    ok(b.L.P.steps, 10773);                                                     // Over a quarter fewer instructions dispatched
+   }
+
+  static void test_stepBound()
+   {for (int M : new int[]{4, 8})
+     {final Btree b = new Btree(64, M, 16, 16);
+      long worst = 0;
+      for (int i = 0; i < random_100.length; ++i)
+       {b.clearProgram();
+        b.stuckKeys.iWrite(random_100[i]);
+        b.stuckData.iWrite(i);
+        b.put();
+        final long s = b.L.P.steps;
+        b.runProgram();                                                         // The step limit is derived from the code
+        worst = Math.max(worst, b.L.P.steps - s);
+        ok(b.L.P.maxSteps, b.L.P.stepBound());
+       }
+      ok(b.maxHeight(), 7);
+      ok(b.L.P.loops().size(), 6);                                              // Put restarts after splitting the root, descends splitting as it goes, finds twice and merges
+      ok(b.L.P.maxSteps, M == 4 ? 1318 : 1710);                                 // The merge along the path grows with the size of the stucks
+      ok(worst,          M == 4 ?  226 :  212);
+     }
+   }
+
+  static void test_cycles()                                                     // Compare the clock cycles taken by puts and finds in trees with different stuck sizes on different hardware
+   {final StringBuilder r = new StringBuilder();
+    for   (int M : new int[]{4, 6, 8})
+     {for (int v = 0; v < 3; v++)
+       {final Btree b = new Btree(64, M, 16, 16);
+        final Layout.CycleModel c = new Layout.CycleModel();
+        c.parallel = v != 1;                                                    // Parallel comparator except in the second variant
+        c.wide     = v == 2;                                                    // Wide memory in the third variant
+        b.L.P.cycleModel = c;
+        b.metrics = new Metrics();
+        for (int i = 0; i < random_100.length; ++i)
+         {b.clearProgram();
+          b.stuckKeys.iWrite(random_100[i]);
+          b.stuckData.iWrite(i);
+          b.put();
+          b.runProgram();
+         }
+        final long puts = b.L.P.cycles;
+
+        final Stuck s = b.stuck();
+        final Layout.Field Key        = s.key();
+        final Layout.Field Data       = s.data();
+        final Layout.Field Found      = s.found();
+        final Layout.Field stuckIndex = s.index();
+        final Layout.Field index      = b.index();
+        for (int i = 0; i < random_100.length; ++i)
+         {b.clearProgram();
+          Key.iWrite(random_100[i]);
+          b.find(Key, Found, Data, index, stuckIndex);
+          b.runProgram();
+         }
+        ok(b.metrics.snapshot().get("put.cycles.count"), 100L);
+        r.append(String.format("%d  %-8s  %-6s  %6d  %6d  %6d\n", M, c.parallel ? "parallel" : "serial",
+          c.wide ? "wide" : "narrow", b.height(), puts, b.L.P.cycles - puts));
+       }
+     }
+    //stop(r);
+    ok(r, """
+4  parallel  narrow       4   63311    5720
+4  serial    narrow       4   64061    6052
+4  parallel  wide         4   29895    3632
+6  parallel  narrow       3   68947    5573
+6  serial    narrow       3   69949    6035
+6  parallel  wide         3   25562    2903
+8  parallel  narrow       3   77316    6365
+8  serial    narrow       3   78469    6887
+8  parallel  wide         3   23833    2795
+""");                                                                           // Wider stucks only pay off when the memory is as wide as a stuck
+   }
+
+  static void test_schedule()                                                   // The composite instructions declare the fields they use so that they can be bundled with the instructions around them
+   {final Btree b = new Btree(64, 4, 16, 16);
+    long steps = 0, bundles = 0;
+    for (int i = 0; i < random_100.length; ++i)
+     {b.clearProgram();
+      b.stuckKeys.iWrite(random_100[i]);
+      b.stuckData.iWrite(i);
+      b.put();
+      final Layout.Program.Schedule s = b.L.P.schedule();
+      final long p = b.L.P.steps;
+      b.runProgram();
+      steps   += b.L.P.steps - p;
+      bundles += s.executed;
+      ok(s.criticalPath() <= b.L.P.stepBound());
+     }
+    ok(steps,   14938);
+    ok(bundles, 13798);
+
+    steps = bundles = 0;
+    for (int i = 0; i < random_100.length; ++i)
+     {b.clearProgram();
+      final Stuck        s = b.stuck();
+      final Layout.Field k = s.key();
+      k.iWrite(random_100[i]);
+      b.find(k, s.found(), s.data(), b.index(), s.index());
+      final Layout.Program.Schedule S = b.L.P.schedule();
+      final long p = b.L.P.steps;
+      b.runProgram();
+      steps   += b.L.P.steps - p;
+      bundles += S.executed;
+      ok(S.criticalPath() <= b.L.P.stepBound());
+     }
+    ok(steps,   1892);
+    ok(bundles, 1444);
+   }
+
+  static void test_verilog()                                                    // Find, put, merge and delete are lowered completely to Verilog unless there is a bloom filter
+   {final Btree b = test_btree();
+    final Stuck s = b.stuck();
+    final Layout.Field Key        = s.key();
+    final Layout.Field Data       = s.data();
+    final Layout.Field Found      = s.found();
+    final Layout.Field stuckIndex = s.index();
+    final Layout.Field index      = b.index();
+
+    b.clearProgram();
+    Key.iWrite(4);
+    b.find(Key, Found, Data, index, stuckIndex);
+    ok(b.L.P.unlowered(), 0);
+    final String v = b.L.P.verilogModule("find");
+    //stop(v);
+    ok(v.contains("  reg [7:0] stuckKeys_2_memory[0:127];"));
+    ok(v.contains("        2: begin program_pc = program_pc + 1; index_value = 0; end"));
+    ok(v.contains("        3: begin program_pc = program_pc + 1; stuckSize_value = stuckSize_2_memory[index_value]; stuckKeys_memory[0] = stuckKeys_2_memory[(index_value) * 4 + 0];"));
+    ok(v.contains("        4: begin program_pc = program_pc + 1; stuckIsLeaf_value = stuckIsLeaf_memory[index_value]; end"));
+    ok(v.contains("if (found_value) stuckData_value = stuckData_memory[stuckIndex_value]; if (!found_value) program_pc = program_label[1]; end"));
+    ok(v.contains("if (!program_stopped) begin index_value = stuckData_value; program_pc = program_label[0]; end end"));
+
+    b.runProgram();
+    ok(Found, "found: value=1");
+
+    b.clearProgram();
+    b.stuckKeys.iWrite(9);
+    b.stuckData.iWrite(9);
+    b.put();
+    ok(b.L.P.unlowered(), 0);
+    final String p = b.L.P.verilogModule("put");
+    //stop(p);
+    ok(p.contains("if (freeStart_value == 0) begin program_stopped = 1; program_pc = program_end; end else begin "));
+
+    b.clearProgram();
+    b.stuckKeys.iWrite(9);
+    b.merge();
+    ok(b.L.P.unlowered(), 0);
+
+    b.clearProgram();
+    b.stuckKeys.iWrite(9);
+    b.delete(Data);
+    ok(b.L.P.unlowered(), 0);
+
+    b.bloomFilter(64, 2);                                                       // The hashes of the bloom filter are lowered as well
+    b.clearProgram();
+    b.stuckKeys.iWrite(9);
+    b.stuckData.iWrite(9);
+    b.put();
+    ok(b.L.P.unlowered(), 0);
+    final String h = b.L.P.verilogModule("put");
+    ok(h.contains("bloomHash_value = bloomHash_value * 32'h85ebca6b;"));
+    ok(h.contains("bloomBit_memory[bloomHash_value % 64] = 1; bloomHash_value = bloomHash_value + bloomStep_value; bloomBit_memory[bloomHash_value % 64] = 1;"));
+
+    b.clearProgram();
+    Key.iWrite(4);
+    b.find(Key, Found, Data, index, stuckIndex);
+    ok(b.L.P.unlowered(), 0);
+    ok(b.L.P.verilogModule("find").contains("if (!bloomBit_memory[bloomHash_value % 64]) found_value = 0; if (!found_value) program_pc = program_label["));
+
+    b.clearProgram();
+    b.stuckKeys.iWrite(9);
+    b.delete(Data);
+    b.iRebuildBloomFilter();
+    b.iCompact();
+    ok(b.L.P.unlowered(), 0);
+    final String c = b.L.P.verilogModule("compact");
+    ok(c.contains("bloomBit_memory[63] = 0; if (!stuckIsFree_memory[0] && stuckIsLeaf_memory[0] && 0 < stuckSize_2_memory[0]) begin bloomHash_value = stuckKeys_memory[0];"));
+    ok(c.contains("compactOrder_memory[0] = 0;"));
+    ok(c.contains("freeStart_value = index_"));
+
+    final Btree o = new Btree(8, 4, 8, 8, true);                                // Order statistics
+    final Layout.Field r = o.rank(), k = o.variable("key", 8), d = o.variable("data", 8), f = o.found();
+    o.clearProgram();
+    o.iRank(k, r);
+    o.iSelect(r, f, k, d);
+    o.iCountBetween(k, k, r);
+    ok(o.L.P.unlowered(), 0);
+    final String q = o.L.P.verilogModule("rank");
+    ok(q.contains("if (0 < entry_value) rank_value = rank_value + stuckCount_memory[stuckData_memory[(index_value) * 4 + 0]];"));
+    ok(q.contains("if (rank_2_value >= stuckCount_memory[0]) found_2_value = 0; else begin"));
+
+    b.clearProgram();
+    final int line = new Throwable().getStackTrace()[0].getLineNumber() + 1;
+    b.L.P.new Instruction() {void action() {}};                                 // Not lowered so it stops the program
+    ok(b.L.P.unlowered(), 1);
+    ok(b.L.P.verilogModule("stop").contains(String.format("/* not lowered: Btree.java:%04d:test_verilog */", line)));// Unlowered instructions name the line in the btree that created them
+   }
+
+  static void test_scratch()                                                    // Scratch stucks are reused once the program that owns them has been cleared
+   {final Btree b = test_create();
+
+    int warm = 0;
+    for (int i = 1; i <= 64; i++)
+     {b.clearProgram();
+      b.stuckKeys.iWrite(i);
+      b.stuckData.iWrite(i+1);
+      b.put();
+      b.runProgram();
+      if (i == 32) warm = b.scratch.size();
+     }
+    ok(warm > 0);
+    ok(b.scratch.size(), warm);
+    for (Scratch s : b.scratch) ok(s.stuck.L.layouts.size() < 16);              // Variables of split stucks are reused rather than accumulated
+    for (Scratch s : b.spares)  ok(s.stuck.L.layouts.size() < 16);
+
+    final Btree c = test_create();                                              // Scratch stucks are reused once the program that owns them has been replaced
+    for (int i = 1; i <= 50; i++)
+     {c.startNewProgram();
+      c.stuckKeys.iWrite(i);
+      c.stuckData.iWrite(i+1);
+      c.put();
+      c.runProgram();
+      if (i == 25) warm = c.scratch.size() + c.spares.size();
+     }
+    ok(c.scratch.size() + c.spares.size(), warm);
+
+    final Btree d = test_create();                                              // A program continued after it has been replaced shares its scratch stucks with the program that replaced it
+    d.startNewProgram();
+    d.put();
+    final Layout.Program put = d.L.P;
+    d.startNewProgram();
+    final Stuck        s = d.stuck();
+    final Layout.Field k = s.key(), f = s.found(), v = s.data();
+    k.iMove(d.stuckKeys);
+    d.find(k, f, v, d.index(), s.index());
+    final Layout.Program find = d.L.P;
+    for (int i = 1; i <= 32; i++)
+     {d.continueProgram(put);
+      d.stuckKeys.value = i; d.stuckData.value = 2 * i;
+      d.runProgram();
+      d.continueProgram(find);
+      d.stuckKeys.value = i;
+      d.runProgram();
+      ok(f.value, 1);
+      ok(v.value, 2 * i);
+     }
+    for (int i = 1; i <= 32; i++)
+     {d.stuckKeys.value = i;
+      d.runProgram();
+      ok(f.value, 1);
+      ok(v.value, 2 * i);
+     }
+   }
+
+  static Btree test_snapshotFind(Btree b, int Key)                              // Find a key in a tree using a new program
+   {final Stuck s = b.stuck();
+    final Layout.Field Key_       = s.key();
+    final Layout.Field Data       = s.data();
+    final Layout.Field Found      = s.found();
+    final Layout.Field stuckIndex = s.index();
+    final Layout.Field index      = b.index();
+    b.clearProgram();
+    Key_.iWrite(Key);
+    b.find(Key_, Found, Data, index, stuckIndex);
+    b.runProgram();
+    ok(Found, "found: value=1");
+    ok(Data,  "data: value="+(Key+1));
+    return b;
+   }
+
+  static void test_snapshot()                                                   // Save a tree and restart from it in a btree that is already in use
+   {final Btree b = test_create();
+    for (int i = 1; i <= 32; i++)
+     {b.clearProgram();
+      b.stuckKeys.iWrite(i);
+      b.stuckData.iWrite(i+1);
+      b.put();
+      b.runProgram();
+     }
+
+    for (int B = 0; B < 2; B++)                                                 // Without and with a bloom filter
+     {final Btree c = new Btree(32, 4, 8, 8);                                   // A tree holding different keys which has already been searched so that its finger and bloom filter reflect its old content
+      if (B > 0) c.bloomFilter(256, 3);
+      for (int i = 2; i <= 64; i += 2)
+       {c.clearProgram();
+        c.stuckKeys.iWrite(i);
+        c.stuckData.iWrite(i+1);
+        c.put();
+        c.runProgram();
+       }
+      test_snapshotFind(c, 10);
+
+      try
+       {final java.nio.file.Path f = java.nio.file.Files.createTempFile("btree", ".bin");
+        b.save(f);
+        c.load(f);
+        java.nio.file.Files.delete(f);
+        ok(""+c, ""+b);
+        ok(c.dump(), b.dump());
+        test_snapshotFind(c, 11);
+        test_snapshotFind(c, 30);
+
+        final java.nio.file.Path d = java.nio.file.Files.createTempDirectory("btree");
+        final Btree e = new Btree(32, 4, 8, 8);                                 // Import the same tree as Verilog memory images
+        if (B > 0) e.bloomFilter(256, 3);
+        test_snapshotFind(b, 5);
+        b.writeMemories(d, true);
+        e.readMemories(d, true);
+        ok(e.dump(), b.dump());
+        test_snapshotFind(e, 7);
+        test_snapshotFind(e, 31);
+        try (java.util.stream.Stream<java.nio.file.Path> t = java.nio.file.Files.list(d))
+         {for (java.nio.file.Path g : t.toList()) java.nio.file.Files.delete(g);
+         }
+        java.nio.file.Files.delete(d);
+       }
+      catch(java.io.IOException e) {stop(e);}
+     }
+   }
+
+  static void test_memoryReport()
+   {final Btree b = test_create();
+    for (int i = 1; i <= 32; i++)
+     {b.clearProgram();
+      b.stuckKeys.iWrite(i);
+      b.stuckData.iWrite(i+1);
+      b.put();
+      b.runProgram();
+     }
+
+    final MemoryReport r = b.memoryReport();
+    ok(r.used,     b.stucksInUse());
+    ok(r.used + r.free, b.size);
+    ok(r.leaves,   8);
+    ok(r.branches, 3);
+    ok(r.keys,     32);
+    ok(r.leafFill(), 1.0);
+    ok(r.branchKeys, 7);
+    ok(r.branchFill(), 7 / 12.0);
+    ok(r.layout.bits, b.L.memoryBits());
+    ok(r.scratchBytes > 0);
+    ok(r.bytesPerKey() > r.layout.bytes / 32.0);
+    //stop(r);
+    ok((""+r).contains("Stucks used 11 free 21 leaves 8 branches 3\nKeys 32 leaf fill 1.00 branch fill 0.58 bytes per key "));
+    ok(r.bloomLayout == null);
+
+    b.bloomFilter(256, 3);                                                      // The bloom filter is part of the memory of the tree
+    b.L.P.cycleModel = new Layout.CycleModel();
+    final Layout.Trace t = b.L.trace(16);
+    b.stuckSize.value = 3;
+    final MemoryReport R = b.memoryReport();
+    ok(R.bloomLayout.bits, 256);
+    ok(R.totalBytes(), r.totalBytes() + R.bloomBytes());
+    ok((""+R).contains("\nBloom filter                    256          256 "));
+    ok(R.keys, 32);
+    ok(b.stuckSize.value, 3);                                                   // Examining the tree does not disturb the fields, the cycle model or the trace
+    ok(b.L.P.reads, 0);
+    ok(t.size(), 0);
+   }
+
+  static void test_trace()                                                      // Which fields of the tree are accessed together by each operation
+   {final Btree b = new Btree(64, 4, 16, 16);
+    final Layout.Trace t = b.L.trace(1 << 20);                                  // Trace the accesses made by the puts and finds
+    for (int i = 0; i < random_100.length; ++i)
+     {b.clearProgram();
+      b.stuckKeys.iWrite(random_100[i]);
+      b.stuckData.iWrite(i);
+      b.put();
+      b.runProgram();
+     }
+
+    final Stuck s = b.stuck();
+    final Layout.Field Key        = s.key();
+    final Layout.Field Data       = s.data();
+    final Layout.Field Found      = s.found();
+    final Layout.Field stuckIndex = s.index();
+    final Layout.Field index      = b.index();
+    for (int i = 0; i < 10; ++i)
+     {b.clearProgram();
+      Key.iWrite(random_100[i]);
+      b.find(Key, Found, Data, index, stuckIndex);
+      b.runProgram();
+     }
+    ok(t.lost(), 0);
+
+    final TreeMap<String,TreeMap<String,Integer>> p = t.ports();
+    ok(p.keySet(), "[find, merge, put]");                                       // Every access was made by an operation
+    ok(p.get("find").get("stuckKeys"), 4);                                      // A stuck is copied out of the tree in one step so its keys are read in parallel
+    //stop(t);
+    ok(t, """
+Accesses 47863 held 47863 lost 0
+Field                         Reads     Writes        RAW
+freeNext                         67         86      261.7
+stuckData                     18732       1248      947.1
+stuckIsFree                       0         86
+stuckIsLeaf                    2561         68     3326.5
+stuckKeys                     18732       1248      947.1
+stuckSize                      4723        312      946.3
+Ports find: stuckData=4 stuckIsLeaf=1 stuckKeys=4 stuckSize=1
+Ports merge: freeNext=2 stuckData=16 stuckIsFree=2 stuckIsLeaf=1 stuckKeys=16 stuckSize=4
+Ports put: freeNext=4 stuckData=20 stuckIsFree=2 stuckIsLeaf=3 stuckKeys=20 stuckSize=5
+""");
+   }
+
+  static void test_rollback()                                                   // A put that runs out of memory leaves the tree as it was
+   {final Btree b = new Btree(4, 4, 8, 8);
+    b.L.P.transactional = true;
+    String before = null;
+    int i = 0;
+    for (i = 1; i <= 32; i++)
+     {before = b.dump();
+      b.clearProgram();
+      b.L.P.supressErrorMessagePrint = true;
+      b.stuckKeys.iWrite(i);
+      b.stuckData.iWrite(i);
+      b.put();
+      b.runProgram();
+      if (b.L.P.rc != null) break;
+     }
+    ok(b.L.P.rc, "Out of memory");
+    ok(i, 11);
+    ok(b.L.P.undo.size(), 0);
+    ok(b.dump(), before);                                                       // The partial split has been undone
+
+    final Stuck s = b.stuck();                                                  // The tree is still usable
+    final Layout.Field Key        = s.key();
+    final Layout.Field Data       = s.data();
+    final Layout.Field Found      = s.found();
+    final Layout.Field stuckIndex = s.index();
+    final Layout.Field index      = b.index();
+    b.clearProgram();
+    Key.iWrite(7);
+    b.find(Key, Found, Data, index, stuckIndex);
+    b.runProgram();
+    ok(b.L.P.rc == null);
+    ok(Found, "found: value=1");
+    ok(Data,  "data: value=7");
+   }
+
   static void oldTests()                                                        // Tests thought to be in good shape
    {test_create();
     test_leaf();
@@ -2836,6 +5185,8 @@ stuckData: value=2, 0=1, 1=2, 2=0, 3=0
     test_put();
     test_putReverse();
     test_putRandom();
+    test_putUpdate();
+    test_putUpdateDelete();
     test_mergeLeavesIntoRoot();
     test_mergeLeavesAtTop();
     test_mergeLeavesNotTop();
@@ -2844,6 +5195,24 @@ stuckData: value=2, 0=1, 1=2, 2=0, 3=0
     test_mergeBranchesNotTop();
     test_merge();
     test_delete();
+    test_orderStatistics();
+    test_bloomFilter();
+    test_fingerSearch();
+    test_splitPolicy();
+    test_compact();
+    test_metrics();
+    test_flightRecorder();
+    test_lateListeners();
+    test_optimize();
+    test_stepBound();
+    test_cycles();
+    test_schedule();
+    test_verilog();
+    test_scratch();
+    test_snapshot();
+    test_memoryReport();
+    test_trace();
+    test_rollback();
    }
 
   static void newTests()                                                        // Tests being worked on
@@ -0,0 +1,103 @@
+//------------------------------------------------------------------------------
+// Java Flight Recorder events describing the operations on a btree
+// Philip R Brenan at appaapps dot com, Appa Apps Ltd Inc., 2025
+//------------------------------------------------------------------------------
+package com.AppaApps.Silicon;                                                   // Btree in a block on the surface of a silicon chip.
+
+import java.nio.file.*;
+import java.util.*;
+import jdk.jfr.*;
+import jdk.jfr.consumer.*;
+
+class Events extends Test                                                       // Flight recorder events so that latency can be correlated with changes in the shape of a btree in an ordinary recording
+ {@Name("com.AppaApps.Silicon.Operation")
+  @Label("Btree Operation")
+  @Category({"AppaApps", "Btree"})
+  @Description("A put, find, delete or merge on a btree")
+  static class Operation extends Event                                          // An operation on a btree timed from its first to its last instruction
+   {@Label("Operation")     String operation;                                   // Name of the operation
+    @Label("Key")           int    key;                                         // Key being processed
+    @Label("Height")        int    height;                                      // Height of the tree after the operation
+    @Label("Steps")         long   steps;                                       // Instructions executed
+    @Label("Stucks Copied") long   stucks;                                      // Stucks copied out of or saved into the tree
+   }
+
+  @Name("com.AppaApps.Silicon.Change")
+  @Label("Btree Change")
+  @Category({"AppaApps", "Btree"})
+  @Description("A split or merge that changed the shape of a btree")
+  static class Change extends Event                                             // A change in the shape of a btree
+   {@Label("Change")        String change;                                      // Kind of split or merge
+    @Label("Key")           int    key;                                         // Key of the operation that made the change
+    @Label("Height")        int    height;                                      // Height of the tree after the change
+    @Label("Steps")         long   steps;                                       // Instructions executed by the operation so far
+    @Label("Stucks Copied") long   stucks;                                      // Stucks copied by the operation so far
+   }
+
+  final static EventType operationType = EventType.getEventType(Operation.class);// Description of the operation event
+  final static EventType    changeType = EventType.getEventType(Change   .class);// Description of the change event
+
+  static boolean operations() {return operationType.isEnabled();}               // Whether any recording wants operation events
+  static boolean changes()    {return    changeType.isEnabled();}               // Whether any recording wants change events
+  static boolean enabled()    {return operations() || changes();}               // Whether any recording wants btree events
+
+//D1 Tests                                                                      // Test the events
+
+  static Recording record()                                                     // Start a recording of the btree events
+   {final Recording r = new Recording();
+    r.enable(Operation.class).withoutThreshold();
+    r.enable(Change   .class).withoutThreshold();
+    r.start();
+    return r;
+   }
+
+  static List<RecordedEvent> events(Recording r)                                // Stop a recording and read back the events in it
+   {try
+     {r.stop();
+      final Path f = Files.createTempFile("btree", ".jfr");
+      r.dump(f);
+      r.close();
+      final List<RecordedEvent> e = RecordingFile.readAllEvents(f);
+      Files.delete(f);
+      return e;
+     }
+    catch(Exception e) {stop("Cannot read recording", e);}
+    return null;
+   }
+
+  static void test_enabled()
+   {ok(enabled(), false);
+    final Recording r = record();
+    ok(operations(), true);
+    ok(changes(),    true);
+    final Operation o = new Operation();
+    o.operation = "test"; o.key = 1;
+    o.commit();
+    final List<RecordedEvent> e = events(r);
+    ok(enabled(),  false);
+    ok(e.size(),   1);
+    ok(e.get(0).getString("operation"), "test");
+    ok(e.get(0).getInt   ("key"),       1);
+   }
+
+  static void oldTests()                                                        // Tests thought to be in good shape
+   {test_enabled();
+   }
+
+  static void newTests()                                                        // Tests being worked on
+   {oldTests();
+   }
+
+  public static void main(String[] args)                                        // Test if called as a program
+   {try                                                                         // Get a traceback in a format clickable in Geany if something goes wrong to speed up debugging.
+     {if (github_actions) oldTests(); else newTests();                          // Tests to run
+      testSummary();                                                            // Summarize test results
+      System.exit(testsFailed);
+     }
+    catch(Exception e)                                                          // Get a traceback in a format clickable in Geany
+     {System.err.println(e);
+      System.err.println(fullTraceBack(e));
+      System.exit(1);
+     }
+   }
+ }
@@ -4,7 +4,12 @@
 //------------------------------------------------------------------------------
 package com.AppaApps.Silicon;                                                   // Btree in a block on the surface of a silicon chip.
 
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 class Layout extends Test                                                       // Descriobe and manipulate the memory containing the btree
  {final String                source;                                           // The source string we are going to parse into fields  describing the memory layout
@@ -12,6 +17,10 @@ class Layout extends Test
   final Stack<Layout>        layouts = new Stack<>();                           // Sub layouts that are used to manipulate this layout but are nor part of its permanent state
   final TreeMap<String,Field>  names = new TreeMap<>();                         // Names of each field
   Program                          P = new Program();                           // The code that manipulates the fields
+  static final StackWalker    walker = StackWalker.getInstance(Set.of(), 8);    // Finds the line that created each instruction without capturing the whole stack: the line is usually only a few frames down
+  static final Map<Class<?>,StackWalker.StackFrame> sites = new ConcurrentHashMap<>();// Line that created each class of instruction outside the skipped files, shared by all layouts
+  boolean                  registers = false;                                   // Whether the memory of this layout is held in registers so that accessing it costs nothing in the cycle model
+  int                   variablesInUse = 0;                                     // Number of the sub layouts holding variables that are in use: the rest have been released and can be reused
 
 //D1 Layout                                                                     // Describe a memory layout
 
@@ -23,12 +32,38 @@ class Layout extends Test
     allocateMemory();                                                           // Allocate memory for all fields
    }
 
+  Layout(Layout Template)                                                       // A new instance of a parsed layout: the fields are copied from the template without parsing and given fresh zeroed memory
+   {source = Template.source;
+    for (Field t : Template.fields)
+     {new Field(t.line, t.indent, t.name, t.cmd, t.rep, t.parent, t.soa);
+     }
+    for (Field t : Template.fields)                                             // Link the copies in the same way as the originals
+     {final Field f = fields.elementAt(t.number);
+      for (Field c : t.children)   f.children  .push(fields.elementAt(c.number));
+      for (Field d : t.dimensions) f.dimensions.push(fields.elementAt(d.number));
+     }
+    allocateMemory();
+   }
+
+  private final static HashMap<String,Layout> templates = new HashMap<>();      // Parsed layouts by source
+
+  static Layout template(String Source)                                         // A new instance of the layout described by the source, parsing the source only the first time it is seen
+   {final Layout t;
+    synchronized(templates) {t = templates.computeIfAbsent(Source, Layout::new);}
+    return new Layout(t);
+   }
+
+  static int templates()                                                        // Number of layouts parsed so far by template()
+   {synchronized(templates) {return templates.size();}
+   }
+
 //D2 Fields                                                                     // Describe a field in a memory layout
 
   class Field                                                                   // The fields in the layout
    {final Layout  layout;                                                       // Containing layout
     final int     line;                                                         // Line at which the layout was parsed
     final int     indent;                                                       // Indentation
+    final int     number = fields.size();                                       // Position of this field in the fields of the layout
     final String  name;                                                         // Name
     final String  cmd;                                                          // Command
     final Integer rep;                                                          // Optional repetition
@@ -36,11 +71,18 @@ class Layout extends Test
     final Stack<Field>dimensions = new Stack<>();                               // Dimensions of field
     final Stack<Field>children   = new Stack<>();                               // Children of an item
     final boolean spacer, array, bit, var;                                      // Classification - a spacer is a bit or a var as they actually take up space - or a character in "The Caves of Steel"
-    BitSet[]memory;                                                             // Memory for this field
+    final boolean soa;                                                          // An array stored as a structure of arrays: each child of the array occupies its own dense region rather than the children of each element being adjacent
+    BitSet[]memory;                                                             // Memory of the layout shared by all of its fields: the elements of this field occupy the slots given by slot()
+    int     base;                                                               // Slot in memory of the first element of this field
+    int[]   slots;                                                              // Slot in memory of each element of this field or null if the elements are dense from the base
+    int     elements;                                                           // Number of elements of this field held in memory
+    int[]   strides;                                                            // Elements of memory spanned by one step in each dimension, precomputed when the memory is allocated
+    int[]   extents;                                                            // Size of each dimension, precomputed when the memory is allocated
     int     value;                                                              // The last value read from the memory of this field
+    long    readAt = -1, writtenAt = -1;                                        // Step at which the memory of this field was last read or written while a cycle model is in use
 
     Field(int line, int indent, String name, String cmd,
-          Integer rep, Integer parent)
+          Integer rep, Integer parent, boolean soa)
      {this.layout = Layout.this;
       this.line   = line;
       this.indent = indent;
@@ -48,6 +90,7 @@ class Layout extends Test
       this.cmd    = cmd;
       this.rep    = rep;
       this.parent = parent;
+      this.soa    = soa;
       array       = cmd.equals("array");
       bit         = cmd.equals("bit");
       var         = cmd.equals("var");
@@ -79,10 +122,10 @@ class Layout extends Test
      {final StringBuilder s = new StringBuilder();
       s.append(name+": value="   +value);
       if (memory != null)
-       {final int d = memory.length;
+       {final int d = elements;
         if (d > 0)
          {for (int i = 0; i < d; i++)
-           {s.append(", "+i+"="+getIntFromBits(memory[i]));
+           {s.append(", "+i+"="+getIntFromBits(element(i)));
            }
          }
        }
@@ -120,13 +163,39 @@ class Layout extends Test
       return joinStrings(s, ", ");
      }
 
-    void allocateMemory()                                                       // Allocate memory for this field if is a var or bit and part of an array. Otherwise it is just temporary
+    void allocateMemory(BitSet[]Memory)                                         // Allocate the elements of this field if is a var or bit and part of an array in the slots of the memory of the layout given by its storage order. Otherwise it is just temporary
      {if (rep() == null || dims() == 0) return;                                 // Only vars and bits are allocated memeory and even then only if they are part of an array
-      final int N = dimProduct();
-      memory = new BitSet[N];                                                   // Array of bit sets.  This is inefficient for representing bit fields in Java but not a problem in Verilog and, ultimately, it is the Verilog that counts.
-      for (int i = 0; i < N; i++) memory[i] = new BitSet(rep());                // Memory at each index
+      final int N = dimProduct(), D = dims();
+      strides = new int[D]; extents = new int[D];
+      final int[]spacing = new int[D];                                          // Slots between successive elements in each dimension
+      boolean dense = true;
+      for (int c = D-1, s = 1; c >= 0; --c)                                     // Strides from the innermost dimension outwards
+       {strides[c] = s;
+        extents[c] = dimensions.elementAt(c).rep();
+        spacing[c] = slotStride(this, c);
+        dense     &= spacing[c] == s;
+        s *= extents[c];
+       }
+      memory   = Memory;                                                        // Array of bit sets.  This is inefficient for representing bit fields in Java but not a problem in Verilog and, ultimately, it is the Verilog that counts.
+      base     = slotOffset(this);
+      elements = N;
+      slots    = dense ? null : new int[N];                                     // Elements that are not dense are located through a table so that finding one costs no more than an array access
+      for (int i = 0; i < N; i++)                                               // Memory at each index
+       {if (!dense)
+         {int a = base;
+          for (int c = D-1, r = i; c >= 0; r /= extents[c], --c) a += r % extents[c] * spacing[c];
+          slots[i] = a;
+         }
+        memory[slot(i)] = new BitSet(rep());
+       }
      }
 
+    int slot(int Index)                                                         // The slot in memory holding the element of this field at the indicated index in row major order
+     {return slots == null ? base + Index : slots[Index];
+     }
+
+    BitSet element(int Index) {return memory[slot(Index)];}                     // The memory holding the element of this field at the indicated index in row major order
+
     Field checkVar()                                                            // Check that this is a bit or var field - a bit is a var containing just one bit
      {if (bit || var) return this;
       stop("Expected a bit or a var but got a:", cmd, "called", name);
@@ -147,41 +216,86 @@ class Layout extends Test
        }
      }
 
-    int convolute(Field...j)                                                    // Convolute the dimensions of this field with the supplied top level vars acting as array indices to locat the index of an element in an array
-     {int i = j[0].value;                                                       // Current value of var
-      final int J = j.length;
-      for (int c = 1; c < J; c++)                                               // Each dimension beyond the first one contributes to the indexs.  The first dimension determines the size but not the location of an element in the array
-       {final int    d = dimensions.elementAt(c).rep();
-        final Field  f = j[c];
-        final int    v = f.value;
-        final String m = "Index: "+v+"from: "+f.name+" is";
-        if (v <  0) stop(m, "negative");                                        // Index out of range low
-        if (v >= d) stop(m, "is greater than or equal to:", d);                 // Index out of range high
-        i = i * d + v;                                                          // Move up one dimension
+    int convolute(Field...j) {return address(j);}                               // Convolute the dimensions of this field with the supplied top level vars acting as array indices to locat the index of an element in an array
+
+    int address(Field...Indices)                                                // The index in memory of the element located by the supplied top level vars acting as array indices. The first index is not checked as the first dimension determines the size but not the location of an element in the array
+     {final int J = Indices.length;
+      int a = Indices[0].value * strides[0];
+      for (int c = 1; c < J; c++)
+       {final int v = Indices[c].value;
+        if (v < 0 || v >= extents[c]) indexOutOfRange(Indices[c].name, v, extents[c]);
+        a += v * strides[c];
        }
-      return i;
+      return J == strides.length ? a : a / strides[J-1];                        // Fewer indices than dimensions address the elements of the outer dimensions
+     }
+
+    int address(int...Indices)                                                  // The index in memory of the element located by the supplied constant array indices
+     {final int J = Indices.length;
+      int a = Indices[0] * strides[0];
+      for (int c = 1; c < J; c++)
+       {final int v = Indices[c];
+        if (v < 0 || v >= extents[c]) indexOutOfRange("dimension "+c, v, extents[c]);
+        a += v * strides[c];
+       }
+      return J == strides.length ? a : a / strides[J-1];                        // Fewer indices than dimensions address the elements of the outer dimensions
+     }
+
+    private void indexOutOfRange(String Source, int Value, int Extent)          // Report an index out of range: the message is only built when it is needed
+     {final String m = "Index: "+Value+"from: "+Source+" is";
+      if (Value < 0) stop(m, "negative");                                       // Index out of range low
+      else stop(m, "is greater than or equal to:", Extent);                     // Index out of range high
      }
 
     String convoluteV(Field...j)                                                // Convolute the dimensions of this field with the supplied top level vars acting as array indices to locat the index of an element in an array
-     {String s = ""+j[0].value;                                                 // Current value of var
+     {String s = j[0].vValue();                                                 // Value of the var at the time the Verilog executes
       final int J = j.length;
       for (int c = 1; c < J; c++)                                               // Each dimension beyond the first one contributes to the indexs.  The first dimension determines the size but not the location of an element in the array
        {final int    d = dimensions.elementAt(c).rep();
         final Field  f = j[c];
-        final int    v = f.value;
-        s = "("+s+") * "+d+" + "+v;                                             // Move up one dimension
+        s = "("+s+") * "+d+" + "+f.vValue();                                    // Move up one dimension
        }
       return s;
      }
 
+    String v()                   {return P.verilogName(this);}                  // The name of this field in Verilog which is unique within the program being generated
+    String vValue()              {return v()+"_value";}                         // The Verilog register holding the value of this field
+    String vMemory(String Index) {return v()+"_memory["+Index+"]";}             // An element of the Verilog memory backing this field
+
+//D3 Cost                                                                       // Count accesses to memory for the cycle model
+
+    void written(int Index)                                                     // Save an element of memory that is about to be written so that it can be restored if the program fails
+     {final Program p = P;
+      if (p.transactional) p.undo.push(p.new Undo(this, Index, (BitSet)element(Index).clone()));
+     }
+
+    void accessed(boolean Write, int Index)                                     // Record a read or write of an element of the memory of this field if a trace is being recorded and count it if a cycle model is in use. Layouts held in registers are not memory so their accesses are neither recorded nor counted
+     {if (registers) return;
+      final Program p = P;
+      if (p.trace != null) p.trace.record(this, Index, Write, p.pc, p.steps);
+      if (p.cycleModel == null) return;
+      if (Write)
+       {p.writes++;
+        if (writtenAt != p.steps) {writtenAt = p.steps; p.rowWrites++;}         // First write of this field by the current instruction
+       }
+      else
+       {p.reads++;
+        if (readAt    != p.steps) {readAt    = p.steps; p.rowReads++;}          // First read of this field by the current instruction
+       }
+     }
+
 //D3 Read                                                                       // Read values from memory
 
     void read(int index)                                                        // Create an instruction that loads the value of this field from the constant indexed element of the memory associated with this field
-     {value = getIntFromBits(memory[index]);
+     {value = getIntFromBits(element(index));
+      accessed(false, index);
      }
 
     String readV(String index)                                                  // Create an instruction that loads the value of this field from the constant indexed element of the memory associated with this field
-     {return name+"_value = "+name+"_memory["+index+"];";
+     {return vValue()+" = "+vMemory(index)+";";
+     }
+
+    int peek(int...Indices)                                                     // The value of the element located by the supplied constant array indices without loading it into this field or recording the access so that a report can examine memory without disturbing a program
+     {return getIntFromBits(element(address(Indices)));
      }
 
     void iRead(int index)                                                       // Create an instruction that loads the value of this field from the constant indexed element of the memory associated with this field
@@ -189,7 +303,7 @@ class Layout extends Test
       P.new Instruction()
        {void   action () {f.read(index);}
         String verilog() {return f.readV(""+index);}
-       };
+       }.reads(f).writes(f);
      }
 
     void read(Field...Indices)     {read(convolute(Indices));}                  // Create an instruction that loads the value of this field from the variably indexed element of the memory associated with this field
@@ -200,17 +314,18 @@ class Layout extends Test
       P.new Instruction()
        {void   action () {f.read(Indices);}
         String verilog() {return f.readV(Indices);}
-       };
+       }.reads(Indices).reads(f).writes(f);
      }
 
     void readNext(Field...Indices)                                              // Create an instruction that loads the value of this field from the one plus variably indexed element of the memory associated with this field
      {final int index = convolute(Indices);
-      value = getIntFromBits(memory[index+1]);
+      value = getIntFromBits(element(index+1));
+      accessed(false, index+1);
      }
 
     String readNextV(Field...Indices)                                           // Create an instruction that loads the value of this field from the one plus variably indexed element of the memory associated with this field
      {final String index = convoluteV(Indices);
-      return name+"_value = "+name+"_memory["+index+"+1];";
+      return vValue()+" = "+vMemory(index+"+1")+";";
      }
 
     void iReadNext(Field...Indices)                                             // Create an instruction that loads the value of this field from the one plus variably indexed element of the memory associated with this field
@@ -218,7 +333,7 @@ class Layout extends Test
       P.new Instruction()
        {void   action () {readNext(Indices);}
         String verilog() {return readNextV(Indices);}
-       };
+       }.reads(Indices).reads(Field.this).writes(Field.this);
      }
 
 //D3 Write                                                                      // Write values into memory
@@ -236,7 +351,7 @@ class Layout extends Test
 
     String writeV(int Value)
      {final Field f = this;
-      return f.name+"_value = "+Value+";";
+      return f.vValue()+" = "+Value+";";
      }
 
     void iWrite(int Value)                                                      // Create an instruction that sets the value of this field but does not modify the memory backing the field
@@ -244,7 +359,7 @@ class Layout extends Test
       P.new Instruction()
        {void   action () {f.write(Value);}
         String verilog() {return f.writeV(Value);}
-       };
+       }.reads().writes(f);
      }
 
     void write(int Value, int Index)                                            // Create an instruction that sets the value of this field and updates the constant indexed element of the memory associated with this field with the same value
@@ -253,13 +368,15 @@ class Layout extends Test
        {P.stopProgram("Value too big to be written into array");
         return;
        }
-      final BitSet b = f.memory[Index];                                         // Bit set in memory holding value at this index
+      f.written(Index);
+      final BitSet b = f.element(Index);                                        // Bit set in memory holding value at this index
       f.setBitsFromInt(b, Value);
       f.value = f.getIntFromBits(b);                                            // So the value matches what is actually in memory
+      f.accessed(true, Index);
      }
 
     String writeV(int Value, int Index)                                            // Create an instruction that sets the value of this field and updates the constant indexed element of the memory associated with this field with the same value
-     {return name+"_memory["+Index+"] = "+Value+";";
+     {return vMemory(""+Index)+" = "+Value+"; "+vValue()+" = "+Value+";";
      }
 
     void iWrite(int Value, int Index)                                           // Create an instruction that sets the value of this field and updates the constant indexed element of the memory associated with this field with the same value
@@ -267,7 +384,7 @@ class Layout extends Test
       P.new Instruction()
        {void   action () {f.write(Value, Index);}
         String verilog() {return f.writeV(Value, Index);}
-       };
+       }.reads().writes(f);
      }
 
     void write(Field...Indices)                                                 // Create an instruction that sets the value of this field and updates the variable indexed element of the memory associated with this field with the same value
@@ -277,15 +394,17 @@ class Layout extends Test
         return;
        }
       final int index = convolute(Indices);
-      final BitSet b  = f.memory[index];                                        // Bit set in memory holding value at this index
+      f.written(index);
+      final BitSet b  = f.element(index);                                       // Bit set in memory holding value at this index
       f.setBitsFromInt(b, value);
       f.value = f.getIntFromBits(b);                                            // So the value matches what is actually in memory
+      f.accessed(true, index);
      }
 
     String writeV(Field...Indices)                                              // Create an instruction that sets the value of this field and updates the variable indexed element of the memory associated with this field with the same value
      {final Field f = this;
       final String index = convoluteV(Indices);
-      return f.name+"_value = "+f.name+"_memory["+index+"];";
+      return f.vMemory(index)+" = "+f.vValue()+";";
      }
 
     void iWrite(Field...Indices)                                                // Create an instruction that sets the value of this field and updates the variable indexed element of the memory associated with this field with the same value
@@ -293,7 +412,7 @@ class Layout extends Test
       P.new Instruction()
        {void   action () {f.write(Indices);}
         String verilog() {return f.writeV(Indices);}
-       };
+       }.reads(Indices).reads(f).writes(f);
      }
 
     void constant(int Value, Field...Indices)                                   // Create an instruction to set an array element to a constant
@@ -307,15 +426,18 @@ class Layout extends Test
         return;
        }
       final int index = f.convolute(Indices);                                   // Convolute the indices
-      final BitSet b  = f.memory[index];                                        // Bit set in memory holding value at this index
+      f.written(index);
+      final BitSet b  = f.element(index);                                       // Bit set in memory holding value at this index
       f.setBitsFromInt(b, Value);
       f.value = f.getIntFromBits(b);                                            // So the value matches what is actually in memory
+      f.accessed(true, index);
      }
 
     String constantV(int Value, Field...Indices)                                // Create an instruction to set an array element to a constant
      {final Field f = this;
+      if (Indices.length == 0) return f.vValue()+" = "+Value+";";               // No indices
       final String index = convoluteV(Indices);
-      return f.name+"_memory["+index+"] = "+value+";";
+      return f.vMemory(index)+" = "+Value+"; "+f.vValue()+" = "+Value+";";
      }
 
     void iConstant(int Value, Field...Indices)                                  // Create an instruction to set an array element to a constant
@@ -323,7 +445,7 @@ class Layout extends Test
       P.new Instruction()
        {void   action () {       f.constant(Value, Indices);}
         String verilog() {return f.constantV(Value, Indices);}
-       };
+       }.reads(Indices).writes(f);
      }
 
     void one     (Field...indices) {        constant(1, indices);}              // Create an instruction to set a field to one
@@ -337,57 +459,67 @@ class Layout extends Test
 //D3 Move                                                                       // Instructions that copy data from one memory location to another
 
     void    move(Field Source) {value = Source.value;}                          // Copy the source value to the target. To write into backing memory as well call iWrite() as well
-    String moveV(Field Source) {return name+"_value = "+Source.name+"_value;";}
+    String moveV(Field Source) {return vValue()+" = "+Source.vValue()+";";}
 
     void iMove(Field Source) {iAdd(Source);}                                    // Copy the source value to the target. To write into backing memory as well call iWrite() as well
 
     void move(int TargetIndex, Field Source)                                    // Copy the indexed source memory into the indexed target memory
-     {setBitsFromInt(memory[TargetIndex], Source.value);
+     {written(TargetIndex);
+      setBitsFromInt(element(TargetIndex), Source.value);
+      accessed(true, TargetIndex);
+     }
+
+    String moveV(int TargetIndex, Field Source)                                 // Copy the indexed source memory into the indexed target memory
+     {return vMemory(""+TargetIndex)+" = "+Source.vValue()+";";
      }
 
     void iMove(int TargetIndex, Field Source)                                   // Copy the indexed source memory into the indexed target memory
      {P.new Instruction()
-       {void action() {move(TargetIndex, Source);}
-       };
+       {void   action () {        move(TargetIndex, Source);}
+        String verilog() {return moveV(TargetIndex, Source);}
+       }.reads(Source).writes(Field.this);
      }
 
     void move (int TargetIndex, Field Source, int SourceIndex)                  // Copy the indexed source memory into the indexed target memory
-     {memory[TargetIndex] = (BitSet)Source.memory[SourceIndex].clone();
+     {written(TargetIndex);
+      memory[slot(TargetIndex)] = (BitSet)Source.element(SourceIndex).clone();
+      Source.accessed(false, SourceIndex);
+      accessed(true, TargetIndex);
      }
 
     String moveV(int TargetIndex, Field Source, int SourceIndex)                // Copy the indexed source memory into the indexed target memory
-     {return name+"_memory["+TargetIndex+"] = "+Source.name + "_memory["+SourceIndex+"];";
+     {return vMemory(""+TargetIndex)+" = "+Source.vMemory(""+SourceIndex)+";";
      }
 
     void iMove(int TargetIndex, Field Source, int SourceIndex)                  // Copy the indexed source memory into the indexed target memory
      {P.new Instruction()
        {void   action () {        move(TargetIndex, Source, SourceIndex);}
         String verilog() {return moveV(TargetIndex, Source, SourceIndex);}
-       };
+       }.reads(Source).writes(Field.this);
      }
 
 //D3 Arithmetic                                                                 // Instructions that do arithmetic
 
     void    dec() {value--;}                                                    // Decrement the value of this field
-    String decV() {return name+"_value = "+name+"_value - 1;";}                 // Decrement the value of this field
+    String decV() {return vValue()+" = "+vValue()+" - 1;";}                     // Decrement the value of this field
 
     void iDec()                                                                 // Decrement the value of this field
      {final Field f = checkVar();
       P.new Instruction()
        {void   action () {       f. dec();}
         String verilog() {return f.decV();}
-       };
+       }.reads(f).writes(f);
      }
 
     void   inc () {value++;}                                                    // Increment the value of this field
-    String incV() {return name+"_value = "+name+"_value + 1;";}                 // Decrement the value of this field
+    String incV() {return vValue()+" = "+vValue()+" + 1;";}                     // Decrement the value of this field
 
     void iInc()                                                                 // Increment the value of this field
      {final Field f = checkVar();
       P.new Instruction()
        {void action()    {       f.inc();}
         String verilog() {return f.incV();}
-       };
+       }.reads(f).writes(f);
      }
 
     void iAdd(Field...Source)                                                   // Add the values of the source fields and store in the target. If no source fields are supplied trhe source is zeroed.  IF one field is supplied the source value is copied in to the target.  Otherwise the source fields are summed and the result stored in the target value
@@ -395,41 +527,64 @@ class Layout extends Test
       switch(Source.length)
        {case 0: P.new Instruction()
          {void   action () {t.value = 0;}
-          String verilog() {return t.name+"_value = 0;";}
-         };
+          String verilog() {return t.vValue()+" = 0;";}
+         }.reads().writes(t);
         break;
         case 1: P.new Instruction()
          {void   action () {t.value = Source[0].value;}
-          String verilog() {return t.name+"_value = "+Source[0].name+"_value;";}
-         };
+          String verilog() {return t.vValue()+" = "+Source[0].vValue()+";";}
+         }.reads(Source[0]).writes(t);
         break;
         case 2: P.new Instruction()
          {void   action () {t.value = Source[0].value + Source[1].value;}
-          String verilog() {return t.name+"_value = "+Source[0].name+"_value"+" + "+Source[1].name+"_value;";}
-         };
+          String verilog() {return t.vValue()+" = "+Source[0].vValue()+" + "+Source[1].vValue()+";";}
+         }.reads(Source[0], Source[1]).writes(t);
         break;
         default: P.new Instruction()
          {void action()
            {t.value = 0; for(Field s : Source) t.value += s.value;
            }
-         };
+          String verilog()
+           {final StringJoiner j = new StringJoiner(" + ");
+            for (Field s : Source) j.add(s.vValue());
+            return t.vValue()+" = "+j+";";
+           }
+         }.reads(Source).writes(t);
         break;
        };
      }
 
     void   half()  {value >>>= 1;}                                              // Divide the value of a field by two
-    String halfV() {return name+"_value = "+name+"_value >>> + 1;";}            // Divide the value of a field by two
+    String halfV() {return vValue()+" = "+vValue()+" >> 1;";}                   // Divide the value of a field by two
 
     void iHalf()                                                                // Divide the value of a field by two
      {P.new Instruction()
        {void   action () {       half();}
         String verilog() {return halfV();}
-       };
+       }.reads(Field.this).writes(Field.this);
      }
    }
 
 //D2 Programs                                                                   // Define a program to manipulate the layout
 
+  static boolean debugPrograms = false;                                         // Whether new programs capture a stack trace for each instruction they create: off by default as this is the largest source of allocations while generating code
+
+  static class CycleModel                                                       // Clock cycles charged for the work done by each instruction executed
+   {int     dispatch = 1;                                                       // Cycles to execute an instruction and select the next one whether by falling through or branching
+    int     read     = 1;                                                       // Cycles to read from memory
+    int     write    = 1;                                                       // Cycles to write to memory
+    int     compare  = 1;                                                       // Cycles to compare two keys
+    boolean parallel = true;                                                    // A search compares all the keys of a stuck at once using a parallel comparator
+    boolean wide     = false;                                                   // Memory is as wide as an array so all the elements of a field read or written by one instruction are accessed at once
+
+    long cycles(Program p)                                                      // Cycles taken by the instruction just executed
+     {return dispatch
+       + (long)read    * (wide     ? p.rowReads  : p.reads)
+       + (long)write   * (wide     ? p.rowWrites : p.writes)
+       + (long)compare * (parallel ? p.searches  : p.compares);
+     }
+   }
+
   class Program                                                                 // Program definition
    {final Stack<Instruction>      code = new Stack<>();                         // The code that manipulates the fields
     final Stack<Label>          labels = new Stack<>();                         // Labels into the code
@@ -438,14 +593,57 @@ class Layout extends Test
     Integer                     nextPc = null;                                  // The next program counter requested
     String                          rc = null;                                  // The result of executing the program.  If null then no problems were detected
     boolean   supressErrorMessagePrint = false;                                 // Do not print error message from iStop() during testing if true
+    long                         steps = 0;                                     // Number of instructions executed by this program since it was created
+    boolean                      debug = debugPrograms;                         // Capture the stack at the point each instruction is created so that errors can be located precisely
+    boolean                 boundSteps = false;                                 // Set maxSteps from the static step bound of the code each time the program is run if the bound is finite
+    long                         bound = -1;                                    // Step bound of the code computed by boundMaxSteps() or -1 if the code or its labels have changed since it was computed
+    int                      stepLimit = maxSteps;                              // Step limit set by the caller which is restored by boundMaxSteps() when the step bound is infinite
+    int                   boundedSteps = -1;                                    // Value given to maxSteps by boundMaxSteps() so that a limit set by the caller can be detected
+    Schedule                 scheduled = null;                                  // Count the bundles executed according to this schedule if not null
+    CycleModel              cycleModel = null;                                  // Charge clock cycles for each instruction executed if not null
+    Trace                        trace = null;                                  // Record each access to memory if not null
+    boolean              transactional = false;                                 // Undo the writes to memory made by a run of the program that stops with a non null return code
+    final Stack<Undo>             undo = new Stack<>();                         // The previous content of each element of memory written by the current run of the program if it is transactional
+    int                         clears = 0;                                     // Number of times the code has been cleared so that temporaries owned by earlier code can be reused
+    long                        cycles = 0;                                     // Clock cycles charged by the cycle model
+    int  reads, writes, rowReads, rowWrites, compares, searches;                // Work done by the current instruction as counted for the cycle model
+    boolean                    profile = false;                                 // Count the executions of each instruction and the time spent in it when true
+    final TreeSet<String>  profileSkip = new TreeSet<>(List.of("Layout.java")); // Files whose frames are skipped when attributing an instruction to a line so that instructions generated by helpers are charged to their callers
+    int                     siteFrames = 16;                                    // Frames examined to find the line that created an instruction when the full stack is not being captured
+
+    StackWalker.StackFrame site(Class<?> Instruction)                           // The line that created an instruction of the specified class. A class outside the skipped files is created at just one line so its line is found the first time it is created and never again. A class in the skipped files belongs to a helper that can be called from many lines so a few frames are walked each time it is created to find the line that called the helper
+     {final boolean helper = skipped(Instruction.getName());
+      if (!helper)
+       {final StackWalker.StackFrame c = sites.get(Instruction);
+        if (c != null) return c;
+       }
+      final StackWalker.StackFrame f = walker.walk(s ->
+       {StackWalker.StackFrame o = null;                                        // First frame in the outermost class of a skipped file, for example a test of the file itself, as the helpers are all in nested classes
+        for (StackWalker.StackFrame g : (Iterable<StackWalker.StackFrame>)s.skip(1).limit(siteFrames)::iterator)
+         {if (g.getMethodName().equals("<init>")) continue;                     // Constructors of instructions and blocks
+          if (!skipped(g.getClassName())) return g;                             // The line that created the instruction or called the helper that did
+          if (o == null && g.getClassName().indexOf('$') < 0) o = g;
+         }
+        return o;
+       });
+      if (f != null && !helper) sites.put(Instruction, f);
+      return f;
+     }
+
+    boolean skipped(String Class)                                               // Whether a class is defined in a skipped file. Each file holds one top level class so the file is known without resolving the location of a frame
+     {final int d = Class.lastIndexOf('.'), e = Class.indexOf('$', d);
+      return profileSkip.contains(Class.substring(d+1, e < 0 ? Class.length() : e)+".java");
+     }
 
 //D3 Conditional Programming                                                    // Conditional changes to the flow of execution of a program modifying the memory layout
 
     class Label                                                                 // Labels label instructions in the code
      {final int number;                                                         // Label number
       int offset;                                                               // Offset in code of this label
+      int iterations;                                                           // Maximum number of times execution can arrive at this label when it starts a loop or zero if unknown
       Label()    {set(); number = P.labels.size(); P.labels.push(this);}        // Initially at the current end of the code
-      void set() {offset = P.code.size();}                                      // Track all labels created
+      void set() {offset = P.code.size(); P.bound = -1;}                        // Track all labels created
+      Label loop(int Iterations) {iterations = Iterations; P.bound = -1; return this;}// Declare the maximum number of times execution can arrive at this label when it starts a loop
      }
 
     void Goto     (Label label)                                                 // Goto a label unconditionally
@@ -458,25 +656,44 @@ class Layout extends Test
      {if (!condition.asBoolean()) nextPc = label.offset;
      }
 
+    final Label[]noTargets = new Label[0];                                      // No jump targets
+
+    class Jump extends Instruction                                              // A jump to a label that the optimizer can see through: unconditional if there is no condition
+     {Label target;                                                             // Label jumped to
+      final Field   condition;                                                  // Condition or null if unconditional
+      final boolean zero;                                                       // Jump if the condition is zero rather than not zero
+
+      Jump(Label Target, Field Condition, boolean Zero)
+       {target = Target; condition = Condition; zero = Zero;
+        if (Condition == null) reads(); else reads(Condition);
+        writes();
+       }
+
+      void action()
+       {if      (condition == null) Goto     (target);
+        else if (zero)              GoZero   (target, condition);
+        else                        GoNotZero(target, condition);
+       }
+
+      Label[]targets() {return new Label[]{target};}
+
+      String verilog()
+       {final String g = gotoV(target);
+        if (condition == null) return g;
+        return "if ("+(zero ? "!" : "")+condition.vValue()+") " + g;
+       }
+     }
+
     void iGoto(Label label)                                                     // Goto a label unconditionally
-     {P.new Instruction()
-       {void   action () {Goto(label);}
-        String verilog() {return "program_pc = program_label["+label.number+"];";}
-       };
+     {new Jump(label, null, false);
      }
 
     void iGoNotZero(Label label, Field condition)                               // Go to a specified label if the value of a field is not zero
-     {P.new Instruction()
-       {void action() {GoNotZero(label, condition);}
-        String verilog() {return "if (condition) program_pc = program_label["+label.number+"];";}
-       };
+     {new Jump(label, condition, false);
      }
 
     void iGoZero(Label label, Field condition)                                  // Go to a specified label if the value of a field is zero
-     {P.new Instruction()
-       {void action() {GoZero(label, condition);}
-        String verilog() {return "if (!condition) program_pc = program_label["+label.number+"];";}
-       };
+     {new Jump(label, condition, true);
      }
 
     abstract class If                                                           // An if statement
@@ -513,14 +730,16 @@ class Layout extends Test
          {void action()
            {loop.value = 0;
            }
-         };
+          String verilog() {return loop.vValue()+" = 0;";}
+         }.reads().writes(loop);
 
         start.set();
         P.new Instruction()
          {void action()
            {condition.value = loop.value < count.value ? 1 : 0;
            }
-         };
+          String verilog() {return condition.vValue()+" = "+loop.vValue()+" < "+count.vValue()+";";}
+         }.reads(loop, count).writes(condition);
 
         iGoZero(end, condition);
         code();
@@ -534,33 +753,100 @@ class Layout extends Test
 //D3 Execute                                                                    // Execute instructions in a program to modify the memory described by the layout
 
     abstract class Instruction                                                  // Instructions used to manipulate the fields
-     {final String traceBack = traceBack();                                     // Line at which this instruction was created
+     {private final String trace = debug || profile ? Test.traceBack() : null;  // Stack at the point this instruction was created if debugging or profiling else null as capturing a stack trace for every instruction is expensive
+      private final StackWalker.StackFrame site = trace == null ? site(getClass()) : null;// Line that created this instruction if the full stack is not being captured and the class of the instruction identifies it
+
+      long executions;                                                          // Number of times this instruction has been executed while profiling
+      long nanos;                                                               // Nano seconds spent executing this instruction while profiling
+
+      Instruction() {P.code.push(this); P.bound = -1;}                          // Add the instruction to the code
+      Instruction(boolean Push) {if (Push) {P.code.push(this); P.bound = -1;}}  // Create an instruction optionally adding it to the code
+
+      String location()                                                         // The line in the traceback to which this instruction is charged when profiling: the first frame not in a skipped file else the line that created the instruction
+       {final String[]t = traceBack().trim().split("\\s+");
+        for (String l : t)
+         {if (!profileSkip.contains(l.substring(0, l.indexOf(':')))) return l;
+         }
+        return t[0];
+       }
+
+      String traceBack()                                                        // Where this instruction was created: the captured stack if there is one else the line found when the instruction was created else the site recorded by the class of the instruction resolved to its file, enclosing method and class
+       {if (trace != null) return trace;
+        if (site  != null) return String.format("  %s:%04d:%s\n", site.getFileName(), site.getLineNumber(), site.getMethodName());
+        final Class<?> c = getClass();                                          // Each anonymous instruction class identifies the site that created it
+        final String   n = c.getName().substring(c.getName().lastIndexOf('.')+1);// Class name without its package, for example: Btree$23
+        final String   f = n.contains("$") ? n.substring(0, n.indexOf('$')) : n;// Outermost class and hence file
+        final java.lang.reflect.Method m = c.getEnclosingMethod();
+        return "  "+f+".java:"+(m != null ? m.getName() : "<init>")+":"+n+"\n";
+       }
+
+      Field[]reads;                                                             // Fields read by this instruction or null if not known
+      Field[]writes;                                                            // Fields written by this instruction or null if not known. An instruction whose reads or writes are not known is a barrier to scheduling
 
-      Instruction() {P.code.push(this);}                                        // Add the instruction to the code
+      Instruction reads (Field...F) {reads  = append(reads,  F); return this;}  // Declare fields read by this instruction
+      Instruction writes(Field...F) {writes = append(writes, F); return this;}  // Declare fields written by this instruction
+      Instruction uses  (Field...F) {reads(F);                   return writes(F);}// Declare fields both read and written by this instruction
+      boolean known() {return reads != null && writes != null;}                 // Whether the fields used by this instruction are known
+
+      Field[]append(Field[]A, Field[]B)                                         // Append two arrays of fields either of which might be null
+       {if (A == null) return B.clone();
+        final Field[]c = Arrays.copyOf(A, A.length + B.length);
+        System.arraycopy(B, 0, c, A.length, B.length);
+        return c;
+       }
+
+      Label[]targets() {return noTargets;}                                      // Override to declare the labels that action() can jump to via Goto so that the control flow graph can see them. Undeclared backward jumps make the step bound wrong, undeclared forward jumps only make it looser.
 
       abstract void action();                                                   // Override this method to specify what the instruction does using Java code
-      String verilog() {return " /* verilog code needed */";}                   // Override this method to specify what the instruction does using Verilog code
+      String verilog() {return notLowered;}                                     // Override this method to specify what the instruction does using Verilog code
+      boolean lowered() {return !verilog().equals(notLowered);}                 // Whether this instruction has been lowered to Verilog
      }
 
     void clearProgram()                                                         // Clear the code associated with a program so we can create a new program
      {code.clear(); labels.clear();
+      scheduled = null;                                                         // The schedule no longer matches the code
+      bound     = -1;                                                           // Nor does the step bound
+      clears++;                                                                 // Temporaries owned by the previous code are now free
       P.rc = null;
       supressErrorMessagePrint = false;
      }
 
     void runProgram()                                                           // Run the program code
      {rc = null;                                                                // Clear the return code
+      undo.clear();
+      if (boundSteps) boundMaxSteps();                                          // Derive the step limit from the code
       int  i = 0;
       for (i = pc = 0; pc >= 0 && pc < code.size() && i < maxSteps; ++i)         // Execute as long as the program counter is valid and we have not executed too many steps
        {stepProgram();
        }
-      if (pc >= 0 && pc < code.size()) stop("Out of steps after :", i);         // Program counter is still valid, but we ran out of steps
+      if (pc >= 0 && pc < code.size()) stopProgram("Out of steps after: "+i);   // Program counter is still valid, but we ran out of steps so the run fails like any other and is rolled back if it is a transaction
+      if (rc != null) rollback();                                               // Undo a failed transaction
+      undo.clear();
+     }
+
+    void rollback()                                                             // Restore the elements of memory written by the current run of the program in the reverse order that they were written
+     {while (!undo.isEmpty())
+       {final Undo u = undo.pop();
+        u.field.memory[u.field.slot(u.index)] = u.previous;
+       }
      }
 
     void stepProgram()                                                          // Execute one step in the program
      {nextPc = null;                                                            // The executed instruction can optionally set this variable to change the execution flow
       final int size = code.size();                                             // Programs must not add instrructions to the code
-      code.elementAt(pc).action();
+      steps++;                                                                  // Count the instructions executed
+      final Instruction I = code.elementAt(pc);
+      final CycleModel  m = cycleModel;
+      if (scheduled != null) scheduled.executed(pc);                            // Count bundles executed
+      if (m != null) reads = writes = rowReads = rowWrites = compares = searches = 0;
+      if (profile)                                                              // Time the instruction
+       {final long t = System.nanoTime();
+        I.action();
+        I.nanos += System.nanoTime() - t;
+        I.executions++;
+       }
+      else I.action();
+      if (m != null) cycles += m.cycles(this);                                  // Charge the work done by the instruction
       if (code.size() != size)                                                  // It is too easy to add an instruction inside an instruction but doing so makes code very hard to debug so this if clause alerts us if such a thing happens
        {stopProgram("Additional instructions being defined inside an instruction at instruction: "+pc);
         return;
@@ -571,19 +857,461 @@ class Layout extends Test
     void stopProgram(final String message)                                      // Halt program execution with a message
      {rc = message;                                                             // Use the message as a result code
       if (!supressErrorMessagePrint)
-       {say(message, code.elementAt(pc).traceBack);                            // Write the supplied message
+       {say(message, code.elementAt(pc).traceBack());                           // Write the supplied message
        }
       pc = code.size();                                                         // Halt the program
      }
 
     void iStop(final String message)                                            // Halt program execution with a message
      {P.new Instruction()
-       {void action() {stopProgram(message);}
+       {void   action () {stopProgram(message);}
+        String verilog() {return stopV();}
        };
      }
 
+    class Undo                                                                  // The previous content of an element of memory
+     {final Field  field;                                                       // Field written
+      final int    index;                                                       // Element written
+      final BitSet previous;                                                    // Content of the element before it was written
+      Undo(Field Field, int Index, BitSet Previous)
+       {field = Field; index = Index; previous = Previous;
+       }
+     }
+
+//D2 Optimize                                                                   // Remove redundant instructions from a program
+
+    class Fused extends Instruction                                             // An instruction fused with the conditional jump that follows it so that both are dispatched in one step
+     {final Instruction first;                                                  // Instruction executed first
+      final Jump        jump;                                                   // Conditional jump executed unless the first instruction redirected the flow of execution itself
+
+      Fused(Instruction First, Jump Jump)
+       {super(false);
+        first = First; jump = Jump;
+        if (First.known()) reads(First.reads).reads(Jump.reads).writes(First.writes);
+       }
+
+      void action()
+       {first.action();
+        if (nextPc == null && rc == null && pc < code.size()) jump.action();    // The first instruction might have redirected or halted the program
+       }
+
+      Label[]targets()                                                          // Targets of both the instruction and the jump
+       {final Label[]t = first.targets(), u = Arrays.copyOf(t, t.length+1);
+        u[t.length] = jump.target;
+        return u;
+       }
+
+      String traceBack() {return first.traceBack();}                            // Charge the fused instruction to the first instruction
+
+      boolean lowered() {return first.lowered();}                               // The jump is always lowered
+
+      String verilog()                                                          // The jump is guarded so that it does not override a redirection or halt made by the first instruction
+       {final int next = verilogPc(code.indexOf(this) + 1);                     // Program counter if the first instruction continues
+        return first.verilog()+"\nif (program_pc == "+next+" && !program_stopped) begin "+jump.verilog()+" end";
+       }
+     }
+
+    int optimize()                                                              // Thread jumps through unconditional jumps, remove jumps to the next instruction and code that cannot be reached, fuse each instruction with the conditional jump that follows it and then compact the label offsets. Instructions that set nextPc themselves always do so via labels which are relocated so they need no special treatment. Returns the number of instructions removed from the code.
+     {final int before = code.size();
+      for (boolean changed = true; changed;)
+       {changed = false;
+        final int N = code.size();
+
+        for (Instruction i : code)                                              // Thread jumps to unconditional jumps
+         {if (!(i instanceof Jump j)) continue;
+          for (int hops = 0; hops < N && j.target.offset < N; ++hops)           // Limit the hops in case of a loop of unconditional jumps
+           {if (!(code.elementAt(j.target.offset) instanceof Jump t) || t.condition != null || t.target == j.target) break;
+            j.target = t.target;
+           }
+         }
+
+        final boolean[]labelled = new boolean[N+1];                             // Instructions that can be reached by a jump
+        for (Label l : labels) labelled[l.offset] = true;
+
+        final boolean[]keep = new boolean[N];                                   // Instructions to be kept
+        boolean reachable = true;                                               // Whether the current instruction can be reached by falling through from the previous instruction
+        for (int i = 0; i < N; i++)
+         {reachable |= labelled[i];
+          final Instruction c = code.elementAt(i);
+          keep[i] = reachable && !(c instanceof Jump j && j.target.offset == i+1);// A jump to the next instruction does nothing
+          if (keep[i] && c instanceof Jump j && j.condition == null) reachable = false;// Code after an unconditional jump can only be reached via a label
+          if (!keep[i]) changed = true;
+         }
+        if (changed) compact(keep);
+       }
+
+      final int N = code.size();                                                // Fuse instructions with the conditional jumps that follow them
+      final boolean[]labelled = new boolean[N+1];
+      for (Label l : labels) labelled[l.offset] = true;
+      final boolean[]keep = new boolean[N];
+      for (int i = 0; i < N; i++)
+       {final Instruction a = code.elementAt(i);
+        keep[i] = true;
+        if (i+1 < N && !labelled[i+1] && !(a instanceof Jump) && !(a instanceof Fused)
+         && code.elementAt(i+1) instanceof Jump j && j.condition != null)       // The jump can only be reached from this instruction
+         {code.setElementAt(new Fused(a, j), i);
+          keep[++i] = false;
+         }
+       }
+      compact(keep);
+      return before - code.size();
+     }
+
+    private void compact(boolean[]keep)                                         // Remove the instructions not marked to be kept from the code and relocate the labels
+     {final int N = code.size();
+      final int[]offsets = new int[N+1];                                        // New offset of each old offset
+      final Stack<Instruction> c = new Stack<>();
+      for (int i = 0; i < N; i++)
+       {offsets[i] = c.size();
+        if (keep[i]) c.push(code.elementAt(i));
+       }
+      offsets[N] = c.size();
+      for (Label l : labels) l.offset = offsets[l.offset];
+      code.clear();
+      code.addAll(c);
+      bound = -1;                                                               // The code has changed
+     }
+
+//D2 Schedule                                                                   // Group independent instructions into bundles that hardware could execute in parallel
+
+    class Schedule                                                              // Each basic block of the program divided into bundles of instructions that can execute together because none of them writes a field that another reads or writes, except that an instruction may write a field that an earlier instruction in the same bundle reads as all the reads in a bundle happen before the writes
+     {final int N = code.size();
+      final boolean[]start  = new boolean[N+1];                                 // Whether each instruction starts a basic block
+      final int    []bundle = new int[N];                                       // Bundle of each instruction within its basic block numbered from one
+      final TreeMap<Integer,Integer> blocks = new TreeMap<>();                  // Start of each basic block to the number of bundles it needs
+      long executed;                                                            // Bundles executed so far
+      int  last = -2, high;                                                     // Previous instruction executed and the highest bundle reached in the current visit to a basic block
+
+      Schedule()
+       {start[0] = true;
+        boolean known = true;                                                   // Whether every instruction declares the fields it uses and hence the labels it jumps to
+        final boolean[]target = new boolean[N+1];                               // Whether each instruction is the target of a jump
+        for (int i = 0; i < N; i++)                                             // Jumps end blocks
+         {final Instruction c = code.elementAt(i);
+          if (jumps(c)) start[i+1] = true;
+          for (Label l : c.targets()) target[l.offset] = true;
+          known &= c.known();
+         }
+        for (Label l : labels)                                                  // Labels that can be jumped to start blocks. An instruction that does not declare its fields might jump to any label
+         {if (!known || target[l.offset]) start[l.offset] = true;
+         }
+
+        final IdentityHashMap<Field,Integer> written = new IdentityHashMap<>(); // Highest bundle in the current block that writes each field
+        final IdentityHashMap<Field,Integer> read    = new IdentityHashMap<>(); // Highest bundle in the current block that reads each field
+        int b = 0, high = 0, floor = 0;                                         // Start of current block, highest bundle used so far in the block, bundle of the last barrier
+        for (int i = 0; i < N; i++)
+         {if (start[i])                                                         // New block
+           {if (i > 0) blocks.put(b, high);
+            written.clear(); read.clear();
+            b = i; high = floor = 0;
+           }
+          final Instruction c = code.elementAt(i);
+          int l = floor + 1;
+          if (!c.known()) l = floor = high + 1;                                 // Barrier
+          else
+           {for (Field f : c.reads)  l = max(l, written.getOrDefault(f, 0) + 1);// Read after write
+            for (Field f : c.writes) l = max(l, written.getOrDefault(f, 0) + 1, // Write after write
+                                                read   .getOrDefault(f, 0));    // Write after read can share the bundle
+            if (jumps(c)) l = max(l, high);                                     // A jump goes in the last bundle of its block
+            for (Field f : c.reads)  read   .merge(f, l, Math::max);
+            for (Field f : c.writes) written.merge(f, l, Math::max);
+           }
+          bundle[i] = l;
+          high = max(high, l);
+         }
+        if (N > 0) blocks.put(b, high);
+       }
+
+      boolean jumps(Instruction c)                                              // Whether an instruction can change the flow of control and so must end its basic block
+       {return c instanceof Jump || c instanceof Fused || c.targets().length > 0;
+       }
+
+      int bundles()                                                             // Number of bundles in the program
+       {int n = 0; for (int b : blocks.values()) n += b;
+        return n;
+       }
+
+      long criticalPath()                                                       // Longest path through the program measured in bundles or Long.MAX_VALUE if it has an unbounded loop
+       {final long[]c = new long[N];
+        for (int b : blocks.keySet()) c[b] = blocks.get(b);                     // Charge each block to its first instruction
+        return bound(c);
+       }
+
+      void executed(int pc)                                                     // Count the bundles needed to execute an instruction.  Within a visit to a block the instructions are executed in order so the bundles needed are those up to the highest one reached
+       {if (pc != last+1 || start[pc]) high = 0;                                // New visit to a block
+        last = pc;
+        if (bundle[pc] > high) {executed += bundle[pc] - high; high = bundle[pc];}
+       }
+
+      String verilog(String Name)                                               // A synthesizable module that executes the program one bundle per clock cycle: the statements in a bundle execute in program order in the same cycle which gives the same result as executing them one at a time because no statement reads a field written by an earlier statement in its bundle
+       {final int[]pcs = new int[N+1];                                          // Bundle that executes each instruction
+        int n = 0;
+        for (int b : blocks.keySet())
+         {for (int i = b; i < N && (i == b || !start[i]); i++) pcs[i] = n + bundle[i] - 1;
+          n += blocks.get(b);
+         }
+        pcs[N] = n;
+
+        verilogNames.clear(); verilogFields.clear(); verilogUsed.clear();
+        verilogPcs = pcs;                                                       // Fused jumps and labels refer to bundles
+        try
+         {final StringBuilder s = new StringBuilder();                          // Body of the case statement
+          n = 0;
+          for (int b : blocks.keySet())
+           {final int e = blocks.higherKey(b) != null ? blocks.higherKey(b) : N;
+            for (int l = 1; l <= blocks.get(b); l++)
+             {final StringBuilder v = new StringBuilder();
+              boolean halts = false, guard = false;                             // Whether a statement in the bundle can halt the program and whether a later one can jump
+              for (int i = b; i < e; i++)
+               {if (bundle[i] != l) continue;
+                final Instruction c = code.elementAt(i);
+                final String t = c.lowered() ? c.verilog() : notLoweredV(c);
+                guard |= halts && jumps(c);
+                halts |= t.contains(stopV());
+                v.append(" "+t.replace("\n", " "));
+               }
+              if (guard) v.append(" if (program_stopped) program_pc = program_end;");// A later jump in the same bundle must not override a halt
+              s.append(String.format("        %d: begin program_pc = program_pc + 1;%s end\n", n++, v));
+             }
+           }
+          return verilogModule(Name, n, s);
+         }
+        finally {verilogPcs = null;}
+       }
+     }
+
+    Schedule schedule()                                                         // Schedule the program into bundles and count the bundles executed from now on
+     {return scheduled = new Schedule();
+     }
+
+//D2 Cycles                                                                     // Estimate the clock cycles a program would take in hardware
+
+    void compared(int Comparisons)                                              // Record a search that made the specified number of comparisons
+     {if (cycleModel == null) return;
+      searches++;
+      compares += Comparisons;
+     }
+
+//D2 Control flow                                                               // Analyze the flow of control through a program to bound the number of steps it can take
+
+    Stack<TreeSet<Integer>> successors()                                        // The control flow graph: the offsets of the instructions that can follow each instruction with code.size() meaning the program has finished
+     {final int N = code.size();
+      final Stack<TreeSet<Integer>> g = new Stack<>();
+      for (int i = 0; i < N; i++)
+       {final Instruction c = code.elementAt(i);
+        final TreeSet<Integer> s = new TreeSet<>();
+        if (!(c instanceof Jump j && j.condition == null)) s.add(i+1);          // Fall through
+        for (Label l : c.targets()) s.add(l.offset);
+        g.push(s);
+       }
+      return g;
+     }
+
+    TreeMap<Integer,Integer> loops()                                            // The loops in the program: the offset of the first instruction of each loop mapped to the offset of the last instruction that jumps back to it
+     {final Stack<TreeSet<Integer>> g = successors();
+      final TreeMap<Integer,Integer> l = new TreeMap<>();
+      for (int i = 0; i < g.size(); i++)
+       {for (int t : g.elementAt(i)) if (t <= i) l.merge(t, i, Math::max);      // Back edge
+       }
+      return l;
+     }
+
+    long stepBound()                                                            // The maximum number of steps the program can take, or Long.MAX_VALUE if it contains a loop whose iterations are not bounded by a label declared with loop()
+     {final long[]c = new long[code.size()];
+      Arrays.fill(c, 1);
+      return bound(c);
+     }
+
+    long bound(long[]Cost)                                                      // The maximum total cost of the instructions executed by the program given the cost of each instruction, or Long.MAX_VALUE if it contains a loop whose iterations are not bounded by a label declared with loop(). Loops are collapsed innermost first into single nodes weighted by their iterations times the longest path through their body, then the longest path through what remains is found.
+     {final int N = code.size();
+      final Stack<TreeSet<Integer>> g = successors();
+      final long[]      weight = new long[N];                                   // Cost of each node: the cost of an instruction, more for a collapsed loop
+      final int []         rep = new int [N];                                   // The node that represents each instruction: the first instruction of the outermost loop collapsed so far that contains it
+      final Stack<TreeSet<Integer>> exits = new Stack<>();                      // The successors of each node
+      for (int i = 0; i < N; i++)
+       {weight[i] = Cost[i]; rep[i] = i; exits.push(g.elementAt(i));
+       }
+
+      final int[]iterations = new int[N+1];                                     // Iteration bound declared at each offset
+      for (Label l : labels) iterations[l.offset] = max(iterations[l.offset], l.iterations);
+
+      final TreeMap<Integer,Integer> loops = loops();
+      final Stack<Integer> order = new Stack<>();                               // Loops innermost first
+      order.addAll(loops.keySet());
+      order.sort((a, b) -> Integer.compare(loops.get(a) - a, loops.get(b) - b));
+
+      for (int h : order)                                                       // Collapse each loop
+       {final int e = loops.get(h);
+        if (iterations[h] == 0) return Long.MAX_VALUE;                          // Unbounded loop
+        final long body = longestPath(h, h, e, weight, rep, exits);
+        if (body == Long.MAX_VALUE) return body;
+        final TreeSet<Integer> x = new TreeSet<>();                             // Edges leaving the loop
+        for (int i = h; i <= e; i++)
+         {for (int t : g.elementAt(i)) if (t < h || t > e) x.add(t);
+          rep[i] = h;
+         }
+        weight[h] = body * iterations[h];
+        exits.setElementAt(x, h);
+       }
+      return longestPath(0, -1, N-1, weight, rep, exits);
+     }
+
+    private long longestPath(int Start, int Header, int Last, long[]weight,     // The longest path from the start node within the range from the header to last, ignoring jumps back to the header
+      int[]rep, Stack<TreeSet<Integer>> exits)
+     {final TreeMap<Integer,Long> memo = new TreeMap<>();
+      final TreeSet<Integer>  visiting = new TreeSet<>();
+      return longestPath(Start, Header, Last, weight, rep, exits, memo, visiting);
+     }
+
+    private long longestPath(int Node, int Header, int Last, long[]weight,      // The longest path from a node
+      int[]rep, Stack<TreeSet<Integer>> exits,
+      TreeMap<Integer,Long> memo, TreeSet<Integer> visiting)
+     {if (Node < max(Header, 0) || Node > Last) return 0;                       // Left the range
+      final int n = Node == Header ? Node : rep[Node];                          // Enter a collapsed loop at its start
+      if (memo.containsKey(n)) return memo.get(n);
+      if (visiting.contains(n)) return Long.MAX_VALUE;                          // A loop that has not been collapsed
+      visiting.add(n);
+      long l = 0;
+      for (int t : exits.elementAt(n))
+       {if (t == Header) continue;                                              // Jump back to the start of the loop being measured
+        final long p = longestPath(t, Header, Last, weight, rep, exits, memo, visiting);
+        if (p == Long.MAX_VALUE) return p;
+        l = Math.max(l, p);
+       }
+      visiting.remove(n);
+      final long r = l + weight[n];
+      memo.put(n, r);
+      return r;
+     }
+
+    long boundMaxSteps()                                                        // Set maxSteps to the step bound of the program if it is finite else to the limit set by the caller and return the bound. The bound is only recomputed when the code or its labels have changed
+     {if (bound < 0) bound = stepBound();
+      if (maxSteps != boundedSteps) stepLimit = maxSteps;                       // The caller has set a limit since the last bound was applied
+      maxSteps = bound < Integer.MAX_VALUE ? (int)bound : stepLimit;
+      boundedSteps = maxSteps;
+      return bound;
+     }
+
+//D2 Profile                                                                    // Find the lines that generated the instructions that took the most time
+
+    TreeMap<String,long[]> profileByLocation()                                  // Executions and nano seconds for each line that generated instructions that have been executed while profiling
+     {final TreeMap<String,long[]> p = new TreeMap<>();
+      for (Instruction i : code)
+       {if (i.executions == 0) continue;
+        final long[]e = p.computeIfAbsent(i.location(), k -> new long[2]);
+        e[0] += i.executions;
+        e[1] += i.nanos;
+       }
+      return p;
+     }
+
+    void resetProfile()                                                         // Clear the execution counts and times of each instruction
+     {for (Instruction i : code) i.executions = i.nanos = 0;
+     }
+
+    String profileReport(int top)                                               // The top lines by time spent executing the instructions they generated in a Geany clickable format
+     {final TreeMap<String,long[]> p = profileByLocation();
+      final Stack<String> lines = new Stack<>();
+      p.keySet().stream()
+       .sorted((a, b) -> Long.compare(p.get(b)[1], p.get(a)[1]))                // Sort by time in descending order
+       .limit(top)
+       .forEach(l -> lines.push(l));
+
+      int w = 1; for (String l : lines) w = max(w, l.length());                 // Maximum width of line specification
+      final String f = "%-" + w + "s";
+      final StringBuilder s = new StringBuilder();
+      s.append(String.format(f+"  %12s  %12s  %4s\n", "Hot spot", "Count", "Nanos", "#"));
+      for (int i = 1; i <= lines.size(); i++)                                   // Print lines in order of time spent
+       {final String l = lines.elementAt(i-1);
+        final long[]e = p.get(l);
+        s.append(String.format(f+"  %12d  %12d  %4d\n", l, e[0], e[1], i));
+       }
+      return ""+s;
+     }
+
 //D2 Verilog                                                                    // Generate Verilog
 
+    final static String notLowered = " /* verilog code needed */";              // Verilog of an instruction that has not been lowered
+    final IdentityHashMap<Field,String> verilogNames = new IdentityHashMap<>(); // Name of each field in the Verilog being generated
+    final Stack<Field>                  verilogFields = new Stack<>();          // Fields in the order they were first named
+    final TreeSet<String>               verilogUsed   = new TreeSet<>();        // Names already given to fields
+    Path                                memoryImages  = null;                   // Directory of memory images written by writeMemories() with which the module initializes the memories of this layout if not null
+    boolean                             memoryHex     = true;                   // Whether the memory images are in hexadecimal for $readmemh or binary for $readmemb
+
+    int[]                               verilogPcs    = null;                   // Program counter in the module being generated of each instruction offset or null if the module executes one instruction per clock cycle
+
+    int verilogPc(int Offset)                                                   // The program counter that executes the instruction at the specified offset in the module being generated
+     {return verilogPcs == null ? Offset : verilogPcs[Offset];
+     }
+
+    String verilogName(Field f)                                                 // The name of a field in Verilog: its own name unless another field in the program already has it in which case a numeric suffix is added
+     {final String n = verilogNames.get(f);
+      if (n != null) return n;
+      String m = f.name;
+      for (int i = 2; verilogUsed.contains(m); i++) m = f.name+"_"+i;
+      verilogNames.put(f, m); verilogUsed.add(m);
+      verilogFields.push(f);
+      return m;
+     }
+
+    String stopV() {return "program_stopped = 1; program_pc = program_end;";}   // Halt the program in Verilog
+    String gotoV(Label l) {return "program_pc = program_label["+l.number+"];";} // Jump to a label in Verilog
+
+    int unlowered()                                                             // Number of instructions that have not been lowered to Verilog
+     {int n = 0; for (Instruction i : code) if (!i.lowered()) ++n;
+      return n;
+     }
+
+    String verilogModule(String Name)                                           // A synthesizable module that executes the program one instruction per clock cycle under the control of a program counter and a table of labels. Instructions that have not been lowered stop the program.
+     {verilogNames.clear(); verilogFields.clear(); verilogUsed.clear();
+      final int N = code.size();
+      final StringBuilder b = new StringBuilder();                              // Body of the case statement
+      for (int i = 0; i < N; i++)
+       {final Instruction c = code.elementAt(i);
+        final String v = c.lowered() ? c.verilog() : notLoweredV(c);
+        b.append(String.format("        %d: begin program_pc = program_pc + 1; %s end\n", i, v.replace("\n", " ")));
+       }
+      return verilogModule(Name, N, b);
+     }
+
+    String notLoweredV(Instruction c)                                           // Stop the program in place of an instruction that has not been lowered and say where it was created
+     {return stopV()+" /* not lowered: "+c.traceBack().trim().split("\\s+")[0]+" */";
+     }
+
+    String verilogModule(String Name, int N, CharSequence b)                    // Wrap the body of a case statement that executes each of the N values of the program counter in a module that declares the program counter, the labels and the fields named while generating the body
+     {final int W = logTwo(N+1)+1;
+      final StringBuilder s = new StringBuilder();
+      s.append("module "+Name+"(input clock, input reset, output reg program_finished, output reg program_stopped);\n");
+      s.append("  localparam program_end = "+N+";\n");
+      s.append("  reg ["+(W-1)+":0] program_pc;\n");
+      if (labels.size() > 0)
+       {s.append("  wire ["+(W-1)+":0] program_label[0:"+(labels.size()-1)+"];\n");
+        for (Label l : labels) s.append("  assign program_label["+l.number+"] = "+verilogPc(l.offset)+";\n");
+       }
+      for (Field f : verilogFields)                                             // Registers and memories of the fields used
+       {final int w = f.bit || f.rep() == null ? 1 : f.rep();
+        s.append("  reg ["+(w-1)+":0] "+f.vValue()+";\n");
+        if (f.memory != null)
+         {s.append("  reg ["+(w-1)+":0] "+f.v()+"_memory[0:"+(f.elements-1)+"];\n");
+          if (memoryImages != null && f.layout == Layout.this)                  // Preload the memory from its image
+           {s.append("  initial $readmem"+(memoryHex ? "h" : "b")+"(\""+
+              memoryImages.resolve(memoryImage(f, memoryHex))+"\", "+f.v()+"_memory);\n");
+           }
+         }
+       }
+      s.append("  always @(posedge clock) begin\n");
+      s.append("    if (reset) begin program_pc = 0; program_finished = 0; program_stopped = 0; end\n");
+      s.append("    else if (program_pc < program_end) begin\n");
+      s.append("      case (program_pc)\n");
+      s.append(b);
+      s.append("      endcase\n");
+      s.append("    end\n");
+      s.append("    else program_finished = 1;\n");
+      s.append("  end\n");
+      s.append("endmodule\n");
+      return ""+s;
+     }
+
     protected void generateVerilog()                                            // Generate verilog
      {final int N = code.size();
       for (int i = 0; i < N; i++)
@@ -611,8 +1339,18 @@ class Layout extends Test
    return names.firstEntry().getValue();
   }
 
-  void allocateMemory()                                                         // Allocate memory for all fields that actually use memory
-   {for(Field f: fields) if (f.spacer && f.dims() > 0) f.allocateMemory();
+  void allocateMemory()                                                         // Allocate one memory for the layout and place the elements of each field that actually uses memory in it in the storage order of the arrays containing the field
+   {int n = 0;
+    for (Field f : fields) if (!f.hasParent()) n += totalSlots(f);
+    final BitSet[]memory = new BitSet[n];
+    for(Field f: fields) if (f.spacer && f.dims() > 0) f.allocateMemory(memory);
+   }
+
+  void clearMemory()                                                            // Zero the memory and last read value of every field so the layout can be reused as if it were new
+   {for(Field f: fields)
+     {f.value = 0;
+      for (int i = 0; i < f.elements; i++) f.element(i).clear();
+     }
    }
 
   Integer locatePreviousElement(int indent, String location)                    // The index of the previous field ignoring the dependencies of the previous field
@@ -641,8 +1379,14 @@ class Layout extends Test
       if (!cmd.matches("array|bit|var"))                                        // Check command
         stop("Expected one of: array, bit or var", E);
       final boolean bit   = cmd.equals("bit");                                  // Need at least a name and a type
+      final boolean array = cmd.equals("array");                                // An array can be followed by its storage order
       final int eo = bit ? 2 : 3, ao = words.length;                            // Number of operands expected and actually found
-      if (ao != eo) stop("Not enough operands", E, "expected:", eo, "found:", ao);
+      if (ao != eo && !(array && ao == eo+1))
+        stop("Not enough operands", E, "expected:", eo, "found:", ao);
+      final String order = ao > eo ? words[eo].toLowerCase() : "aos";           // Storage order of an array
+      if (!order.matches("aos|soa"))
+        stop("Storage order:", words[eo], "should be aos or soa", E);
+      final boolean soa = order.equals("soa");
       final String Rep = ao > 2 ? words[2] : null;
       if (Rep != null && !Rep.matches("\\A\\d+\\Z"))                            // Repetition if present must be numeric
         stop("Repetition:", Rep, "should be an integer", E);
@@ -651,7 +1395,7 @@ class Layout extends Test
       if (names.containsKey(name)) stop("Duplicate name:", name, E);            // Require names to be unique
 
       if (fields.size() == 0)                                                   // First line parsed
-       {new Field(l, indent, name, cmd, rep, null);                             // Details of the first line parsed
+       {new Field(l, indent, name, cmd, rep, null, soa);                            // Details of the first line parsed
         continue;
        }
 
@@ -659,12 +1403,12 @@ class Layout extends Test
 
       final Field p = fields.elementAt(prev);                                   // Previous field
       if (indent > p.indent)                                                    // Indenting further
-       {final Field f = new Field(l, indent, name, cmd, rep, prev);             // Details of the fields of this line
+       {final Field f = new Field(l, indent, name, cmd, rep, prev, soa);            // Details of the fields of this line
         p.children.push(f);                                                     // The children associated with each parent
         continue;
        }
 
-      final Field F = new Field(l, indent, name, cmd, rep, p.parent);           // Indenting at the same level as a previous field
+      final Field F = new Field(l, indent, name, cmd, rep, p.parent, soa);          // Indenting at the same level as a previous field
       if (p.hasParent()) p.getParent().children.push(F);                        // The children associated with each parent. I f a field hass no parent then it is a top field and can be used for indexing fields under arrays
      }
 
@@ -690,15 +1434,30 @@ class Layout extends Test
    }
 
   Layout.Field variable(String name, int size)                                  // Create a temporary variable to help manipulate the content of the main layout.
-   {final Layout l = new Layout(String.format("""
+   {if (variablesInUse < layouts.size())                                        // Reuse a released variable if it has the same name and size
+     {final Layout l = layouts.elementAt(variablesInUse);
+      final Field  f = l.fields.firstElement();
+      if (f.name.equals(name) && f.rep == size)
+       {variablesInUse++;
+        l.P = P;                                                                // The program might have changed since the variable was created
+        f.value = 0;
+        return f;
+       }
+      layouts.setSize(variablesInUse);                                          // Different variables are needed now so discard the released ones
+     }
+    final Layout l = template(String.format("""
 %s var %d
 """, name, size));
 
     layouts.push(l);                                                            // Track this as a sublayout of the main layout
+    variablesInUse++;
     l.P = P;                                                                    // Use the same progam as the main layout
     return l.onlyField();                                                       // Return a description of the variable
    }
 
+  int  markVariables()            {return variablesInUse;}                      // Mark the variables in use so that those created after the mark can be released
+  void releaseVariables(int Mark) {variablesInUse = Mark;}                      // Release the variables created since the mark so that they can be reused by later calls to variable()
+
 //D2 Printing                                                                   // Print the results if parsing a memory layout
 
   private void printFields(Stack<StringBuilder> S)                              // Print the fields of the input lines
@@ -748,49 +1507,562 @@ class Layout extends Test
     return joinStringBuilders(S, "\n")+"\n";
    }
 
-//D2 Tests                                                                      // Test memory layouts
-
-  protected static void test_parse()
-   {Layout l = new Layout("""
-A array 2
-  a var 4
-  b bit
-  B array 4
-    a1 bit
-    b1 var 2
-    C array 2
-      a2 bit
-      b2 var 5
-""");
+//D2 Java                                                                       // Generate a Java class that holds a layout packed into an array of longs
 
-    //stop(l);
-    ok(l, """
-  #  Indent  Name      Value___  Command  Rep  Parent  Children   Dimension
-  0       0  A                0  array      2          a, b, B
-  1       2    a              0  var        4       A             2
-  2       2    b              0  bit        1       A             2
-  3       2    B              0  array      4       A  a1, b1, C
-  4       4      a1           0  bit        1       B             2*4 = 8
-  5       4      b1           0  var        2       B             2*4 = 8
-  6       4      C            0  array      2       B  a2, b2
-  7       6        a2         0  bit        1       C             2*4*2 = 16
-  8       6        b2         0  var        5       C             2*4*2 = 16
-""");
+  private int size(Field f, boolean Bits)                                       // Size of one element of a bit or var in bits or in slots of the memory of the layout where it occupies one slot if it is part of an array and none otherwise
+   {return Bits ? f.rep() : f.dims() > 0 ? 1 : 0;
+   }
 
-    Field b1 = l.locateFieldByName("b1");
-    ok(b1.dimProduct(), 8);
-    l.allocateMemory();
+  private int elementSize(Field f, boolean Bits)                                // Size of one element of a field: the size of a bit or var, the sum of the children of an array
+   {if (!f.array) return size(f, Bits);
+    int n = 0;
+    for (Field c : f.children) n += totalSize(c, Bits);
+    return n;
    }
 
-  protected static void test_parse_top()
-   {Layout l = new Layout("""
-a var 4
-b bit
-A array 1
-  a1 bit
-  b1 var 5
-c var 2
-""");
+  private int totalSize(Field f, boolean Bits)                                  // Size of a field including all of its repetitions
+   {return f.array ? f.rep * elementSize(f, Bits) : size(f, Bits);
+   }
+
+  private int offset(Field f, boolean Bits)                                     // Offset of the first element of a field from the start of the layout
+   {final Field p = f.getParent();
+    int n = p == null ? 0 : offset(p, Bits);
+    for (Field g : p == null ? fields : p.children)                             // Preceding siblings
+     {if (g == f) break;
+      if (g.getParent() == p) n += p != null && p.soa ? p.rep * totalSize(g, Bits) : totalSize(g, Bits);// The region of each preceding child of a structure of arrays holds that child for every element of the array
+     }
+    return n;
+   }
+
+  private int stride(Field f, int Dimension, boolean Bits)                      // Distance between successive elements of a field in the specified dimension: the size of an element of an array of structures or the size of the child containing the field in a structure of arrays
+   {final Field d = f.dimensions.elementAt(Dimension);
+    if (!d.soa) return elementSize(d, Bits);
+    Field c = f;
+    while (c.getParent() != d) c = c.getParent();                               // Child of the array on the path to the field
+    return totalSize(c, Bits);
+   }
+
+  int elementBits(Field f)          {return elementSize(f, true);}              // Bits in one element of a field: the width of a bit or var, the sum of the children of an array
+  int totalBits(Field f)            {return totalSize(f, true);}                // Bits occupied by a field including all of its repetitions
+  int bitOffset(Field f)            {return offset(f, true);}                   // Offset in bits of the first element of a field from the start of the layout
+  int bitStride(Field f, int D)     {return stride(f, D, true);}                // Bits between successive elements of a field in the specified dimension
+  int totalSlots(Field f)           {return totalSize(f, false);}               // Slots of the memory of the layout occupied by a field including all of its repetitions
+  int slotOffset(Field f)           {return offset(f, false);}                  // Slot in the memory of the layout of the first element of a field
+  int slotStride(Field f, int D)    {return stride(f, D, false);}               // Slots between successive elements of a field in the specified dimension
+
+  int layoutBits()                                                              // Bits occupied by the layout
+   {int n = 0;
+    for (Field f : fields) if (!f.hasParent()) n += totalBits(f);
+    return n;
+   }
+
+  private static String javaLine(String Code, String Comment)                   // A line of generated Java with its comment aligned in the same way as this file
+   {return (Code.length() < 80 ? String.format("%-80s", Code) : Code+" ")+"// "+Comment+"\n";
+   }
+
+  String javaClass(String Name)                                                 // A Java class with constant bit offsets and strides and typed get and set methods for each bit and var in the layout packed into an array of longs. The indices are not checked.
+   {final int N = layoutBits();
+    final StringBuilder s = new StringBuilder();
+    s.append("//------------------------------------------------------------------------------\n");
+    s.append("// Generated by Layout.javaClass() from a layout description: do not edit\n");
+    s.append("//------------------------------------------------------------------------------\n");
+    s.append("package com.AppaApps.Silicon;\n\n");
+    s.append(javaLine("final class "+Name, "A layout packed into an array of longs"));
+    s.append(javaLine(" {final long[]bits = new long["+((N+63)/64)+"];", "Memory holding the layout"));
+    s.append(javaLine("  static final int size = "+N+";", "Bits in the layout"));
+
+    for (Field f : fields)                                                      // Constants describing each bit and var
+     {if (!f.spacer) continue;
+      if (f.rep() > Integer.SIZE) stop("Field:", f.name, "is wider than an int");
+      s.append("\n");
+      s.append(javaLine("  static final int "+f.name+"At = "+bitOffset(f)+";", "Bit offset of "+f.name));
+      s.append(javaLine("  static final int "+f.name+"Width = "+f.rep()+";", "Width of "+f.name));
+      for (int c = 0; c < f.dims(); c++)
+       {final int t = bitStride(f, c);
+        s.append(javaLine("  static final int "+f.name+"Stride"+c+" = "+t+";", "Bits between elements of "+f.name+" in dimension "+c));
+       }
+     }
+    s.append("\n");
+
+    for (Field f : fields)                                                      // Get and set methods for each bit and var
+     {if (!f.spacer) continue;
+      final String n = f.name.substring(0, 1).toUpperCase()+f.name.substring(1);
+      final StringBuilder p = new StringBuilder(), a = new StringBuilder(f.name+"At");
+      for (int c = 0; c < f.dims(); c++)
+       {p.append((c > 0 ? ", " : "")+"int i"+c);
+        a.append(" + i"+c+" * "+f.name+"Stride"+c);
+       }
+      final String v = p.length() > 0 ? p+", int value" : "int value";
+      s.append(javaLine("  int  get"+n+"("+p+") {return get("+a+", "+f.name+"Width);}", "Get "+f.name));
+      s.append(javaLine("  void set"+n+"("+v+") {set("+a+", "+f.name+"Width, value);}", "Set "+f.name));
+     }
+
+    s.append("""
+
+  private int get(int at, int width)                                            // Read the bits starting at the specified bit
+   {final int w = at >>> 6, b = at & 63;
+    long v = bits[w] >>> b;
+    if (b + width > 64) v |= bits[w+1] << (64 - b);                             // The value straddles two longs
+    return (int)(v & ((1L << width) - 1));
+   }
+
+  private void set(int at, int width, int value)                                // Write the bits starting at the specified bit
+   {final int  w = at >>> 6, b = at & 63;
+    final long m = (1L << width) - 1, v = value & m;
+    bits[w] = bits[w] & ~(m << b) | v << b;
+    if (b + width > 64)                                                         // The value straddles two longs
+     {final int r = 64 - b;
+      bits[w+1] = bits[w+1] & ~(m >>> r) | v >>> r;
+     }
+   }
+ }
+""");
+    return ""+s;
+   }
+
+//D2 Snapshot                                                                   // Save the memory of a layout to a file and load it back again
+
+  final static int snapshotMagic   = 0x4c61796f;                                // Identifies a snapshot file: "Layo"
+  final static int snapshotVersion = 1;                                         // Version of the snapshot format
+  final static int snapshotHeader  = 2 * Integer.BYTES + 2 * Long.BYTES;        // Bytes in the header: magic, version, hash of the layout source, bits of memory
+
+  static long sourceHash(String Source)                                         // A 64 bit FNV-1a hash of the source of a layout so that a snapshot can only be loaded into the layout that saved it
+   {long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < Source.length(); i++)
+     {h ^= Source.charAt(i);
+      h *= 0x100000001b3L;
+     }
+    return h;
+   }
+
+  long memoryBits()                                                             // Bits of memory in all the fields that have memory
+   {long n = 0;
+    for (Field f : fields) n += (long)f.elements * f.rep();
+    return n;
+   }
+
+  final static int snapshotBlock = 1 << 16;                                     // Bytes transferred to or from a snapshot file at a time so that the memory saved is not limited by the size of a Java array
+
+  private static class Packed                                                   // Bits packed end to end into little endian words that are transferred to or from a file in blocks
+   {final FileChannel channel;                                                  // File being written or read
+    final ByteBuffer  buffer = ByteBuffer.allocate(snapshotBlock).order(ByteOrder.LITTLE_ENDIAN);
+    long word;                                                                  // Word being packed or unpacked
+    int  bits;                                                                  // Bits packed into the word so far or bits of the word still to be unpacked
+
+    Packed(FileChannel Channel, boolean Read)
+     {channel = Channel;
+      if (Read) buffer.limit(0);                                                // Nothing has been read yet
+     }
+
+    void put(long Value, int N) throws IOException                              // Append the low N bits of a value where N is at most 64
+     {if (N == 0) return;
+      final long v = N == Long.SIZE ? Value : Value & ((1L << N) - 1);
+      word |= v << bits;
+      if (bits + N < Long.SIZE) {bits += N; return;}
+      if (!buffer.hasRemaining()) flush();
+      buffer.putLong(word);
+      word  = bits == 0 ? 0 : v >>> (Long.SIZE - bits);                         // Bits of the value that did not fit
+      bits += N - Long.SIZE;
+     }
+
+    void flush() throws IOException                                             // Write the buffered words
+     {buffer.flip();
+      while (buffer.hasRemaining()) channel.write(buffer);
+      buffer.clear();
+     }
+
+    void finish() throws IOException                                            // Write the partially packed word and any buffered words
+     {if (bits > 0) {if (!buffer.hasRemaining()) flush(); buffer.putLong(word);}
+      flush();
+     }
+
+    long next() throws IOException                                              // Read the next word
+     {if (!buffer.hasRemaining())
+       {buffer.clear();
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0) {}           // Bulk transfer of the next block
+        buffer.flip();
+       }
+      if (buffer.remaining() < Long.BYTES) throw new EOFException("Snapshot is truncated");
+      return buffer.getLong();
+     }
+
+    long get(int N) throws IOException                                          // Remove the next N bits where N is at most 64
+     {if (N == 0) return 0;
+      long v = word;
+      if (bits >= N)
+       {word  = N == Long.SIZE ? 0 : word >>> N;
+        bits -= N;
+       }
+      else
+       {final long w = next();
+        final int  n = N - bits;                                                // Bits needed from the new word
+        v    |= w << bits;
+        word  = n == Long.SIZE ? 0 : w >>> n;
+        bits  = Long.SIZE - n;
+       }
+      return N == Long.SIZE ? v : v & ((1L << N) - 1);
+     }
+   }
+
+  void save(Path File)                                                          // Save the memory of every field into a file as a header followed by the bits of each element of each field packed end to end in field order
+   {final ByteBuffer h = ByteBuffer.allocate(snapshotHeader).order(ByteOrder.LITTLE_ENDIAN);
+    h.putInt(snapshotMagic).putInt(snapshotVersion).putLong(sourceHash(source)).putLong(memoryBits());
+    h.flip();
+    try (FileChannel c = FileChannel.open(File, StandardOpenOption.WRITE,
+      StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))
+     {while (h.hasRemaining()) c.write(h);
+      final Packed p = new Packed(c, false);
+      for (Field f : fields)                                                    // Pack each element of each field
+       {if (f.memory == null) continue;
+        final int r = f.rep();
+        for (int e = 0; e < f.elements; e++)
+         {final BitSet m = f.element(e);
+          for (int k = 0; k < r; k += Long.SIZE)                                // Each word of the element
+           {long v = 0;
+            for (int i = m.nextSetBit(k); i >= 0 && i < k + Long.SIZE; i = m.nextSetBit(i+1)) v |= 1L << i - k;
+            p.put(v, Math.min(Long.SIZE, r - k));
+           }
+         }
+       }
+      p.finish();
+     }
+    catch(IOException e) {stop("Cannot save layout to:", File, e);}
+   }
+
+  void load(Path File)                                                          // Load the memory of every field from a file written by save() from a layout with the same source
+   {try (FileChannel c = FileChannel.open(File, StandardOpenOption.READ))
+     {final ByteBuffer h = ByteBuffer.allocate(snapshotHeader).order(ByteOrder.LITTLE_ENDIAN);
+      while (h.hasRemaining() && c.read(h) >= 0) {}
+      h.flip();
+      if (h.remaining() < snapshotHeader || h.getInt() != snapshotMagic)
+       {stop("Not a layout snapshot:", File);
+       }
+      final int v = h.getInt();
+      if (v != snapshotVersion)
+       {stop("Snapshot version", v, "cannot be loaded by version", snapshotVersion);
+       }
+      if (h.getLong() != sourceHash(source) || h.getLong() != memoryBits())
+       {stop("Snapshot was saved from a different layout:", File);
+       }
+      final Packed p = new Packed(c, true);
+      for (Field f : fields)                                                    // Unpack each element of each field into its existing memory
+       {if (f.memory == null) continue;
+        final int r = f.rep();
+        for (int e = 0; e < f.elements; e++)
+         {final BitSet m = f.element(e);
+          m.clear();
+          for (int k = 0; k < r; k += Long.SIZE)
+           {for (long w = p.get(Math.min(Long.SIZE, r - k)); w != 0; w &= w - 1) m.set(k + Long.numberOfTrailingZeros(w));
+           }
+         }
+       }
+     }
+    catch(IOException e) {stop("Cannot load layout from:", File, e);}
+   }
+
+//D2 Memory images                                                              // Write the memory of each field as an image that Verilog can load with $readmemh or $readmemb and read back the images dumped by a simulation
+
+  static String memoryImage(Field f, boolean Hex)                               // Name of the file holding the memory image of a field
+   {return f.name+(Hex ? ".memh" : ".memb");
+   }
+
+  void writeMemory(Field f, Writer W, boolean Hex) throws IOException           // Write the memory of a field one element per line, most significant digit first, in hexadecimal or binary in the order of the Verilog memory backing the field
+   {final int w = f.rep(), b = Hex ? 4 : 1, D = (w + b - 1) / b;
+    for (int e = 0; e < f.elements; e++)
+     {final BitSet m = f.element(e);
+      for (int d = D-1; d >= 0; --d)                                            // Each digit of the element
+       {int n = 0;
+        for (int i = min(b, w - d*b)-1; i >= 0; --i) n = n << 1 | (m.get(d*b+i) ? 1 : 0);
+        W.write(Character.forDigit(n, 16));
+       }
+      W.write('\n');
+     }
+   }
+
+  void readMemory(Field f, Reader R, boolean Hex) throws IOException            // Read the memory of a field from an image written by writeMemory() or dumped by $writememh or $writememb: comments and underscores are skipped, @ sets the address of the next element, x and z and elements not in the image read as zero
+   {final int w = f.rep(), b = Hex ? 4 : 1, r = Hex ? 16 : 2;
+    final char[]digits = new char[(w + b - 1) / b + 1];                         // Digits of the current element
+    int a = 0, c = R.read();
+    for (int e = 0; e < f.elements; e++) f.element(e).clear();
+
+    while (c >= 0)
+     {if (Character.isWhitespace(c)) {c = R.read(); continue;}
+      if (c == '/')                                                             // Comment
+       {c = R.read();
+        if (c == '/') while (c >= 0 && c != '\n') c = R.read();
+        else if (c == '*')
+         {for (int p = 0; (c = R.read()) >= 0 && !(p == '*' && c == '/'); p = c) {}
+         }
+        else stop("Unexpected / in memory image of", f.name);
+        c = R.read();
+        continue;
+       }
+      final boolean address = c == '@';                                         // Address or element
+      if (address) c = R.read();
+      int n = 0;
+      for (; c >= 0 && !Character.isWhitespace(c) && c != '/'; c = R.read())    // Digits of the token
+       {if (c == '_') continue;
+        if (n == digits.length) {System.arraycopy(digits, 1, digits, 0, n-1); --n;}// Keep only the least significant digits
+        digits[n++] = (char)c;
+       }
+      if (address)
+       {a = 0;
+        for (int i = 0; i < n; i++) a = a * 16 + Character.digit(digits[i], 16);
+        continue;
+       }
+      if (a >= f.elements)
+       {stop("Too many elements in memory image of", f.name, "which has", f.elements);
+       }
+      final BitSet m = f.element(a++);
+      for (int i = 0; i < n; i++)                                               // Least significant digit last
+       {final int d = Character.digit(digits[n-1-i], r), v = d < 0 ? 0 : d;     // x and z are read as zero
+        for (int j = 0; j < b && i*b+j < w; j++) if ((v >> j & 1) != 0) m.set(i*b+j);
+       }
+     }
+   }
+
+  void writeMemories(Path Dir, boolean Hex)                                     // Write the memory of each field with memory into its own image in a directory
+   {try
+     {Files.createDirectories(Dir);
+      for (Field f : fields)
+       {if (f.memory == null) continue;
+        try (Writer w = Files.newBufferedWriter(Dir.resolve(memoryImage(f, Hex))))
+         {writeMemory(f, w, Hex);
+         }
+       }
+     }
+    catch(IOException e) {stop("Cannot write memory images to:", Dir, e);}
+   }
+
+  void readMemories(Path Dir, boolean Hex)                                      // Read the memory of each field with memory from its image in a directory
+   {try
+     {for (Field f : fields)
+       {if (f.memory == null) continue;
+        try (Reader r = Files.newBufferedReader(Dir.resolve(memoryImage(f, Hex))))
+         {readMemory(f, r, Hex);
+         }
+       }
+     }
+    catch(IOException e) {stop("Cannot read memory images from:", Dir, e);}
+   }
+
+//D2 Memory accounting                                                          // Report the logical size of each field against the heap actually used to represent it
+
+  final static int arrayHeader    = 16;                                         // Bytes in the header of an array on a 64 bit JVM with compressed references
+  final static int referenceBytes =  4;                                         // Bytes in a compressed reference
+  final static int bitSetBytes    = 24;                                         // Bytes in a BitSet excluding the array of words it refers to
+  final static int variableLayout = 640;                                        // Estimated bytes in the layout, field, program and collections created for each scratch variable
+
+  static long align(long Bytes) {return (Bytes + 7) & ~7L;}                     // Round up to the eight byte alignment of objects on the heap
+
+  long logicalBits(Field f)                                                     // Bits of memory needed to hold every element of a field
+   {return (long)f.elements * f.rep();
+   }
+
+  long heapBytes(Field f)                                                       // Estimated bytes of heap holding the memory of a field: its share of the memory of the layout, each bit set and its words, the precomputed strides and extents and the table of slots if there is one
+   {if (f.memory == null) return 0;
+    long n = (long)referenceBytes * f.elements;
+    for (int i = 0; i < f.elements; i++) n += bitSetBytes + align(arrayHeader + f.element(i).size() / Byte.SIZE);
+    if (f.slots != null) n += align(arrayHeader + Integer.BYTES * f.elements);
+    return n + 2 * align(arrayHeader + Integer.BYTES * f.dims());
+   }
+
+  class MemoryReport                                                            // The memory used by a layout
+   {final Stack<Field> fields = new Stack<>();                                  // Fields that have memory
+    long bits, bytes;                                                           // Logical bits and heap bytes of the fields that have memory
+    int  variables;                                                             // Scratch variables in the layouts stack
+    long variableBits, variableBytes;                                           // Logical bits and estimated heap bytes of the scratch variables
+
+    MemoryReport()                                                              // Measure the memory used by the layout
+     {for (Field f : Layout.this.fields)
+       {if (f.memory == null) continue;
+        fields.push(f);
+        bits  += logicalBits(f);
+        bytes += heapBytes(f);
+       }
+      for (Layout l : layouts)                                                  // Scratch variables and any memory they have
+       {final MemoryReport r = l.memoryReport();
+        variables     += 1 + r.variables;
+        variableBits  += l.fields.firstElement().rep() + r.bits + r.variableBits;
+        variableBytes += variableLayout + r.bytes + r.variableBytes;
+       }
+     }
+
+    double overhead()        {return bits == 0 ? 0 : bytes * 8.0 / bits;}       // Heap bits used for each logical bit of memory
+    long   totalBytes()      {return bytes + variableBytes;}                    // Heap bytes of the memory and the scratch variables
+
+    public String toString()                                                    // One line per field with memory followed by the totals
+     {final StringBuilder s = new StringBuilder();
+      final String f = "%-24s %10s %12s %12s %10s\n";
+      s.append(String.format(f, "Field", "Elements", "Bits", "Bytes", "Overhead"));
+      for (Field F : fields)
+       {final long b = logicalBits(F), B = heapBytes(F);
+        s.append(String.format(f, F.name, F.elements, b, B, String.format("%.1f", B * 8.0 / b)));
+       }
+      s.append(String.format(f, "Memory", "", bits, bytes, String.format("%.1f", overhead())));
+      s.append(String.format(f, "Variables", variables, variableBits, variableBytes, "").stripTrailing()+"\n");
+      return ""+s;
+     }
+   }
+
+  MemoryReport memoryReport() {return new MemoryReport();}                      // Report the memory used by this layout
+
+//D2 Trace                                                                      // Record the accesses to memory made by a program so that the fields can be assigned to memory banks
+
+  static class Trace                                                            // The most recent accesses to memory held in a ring buffer
+   {final int    capacity;                                                      // Maximum number of accesses held
+    final int[]  access, element, pc, operation;                                // Field number shifted left one with the low bit set for a write, element of the memory of the field, program counter of the instruction, operation being performed
+    final long[] step;                                                          // Step at which each access was made
+    long         recorded;                                                      // Accesses recorded so far: only the last capacity of them are held
+    final Stack<Field>  fields     = new Stack<>();                             // Fields in the order they were first accessed
+    final Stack<String> names      = new Stack<>();                             // Name of each field made unique with a numeric suffix if several fields share a name
+    final Stack<String> operations = new Stack<>();                             // Names of the operations: the first is the empty name of no operation
+    int currentOperation;                                                       // Operation being performed: zero if none has been named
+
+    Trace(int Capacity)                                                         // Create a trace holding the specified number of accesses
+     {capacity  = Capacity;
+      access    = new int [Capacity];
+      element   = new int [Capacity];
+      pc        = new int [Capacity];
+      operation = new int [Capacity];
+      step      = new long[Capacity];
+      operations.push("");
+     }
+
+    private int number(Field f)                                                 // Number of a field in this trace
+     {for (int i = fields.size()-1; i >= 0; --i) if (fields.elementAt(i) == f) return i;
+      String n = f.name;
+      for (int i = 2; names.contains(n); i++) n = f.name+"_"+i;
+      fields.push(f); names.push(n);
+      return fields.size()-1;
+     }
+
+    void operation(String Name)                                                 // Attribute subsequent accesses to the named operation or to no operation if the name is empty
+     {final int i = operations.indexOf(Name);
+      if (i >= 0) {currentOperation = i; return;}
+      operations.push(Name);
+      currentOperation = operations.size()-1;
+     }
+
+    void record(Field f, int Element, boolean Write, int Pc, long Step)         // Record an access
+     {final int i = (int)(recorded++ % capacity);
+      access   [i] = number(f) << 1 | (Write ? 1 : 0);
+      element  [i] = Element;
+      pc       [i] = Pc;
+      operation[i] = currentOperation;
+      step     [i] = Step;
+     }
+
+    int  size()  {return (int)Math.min(recorded, capacity);}                    // Number of accesses held
+    long lost()  {return recorded - size();}                                    // Number of accesses overwritten by later ones
+    private int at(int i) {return (int)((recorded - size() + i) % capacity);}   // Position in the ring of the i'th oldest access held
+
+    TreeMap<String,long[]> counts()                                             // Reads and writes of each field
+     {final TreeMap<String,long[]> c = new TreeMap<>();
+      for (int i = 0; i < size(); i++)
+       {final int a = access[at(i)];
+        c.computeIfAbsent(names.elementAt(a >> 1), k -> new long[2])[a & 1]++;
+       }
+      return c;
+     }
+
+    TreeMap<String,Metrics.Histogram> readAfterWrite()                          // Steps from the last write of an element to each read of it for each field
+     {final TreeMap<String,Metrics.Histogram> h = new TreeMap<>();
+      final HashMap<Long,Long> written = new HashMap<>();                       // Step of the last write of each element of each field
+      for (int i = 0; i < size(); i++)
+       {final int  j = at(i), a = access[j];
+        final long k = (long)(a >> 1) << 32 | element[j];
+        if ((a & 1) == 1) {written.put(k, step[j]); continue;}
+        final Long w = written.get(k);
+        if (w != null) h.computeIfAbsent(names.elementAt(a >> 1), n -> new Metrics.Histogram()).add(step[j] - w);
+       }
+      return h;
+     }
+
+    TreeMap<String,TreeMap<String,Integer>> ports()                             // The ports each field would need to serve each operation: the largest number of distinct reads and writes of the field made by one step of the operation
+     {final TreeMap<String,TreeMap<String,Integer>> p = new TreeMap<>();
+      final HashSet<Long> seen = new HashSet<>();                               // Accesses already made in the current step
+      final HashMap<Integer,Integer> n = new HashMap<>();                       // Distinct accesses to each field in the current step
+      for (int i = 0; i <= size(); i++)
+       {final int j = i < size() ? at(i) : -1;
+        if (i > 0 && (j < 0 || step[j] != step[at(i-1)]))                       // End of a step: update the ports needed by its operation
+         {final TreeMap<String,Integer> o = p.computeIfAbsent(operations.elementAt(operation[at(i-1)]), k -> new TreeMap<>());
+          for (int f : n.keySet()) o.merge(names.elementAt(f), n.get(f), Math::max);
+          seen.clear(); n.clear();
+         }
+        if (j < 0) break;
+        final int a = access[j];
+        if (seen.add((long)a << 32 | element[j])) n.merge(a >> 1, 1, Integer::sum);
+       }
+      return p;
+     }
+
+    public String toString()                                                    // Accesses, mean read after write distance and ports needed by each operation for each field
+     {final StringBuilder s = new StringBuilder();
+      final TreeMap<String,long[]>            c = counts();
+      final TreeMap<String,Metrics.Histogram> r = readAfterWrite();
+      final TreeMap<String,TreeMap<String,Integer>> p = ports();
+      s.append(String.format("Accesses %d held %d lost %d\n", recorded, size(), lost()));
+      s.append(String.format("%-24s %10s %10s %10s\n", "Field", "Reads", "Writes", "RAW"));
+      for (String f : c.keySet())
+       {final Metrics.Histogram h = r.get(f);
+        s.append(String.format("%-24s %10d %10d %10s\n", f, c.get(f)[0], c.get(f)[1],
+          h == null ? "" : String.format("%.1f", h.sum / (double)h.count)).stripTrailing()+"\n");
+       }
+      for (String o : p.keySet())
+       {s.append("Ports "+(o.isEmpty() ? "-" : o)+":");
+        for (String f : p.get(o).keySet()) s.append(" "+f+"="+p.get(o).get(f));
+        s.append("\n");
+       }
+      return ""+s;
+     }
+   }
+
+  Trace trace(int Capacity) {return P.trace = new Trace(Capacity);}             // Start recording the accesses to memory made by the program in a ring buffer of the specified capacity
+
+//D2 Tests                                                                      // Test memory layouts
+
+  protected static void test_parse()
+   {Layout l = new Layout("""
+A array 2
+  a var 4
+  b bit
+  B array 4
+    a1 bit
+    b1 var 2
+    C array 2
+      a2 bit
+      b2 var 5
+""");
+
+    //stop(l);
+    ok(l, """
+  #  Indent  Name      Value___  Command  Rep  Parent  Children   Dimension
+  0       0  A                0  array      2          a, b, B
+  1       2    a              0  var        4       A             2
+  2       2    b              0  bit        1       A             2
+  3       2    B              0  array      4       A  a1, b1, C
+  4       4      a1           0  bit        1       B             2*4 = 8
+  5       4      b1           0  var        2       B             2*4 = 8
+  6       4      C            0  array      2       B  a2, b2
+  7       6        a2         0  bit        1       C             2*4*2 = 16
+  8       6        b2         0  var        5       C             2*4*2 = 16
+""");
+
+    Field b1 = l.locateFieldByName("b1");
+    ok(b1.dimProduct(), 8);
+    l.allocateMemory();
+   }
+
+  protected static void test_parse_top()
+   {Layout l = new Layout("""
+a var 4
+b bit
+A array 1
+  a1 bit
+  b1 var 5
+c var 2
+""");
 
     //stop(l);
     ok(l, """
@@ -858,6 +2130,45 @@ v var 4
 """);
    }
 
+  protected static void test_address()
+   {Layout l = new Layout("""
+i var 4
+j var 4
+k var 4
+A array 2
+  B array 3
+    C array 4
+      c var 4
+""");
+
+    Field i = l.locateFieldByName("i");
+    Field j = l.locateFieldByName("j");
+    Field k = l.locateFieldByName("k");
+    Field c = l.locateFieldByName("c");
+
+    ok(Arrays.toString(c.strides), "[12, 4, 1]");
+    ok(Arrays.toString(c.extents), "[2, 3, 4]");
+    ok(c.address(1, 2, 3), 23);
+    ok(c.address(1, 2),     5);
+    ok(c.address(1),        1);
+
+    int n = 0;
+    for       (int x = 0; x < 2; x++)
+     {for     (int y = 0; y < 3; y++)
+       {for   (int z = 0; z < 4; z++)
+         {i.value = x; j.value = y; k.value = z;
+          ok(c.address(i, j, k), n++);
+          ok(c.address(i, j),    x * 3 + y);
+         }
+       }
+     }
+
+    c.write(9, 23);
+    c.value = 5;
+    ok(c.peek(1, 2, 3), 9);                                                     // Peeking at memory leaves the value of the field alone
+    ok(c.value, 5);
+   }
+
   protected static void test_array()
    {Layout l = new Layout("""
 i var 4
@@ -1157,11 +2468,815 @@ N var 16
     l.P.generateVerilog();
    }
 
+  protected static void test_profile()
+   {Layout l = new Layout("""
+a var 16
+b var 16
+c var 16
+N var 16
+""");
+
+    Field a = l.locateFieldByName("a");
+    Field b = l.locateFieldByName("b");
+    Field c = l.locateFieldByName("c");
+    Field N = l.locateFieldByName("N");
+
+    l.clearProgram();
+    l.P.profile = true;
+    N.iWrite(10);
+    a.iWrite(0);
+    b.iWrite(1);
+    l.P.new For(N)
+     {void code()
+       {c.iAdd(a, b);
+        a.iMove(b);
+        b.iMove(c);
+       }
+     };
+    l.runProgram();
+    ok(b, "b: value=89");
+
+    final TreeMap<String,long[]> p = l.P.profileByLocation();
+    long n = 0; for (long[]e : p.values()) n += e[0];
+    ok(n, l.P.steps);                                                           // Every step is charged to exactly one line
+    for (String k : p.keySet()) ok(k.matches("Layout.java:\\d+:.*"));           // Everything was generated in this file so each instruction is charged to the line that created it
+
+    final String r = l.P.profileReport(3);
+    ok(r.split("\n").length, 4);
+    ok(r.startsWith("Hot spot"));
+
+    l.P.resetProfile();
+    ok(l.P.profileByLocation().size(), 0);
+   }
+
+  protected static void test_debug()
+   {Layout l = new Layout("""
+a var 16
+""");
+    Field a = l.locateFieldByName("a");
+
+    l.clearProgram();
+    ok(l.P.debug, false);
+    final int line = new Throwable().getStackTrace()[0].getLineNumber();
+    l.P.new Instruction() {void action() {a.value = 1;}};                       // Only the line that made the instruction is recorded
+    ok(l.P.code.lastElement().trace == null);
+    ok(l.P.code.lastElement().traceBack(), String.format("  Layout.java:%04d:test_debug\n", line+1));
+    a.iMove(a);                                                                 // Made by a helper so charged to the line that called the helper
+    ok(l.P.code.lastElement().traceBack(), String.format("  Layout.java:%04d:test_debug\n", line+4));
+    l.P.code.pop();
+
+    l.P.debug = true;
+    l.P.new Instruction() {void action() {a.value = 2;}};                       // The full stack is captured
+    ok(l.P.code.lastElement().traceBack().startsWith("  Layout.java:"));
+    ok(l.P.code.lastElement().traceBack().contains(":test_debug\n"));
+
+    l.P.supressErrorMessagePrint = true;
+    l.P.debug = false;
+    final int stop = new Throwable().getStackTrace()[0].getLineNumber() + 1;
+    l.P.iStop("Stopped");                                                       // The message from a stop made by a helper names the line that called the helper
+    ok(l.P.code.lastElement().traceBack(), String.format("  Layout.java:%04d:test_debug\n", stop));
+    l.runProgram();
+    ok(a, "a: value=2");
+    ok(l.P.rc, "Stopped");
+   }
+
+  protected static void test_optimize()
+   {Layout l = new Layout("""
+a var 16
+b var 16
+c var 16
+N var 16
+""");
+
+    Field a = l.locateFieldByName("a");
+    Field b = l.locateFieldByName("b");
+    Field c = l.locateFieldByName("c");
+    Field N = l.locateFieldByName("N");
+
+    for (int O = 0; O < 2; O++)                                                 // Run the same program with and without optimization
+     {l.clearProgram();
+      l.P.steps = 0;
+      N.iWrite(10);
+      a.iWrite(0);
+      b.iWrite(1);
+      l.P.new For(N)
+       {void code()
+         {c.iAdd(a, b);
+          a.iMove(b);
+          b.iMove(c);
+         }
+       };
+      l.P.new If(a)                                                             // An if without an else generates a jump to the next instruction
+       {void Then() {c.iInc();}
+       };
+      ok(l.P.code.size(), 14);
+      if (O > 0) ok(l.P.optimize(), 2);                                         // The jump to the end of the if is removed and the loop condition is fused with its test
+      l.runProgram();
+      ok(a, "a: value=55");
+      ok(b, "b: value=89");
+      ok(c, "c: value=90");
+      ok(l.P.steps, O > 0 ? 67 : 79);                                           // Eleven loop tests fused and one jump removed
+     }
+
+    l.clearProgram();                                                           // Thread jumps and remove unreachable code
+    final Layout.Program P = l.P;
+    final Layout.Program.Label L1 = P.new Label(), L2 = P.new Label();
+    P.iGoto(L1);
+    a.iWrite(1);                                                                // Unreachable
+    L1.set();
+    P.iGoto(L2);
+    a.iWrite(2);                                                                // Unreachable
+    L2.set();
+    a.iWrite(3);
+    ok(P.optimize(), 4);
+    ok(P.code.size(), 1);
+    ok(L1.offset, 0);
+    ok(L2.offset, 0);
+    l.runProgram();
+    ok(a, "a: value=3");
+
+    for (int O = 0; O < 2; O++)                                                 // An instruction that stops the program is fused with the conditional jump that follows it but the jump must not restart the program
+     {l.clearProgram();
+      l.P.supressErrorMessagePrint = true;
+      a.iWrite(0); b.iWrite(0);
+      l.P.iStop("halt");
+      l.P.new If(a)                                                             // The jump over the then clause is taken because a is zero
+       {void Then() {c.iInc();}
+       };
+      b.iWrite(5);
+      if (O > 0) ok(l.P.optimize(), 2);                                         // The stop is fused with the jump and the jump to the end of the if is removed
+      l.runProgram();
+      ok(l.P.rc, "halt");
+      ok(b, "b: value=0");
+      if (O > 0) ok(l.P.verilogModule("halt").contains("2: begin program_pc = program_pc + 1; program_stopped = 1; program_pc = program_end; if (program_pc == 3 && !program_stopped) begin if (!a_value) program_pc = program_label[0]; end end"));
+     }
+   }
+
+  protected static void test_stepBound()
+   {Layout l = new Layout("""
+a var 16
+b var 16
+c var 16
+N var 16
+""");
+
+    Field a = l.locateFieldByName("a");
+    Field b = l.locateFieldByName("b");
+    Field c = l.locateFieldByName("c");
+    Field N = l.locateFieldByName("N");
+
+    l.clearProgram();
+    l.P.new If(a)                                                               // Acyclic: the longest path is through the else branch
+     {void Then() {c.iInc();}
+      void Else() {c.iInc(); c.iInc();}
+     };
+    ok(l.P.loops().size(), 0);
+    ok(l.P.stepBound(), 3);
+
+    l.clearProgram();
+    N.iWrite(10);
+    a.iWrite(0);
+    b.iWrite(1);
+    final Layout.Program.For f = l.P.new For(N)
+     {void code()
+       {c.iAdd(a, b);
+        a.iMove(b);
+        b.iMove(c);
+       }
+     };
+    ok(l.P.loops(), "{4=10}");                                                  // The loop test is reached from the jump at the end of the body
+    ok(l.P.stepBound(), Long.MAX_VALUE);                                        // The number of iterations is not known
+    f.start.loop(11);                                                           // Ten iterations and a final test
+    ok(l.P.stepBound(), 4+11*7);
+    l.P.boundSteps = true;
+    l.P.steps = 0;
+    l.runProgram();
+    ok(b, "b: value=89");
+    ok(l.P.maxSteps, 81);
+    ok(l.P.steps,    76);                                                       // The last iteration does not execute the body
+    ok(l.P.bound,    81);                                                       // The bound is kept until the code changes
+
+    f.start.loop(21);                                                           // Changing a label invalidates the bound
+    ok(l.P.bound,    -1);
+    l.runProgram();
+    ok(l.P.maxSteps, 4+21*7);
+    c.iInc();                                                                   // As does adding an instruction
+    ok(l.P.bound,    -1);
+    l.runProgram();
+    ok(l.P.maxSteps, 5+21*7);
+
+    l.clearProgram();                                                           // A finite bound from a previous program must not limit a program whose bound is infinite
+    a.iWrite(0);
+    l.runProgram();
+    ok(l.P.maxSteps, 1);
+    l.clearProgram();
+    N.iWrite(5);
+    a.iWrite(0);
+    l.P.new For(N) {void code() {a.iInc();}};
+    l.runProgram();
+    ok(l.P.rc == null);
+    ok(a, "a: value=5");
+    ok(l.P.maxSteps, 200);                                                      // The default limit is restored
+
+    l.P.maxSteps = 100;                                                         // A limit set by the caller is honoured while the bound is infinite
+    l.runProgram();
+    ok(a, "a: value=5");
+    ok(l.P.maxSteps, 100);
+   }
+
+  protected static void test_cycles()
+   {Layout l = new Layout("""
+i var 4
+A array 4
+  a var 4
+""");
+
+    Field i = l.locateFieldByName("i");
+    Field a = l.locateFieldByName("a");
+
+    final CycleModel m = new CycleModel();
+    m.read = 2; m.write = 3;
+    l.P.cycleModel = m;
+    l.clearProgram();
+    i.iWrite(1);                                                                // Dispatch only
+    a.iWrite(5);                                                                // Sets the value without touching memory
+    a.iWrite(i);                                                                // Write into memory
+    a.iRead(i);                                                                 // Read from memory
+    l.P.new Instruction()                                                       // Copy the whole array in one instruction
+     {void action()
+       {for (int j = 1; j < 4; j++) a.move(j, a, 0);
+       }
+     };
+    l.runProgram();
+    ok(l.P.cycles, 1 + 1 + (1+3) + (1+2) + (1+3*2+3*3));
+
+    m.wide = true;                                                              // All the elements are copied at once
+    l.P.cycles = 0;
+    l.runProgram();
+    ok(l.P.cycles, 1 + 1 + (1+3) + (1+2) + (1+2+3));
+   }
+
+  protected static void test_schedule()
+   {Layout l = new Layout("""
+a var 16
+b var 16
+c var 16
+N var 16
+""");
+
+    Field a = l.locateFieldByName("a");
+    Field b = l.locateFieldByName("b");
+    Field c = l.locateFieldByName("c");
+    Field N = l.locateFieldByName("N");
+
+    l.clearProgram();
+    N.iWrite(10);
+    a.iWrite(0);
+    b.iWrite(1);
+    final Layout.Program.For f = l.P.new For(N)
+     {void code()
+       {c.iAdd(a, b);                                                           // Reads a before the next instruction writes it so they can share a bundle
+        a.iMove(b);
+        b.iMove(c);                                                             // Must wait for c
+       }
+     };
+    f.start.loop(11);
+    final Layout.Program.Schedule s = l.P.schedule();
+    l.runProgram();
+    ok(b, "b: value=89");
+    ok(s.blocks, "{0=1, 4=2, 6=2}");
+    ok(s.bundles(),      5);
+    ok(s.criticalPath(), 1 + 11 * (2 + 2));
+    ok(l.P.steps,       76);
+    ok(s.executed,      43);                                                    // The last test of the loop does not execute the body
+    final String v = s.verilog("fibonacci");
+    //stop(v);
+    ok(v, """
+module fibonacci(input clock, input reset, output reg program_finished, output reg program_stopped);
+  localparam program_end = 5;
+  reg [3:0] program_pc;
+  wire [3:0] program_label[0:1];
+  assign program_label[0] = 1;
+  assign program_label[1] = 5;
+  reg [15:0] N_value;
+  reg [15:0] a_value;
+  reg [15:0] b_value;
+  reg [31:0] loop_value;
+  reg [0:0] condition_value;
+  reg [15:0] c_value;
+  always @(posedge clock) begin
+    if (reset) begin program_pc = 0; program_finished = 0; program_stopped = 0; end
+    else if (program_pc < program_end) begin
+      case (program_pc)
+        0: begin program_pc = program_pc + 1; N_value = 10; a_value = 0; b_value = 1; loop_value = 0; end
+        1: begin program_pc = program_pc + 1; condition_value = loop_value < N_value; end
+        2: begin program_pc = program_pc + 1; if (!condition_value) program_pc = program_label[1]; end
+        3: begin program_pc = program_pc + 1; c_value = a_value + b_value; a_value = b_value; loop_value = loop_value + 1; end
+        4: begin program_pc = program_pc + 1; b_value = c_value; program_pc = program_label[0]; end
+      endcase
+    end
+    else program_finished = 1;
+  end
+endmodule
+""");
+    ok(v.split("\n        \\d+: begin ", -1).length - 1, s.bundles());          // One case entry per bundle
+    ok(v.contains("module fibonacci(") && v.contains("always @(posedge clock) begin") && v.endsWith("endmodule\n"));
+    ok(l.P.verilogModule("fibonacci").contains("localparam program_end = 11;"));// One case entry per instruction when not scheduled
+
+    l.P.optimize();                                                             // Fuse the test of the loop with its conditional jump
+    final String o = l.P.schedule().verilog("fused");
+    ok(o.contains("  localparam program_end = 4;"));
+    ok(o.contains("        1: begin program_pc = program_pc + 1; condition_value = loop_value < N_value; if (program_pc == 2 && !program_stopped) begin if (!condition_value) program_pc = program_label[1]; end end"));// The fused jump tests the bundle that follows
+
+    l.clearProgram();
+    a.iWrite(1);
+    l.P.new Block()                                                             // Nothing jumps into the block so it does not start a basic block
+     {void code()
+       {b.iWrite(2);
+       }
+     };
+    ok(l.P.schedule().blocks, "{0=1}");
+    l.P.new Instruction() {void action() {}};                                   // Might jump to any label as it does not declare its fields
+    ok(l.P.schedule().blocks, "{0=1, 1=1, 2=1}");
+
+    l.clearProgram();
+    ok(l.P.scheduled == null);
+   }
+
+  protected static void test_verilogModule()
+   {Layout l = new Layout("""
+i var 4
+A array 4
+  a var 4
+N var 4
+""");
+
+    Field i = l.locateFieldByName("i");
+    Field a = l.locateFieldByName("a");
+    Field N = l.locateFieldByName("N");
+
+    l.clearProgram();
+    N.iWrite(4);
+    l.P.new For(N)                                                              // Fill the array with its indices
+     {void code()
+       {i.iMove(loop);
+        a.iMove(loop);
+        a.iWrite(i);
+       }
+     };
+    l.runProgram();
+    ok(a, "a: value=3, 0=0, 1=1, 2=2, 3=3");
+    ok(l.P.unlowered(), 0);
+    //stop(l.P.verilogModule("fill"));
+    ok(l.P.verilogModule("fill"), """
+module fill(input clock, input reset, output reg program_finished, output reg program_stopped);
+  localparam program_end = 9;
+  reg [4:0] program_pc;
+  wire [4:0] program_label[0:1];
+  assign program_label[0] = 2;
+  assign program_label[1] = 9;
+  reg [3:0] N_value;
+  reg [31:0] loop_value;
+  reg [0:0] condition_value;
+  reg [3:0] i_value;
+  reg [3:0] a_value;
+  reg [3:0] a_memory[0:3];
+  always @(posedge clock) begin
+    if (reset) begin program_pc = 0; program_finished = 0; program_stopped = 0; end
+    else if (program_pc < program_end) begin
+      case (program_pc)
+        0: begin program_pc = program_pc + 1; N_value = 4; end
+        1: begin program_pc = program_pc + 1; loop_value = 0; end
+        2: begin program_pc = program_pc + 1; condition_value = loop_value < N_value; end
+        3: begin program_pc = program_pc + 1; if (!condition_value) program_pc = program_label[1]; end
+        4: begin program_pc = program_pc + 1; i_value = loop_value; end
+        5: begin program_pc = program_pc + 1; a_value = loop_value; end
+        6: begin program_pc = program_pc + 1; a_memory[i_value] = a_value; end
+        7: begin program_pc = program_pc + 1; loop_value = loop_value + 1; end
+        8: begin program_pc = program_pc + 1; program_pc = program_label[0]; end
+      endcase
+    end
+    else program_finished = 1;
+  end
+endmodule
+""");
+
+    final int line = new Throwable().getStackTrace()[0].getLineNumber() + 1;
+    l.P.new Instruction() {void action() {}};                                   // Not lowered so it stops the program
+    ok(l.P.unlowered(), 1);
+    ok(l.P.verilogModule("fill").contains(String.format("9: begin program_pc = program_pc + 1; program_stopped = 1; program_pc = program_end; /* not lowered: Layout.java:%04d:test_verilogModule */", line)));
+   }
+
+  protected static void test_template()
+   {final String s = """
+i var 4
+A array 2
+  a var 4
+  B array 3
+    b var 4
+    c bit
+""";
+    final int    n = templates();
+    final Layout l = template(s);
+    final Layout m = template(s);
+    ok(templates(), n + 1);                                                     // Parsed once
+    ok(""+l, ""+new Layout(s));
+    ok(""+m, ""+new Layout(s));
+
+    final Field  b = l.locateFieldByName("b");
+    final Field  B = m.locateFieldByName("b");
+    ok(b != B);
+    ok(b.getParent() == l.locateFieldByName("B"));
+    ok(b.dimensions.firstElement() == l.locateFieldByName("A"));
+    ok(Arrays.toString(B.strides), "[3, 1]");
+
+    final Field i = l.locateFieldByName("i");
+    l.clearProgram(); i.iWrite(4); b.iWrite(i); l.runProgram();                 // Each instance has its own memory
+    ok(b, "b: value=0, 0=0, 1=0, 2=0, 3=0, 4=0, 5=0");
+    l.clearProgram(); i.iWrite(1); b.iConstant(7, i, i); l.runProgram();
+    ok(b, "b: value=7, 0=0, 1=0, 2=0, 3=0, 4=7, 5=0");
+    ok(B, "b: value=0, 0=0, 1=0, 2=0, 3=0, 4=0, 5=0");
+   }
+
+  protected static void test_snapshot()
+   {final String s = """
+A array 5
+  a var 7
+  B array 3
+    b var 13
+    c bit
+""";
+    final Layout l = template(s);
+    final Field  a = l.locateFieldByName("a"), b = l.locateFieldByName("b"), c = l.locateFieldByName("c");
+    for (int i = 0; i < 5; i++)
+     {a.setBitsFromInt(a.element(a.address(i)), 100 + i);
+      for (int j = 0; j < 3; j++)
+       {b.setBitsFromInt(b.element(b.address(i, j)), 1000 * i + j);
+        c.setBitsFromInt(c.element(c.address(i, j)), (i + j) % 2);
+       }
+     }
+    ok(l.memoryBits(), 5 * 7 + 15 * 13 + 15);
+
+    try
+     {final Path f = Files.createTempFile("layout", ".bin");
+      l.save(f);
+      ok(Files.size(f), snapshotHeader + 4 * Long.BYTES);                       // 245 bits round up to 4 longs
+
+      final Layout m = template(s);
+      m.load(f);
+      ok(""+m, ""+l);
+      ok(m.locateFieldByName("b"), "b: value=0, 0=0, 1=1, 2=2, 3=1000, 4=1001, 5=1002, 6=2000, 7=2001, 8=2002, 9=3000, 10=3001, 11=3002, 12=4000, 13=4001, 14=4002");
+      ok(m.locateFieldByName("c"), "c: value=0, 0=0, 1=1, 2=0, 3=1, 4=0, 5=1, 6=0, 7=1, 8=0, 9=1, 10=0, 11=1, 12=0, 13=1, 14=0");
+
+      final Layout n = new Layout(s.replace("var 13", "var 12"));               // A different layout cannot load the snapshot
+      sayThisOrStop("Snapshot was saved from a different layout: "+f);
+      try {n.load(f); ok(false);} catch(RuntimeException e) {ok(true);}
+      Files.delete(f);
+
+      final String w = """
+W array 40000
+  x var 3
+  y var 100
+""";
+      final Layout W = template(w);                                             // Elements wider than a word spread over several blocks of the file
+      final Field  x = W.locateFieldByName("x"), y = W.locateFieldByName("y");
+      for (int i = 0; i < 40000; i++)
+       {x.setBitsFromInt(x.element(i), i % 8);
+        y.element(i).set(i % 100);
+        y.element(i).set(99 - i % 37);
+       }
+      final Path g = Files.createTempFile("layout", ".bin");
+      W.save(g);
+      ok(Files.size(g), snapshotHeader + (40000L * 103 + 63) / 64 * Long.BYTES);
+      final Layout V = template(w);
+      V.load(g);
+      Files.delete(g);
+      final Field X = V.locateFieldByName("x"), Y = V.locateFieldByName("y");
+      boolean same = true;
+      for (int i = 0; i < 40000; i++)
+       {same &= X.element(i).equals(x.element(i)) && Y.element(i).equals(y.element(i));
+       }
+      ok(same);
+     }
+    catch(IOException e) {stop(e);}
+   }
+
+  protected static void test_memoryImages()
+   {final String s = """
+i var 4
+A array 3
+  a var 6
+  B array 2
+    b var 9
+    c bit
+""";
+    final Layout l = template(s);
+    final Field  a = l.locateFieldByName("a"), b = l.locateFieldByName("b"), c = l.locateFieldByName("c");
+    for (int i = 0; i < 3; i++)
+     {a.setBitsFromInt(a.element(a.address(i)), 60 + i);
+      for (int j = 0; j < 2; j++)
+       {b.setBitsFromInt(b.element(b.address(i, j)), 250 * i + j);
+        c.setBitsFromInt(c.element(c.address(i, j)), j);
+       }
+     }
+
+    try
+     {final StringWriter h = new StringWriter(), B = new StringWriter();
+      l.writeMemory(b, h, true);
+      l.writeMemory(a, B, false);
+      ok(h, "000\n001\n0fa\n0fb\n1f4\n1f5\n");
+      ok(B, "111100\n111101\n111110\n");
+
+      final Layout m = template(s);                                             // Read a simulation dump with comments, addresses and unknown bits
+      m.readMemory(m.locateFieldByName("b"), new StringReader("""
+// memory data file (do not edit the following line - required for mem load use)
+// instance=/btree/b_memory
+// format=hex addressradix=h dataradix=h version=1.0 wordsperline=1
+@2 0fa
+0f_b /* mid */ 1f4
+1F5
+@0 000 xz1
+"""), true);
+      ok(m.locateFieldByName("b"), "b: value=0, 0=0, 1=1, 2=250, 3=251, 4=500, 5=501");
+
+      final Path d = Files.createTempDirectory("layout");                       // Round trip through a directory of images
+      l.writeMemories(d, true);
+      ok(Files.readString(d.resolve("c.memh")), "0\n1\n0\n1\n0\n1\n");
+      final Layout n = template(s);
+      n.readMemories(d, true);
+      ok(""+n, ""+l);
+
+      n.clearProgram();                                                         // The module generated for a program preloads the memories of the layout
+      n.locateFieldByName("i").iWrite(1);
+      n.locateFieldByName("a").iZero(n.locateFieldByName("i"));
+      n.P.memoryImages = d;
+      final String v = n.P.verilogModule("preload");
+      //stop(v);
+      ok(v.contains("  initial $readmemh(\""+d.resolve("a.memh")+"\", a_memory);"));
+
+      for (String f : new String[]{"a", "b", "c"}) Files.delete(d.resolve(f+".memh"));
+      Files.delete(d);
+     }
+    catch(IOException e) {stop(e);}
+   }
+
+  protected static void test_memoryReport()
+   {final Layout l = new Layout("""
+A array 4
+  a var 6
+  B array 100
+    b bit
+""");
+    l.variable("t", 5); l.variable("u", 3);
+    final MemoryReport r = l.memoryReport();
+    ok(r.bits, 4 * 6 + 400);
+    ok(r.variables, 2);
+    ok(r.variableBits, 8);
+    ok(r.variableBytes, 2 * variableLayout);
+    ok(l.heapBytes(l.locateFieldByName("a")), 4 * 4 + 4 * (24 + 24) + 32 + 2 * 24);// References in the memory of the layout, four bit sets each with one word, the slots of elements that are not adjacent, strides and extents
+    ok(r.overhead() > 30);                                                      // A bit set for every bit
+    //stop(r);
+    ok(r, """
+Field                      Elements         Bits        Bytes   Overhead
+a                                 4           24          288       96.0
+b                               400          400        22464      449.3
+Memory                                       424        22752      429.3
+Variables                         2            8         1280
+""");
+   }
+
+  protected static void test_trace()
+   {final Layout l = new Layout("""
+i var 4
+A array 4
+  a var 4
+  b var 4
+""");
+    final Field i = l.locateFieldByName("i"), a = l.locateFieldByName("a"), b = l.locateFieldByName("b");
+    ok(l.P.trace == null);                                                      // Nothing is recorded by default
+
+    final Trace t = l.trace(8);
+    l.clearProgram();
+    l.P.new Instruction() {void action() {t.operation("fill");}};
+    for (int j = 0; j < 4; j++) {i.iWrite(j); a.iWrite(i); b.iWrite(i);}        // Two ports per step would not help here as each instruction writes one element
+    l.P.new Instruction() {void action() {t.operation("sum");}};
+    i.iWrite(1);
+    l.P.new Instruction()                                                       // Read two elements of a in the same step
+     {void action()
+       {a.read(1); final int x = a.value; a.read(2); b.value = x + a.value; b.write(i);
+       }
+     };
+    l.runProgram();
+    ok(t.recorded, 11);
+    ok(t.size(),    8);
+    ok(t.lost(),    3);
+    //stop(t);
+    ok(t, """
+Accesses 11 held 8 lost 3
+Field                         Reads     Writes        RAW
+a                                 2          2        7.0
+b                                 0          4
+Ports fill: a=1 b=1
+Ports sum: a=2 b=1
+""");
+    ok(t.readAfterWrite().get("a").count, 1);                                   // The write of a[1] has been overwritten in the ring so only the read of a[2] has a known distance
+    ok(t.readAfterWrite().get("a").max,   7);
+   }
+
+  protected static void test_rollback()
+   {final Layout l = new Layout("""
+i var 4
+A array 4
+  a var 4
+""");
+    final Field i = l.locateFieldByName("i"), a = l.locateFieldByName("a");
+    for (int j = 0; j < 4; j++) a.setBitsFromInt(a.element(j), j);
+
+    for (boolean t : new boolean[]{false, true})
+     {l.clearProgram();
+      l.P.transactional = t;
+      l.P.supressErrorMessagePrint = true;
+      i.iWrite(1); a.iWrite(9, 1);
+      i.iWrite(2); a.iConstant(8, i);
+      l.P.new Instruction() {void action() {a.move(3, a, 2);}};
+      l.P.iStop("Stopped");
+      l.runProgram();
+      ok(l.P.rc, "Stopped");
+      ok(l.P.undo.size(), 0);
+      if (!t) ok(a, "a: value=8, 0=0, 1=9, 2=8, 3=8");                          // Without a transaction the writes remain
+      else    ok(a, "a: value=8, 0=0, 1=1, 2=2, 3=3");                          // With a transaction they are undone
+      for (int j = 0; j < 4; j++) a.setBitsFromInt(a.element(j), j);
+     }
+
+    l.clearProgram();                                                           // A transaction that completes keeps its writes
+    l.P.transactional = true;
+    a.iWrite(7, 0);
+    l.runProgram();
+    ok(l.P.rc == null);
+    ok(a, "a: value=7, 0=7, 1=1, 2=2, 3=3");
+
+    l.clearProgram();                                                           // A run that exceeds its step bound fails and its writes are undone
+    l.P.transactional = true;
+    l.P.boundSteps    = true;
+    l.P.supressErrorMessagePrint = true;
+    i.iWrite(4);
+    a.iWrite(6);
+    final Program.For f = l.P.new For(i) {void code() {a.iWrite(loop);}};
+    f.start.loop(2);                                                            // Fewer iterations than the loop makes so the bound is too small
+    l.runProgram();
+    ok(l.P.rc, "Out of steps after: "+l.P.maxSteps);
+    ok(l.P.undo.size(), 0);
+    ok(a, "a: value=6, 0=7, 1=1, 2=2, 3=3");
+   }
+
+  protected static void test_storageOrder()                                      // Each storage order places the elements of each field in different slots of the memory of the layout but a program gets the same results from all of them
+   {final String s = """
+stucks         array  4 %s
+  stuckIsLeaf  bit
+  stuckSize    var    3
+  stuck        array  3 %s
+    stuckKeys  var    8
+    stuckData  var    8
+""";
+    final String[][]orders = {{"aos", "aos"}, {"aos", "soa"}, {"soa", "aos"}, {"soa", "soa"}, {"", ""}};
+    final Stack<String> results = new Stack<>();
+    for (String[]o : orders)
+     {final Layout l = new Layout(String.format(s, o[0], o[1]));
+      final Field e = l.locateFieldByName("stuckIsLeaf");
+      final Field z = l.locateFieldByName("stuckSize");
+      final Field k = l.locateFieldByName("stuckKeys");
+      final Field d = l.locateFieldByName("stuckData");
+      for   (int i = 0; i < 4; i++)
+       {e.iWrite(i % 2, e.address(i));
+        z.iWrite(i + 1, z.address(i));
+        for (int j = 0; j < 3; j++) k.iWrite(10 * i + j, k.address(i, j));
+        for (int j = 0; j < 3; j++) d.iMove(d.address(i, j), k, k.address(i, 2 - j));// Reverse the keys of each stuck into its data
+       }
+      l.P.runProgram();
+
+      final boolean[]used = new boolean[k.memory.length];                         // Each element of each field occupies its own slot and every slot is used
+      for (Field f : new Field[]{e, z, k, d})
+       {for (int i = 0; i < f.elements; i++)
+         {ok(!used[f.slot(i)]);
+          used[f.slot(i)] = true;
+         }
+       }
+      for (boolean u : used) ok(u);
+      results.push(""+e+"\n"+z+"\n"+k+"\n"+d);
+     }
+    for (String r : results) ok(r, results.firstElement());                     // The same results whatever the order
+    ok(results.firstElement(), """
+stuckIsLeaf: value=1, 0=0, 1=1, 2=0, 3=1
+stuckSize: value=4, 0=1, 1=2, 2=3, 3=4
+stuckKeys: value=32, 0=0, 1=1, 2=2, 3=10, 4=11, 5=12, 6=20, 7=21, 8=22, 9=30, 10=31, 11=32
+stuckData: value=0, 0=2, 1=1, 2=0, 3=12, 4=11, 5=10, 6=22, 7=21, 8=20, 9=32, 10=31, 11=30""");
+
+    final Layout aa = new Layout(String.format(s, "aos", "aos"));               // Keys and data interleaved inside each stuck
+    final Field  K  = aa.locateFieldByName("stuckKeys");
+    ok(K.base, 2); ok(K.slot(1), 4); ok(K.slot(3), 10);
+    ok(aa.bitOffset(K), 4); ok(aa.bitStride(K, 0), 52); ok(aa.bitStride(K, 1), 16);
+
+    final Layout as = new Layout(String.format(s, "aos", "soa"));               // Keys of a stuck dense, each stuck kept together
+    final Field  Ka = as.locateFieldByName("stuckKeys");
+    ok(Ka.base, 2); ok(Ka.slot(1), 3); ok(Ka.slot(3), 10);
+    ok(as.locateFieldByName("stuckData").base, 5);
+    ok(as.bitOffset(Ka), 4); ok(as.bitStride(Ka, 0), 52); ok(as.bitStride(Ka, 1), 8);
+
+    final Layout ss = new Layout(String.format(s, "soa", "soa"));               // Each field in its own dense region
+    ok(ss.locateFieldByName("stuckIsLeaf").slots == null);                      // Dense fields need no table of slots
+    ok(ss.locateFieldByName("stuckSize").base, 4);
+    final Field  Ks = ss.locateFieldByName("stuckKeys");
+    ok(Ks.base, 8); ok(Ks.slot(1), 9); ok(Ks.slot(3), 14);
+    ok(ss.javaClass("Stucks").contains("  static final int stuckKeysStride1 = 8;"));
+   }
+
+  protected static void test_javaClass()
+   {final Layout s = new Stuck(4, 8, 8).L;
+    ok(s.layoutBits(), 3 + 4 * 16);
+    final String S = s.javaClass("StuckLayout");
+    //stop(S);
+    ok(S.contains("  static final int stuckDataAt = 35;"));                     // The keys of a stuck are stored before its data
+    ok(S.contains("  static final int stuckDataStride0 = 8;"));
+    ok(S.contains("  int  getStuckData(int i0) {return get(stuckDataAt + i0 * stuckDataStride0, stuckDataWidth);} // Get stuckData"));
+
+    final Layout l = new Layout("""
+top var 5
+A array 3
+  a var 30
+  b bit
+  B array 2
+    c var 32
+    d var 7
+end var 9
+""");
+    ok(l.layoutBits(), 5 + 3 * (30 + 1 + 2 * 39) + 9);
+    ok(l.bitOffset(l.locateFieldByName("d")), 5 + 30 + 1 + 32);
+    ok(l.bitOffset(l.locateFieldByName("end")), 5 + 3 * 109);
+
+    final javax.tools.JavaCompiler j = javax.tools.ToolProvider.getSystemJavaCompiler();
+    if (j == null) return;                                                      // Running on a runtime without a compiler
+    try
+     {final java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("layout");
+      final java.nio.file.Path src = dir.resolve("Packed.java");
+      java.nio.file.Files.writeString(src, l.javaClass("Packed"));
+      ok(j.run(null, null, null, "-d", ""+dir, ""+src), 0);
+
+      try (java.net.URLClassLoader cl = new java.net.URLClassLoader(new java.net.URL[]{dir.toUri().toURL()}, null))
+       {final Class<?> c = cl.loadClass("com.AppaApps.Silicon.Packed");
+        final java.lang.reflect.Constructor<?> C = c.getDeclaredConstructor();
+        C.setAccessible(true);                                                  // The generated class is package private and in a different class loader
+        final Object o = C.newInstance();
+        final java.lang.reflect.Method[]m = c.getDeclaredMethods();
+        for (java.lang.reflect.Method M : m) M.setAccessible(true);
+        final TreeMap<String,java.lang.reflect.Method> M = new TreeMap<>();
+        for (java.lang.reflect.Method n : m) M.put(n.getName()+n.getParameterCount(), n);
+
+        final Random r = new Random(1);                                         // Write every element then read them all back to show that no element overlaps another
+        final TreeMap<String,Integer> v = new TreeMap<>();
+        final int[]w = {5, 30, 1, 32, 7, 9};
+        final String[]f = {"Top", "A", "B", "C", "D", "End"};
+        for (int k = 0; k < f.length; k++)
+         {final int d = k == 0 || k == 5 ? 0 : k < 3 ? 1 : 2;                   // Dimensions of each field
+          for   (int x = 0; x < (d > 0 ? 3 : 1); x++)
+           {for (int y = 0; y < (d > 1 ? 2 : 1); y++)
+             {final int e = w[k] == 32 ? r.nextInt() : r.nextInt(1 << w[k]);
+              final Object[]a = d == 0 ? new Object[]{e} : d == 1 ? new Object[]{x, e} : new Object[]{x, y, e};
+              M.get("set"+f[k]+(d+1)).invoke(o, a);
+              v.put(f[k]+x+y, e);
+             }
+           }
+         }
+        for (int k = 0; k < f.length; k++)
+         {final int d = k == 0 || k == 5 ? 0 : k < 3 ? 1 : 2;
+          for   (int x = 0; x < (d > 0 ? 3 : 1); x++)
+           {for (int y = 0; y < (d > 1 ? 2 : 1); y++)
+             {final Object[]a = d == 0 ? new Object[]{} : d == 1 ? new Object[]{x} : new Object[]{x, y};
+              ok(M.get("get"+f[k]+d).invoke(o, a), v.get(f[k]+x+y));
+             }
+           }
+         }
+       }
+      try (java.util.stream.Stream<java.nio.file.Path> t = java.nio.file.Files.walk(dir))// Remove the generated files
+       {t.sorted(Comparator.reverseOrder()).forEach(q -> q.toFile().delete());
+       }
+     }
+    catch(Exception e) {stop("Cannot compile generated class", e);}
+   }
+
   protected static void oldTests()                                              // Tests thought to be in good shape
    {test_parse();
     test_parse_top();
     test_vars();
     test_array();
+    test_address();
+    test_template();
+    test_snapshot();
+    test_memoryImages();
+    test_memoryReport();
+    test_trace();
+    test_rollback();
+    test_storageOrder();
+    test_javaClass();
     test_add();
     test_half();
     test_if();
@@ -1172,6 +3287,13 @@ N var 16
     test_stackProgram();
     test_move();
     test_verilog();
+    test_profile();
+    test_debug();
+    test_optimize();
+    test_stepBound();
+    test_cycles();
+    test_schedule();
+    test_verilogModule();
    }
 
   protected static void newTests()                                              // Tests being worked on
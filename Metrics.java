@@ -0,0 +1,212 @@
+//------------------------------------------------------------------------------
+// Counters and histograms describing the work done by programs
+// Philip R Brenan at appaapps dot com, Appa Apps Ltd Inc., 2025
+//------------------------------------------------------------------------------
+package com.AppaApps.Silicon;                                                   // Btree in a block on the surface of a silicon chip.
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import javax.management.*;
+
+class Metrics extends Test implements DynamicMBean                              // Named counters and histograms that can be read with snapshot() or through JMX
+ {final TreeMap<String,Long>      counters   = new TreeMap<>();                 // Counters by name
+  final TreeMap<String,Histogram> histograms = new TreeMap<>();                 // Histograms by name
+
+//D1 Histogram                                                                  // Distribution of values in power of two buckets
+
+  static class Histogram                                                        // A histogram with power of two buckets: bucket zero counts zeroes, bucket i counts values from 2**(i-1) up to but not including 2**i
+   {final long[]buckets = new long[Long.SIZE];                                  // Count of values in each bucket
+    long count;                                                                 // Number of values recorded
+    long sum;                                                                   // Sum of the values recorded
+    long max;                                                                   // Largest value recorded
+
+    static int bucket(long value)                                               // Bucket containing a value
+     {return value <= 0 ? 0 : Long.SIZE - Long.numberOfLeadingZeros(value);
+     }
+
+    void add(long value)                                                        // Record a value
+     {buckets[bucket(value)]++;
+      count++;
+      sum += value;
+      if (value > max) max = value;
+     }
+   }
+
+//D1 Recording                                                                  // Record events and values
+
+  synchronized void count(String name)                                          // Increment the named counter
+   {counters.merge(name, 1L, Long::sum);
+   }
+
+  synchronized long counter(String name)                                        // Current value of the named counter
+   {final Long c = counters.get(name);
+    return c == null ? 0 : c;
+   }
+
+  synchronized void record(String name, long value)                             // Add a value to the named histogram
+   {Histogram h = histograms.get(name);
+    if (h == null) histograms.put(name, h = new Histogram());
+    h.add(value);
+   }
+
+  synchronized void reset()                                                     // Clear all the counters and histograms
+   {counters.clear();
+    histograms.clear();
+   }
+
+  synchronized TreeMap<String,Long> snapshot()                                  // A copy of the counters and a summary of each histogram: its count, sum, maximum and the number of values below each power of two
+   {final TreeMap<String,Long> s = new TreeMap<>(counters);
+    for (String n : histograms.keySet())
+     {final Histogram h = histograms.get(n);
+      s.put(n+".count", h.count);
+      s.put(n+".sum",   h.sum);
+      s.put(n+".max",   h.max);
+      for (int i = 0; i < h.buckets.length; i++)
+       {if (h.buckets[i] > 0) s.put(n+".below."+(1L << i), h.buckets[i]);
+       }
+     }
+    return s;
+   }
+
+  public String toString()                                                      // Print the snapshot one item per line
+   {final StringBuilder s = new StringBuilder();
+    final TreeMap<String,Long> m = snapshot();
+    for (String n : m.keySet()) s.append(String.format("%-40s %12d\n", n, m.get(n)));
+    return ""+s;
+   }
+
+//D1 JMX                                                                        // Expose the snapshot as the attributes of an MBean
+
+  ObjectName register(String Name)                                              // Register these metrics with the platform MBean server under the specified name
+   {try
+     {final ObjectName n = new ObjectName("com.AppaApps.Silicon:type=Metrics,name="+Name);
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, n);
+      return n;
+     }
+    catch(Exception e) {stop("Cannot register metrics:", Name, e);}
+    return null;
+   }
+
+  static void unregister(ObjectName Name)                                       // Remove registered metrics from the platform MBean server
+   {try
+     {ManagementFactory.getPlatformMBeanServer().unregisterMBean(Name);
+     }
+    catch(Exception e) {stop("Cannot unregister metrics:", Name, e);}
+   }
+
+  public Object getAttribute(String Attribute)                                  // The value of one item in the snapshot
+    throws AttributeNotFoundException
+   {final Long v = snapshot().get(Attribute);
+    if (v == null) throw new AttributeNotFoundException(Attribute);
+    return v;
+   }
+
+  public AttributeList getAttributes(String[]Attributes)                        // The values of several items in the snapshot
+   {final TreeMap<String,Long> s = snapshot();
+    final AttributeList a = new AttributeList();
+    for (String n : Attributes) if (s.containsKey(n)) a.add(new Attribute(n, s.get(n)));
+    return a;
+   }
+
+  public void setAttribute(Attribute Attribute)                                 // The metrics are read only
+    throws AttributeNotFoundException
+   {throw new AttributeNotFoundException("Read only: "+Attribute.getName());
+   }
+
+  public AttributeList setAttributes(AttributeList Attributes)                  // The metrics are read only
+   {return new AttributeList();
+   }
+
+  public Object invoke(String Action, Object[]Params, String[]Signature)        // The only operation is reset
+    throws ReflectionException
+   {if (!Action.equals("reset"))
+     {throw new ReflectionException(new NoSuchMethodException(Action));
+     }
+    reset();
+    return null;
+   }
+
+  public MBeanInfo getMBeanInfo()                                               // Describe each item in the snapshot as a read only long attribute
+   {final TreeMap<String,Long> s = snapshot();
+    final MBeanAttributeInfo[]a = new MBeanAttributeInfo[s.size()];
+    int i = 0;
+    for (String n : s.keySet())
+     {a[i++] = new MBeanAttributeInfo(n, "java.lang.Long", n, true, false, false);
+     }
+    final MBeanOperationInfo[]o = {new MBeanOperationInfo("reset",
+      "Clear all the counters and histograms", new MBeanParameterInfo[0],
+      "void", MBeanOperationInfo.ACTION)};
+    return new MBeanInfo(getClass().getName(), "Counters and histograms",
+      a, null, o, null);
+   }
+
+//D1 Tests                                                                      // Test the metrics
+
+  static void test_histogram()
+   {ok(Histogram.bucket(0), 0);
+    ok(Histogram.bucket(1), 1);
+    ok(Histogram.bucket(2), 2);
+    ok(Histogram.bucket(3), 2);
+    ok(Histogram.bucket(4), 3);
+
+    final Metrics m = new Metrics();
+    for (int i = 0; i < 8; i++) m.record("steps", i);
+    m.count("a"); m.count("a"); m.count("b");
+    ok(m.counter("a"), 2);
+    ok(m.counter("c"), 0);
+    //stop(m);
+    ok(m, """
+a                                                   2
+b                                                   1
+steps.below.1                                       1
+steps.below.2                                       1
+steps.below.4                                       2
+steps.below.8                                       4
+steps.count                                         8
+steps.max                                           7
+steps.sum                                          28
+""");
+    m.reset();
+    ok(m.snapshot().size(), 0);
+   }
+
+  static void test_jmx()
+   {final Metrics m = new Metrics();
+    m.count("put");
+    m.record("put.steps", 100);
+    final ObjectName   n = m.register("test");
+    final MBeanServer  s = ManagementFactory.getPlatformMBeanServer();
+    try
+     {ok(s.getAttribute(n, "put"),           1L);
+      ok(s.getAttribute(n, "put.steps.max"), 100L);
+      ok(s.getMBeanInfo(n).getAttributes().length, 5);
+      s.invoke(n, "reset", null, null);
+     }
+    catch(Exception e) {stop("JMX failed:", e);}
+    ok(m.counter("put"), 0);
+    unregister(n);
+    ok(s.isRegistered(n), false);
+   }
+
+  static void oldTests()                                                        // Tests thought to be in good shape
+   {test_histogram();
+    test_jmx();
+   }
+
+  static void newTests()                                                        // Tests being worked on
+   {oldTests();
+   }
+
+  public static void main(String[] args)                                        // Test if called as a program
+   {try                                                                         // Get a traceback in a format clickable in Geany if something goes wrong to speed up debugging.
+     {if (github_actions) oldTests(); else newTests();                          // Tests to run
+      testSummary();                                                            // Summarize test results
+      System.exit(testsFailed);
+     }
+    catch(Exception e)                                                          // Get a traceback in a format clickable in Geany
+     {System.err.println(e);
+      System.err.println(fullTraceBack(e));
+      System.exit(1);
+     }
+   }
+ }
@@ -22,15 +22,16 @@ class Stuck extends Test
     bitsPerKey   = BitsPerKey;                                                  // The number of bits needed to define a key
     bitsPerData  = BitsPerData;                                                 // The number of bits needed to define a data field
     L            = layout();
+    L.registers  = true;                                                        // A stuck is manipulated in registers
     stuckSize    = L.locateFieldByName("stuckSize");                            // Current size of stuck up to the maximum size
     stuckKeys    = L.locateFieldByName("stuckKeys");                            // Keys field
     stuckData    = L.locateFieldByName("stuckData");                            // Data field
    }
 
   Layout layout()                                                               // Layout describing stuck, Having the keys ordered sequqntiall makes it easy to compare them in parallel and find the first key greater than or equal to a search key, this being the most common operation.
-   {return new Layout(String.format("""
+   {return Layout.template(String.format("""
 stuckSize    var    %d
-Stuck        array  %d
+Stuck        array  %d soa
   stuckKeys  var    %d
   stuckData  var    %d
 """, logTwo(maxStuckSize)+1, maxStuckSize, bitsPerKey, bitsPerData));
@@ -81,6 +82,8 @@ Stuck        array  %d
   Layout.Field data()   {return variable("data",       bitsPerData);}           // A field capable of holding a data value
   Layout.Field fullButOne() {return variable("fullButOne", 1);}                 // Whether the stuck is full except for one
 
+  Layout.Field[]fields() {return new Layout.Field[]{stuckSize, stuckKeys, stuckData};} // The fields holding the stuck which its composite instructions read and write
+
   Layout.Field key(int Value)
    {final Layout.Field k = key();
     k.value = Value;
@@ -90,42 +93,105 @@ Stuck        array  %d
   void runProgram  () {L.runProgram();}                                         // Runb the program
   void clearProgram() {L.clearProgram();}                                       // Clear the current program
 
+//D1 Verilog                                                                    // Lower the actions on a stuck to Verilog in which all the elements of the stuck are processed in parallel
+
+  String sizeV() {return stuckSize.vValue();}                                   // Size of the stuck in Verilog
+
+  String guardV(String Fail, String Code)                                       // Stop the program if the failure condition holds else execute the code
+   {return "if ("+Fail+") begin "+L.P.stopV()+" end else begin "+Code+" end";
+   }
+
+  String successV(String Fail, String Code, Layout.Field Success)               // Clear success if the failure condition holds else execute the code and set success
+   {return "if ("+Fail+") "+Success.vValue()+" = 0; else begin "+Code+" "+Success.vValue()+" = 1; end";
+   }
+
+  String getV(String Index)                                                     // Load the key, data pair at the specified index
+   {return stuckKeys.vValue()+" = "+stuckKeys.vMemory(Index)+"; "+
+           stuckData.vValue()+" = "+stuckData.vMemory(Index)+";";
+   }
+
+  String setV(String Index)                                                     // Store the key, data pair at the specified index
+   {return stuckKeys.vMemory(Index)+" = "+stuckKeys.vValue()+"; "+
+           stuckData.vMemory(Index)+" = "+stuckData.vValue()+";";
+   }
+
+  static String copyV(Stuck Target, String T, Stuck Source, String S)           // Copy the indexed key, data pair from one stuck to another
+   {return Target.stuckKeys.vMemory(T)+" = "+Source.stuckKeys.vMemory(S)+"; "+
+           Target.stuckData.vMemory(T)+" = "+Source.stuckData.vMemory(S)+";";
+   }
+
+  static String dataV(Stuck Target, int T, Stuck Source, int S)                 // Copy the indexed data element from one stuck to another
+   {return Target.stuckData.vMemory(""+T)+" = "+Source.stuckData.vMemory(""+S)+";";
+   }
+
+  String oneV(int Index, Layout.Field One)                                      // Load the indexed key and place it in "one"
+   {return stuckKeys.vValue()+" = "+stuckKeys.vMemory(""+Index)+"; "+One.vValue()+" = "+stuckKeys.vValue()+";";
+   }
+
+  String extendV(Layout.Field Index)                                            // Extend the stuck if the index is just past its end
+   {return "if ("+Index.vValue()+" == "+sizeV()+") "+stuckSize.incV();
+   }
+
+  String searchV(Layout.Field Found, Layout.Field Index, String Compare)        // Compare the search key with every valid key in parallel: the chain of conditions runs from the highest index to the lowest so that the lowest matching index wins
+   {final StringBuilder s = new StringBuilder(Found.vValue()+" = 0;");
+    for (int i = maxStuckSize-1; i >= 0; --i)
+     {s.append(" if ("+i+" < "+sizeV()+" && "+stuckKeys.vValue()+" "+Compare+" "+stuckKeys.vMemory(""+i)+") begin "+
+        Found.vValue()+" = 1; "+Index.vValue()+" = "+i+"; end");
+     }
+    return ""+s;
+   }
+
 //D1 Attributes                                                                 // Answers to questions about the stuck
 
   void isEmpty(Layout.Field empty)                                              // Whether the stuck is empty
    {empty.value = !stuckSize.asBoolean() ? 1 : 0;
    }
 
+  String isEmptyV(Layout.Field empty)                                           // Whether the stuck is empty in Verilog
+   {return empty.vValue()+" = "+sizeV()+" == 0;";
+   }
+
   void iIsEmpty(Layout.Field empty)                                             // Whether the stuck is empty
    {L.P.new Instruction()
      {void action()
        {isEmpty(empty);
        }
-     };
+      String verilog() {return isEmptyV(empty);}
+     }.reads(fields()).writes(empty);
    }
 
   void isFull(Layout.Field full)                                                // Whether the stuck is full
    {full.value = stuckSize.value >= maxStuckSize ? 1 : 0;
    }
 
+  String isFullV(Layout.Field full)                                             // Whether the stuck is full in Verilog
+   {return full.vValue()+" = "+sizeV()+" >= "+maxStuckSize+";";
+   }
+
   void iIsFull(Layout.Field full)                                               // Whether the stuck is full
    {L.P.new Instruction()
      {void action()
        {isFull(full);
        }
-     };
+      String verilog() {return isFullV(full);}
+     }.reads(fields()).writes(full);
    }
 
   void isFullButOne(Layout.Field fullButOne)                                    // Whether the stuck is full except for one
    {fullButOne.value = stuckSize.value >= maxStuckSize - 1 ? 1 : 0;
    }
 
+  String isFullButOneV(Layout.Field fullButOne)                                 // Whether the stuck is full except for one in Verilog
+   {return fullButOne.vValue()+" = "+sizeV()+" >= "+(maxStuckSize-1)+";";
+   }
+
   void iIsFullButOne(Layout.Field fullButOne)                                   // Whether the stuck is full except for one
    {L.P.new Instruction()
      {void action()
        {isFullButOne(fullButOne);
        }
-     };
+      String verilog() {return isFullButOneV(fullButOne);}
+     }.reads(fields()).writes(fullButOne);
    }
 
 //D1 Print                                                                      // Print  the stcuk
@@ -147,12 +213,15 @@ Stuck        array  %d
 
   void clear() {stuckSize.zero();}                                              // Clear the stuck by making it appear empty
 
+  String clearV() {return sizeV()+" = 0;";}                                     // Clear the stuck in Verilog
+
   void iClear()                                                                 // Clear the stuck by making it appear empty
    {L.P.new Instruction()
      {void action()
        {clear();
        }
-     };
+      String verilog() {return clearV();}
+     }.reads().writes(stuckSize);
    }
 
   void push()                                                                   // Push a new key, data pair on the stack
@@ -165,10 +234,15 @@ Stuck        array  %d
     stuckSize.inc();
    }
 
+  String pushV()                                                                // Push a new key, data pair on the stack in Verilog
+   {return guardV(sizeV()+" >= "+maxStuckSize, setV(sizeV())+" "+stuckSize.incV());
+   }
+
   void iPush()                                                                  // Push a new key, data pair on the stack
    {L.P.new Instruction()
      {void action() {push();}
-     };
+      String verilog() {return pushV();}
+     }.uses(fields());
    }
 
   void pop()                                                                    // Pop a key, data pair from the stack
@@ -181,12 +255,17 @@ Stuck        array  %d
     stuckData.read(stuckSize);
    }
 
+  String popV()                                                                 // Pop a key, data pair from the stack in Verilog
+   {return guardV(sizeV()+" == 0", stuckSize.decV()+" "+getV(sizeV()));
+   }
+
   void iPop()                                                                   // Pop a key, data pair from the stack
    {L.P.new Instruction()
      {void action()
        {pop();
        }
-     };
+      String verilog() {return popV();}
+     }.uses(fields());
    }
 
   void unshift()                                                                // Unshift a key, data pair into the stack after moving all the existing elements up one
@@ -205,7 +284,14 @@ Stuck        array  %d
         stuckData.move(0, stuckData);
         stuckSize.inc();
        }
-     };
+      String verilog() {return unshiftV();}
+     }.uses(fields());
+   }
+
+  String unshiftV()                                                             // Unshift a key, data pair into the stack in Verilog
+   {final StringBuilder s = new StringBuilder();
+    for (int i = maxStuckSize-1; i > 0; --i) s.append(copyV(this, ""+i, this, ""+(i-1))+" ");
+    return guardV(sizeV()+" >= "+maxStuckSize, s+setV("0")+" "+stuckSize.incV());
    }
 
   void shift()                                                                  // Shift a key, data pair from the stack after moving all the existing elements up one
@@ -225,7 +311,16 @@ Stuck        array  %d
          }
         stuckSize.dec();
        }
-     };
+      String verilog() {return shiftV();}
+     }.uses(fields());
+   }
+
+  String shiftV()                                                               // Shift a key, data pair from the stack in Verilog
+   {final StringBuilder s = new StringBuilder(getV("0"));
+    for (int i = 1; i < maxStuckSize; ++i)
+     {s.append(" if ("+i+" < "+sizeV()+") begin "+copyV(this, ""+(i-1), this, ""+i)+" end");
+     }
+    return guardV(sizeV()+" == 0", s+" "+stuckSize.decV());
    }
 
   void firstElement()                                                           // Get the first key, data pair
@@ -238,12 +333,17 @@ Stuck        array  %d
     stuckData.read(0);
    }
 
+  String firstElementV()                                                        // Get the first key, data pair in Verilog
+   {return guardV(sizeV()+" == 0", getV("0"));
+   }
+
   void iFirstElement()                                                          // Get the first key, data pair
    {L.P.new Instruction()
      {void action()
        {firstElement();
        }
-     };
+      String verilog() {return firstElementV();}
+     }.uses(fields());
    }
 
   void lastElement()                                                            // Get the last key, data pair
@@ -256,12 +356,17 @@ Stuck        array  %d
     stuckData.read(stuckSize.value-1);
    }
 
+  String lastElementV()                                                         // Get the last key, data pair in Verilog
+   {return guardV(sizeV()+" == 0", getV(sizeV()+" - 1"));
+   }
+
   void iLastElement()                                                           // Get the last key, data pair
    {L.P.new Instruction()
      {void action()
        {lastElement();
        }
-     };
+      String verilog() {return lastElementV();}
+     }.uses(fields());
    }
 
   void pastLastElement()                                                        // Get the key, data pair beyond the last valid element
@@ -274,12 +379,17 @@ Stuck        array  %d
     stuckData.read(stuckSize.value);
    }
 
+  String pastLastElementV()                                                     // Get the key, data pair beyond the last valid element in Verilog
+   {return guardV(sizeV()+" > "+(maxStuckSize-1), getV(sizeV()));
+   }
+
   void iPastLastElement()                                                       // Get the key, data pair beyond the last valid element
    {L.P.new Instruction()
      {void action()
        {pastLastElement();
        }
-     };
+      String verilog() {return pastLastElementV();}
+     }.uses(fields());
    }
 
   void elementAt(Layout.Field index)                                           // Get the key, data pair at the specified index
@@ -292,12 +402,17 @@ Stuck        array  %d
     stuckData.read(index.value);
    }
 
+  String elementAtV(Layout.Field Index)                                         // Get the key, data pair at the specified index in Verilog
+   {return guardV(Index.vValue()+" >= "+sizeV(), getV(Index.vValue()));
+   }
+
   void iElementAt(Layout.Field Index)                                           // Get the key, data pair at the specified index
    {L.P.new Instruction()
      {void action()
        {elementAt(Index);
        }
-     };
+      String verilog() {return elementAtV(Index);}
+     }.reads(Index).uses(fields());
    }
 
   void setElementAt(Layout.Field index)                                         // Set the key, data pair at the specified index
@@ -310,12 +425,17 @@ Stuck        array  %d
     stuckData.write(index);
    }
 
+  String setElementAtV(Layout.Field Index)                                      // Set the key, data pair at the specified index in Verilog
+   {return guardV(Index.vValue()+" > "+sizeV(), extendV(Index)+" "+setV(Index.vValue()));
+   }
+
   void iSetElementAt(Layout.Field Index)                                        // Set the key, data pair at the specified index
    {L.P.new Instruction()
      {void action()
        {setElementAt(Index);
        }
-     };
+      String verilog() {return setElementAtV(Index);}
+     }.reads(Index).uses(fields());
    }
 
   void setKeyAt(Layout.Field index)                                             // Set the key at the specified index
@@ -328,7 +448,12 @@ Stuck        array  %d
         if (index.value == stuckSize.value) stuckSize.inc();                    // Extending the stuck
         stuckKeys.write(index);
        }
-     };
+      String verilog() {return setKeyAtV(index);}
+     }.reads(index).uses(fields());
+   }
+
+  String setKeyAtV(Layout.Field Index)                                          // Set the key at the specified index in Verilog
+   {return guardV(Index.vValue()+" > "+sizeV(), extendV(Index)+" "+stuckKeys.vMemory(Index.vValue())+" = "+stuckKeys.vValue()+";");
    }
 
   void setDataAt(Layout.Field index)                                            // Set the data element at the specified index
@@ -340,12 +465,17 @@ Stuck        array  %d
     stuckData.write(index);
    }
 
+  String setDataAtV(Layout.Field Index)                                         // Set the data element at the specified index in Verilog
+   {return guardV(Index.vValue()+" > "+sizeV(), extendV(Index)+" "+stuckData.vMemory(Index.vValue())+" = "+stuckData.vValue()+";");
+   }
+
   void iSetDataAt(Layout.Field index)                                           // Set the data element at the specified index
    {L.P.new Instruction()
      {void action()
        {setDataAt(index);
        }
-     };
+      String verilog() {return setDataAtV(index);}
+     }.reads(index).uses(fields());
    }
 
   void setFirstElement()                                                        // Set the first key, data pair
@@ -359,7 +489,12 @@ Stuck        array  %d
         stuckData.move(0, stuckData);
         if (stuckSize.value == 0) stuckSize.inc();
        }
-     };
+      String verilog() {return setFirstElementV();}
+     }.uses(fields());
+   }
+
+  String setFirstElementV()                                                     // Set the first key, data pair in Verilog
+   {return guardV(sizeV()+" == 0", setV("0"));
    }
 
   void setLastElement()                                                         // Set the last key, data pair
@@ -373,7 +508,12 @@ Stuck        array  %d
         stuckData.move(stuckSize.value-1, stuckData);
         if (stuckSize.value == 0) stuckSize.inc();
        }
-     };
+      String verilog() {return setLastElementV();}
+     }.uses(fields());
+   }
+
+  String setLastElementV()                                                      // Set the last key, data pair in Verilog
+   {return guardV(sizeV()+" == 0", setV(sizeV()+" - 1"));
    }
 
   void setPastLastElement()                                                     // Set the key, data pair beyond the last valid element
@@ -386,12 +526,17 @@ Stuck        array  %d
     stuckData.move(stuckSize.value, stuckData);
    }
 
+  String setPastLastElementV()                                                  // Set the key, data pair beyond the last valid element in Verilog
+   {return guardV(sizeV()+" >= "+maxStuckSize, setV(sizeV()));
+   }
+
   void iSetPastLastElement()                                                    // Set the key, data pair beyond the last valid element
    {L.P.new Instruction()
      {void action()
        {setPastLastElement();
        }
-     };
+      String verilog() {return setPastLastElementV();}
+     }.uses(fields());
    }
 
   void setPastLastKey()                                                         // Set the key beyond the last valid element
@@ -403,7 +548,12 @@ Stuck        array  %d
          }
         stuckKeys.move(stuckSize.value, stuckKeys);
        }
-     };
+      String verilog() {return setPastLastKeyV();}
+     }.uses(fields());
+   }
+
+  String setPastLastKeyV()                                                      // Set the key beyond the last valid element in Verilog
+   {return guardV(sizeV()+" >= "+maxStuckSize, stuckKeys.vMemory(sizeV())+" = "+stuckKeys.vValue()+";");
    }
 
   void setPastLastData()                                                        // Set the data element beyond the last valid element
@@ -414,12 +564,17 @@ Stuck        array  %d
     stuckData.move(stuckSize.value, stuckData);
    }
 
+  String setPastLastDataV()                                                     // Set the data element beyond the last valid element in Verilog
+   {return guardV(sizeV()+" >= "+maxStuckSize, stuckData.vMemory(sizeV())+" = "+stuckData.vValue()+";");
+   }
+
   void iSetPastLastData()                                                        // Set the data element beyond the last valid element
    {L.P.new Instruction()
      {void action()
        {setPastLastData();
        }
-     };
+      String verilog() {return setPastLastDataV();}
+     }.uses(fields());
    }
 
   void insertElementAt(Layout.Field Index)                                      // Insert a key, data pair at the specified index moving the elements above this position up one place to make room
@@ -438,12 +593,21 @@ Stuck        array  %d
     stuckSize.inc();
    }
 
+  String insertElementAtV(Layout.Field Index)                                   // Insert a key, data pair at the specified index in Verilog by moving each element above the index up one place in parallel
+   {final StringBuilder s = new StringBuilder();
+    for (int i = maxStuckSize-1; i > 0; --i)
+     {s.append("if ("+i+" > "+Index.vValue()+") begin "+copyV(this, ""+i, this, ""+(i-1))+" end ");
+     }
+    return guardV(sizeV()+" >= "+maxStuckSize, s+setV(Index.vValue())+" "+stuckSize.incV());
+   }
+
   void iInsertElementAt(Layout.Field Index)                                     // Insert a key, data pair at the specified index moving the elements above this position up one place to make room
    {L.P.new Instruction()
      {void action()
        {insertElementAt(Index);
        }
-     };
+      String verilog() {return insertElementAtV(Index);}
+     }.reads(Index).uses(fields());
    }
 
   void removeElementAt(Layout.Field Index)                                      // Get the value of the indexed key, data pair at the specified index moving the elements above down into this position
@@ -466,12 +630,21 @@ Stuck        array  %d
     stuckSize.dec();
    }
 
+  String removeElementAtV(Layout.Field Index)                                   // Remove the key, data pair at the specified index in Verilog by moving each element above the index down one place in parallel
+   {final StringBuilder s = new StringBuilder(getV(Index.vValue()));
+    for (int i = 0; i < maxStuckSize-1; ++i)
+     {s.append(" if ("+i+" >= "+Index.vValue()+") begin "+copyV(this, ""+i, this, ""+(i+1))+" end");
+     }
+    return guardV(sizeV()+" == 0 || "+Index.vValue()+" >= "+sizeV(), s+" "+stuckSize.decV());
+   }
+
   void iRemoveElementAt(Layout.Field Index)                                     // Get the value of the indexed key, data pair at the specified index moving the elements above down into this position
    {L.P.new Instruction()
      {void action()
        {removeElementAt(Index);
        }
-     };
+      String verilog() {return removeElementAtV(Index);}
+     }.reads(Index).uses(fields());
    }
 
 //D2 Search                                                                     // Search for a matching key in the stuck
@@ -483,18 +656,25 @@ Stuck        array  %d
       if (K == stuckKeys.value)                                                 // Search key versus current key
        {Found.value = 1; Index.value = i;
         stuckData.read(i);
+        L.P.compared(i+1);
         return;
        }
      }
+    L.P.compared(stuckSize.value);
     Found.write(0);
    }
 
+  String search_eqV(Layout.Field Found, Layout.Field Index)                     // Search for an equal key in Verilog by comparing all the keys in parallel
+   {return searchV(Found, Index, "==")+" if ("+Found.vValue()+") "+stuckData.vValue()+" = "+stuckData.vMemory(Index.vValue())+";";
+   }
+
   void iSearch_eq(Layout.Field Found, Layout.Field Index)                       // Search for an equal key.
    {L.P.new Instruction()
      {void action()
        {search_eq(Found, Index);
        }
-     };
+      String verilog() {return search_eqV(Found, Index);}
+     }.uses(fields()).writes(Found, Index);
    }
 
   void search_le(Layout.Field Found, Layout.Field Index)                        // Search for the first key in the stuck less than or equal to the search key. The last key is not included in the search.  If a match is not found the last data element is returned itherwise the data element of the matching key
@@ -511,20 +691,28 @@ Stuck        array  %d
        {Found.value = 1; Index.value = i;
         stuckKeys.read(i);
         stuckData.read(i);
+        L.P.compared(i+1);
         return;
        }
      }
+    L.P.compared(stuckSize.value);
     Found.value = 0;
     stuckKeys.read(stuckSize.value);
     stuckData.read(stuckSize.value);
    }
 
+  String search_leV(Layout.Field Found, Layout.Field Index)                     // Search for the first key less than or equal to the search key in Verilog by comparing all the keys in parallel
+   {return guardV(sizeV()+" >= "+maxStuckSize, searchV(Found, Index, "<=")+
+      " if ("+Found.vValue()+") begin "+getV(Index.vValue())+" end else begin "+getV(sizeV())+" end");
+   }
+
   void iSearch_le(Layout.Field Found, Layout.Field Index)                       // Search for the first key in the stuck less than or equal to the search key. The last key is not included in the search.  If a match is not found the last data element is returned itherwise the data element of the matching key
    {L.P.new Instruction()
      {void action()
        {search_le(Found, Index);
        }
-     };
+      String verilog() {return search_leV(Found, Index);}
+     }.uses(fields()).writes(Found, Index);
    }
 
 // Split                                                                        // Split a stuck in various ways
@@ -556,12 +744,25 @@ Stuck        array  %d
     Right.stuckSize.value = stuckSize.value - Copy;                             // New size of right
    }
 
+  String splitIntoTwoV(Stuck Left, Stuck Right, int Copy)                       // Copy the first key, data pairs into the left stuck, the remainder into the right stuck in Verilog
+   {if (Left.maxStuckSize < Copy) return L.P.stopV();
+    final StringBuilder s = new StringBuilder();
+    for (int i = 0; i < Copy; ++i) s.append(copyV(Left, ""+i, this, ""+i)+" ");
+    s.append(Left.sizeV()+" = "+Copy+";");
+    for (int i = 0; i < min(maxStuckSize - Copy, Right.maxStuckSize); ++i)
+     {s.append(" if ("+(Copy+i)+" < "+sizeV()+") begin "+copyV(Right, ""+i, this, ""+(Copy+i))+" end");
+     }
+    s.append(" "+Right.sizeV()+" = "+sizeV()+" - "+Copy+";");
+    return guardV(Copy+" > "+sizeV()+" || "+sizeV()+" > "+(Right.maxStuckSize+Copy), ""+s);
+   }
+
   void iSplitIntoTwo(Stuck Left, Stuck Right, int Copy)                         // Copy the first key, data pairs into the left stuck, the remainder into the right stuck.  The original source stuck is not modifiedr
    {L.P.new Instruction()
      {void action()
        {splitIntoTwo(Left, Right, Copy);
        }
-     };
+      String verilog() {return splitIntoTwoV(Left, Right, Copy);}
+     }.uses(fields()).writes(Left.fields()).writes(Right.fields());
    }
 
   void splitIntoThree(Stuck Left, Stuck Right, int Copy)                        // Copy the specified number of key, data pairs into the left stuck, skip one pair, then copy the specified number onto into the right stuck
@@ -593,12 +794,23 @@ Stuck        array  %d
     Right.stuckData.move(Copy, stuckData, 2*Copy+1);
    }
 
+  String splitIntoThreeV(Stuck Left, Stuck Right, int Copy)                     // Copy the specified number of key, data pairs into the left stuck, skip one pair, then copy the specified number onto into the right stuck in Verilog
+   {if (Left.maxStuckSize < Copy || Right.maxStuckSize < Copy) return L.P.stopV();
+    final StringBuilder s = new StringBuilder();
+    for (int i = 0; i < Copy; ++i) s.append(copyV(Left, ""+i, this, ""+i)+" ");
+    s.append(Left.sizeV()+" = "+Copy+"; "+dataV(Left, Copy, this, Copy));
+    for (int i = 0; i < Copy; ++i) s.append(" "+copyV(Right, ""+i, this, ""+(Copy+i+1)));
+    s.append(" "+Right.sizeV()+" = "+Copy+"; "+dataV(Right, Copy, this, 2*Copy+1));
+    return guardV(Copy+" >= "+sizeV(), ""+s);
+   }
+
   void iSplitIntoThree(Stuck Left, Stuck Right, int Copy)                       // Copy the specified number of key, data pairs into the left stuck, skip one pair, then copy the specified number onto into the right stuck
    {L.P.new Instruction()
      {void action()
        {splitIntoThree(Left, Right, Copy);
        }
-     };
+      String verilog() {return splitIntoThreeV(Left, Right, Copy);}
+     }.uses(fields()).writes(Left.fields()).writes(Right.fields());
    }
 
   void splitLow(Stuck Left, int Copy)                                           // Copy the specified number of key, data pairs into the left stuck then move the remainder down
@@ -617,11 +829,24 @@ Stuck        array  %d
      }
     Left.stuckSize.value = Copy;                                                // New size of left
 
-    for (int i = 0; i < Copy; ++i)                                              // Move down right
+    final int N = stuckSize.value - Copy;                                       // Number of elements remaining in the right stuck
+    for (int i = 0; i < N; ++i)                                                 // Move down right
      {stuckKeys.move(i, stuckKeys, Copy + i);
       stuckData.move(i, stuckData, Copy + i);
      }
-    stuckSize.value = Copy;                                                     // New size of right
+    stuckSize.value = N;                                                        // New size of right
+   }
+
+  String splitLowV(Stuck Left, int Copy)                                        // Copy the specified number of key, data pairs into the left stuck then move the remainder down in Verilog
+   {if (Left.maxStuckSize < Copy) return L.P.stopV();
+    final StringBuilder s = new StringBuilder();
+    for (int i = 0; i < Copy; ++i) s.append(copyV(Left, ""+i, this, ""+i)+" ");
+    s.append(Left.sizeV()+" = "+Copy+";");
+    for (int i = 0; i < maxStuckSize - Copy; ++i)
+     {s.append(" if ("+(Copy+i)+" < "+sizeV()+") begin "+copyV(this, ""+i, this, ""+(Copy+i))+" end");
+     }
+    s.append(" "+sizeV()+" = "+sizeV()+" - "+Copy+";");
+    return guardV(Copy+" >= "+sizeV(), ""+s);
    }
 
   void iSplitLow(Stuck Left, int Copy)                                          // Copy the specified number of key, data pairs into the left stuck then move the remainder down
@@ -629,7 +854,8 @@ Stuck        array  %d
      {void action()
        {splitLow(Left, Copy);
        }
-     };
+      String verilog() {return splitLowV(Left, Copy);}
+     }.uses(fields()).writes(Left.fields());
    }
 
   void splitLowButOne(Stuck Left, int Copy, Layout.Field One)                   // Copy the specified number of key, data pairs into the left stuck then place the key in "one", key then move the remainder down
@@ -659,12 +885,24 @@ Stuck        array  %d
     stuckSize.value = Copy;                                                     // New size of right
    }
 
+  String splitLowButOneV(Stuck Left, int Copy, Layout.Field One)                // Copy the specified number of key, data pairs into the left stuck then place the key in "one", key then move the remainder down in Verilog
+   {if (Left.maxStuckSize < Copy) return L.P.stopV();
+    final StringBuilder s = new StringBuilder();
+    for (int i = 0; i < Copy; ++i) s.append(copyV(Left, ""+i, this, ""+i)+" ");
+    s.append(dataV(Left, Copy, this, Copy)+" "+Left.sizeV()+" = "+Copy+"; ");
+    s.append(oneV(Copy, One));
+    for (int i = 0; i < Copy; ++i) s.append(" "+copyV(this, ""+i, this, ""+(Copy+i+1)));
+    s.append(" "+dataV(this, Copy, this, 2*Copy+1)+" "+sizeV()+" = "+Copy+";");
+    return guardV(Copy+" >= "+sizeV(), ""+s);
+   }
+
   void iSplitLowButOne(Stuck Left, int Copy, Layout.Field One)                  // Copy the specified number of key, data pairs into the left stuck then place the key in "one", key then move the remainder down
    {L.P.new Instruction()
      {void action()
        {splitLowButOne(Left, Copy, One);                                         // Copy the specified number of key, data pairs into the left stuck then place the key in "one", key then move the remainder down
        }
-     };
+      String verilog() {return splitLowButOneV(Left, Copy, One);}
+     }.uses(fields()).writes(Left.fields()).writes(One);
    }
 
   void splitHigh(Stuck Right, int Copy)                                         // Leave the specified number of key, data pairs in the left stuck, then copy the specified number of following key, data pairs onto into the right stuck
@@ -686,12 +924,21 @@ Stuck        array  %d
     Right.stuckSize.value = Copy;                                               // New size of right
    }
 
+  String splitHighV(Stuck Right, int Copy)                                      // Leave the specified number of key, data pairs in the left stuck, then copy the specified number of following key, data pairs onto into the right stuck in Verilog
+   {if (Right.maxStuckSize < Copy) return L.P.stopV();
+    final StringBuilder s = new StringBuilder(sizeV()+" = "+Copy+";");
+    for (int i = 0; i < Copy; ++i) s.append(" "+copyV(Right, ""+i, this, ""+(Copy+i)));
+    s.append(" "+Right.sizeV()+" = "+Copy+";");
+    return guardV(Copy+" >= "+sizeV(), ""+s);
+   }
+
   void iSplitHigh(Stuck Right, int Copy)                                        // Leave the specified number of key, data pairs in the left stuck, then copy the specified number of following key, data pairs onto into the right stuck
    {L.P.new Instruction()
      {void action()
        {splitHigh(Right, Copy);
        }
-     };
+      String verilog() {return splitHighV(Right, Copy);}
+     }.uses(fields()).writes(Right.fields());
    }
 
   void splitHighButOne(Stuck Right, int Copy, Layout.Field One)                 // Leave the specified number of key, data pairs in the left stuck, move the central keey to "one", then copy the specified number of following key, data pairs onto into the right stuck
@@ -715,12 +962,21 @@ Stuck        array  %d
     Right.stuckSize.value = Copy;                                               // New size of right
    }
 
+  String splitHighButOneV(Stuck Right, int Copy, Layout.Field One)              // Leave the specified number of key, data pairs in the left stuck, move the central keey to "one", then copy the specified number of following key, data pairs onto into the right stuck in Verilog
+   {if (Right.maxStuckSize < Copy) return L.P.stopV();
+    final StringBuilder s = new StringBuilder(sizeV()+" = "+Copy+"; "+oneV(Copy, One));
+    for (int i = 0; i < Copy; ++i) s.append(" "+copyV(Right, ""+i, this, ""+(Copy+i+1)));
+    s.append(" "+dataV(Right, Copy, this, 2*Copy+1)+" "+Right.sizeV()+" = "+Copy+";");
+    return guardV(Copy+" >= "+sizeV(), ""+s);
+   }
+
   void iSplitHighButOne(Stuck Right, int Copy, Layout.Field One)                // Leave the specified number of key, data pairs in the left stuck, move the central keey to "one", then copy the specified number of following key, data pairs onto into the right stuck
    {L.P.new Instruction()
      {void action()
        {splitHighButOne(Right, Copy, One);                                      // Leave the specified number of key, data pairs in the left stuck, move the central keey to "one", then copy the specified number of following key, data pairs onto into the right stuck
        }
-     };
+      String verilog() {return splitHighButOneV(Right, Copy, One);}
+     }.uses(fields()).writes(Right.fields()).writes(One);
    }
 
 //D1 Merge                                                                      // Merge stucks in various weays
@@ -740,12 +996,23 @@ Stuck        array  %d
     success.value = 1;
    }
 
+  String mergeV(Stuck Source, Layout.Field Success)                             // Concatenate the indicated stuck on to the end of the current one in Verilog
+   {final String S = Source.sizeV();
+    final StringBuilder s = new StringBuilder();
+    for (int i = 0; i < min(Source.maxStuckSize, maxStuckSize); ++i)
+     {s.append("if ("+i+" < "+S+") begin "+copyV(this, sizeV()+" + "+i, Source, ""+i)+" end ");
+     }
+    s.append(sizeV()+" = "+sizeV()+" + "+S+";");
+    return successV(S+" + "+sizeV()+" > "+maxStuckSize, ""+s, Success);
+   }
+
   void iMerge(Stuck source, Layout.Field success)                               // Concatenate the indicated stuck on to the end of the current one
    {L.P.new Instruction()
      {void action()
        {merge(source, success);
        }
-     };
+      String verilog() {return mergeV(source, success);}
+     }.uses(fields()).reads(source.fields()).writes(success);
    }
 
   void merge(Stuck Left, Stuck Right, Layout.Field success)                     // Replace the current stuck with the concatenation of the left and right stucks
@@ -767,12 +1034,26 @@ Stuck        array  %d
     success.value = 1;
    }
 
+  String mergeV(Stuck Left, Stuck Right, Layout.Field Success)                  // Replace the current stuck with the concatenation of the left and right stucks in Verilog
+   {final String l = Left.sizeV(), r = Right.sizeV();
+    final StringBuilder s = new StringBuilder();
+    for (int i = 0; i < min(Left.maxStuckSize, maxStuckSize); ++i)
+     {s.append("if ("+i+" < "+l+") begin "+copyV(this, ""+i, Left, ""+i)+" end ");
+     }
+    for (int i = 0; i < min(Right.maxStuckSize, maxStuckSize); ++i)
+     {s.append("if ("+i+" < "+r+") begin "+copyV(this, l+" + "+i, Right, ""+i)+" end ");
+     }
+    s.append(sizeV()+" = "+l+" + "+r+";");
+    return successV(l+" + "+r+" > "+maxStuckSize, ""+s, Success);
+   }
+
   void iMerge(Stuck Left, Stuck Right, Layout.Field Success)                    // Replace the current stuck with the concatenation of the left and right stucks
    {L.P.new Instruction()
      {void action()
        {merge(Left, Right, Success);
        }
-     };
+      String verilog() {return mergeV(Left, Right, Success);}
+     }.uses(fields()).reads(Left.fields()).reads(Right.fields()).writes(Success);
    }
 
   void mergeButOne(Layout.Field Key, Stuck source, Layout.Field success)        // Concatenate the indicated stuck on to the end of the current one with the key inserted over the past last data element separating the two
@@ -792,12 +1073,24 @@ Stuck        array  %d
     success.value = 1;
    }
 
+  String mergeButOneV(Layout.Field Key, Stuck Source, Layout.Field Success)     // Concatenate the indicated stuck on to the end of the current one with the key inserted over the past last data element separating the two in Verilog
+   {final String S = Source.sizeV();
+    final StringBuilder s = new StringBuilder(stuckKeys.vMemory(sizeV())+" = "+Key.vValue()+"; ");
+    for (int i = 0; i < min(Source.maxStuckSize, maxStuckSize); ++i)
+     {s.append("if ("+i+" < "+S+") begin "+copyV(this, sizeV()+" + "+(i+1), Source, ""+i)+" end ");
+     }
+    s.append(stuckData.vMemory(sizeV()+" + "+S+" + 1")+" = "+Source.stuckData.vMemory(S)+"; ");
+    s.append(sizeV()+" = "+sizeV()+" + "+S+" + 1;");
+    return successV(S+" + "+sizeV()+" + 1 >= "+maxStuckSize, ""+s, Success);
+   }
+
   void iMergeButOne(Layout.Field Key, Stuck Source, Layout.Field Success)       // Concatenate the indicated stuck on to the end of the current one with the key inserted over the past last data element separating the two
    {L.P.new Instruction()
      {void action()
        {mergeButOne(Key, Source, Success);                                      // Concatenate the indicated stuck on to the end of the current one with the key inserted over the past last data element separating the two
        }
-     };
+      String verilog() {return mergeButOneV(Key, Source, Success);}
+     }.uses(fields()).reads(Key).reads(Source.fields()).writes(Success);
    }
 
   void mergeButOne                                                              // Concatenate the left and right stucks separated by the key over th past last data element of the left stuck into the target
@@ -825,13 +1118,30 @@ Stuck        array  %d
     success.one();
    }
 
+  String mergeButOneV(Stuck Left, Layout.Field Key, Stuck Right, Layout.Field Success) // Concatenate the left and right stucks separated by the key over the past last data element of the left stuck into the target in Verilog
+   {final String l = Left.sizeV(), r = Right.sizeV();
+    final StringBuilder s = new StringBuilder();
+    for (int i = 0; i < min(Left.maxStuckSize, maxStuckSize); ++i)
+     {s.append("if ("+i+" < "+l+") begin "+copyV(this, ""+i, Left, ""+i)+" end ");
+     }
+    s.append(stuckKeys.vMemory(l)+" = "+Key.vValue()+"; ");
+    s.append(stuckData.vMemory(l)+" = "+Left.stuckData.vMemory(l)+"; ");
+    for (int i = 0; i < min(Right.maxStuckSize, maxStuckSize); ++i)
+     {s.append("if ("+i+" < "+r+") begin "+copyV(this, l+" + "+(i+1), Right, ""+i)+" end ");
+     }
+    s.append(stuckData.vMemory(l+" + "+r+" + 1")+" = "+Right.stuckData.vMemory(r)+"; ");
+    s.append(sizeV()+" = "+l+" + "+r+" + 1;");
+    return successV(l+" + "+r+" + 1 >= "+maxStuckSize, ""+s, Success);
+   }
+
   void iMergeButOne                                                             // Concatenate the left and right stucks separated by the key over th past last data element of the left stuck into the target
    (Stuck Left, Layout.Field Key, Stuck Right, Layout.Field Success)
    {L.P.new Instruction()
      {void action()
        {mergeButOne(Left, Key, Right, Success);                                 // Concatenate the left and right stucks separated by the key over th past last data element of the left stuck into the target
        }
-     };
+      String verilog() {return mergeButOneV(Left, Key, Right, Success);}
+     }.uses(fields()).reads(Left.fields()).reads(Key).reads(Right.fields()).writes(Success);
    }
 
 //D1 Tests                                                                      // Tests
@@ -1487,6 +1797,27 @@ stuckData: value=0, 0=2, 1=4, 2=6, 3=8
 stuckSize: value=2
 stuckKeys: value=0, 0=3, 1=4, 2=3, 3=4
 stuckData: value=0, 0=6, 1=8, 2=6, 3=8
+""");
+   }
+
+  protected static void test_splitLowUneven()
+   {final Stuck R = test_push();
+    final Stuck L = test_push(); L.L.P = R.L.P;
+
+    R.clearProgram();
+    R.iSplitLow(L, 3);
+    R.runProgram();
+
+    ok(L, """
+stuckSize: value=3
+stuckKeys: value=0, 0=1, 1=2, 2=3, 3=4
+stuckData: value=0, 0=2, 1=4, 2=6, 3=8
+""");
+
+    ok(R, """
+stuckSize: value=1
+stuckKeys: value=0, 0=4, 1=2, 2=3, 3=4
+stuckData: value=0, 0=8, 1=4, 2=6, 3=8
 """);
    }
 
@@ -1769,6 +2100,60 @@ stuckData: value=12, 0=11, 1=12, 2=2, 3=2
     ok(F, "fullButOne: value=0");
    }
 
+  protected static void test_verilog()
+   {final Stuck s = testStuck(), l = s.duplicate(), r = s.duplicate();
+    final Layout.Field found = s.found(), index = s.index(), one = s.key(), success = s.success();
+
+    s.clearProgram();
+    s.iPush(); s.iPop(); s.unshift(); s.shift();
+    s.iFirstElement(); s.iLastElement(); s.iPastLastElement(); s.iElementAt(index);
+    s.iSetElementAt(index); s.setKeyAt(index); s.iSetDataAt(index);
+    s.setFirstElement(); s.setLastElement(); s.iSetPastLastElement(); s.setPastLastKey(); s.iSetPastLastData();
+    s.iInsertElementAt(index); s.iRemoveElementAt(index);
+    s.iSplitIntoTwo(l, r, 2); s.iSplitIntoThree(l, r, 1); s.iSplitLow(l, 2); s.iSplitLowButOne(l, 1, one);
+    s.iSplitHigh(r, 2); s.iSplitHighButOne(r, 1, one);
+    s.iMerge(l, success); s.iMerge(l, r, success); s.iMergeButOne(one, r, success); s.iMergeButOne(l, one, r, success);
+    s.iIsEmpty(found); s.iIsFull(found); s.iIsFullButOne(found); s.iClear();
+    ok(s.L.P.unlowered(), 0);
+
+    s.clearProgram();
+    s.iSearch_le(found, index);
+    s.iSearch_eq(found, index);
+    //stop(s.L.P.code.elementAt(0).verilog());
+    ok(s.L.P.code.elementAt(0).verilog(), "if (stuckSize_value >= 4) begin program_stopped = 1; program_pc = program_end; end else begin found_value = 0; "+
+      "if (3 < stuckSize_value && stuckKeys_value <= stuckKeys_memory[3]) begin found_value = 1; stuckIndex_value = 3; end "+
+      "if (2 < stuckSize_value && stuckKeys_value <= stuckKeys_memory[2]) begin found_value = 1; stuckIndex_value = 2; end "+
+      "if (1 < stuckSize_value && stuckKeys_value <= stuckKeys_memory[1]) begin found_value = 1; stuckIndex_value = 1; end "+
+      "if (0 < stuckSize_value && stuckKeys_value <= stuckKeys_memory[0]) begin found_value = 1; stuckIndex_value = 0; end "+
+      "if (found_value) begin stuckKeys_value = stuckKeys_memory[stuckIndex_value]; stuckData_value = stuckData_memory[stuckIndex_value]; end "+
+      "else begin stuckKeys_value = stuckKeys_memory[stuckSize_value]; stuckData_value = stuckData_memory[stuckSize_value]; end end");
+    ok(s.L.P.code.elementAt(1).verilog().endsWith("if (found_value) stuckData_value = stuckData_memory[stuckIndex_value];"));
+
+    s.clearProgram();
+    s.iSplitHigh(r, 1);
+    //stop(s.L.P.verilogModule("split"));
+    ok(s.L.P.verilogModule("split").contains("""
+        0: begin program_pc = program_pc + 1; if (1 >= stuckSize_value) begin program_stopped = 1; program_pc = program_end; end else begin stuckSize_value = 1; stuckKeys_memory[0] = stuckKeys_2_memory[1]; stuckData_memory[0] = stuckData_2_memory[1]; stuckSize_2_value = 1; end end
+"""));
+   }
+
+  protected static void test_schedule()                                         // Composite instructions declare the fields of the stucks they use so instructions on different stucks can share a bundle
+   {final Stuck s = test_push(), l = s.duplicate(), r = s.duplicate();
+    final Layout.Field full = s.full();
+
+    s.clearProgram();
+    s.iSplitIntoTwo(l, r, 2);                                                   // Writes the left and right stucks
+    s.iIsFull(full);                                                            // Only reads the stuck being split
+    r.iPop();                                                                   // Must wait for the split to write the right stuck
+    final Layout.Program.Schedule S = s.L.P.schedule();
+    s.runProgram();
+    ok(S.bundles(),  2);
+    ok(S.executed,   2);
+    ok(full,  "full: value=1");
+    ok(l.stuckSize,  "stuckSize: value=2");
+    ok(r.stuckSize,  "stuckSize: value=1");
+   }
+
   static void oldTests()                                                        // Tests thought to be in good shape
    {test_parse();
     test_push();
@@ -1790,12 +2175,15 @@ stuckData: value=12, 0=11, 1=12, 2=2, 3=2
     test_splitIntoTwo();
     test_splitIntoThree();
     test_splitLow();
+    test_splitLowUneven();
     test_splitHigh();
     test_splitLowButOne();
     test_splitHighButOne();
     test_firstLastPast();
     test_setFirstLastPast();
     test_emptyFull();
+    test_verilog();
+    test_schedule();
    }
 
   static void newTests()                                                        // Tests being worked on
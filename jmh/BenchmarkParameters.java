@@ -0,0 +1,32 @@
+//------------------------------------------------------------------------------
+// Parameters shared by the JMH benchmarks of layouts, stucks and btrees
+// Philip R Brenan at appaapps dot com, Appa Apps Ltd Inc., 2025
+//------------------------------------------------------------------------------
+package com.AppaApps.Silicon;                                                   // Btree in a block on the surface of a silicon chip.
+
+import java.util.*;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+public abstract class BenchmarkParameters                                       // The parameters of a benchmark. Each benchmark executes one round of size operations as Bench does so that the numbers can be compared with those printed by Bench
+ {@Param({"32", "64"})                        public int    size;               // The number of stucks in the btree and the number of keys used
+  @Param({"4", "8", "16"})                    public int    maxStuckSize;       // The maximum number of entries in a stuck: wider stucks make shallower trees
+  @Param({"16", "32"})                        public int    bitsPerKey;         // The number of bits in a key
+  @Param({"sequential", "reverse", "random"}) public String distribution;       // Order in which keys are presented
+
+  Bench bench;                                                                  // Keys and btree programs are made exactly as Bench makes them
+  int[]keys;                                                                    // Keys to be used
+
+  void parameters()                                                             // Create the keys for the current parameters
+   {bench = new Bench(size, maxStuckSize, bitsPerKey,
+      Bench.Distribution.valueOf(distribution), 0, 0, new Stack<String>());
+    keys  = bench.keys;
+   }
+
+  @TearDown(Level.Trial)
+  public void failures()                                                        // A benchmark must not time programs that stopped
+   {if (bench.failures > 0)
+     {throw new IllegalStateException(bench.failures+" runs failed");
+     }
+   }
+ }
@@ -0,0 +1,107 @@
+//------------------------------------------------------------------------------
+// JMH benchmarks of btrees
+// Philip R Brenan at appaapps dot com, Appa Apps Ltd Inc., 2025
+//------------------------------------------------------------------------------
+package com.AppaApps.Silicon;                                                   // Btree in a block on the surface of a silicon chip.
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class BtreeBenchmark                                                     // Put, find and delete each key in a btree. The programs are generated before they are timed so that only their execution is measured
+ {static final int batch = 100;                                                 // Trees changed by each iteration of put and delete: each tree can only be filled or emptied once so they are all prepared before the iteration starts
+
+  @State(Scope.Benchmark)
+  public static class Put extends BenchmarkParameters                           // Empty trees and programs to put keys into them
+   {final Btree[]         trees = new Btree[batch];
+    final Layout.Program[]puts  = new Layout.Program[batch];
+    int next;                                                                   // Next tree to fill
+
+    @Setup(Level.Iteration)
+    public void setUp()
+     {if (bench == null) parameters();
+      for (int i = 0; i < batch; i++)
+       {final Btree b = trees[i] = bench.btree();
+        puts[i] = bench.program(b, () -> b.put());
+       }
+      next = 0;
+     }
+   }
+
+  @State(Scope.Benchmark)
+  public static class Find extends BenchmarkParameters                          // A full tree and a program to find keys in it
+   {Btree b; Layout.Program find; Layout.Field found, data;
+
+    @Setup(Level.Trial)
+    public void setUp()
+     {parameters();
+      b = bench.btree();
+      bench.fill(b, bench.program(b, () -> b.put()));
+      find = bench.program(b, () ->                                             // Variables must be created after the program has been started so that they generate code into it
+       {final Stuck        s = b.stuck();
+        final Layout.Field k = s.key();
+        found = s.found(); data = s.data();
+        k.iMove(b.stuckKeys);
+        b.find(k, found, data, b.index(), s.index());
+       });
+     }
+   }
+
+  @State(Scope.Benchmark)
+  public static class Delete extends BenchmarkParameters                        // Full trees and programs to delete keys from them
+   {final Btree[]         trees   = new Btree[batch];
+    final Layout.Program[]deletes = new Layout.Program[batch];
+    int next;                                                                   // Next tree to empty
+
+    @Setup(Level.Iteration)
+    public void setUp()
+     {if (bench == null) parameters();
+      for (int i = 0; i < batch; i++)
+       {final Btree b = trees[i] = bench.btree();
+        bench.fill(b, bench.program(b, () -> b.put()));
+        deletes[i] = bench.program(b, () -> b.delete(b.stuck().data()));
+       }
+      next = 0;
+     }
+   }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)                                           // Each invocation fills a fresh tree and the batch is timed as a whole so that no setup runs between invocations: the score is the time taken by the whole batch
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @Warmup(iterations = 5, batchSize = batch)
+  @Measurement(iterations = 5, batchSize = batch)
+  public void put(Put s)
+   {final int i = s.next++;
+    s.bench.fill(s.trees[i], s.puts[i]);
+   }
+
+  @Benchmark
+  public void find(Find s, Blackhole h)
+   {s.b.continueProgram(s.find);
+    for (int i = 0; i < s.size; i++)
+     {s.b.stuckKeys.value = s.keys[i];
+      s.bench.runProgram(s.b);
+      h.consume(s.data.value);
+     }
+   }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)                                           // Each invocation empties a full tree and the batch is timed as a whole so that no setup runs between invocations: the score is the time taken by the whole batch
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @Warmup(iterations = 5, batchSize = batch)
+  @Measurement(iterations = 5, batchSize = batch)
+  public void delete(Delete s)
+   {final int i = s.next++;
+    final Btree b = s.trees[i];
+    b.continueProgram(s.deletes[i]);
+    for (int k = 0; k < s.size; k++)
+     {b.stuckKeys.value = s.keys[k];
+      s.bench.runProgram(b);
+     }
+   }
+ }
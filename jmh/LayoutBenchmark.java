@@ -0,0 +1,45 @@
+//------------------------------------------------------------------------------
+// JMH benchmarks of the fields of a layout
+// Philip R Brenan at appaapps dot com, Appa Apps Ltd Inc., 2025
+//------------------------------------------------------------------------------
+package com.AppaApps.Silicon;                                                   // Btree in a block on the surface of a silicon chip.
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class LayoutBenchmark extends BenchmarkParameters                        // Read, write and move the elements of an array in a layout
+ {Layout.Field b;                                                               // Array element being accessed
+
+  @Setup(Level.Trial)
+  public void setUp()
+   {parameters();
+    final Layout l = new Layout(String.format("""
+a    array %d
+  b  var   %d
+""", size, bitsPerKey));
+    b = l.locateFieldByName("b");
+    for (int i = 0; i < size; i++) b.write(keys[i], i);
+   }
+
+  @Benchmark
+  public void write()
+   {for (int i = 0; i < size; i++) b.write(keys[i], i);
+   }
+
+  @Benchmark
+  public void read(Blackhole h)
+   {for (int i = 0; i < size; i++) {b.read(i); h.consume(b.value);}
+   }
+
+  @Benchmark
+  public void move()
+   {for (int i = 0; i < size; i++) b.move(i, b, size - 1 - i);
+   }
+ }
@@ -0,0 +1,61 @@
+//------------------------------------------------------------------------------
+// JMH benchmarks of stucks
+// Philip R Brenan at appaapps dot com, Appa Apps Ltd Inc., 2025
+//------------------------------------------------------------------------------
+package com.AppaApps.Silicon;                                                   // Btree in a block on the surface of a silicon chip.
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class StuckBenchmark extends BenchmarkParameters                         // Search, insert and split stucks
+ {Stuck b, s, l, r;                                                             // Branch being searched, stuck inserted into or split and the left and right halves of a split
+  Layout.Field found, index;                                                    // Results of a search
+
+  @Setup(Level.Trial)
+  public void setUp()
+   {parameters();
+    b = new Stuck(maxStuckSize, bitsPerKey, bench.bitsPerData);
+    s = new Stuck(maxStuckSize, bitsPerKey, bench.bitsPerData);
+    l = new Stuck(maxStuckSize, bitsPerKey, bench.bitsPerData);
+    r = new Stuck(maxStuckSize, bitsPerKey, bench.bitsPerData);
+    found = b.found(); index = b.index();
+    for (int i = 0; i < maxStuckSize-1; i++)                                    // A branch has room for the top child
+     {b.stuckKeys.value = 2 * i + 2; b.stuckData.value = i; b.push();
+     }
+    for (int i = 0; i < maxStuckSize; i++)                                      // A full stuck to split
+     {s.stuckKeys.value = i + 1; s.stuckData.value = i; s.push();
+     }
+   }
+
+  @Benchmark
+  public void search_le(Blackhole h)
+   {final int M = maxStuckSize;
+    for (int i = 0; i < size; i++)
+     {b.stuckKeys.value = keys[i] % (2 * M); b.search_le(found, index);
+      h.consume(index.value);
+     }
+   }
+
+  @Benchmark
+  public void insertElementAt()
+   {final int M = maxStuckSize;
+    for (int i = 0; i < size; i++)
+     {s.stuckSize.value = M-1;
+      index.value       = i % M;
+      s.stuckKeys.value = keys[i]; s.stuckData.value = i;
+      s.insertElementAt(index);
+     }
+   }
+
+  @Benchmark
+  public void splitIntoTwo()
+   {for (int i = 0; i < size; i++) s.splitIntoTwo(l, r, maxStuckSize / 2);
+   }
+ }
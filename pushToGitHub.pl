@@ -16,7 +16,7 @@ my $user      = q(philiprbrenan);
 my $home      = fpd q(/home/phil), $repo;                                       # Home folder
 my $shaFile   = fpe $home, q(sha);                                              # Sh256 file sums for each known file to detect changes
 my $wf        = q(.github/workflows/main.yml);                                  # Work flow on Ubuntu
-my @ext       = qw(.java .pl);                                                  # Extensions of files to upload to github
+my @ext       = qw(.java .pl .xml);                                             # Extensions of files to upload to github
 
 say STDERR timeStamp,  " push to github $repo";
 
@@ -48,7 +48,7 @@ writeFileUsingSavedToken($user, $repo, q(.config/geany/keybindings.conf),
 writeFileUsingSavedToken($user, $repo, q(.config/MakeWithPerl.pm),              # Save make with perl for the same reason
                   readFile(q(/home/phil/perl/cpan/MakeWithPerl/lib/MakeWithPerl.pm)));
 
-if (my @java = grep {m/\.java\Z/} @files)                                       # Write workflow to test java files
+if (my @java = grep {m/\.java\Z/ and !m(/jmh/)} @files)                         # Write workflow to test java files. The benchmarks in jmh/ are built by Maven not tested
  {my @j = map {fn $_} @java;
   my $d = dateTimeStamp;
   my $c = q(com/AppaApps/Silicon);                                              # Package to classes folder